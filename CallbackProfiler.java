@@ -0,0 +1,339 @@
+package com.example.wificoms;
+
+/**
+ * Measures how long the callbacks of a {@link DiscoveryTransport} (and
+ * everything the engine and the UI do in response) take, separately for the
+ * main thread and for the other threads. This shows how much of the main
+ * thread a discovery burst takes, with the callbacks on the main thread or on
+ * a background thread (see {@link DiscoveryExecutors}).
+ *
+ * <p/>
+ *
+ * Wrap the transport with {@link #wrap(DiscoveryTransport)}, and the
+ * scheduler of the {@link LogDispatcher} with
+ * {@link #wrap(LogDispatcher.FlushScheduler)} so that the flushes into the UI
+ * are counted as well. The durations are recorded in microseconds.
+ */
+public class CallbackProfiler {
+
+    /** A transport whose callbacks are timed. */
+    private final class ProfiledTransport implements DiscoveryTransport {
+
+        private final DiscoveryTransport transport;
+
+        ProfiledTransport(DiscoveryTransport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public void setCallback(Callback callback) {
+            transport.setCallback(new ProfiledCallback(callback));
+        }
+
+        @Override
+        public void registerService(DiscoveredService service) {
+            transport.registerService(service);
+        }
+
+        @Override
+        public void unregisterService() {
+            transport.unregisterService();
+        }
+
+        @Override
+        public void startServiceDiscovery(String serviceType) {
+            transport.startServiceDiscovery(serviceType);
+        }
+
+        @Override
+        public void stopServiceDiscovery() {
+            transport.stopServiceDiscovery();
+        }
+
+        @Override
+        public void resolveService(DiscoveredService service) {
+            transport.resolveService(service);
+        }
+
+        @Override
+        public void close() {
+            transport.close();
+        }
+    }
+
+    /**
+     * Times every call of a callback. A callback that is called from within
+     * another one (e.g. a resolve that is answered right away) is part of the
+     * outer one, so only the outermost call is recorded.
+     */
+    private final class ProfiledCallback implements DiscoveryTransport.Callback {
+
+        private final DiscoveryTransport.Callback callback;
+
+        ProfiledCallback(DiscoveryTransport.Callback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onServiceRegistered(DiscoveredService service) {
+            long start = enter();
+            try {
+                callback.onServiceRegistered(service);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onRegistrationFailed(DiscoveredService service, int errorCode) {
+            long start = enter();
+            try {
+                callback.onRegistrationFailed(service, errorCode);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onServiceUnregistered(DiscoveredService service) {
+            long start = enter();
+            try {
+                callback.onServiceUnregistered(service);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onUnregistrationFailed(DiscoveredService service, int errorCode) {
+            long start = enter();
+            try {
+                callback.onUnregistrationFailed(service, errorCode);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onDiscoveryStarted(String serviceType) {
+            long start = enter();
+            try {
+                callback.onDiscoveryStarted(serviceType);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+            long start = enter();
+            try {
+                callback.onStartDiscoveryFailed(serviceType, errorCode);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onDiscoveryStopped(String serviceType) {
+            long start = enter();
+            try {
+                callback.onDiscoveryStopped(serviceType);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onStopDiscoveryFailed(String serviceType, int errorCode) {
+            long start = enter();
+            try {
+                callback.onStopDiscoveryFailed(serviceType, errorCode);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onServiceFound(DiscoveredService service) {
+            long start = enter();
+            try {
+                callback.onServiceFound(service);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onServiceResolved(DiscoveredService service) {
+            long start = enter();
+            try {
+                callback.onServiceResolved(service);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onResolveFailed(DiscoveredService service, int errorCode) {
+            long start = enter();
+            try {
+                callback.onResolveFailed(service, errorCode);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onServiceLost(DiscoveredService service) {
+            long start = enter();
+            try {
+                callback.onServiceLost(service);
+            } finally {
+                exit(start);
+            }
+        }
+
+        @Override
+        public void onMessage(String message) {
+            long start = enter();
+            try {
+                callback.onMessage(message);
+            } finally {
+                exit(start);
+            }
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private final Thread                mainThread;
+    private final LatencyHistogram      mainThreadMicros    = new LatencyHistogram("main thread (us)");
+    private final LatencyHistogram      otherThreadMicros   = new LatencyHistogram("other threads (us)");
+
+    /** The number of nested callbacks per thread. */
+    private final ThreadLocal<int[]>    depth               = new ThreadLocal<int[]>() {
+
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /** Create a profiler that tells the specified main thread apart from the others. */
+    public CallbackProfiler(Thread mainThread) {
+        this.mainThread = mainThread;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get the durations of the callbacks and flushes on the main thread, in microseconds. */
+    public LatencyHistogram getMainThreadHistogram() {
+        return mainThreadMicros.copy();
+    }
+
+    /** Get the durations of the callbacks on the other threads, in microseconds. */
+    public LatencyHistogram getOtherThreadHistogram() {
+        return otherThreadMicros.copy();
+    }
+
+    /** Get the total time the main thread spent in callbacks and flushes, in milliseconds. */
+    public double getMainThreadMillis() {
+        LatencyHistogram histogram = getMainThreadHistogram();
+        return histogram.getMean() * histogram.getCount() / 1000;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Get a transport that delegates to the specified one, and times its callbacks. */
+    public DiscoveryTransport wrap(DiscoveryTransport transport) {
+        return new ProfiledTransport(transport);
+    }
+
+    /** Get a flush scheduler that delegates to the specified one, and times the flushes. */
+    public LogDispatcher.FlushScheduler wrap(final LogDispatcher.FlushScheduler scheduler) {
+        return new LogDispatcher.FlushScheduler() {
+
+            /** The dispatcher always schedules the same flush, so its wrapper is kept. */
+            private Runnable flush  = null;
+            private Runnable timed  = null;
+
+            @Override
+            public synchronized void schedule(final Runnable flush) {
+                if (flush != this.flush) {
+                    this.flush = flush;
+                    this.timed = new Runnable() {
+
+                        @Override
+                        public void run() {
+                            long start = System.nanoTime();
+                            try {
+                                flush.run();
+                            } finally {
+                                record(start);
+                            }
+                        }
+                    };
+                }
+                scheduler.schedule(timed);
+            }
+        };
+    }
+
+    /** Forget the durations that were recorded so far, e.g. before a discovery burst. */
+    public void reset() {
+        mainThreadMicros.reset();
+        otherThreadMicros.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "CallbackProfiler: main thread: " + Math.round(getMainThreadMillis()) + " ms, " + mainThreadMicros
+                + ", " + otherThreadMicros;
+    }
+
+    /** Enter a callback on the current thread, and return its start time. */
+    private long enter() {
+        depth.get()[0]++;
+        return System.nanoTime();
+    }
+
+    /** Leave the callback that started at the specified time, and record it if it is the outermost one. */
+    private void exit(long startNanos) {
+        if (--depth.get()[0] == 0) {
+            record(startNanos);
+        }
+    }
+
+    /** Record the time since the specified start, on the current thread. */
+    private void record(long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        if (Thread.currentThread() == mainThread) {
+            mainThreadMicros.record(micros);
+        } else {
+            otherThreadMicros.record(micros);
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package com.example.wificoms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Issues the operations on a {@link android.net.wifi.p2p.WifiP2pManager.Channel}
+ * one at a time, in order, and tracks their completion. The framework handles
+ * the operations of a channel one after the other, and answers BUSY when it
+ * is asked too much at once, so firing them back to back loses some of them,
+ * and lets later ones (e.g. discovering services) run before earlier ones
+ * (e.g. adding the service requests) took effect.
+ *
+ * <p/>
+ *
+ * Operations are grouped into {@link Batch}es. Every operation, and every
+ * batch, has a {@link CommandFuture} that completes once it was acknowledged
+ * or failed. An operation is only issued once the previous one completed, and
+ * the rest of a batch is cancelled once one of its operations failed, so the
+ * last operation of a batch only runs if all of the others succeeded. An
+ * operation that fails with BUSY is retried, with exponential backoff, and one
+ * that is not answered within the timeout fails with {@link #TIMEOUT}. The
+ * latency of every kind of operation, from when it was first issued to when
+ * it completed (including the retries), is recorded in a
+ * {@link LatencyHistogram}.
+ *
+ * <p/>
+ *
+ * Nothing in here depends on Android, so the pipeline is driven by a
+ * {@link TaskScheduler} and runs on a plain JVM as well.
+ */
+public class ChannelCommandPipeline {
+
+    /** An operation on the channel, e.g. adding a service request. */
+    public interface Operation {
+
+        /** Issue the operation, and tell the specified completion how it went, exactly once. */
+        void issue(Completion completion);
+    }
+
+    /** Receives the outcome of an {@link Operation}, like an ActionListener of the framework. */
+    public interface Completion {
+
+        void onSuccess();
+
+        void onFailure(int code);
+    }
+
+    /**
+     * The outcome of an operation or a batch. It succeeds with null, or fails
+     * with an {@link ExecutionException} that carries the error code in its
+     * message. Listeners are called on the thread that completes it.
+     */
+    public static final class CommandFuture implements Future<Void> {
+
+        private final String            name;
+        private final List<Runnable>    listeners       = new ArrayList<Runnable>();
+        private boolean                 done            = false;
+        private boolean                 cancelled       = false;
+        private boolean                 failed          = false;
+        private int                     errorCode       = 0;
+        private int                     attempts        = 0;
+        private long                    latencyMillis   = -1;
+
+        CommandFuture(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Whether the operation (or every operation of the batch) was acknowledged. */
+        public synchronized boolean isSuccess() {
+            return done && !failed && !cancelled;
+        }
+
+        /** Get the error code of the failure, or 0. */
+        public synchronized int getErrorCode() {
+            return errorCode;
+        }
+
+        /** Get how often the operation was issued, i.e. 1 plus the number of retries. */
+        public synchronized int getAttempts() {
+            return attempts;
+        }
+
+        /** Get how long it took from the first attempt to the completion, or -1 if it did not complete. */
+        public synchronized long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /** Run the specified listener once this completes, or right away if it did already. */
+        public void addListener(Runnable listener) {
+            synchronized (this) {
+                if (!done) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /** Cancel the operation, unless it was issued already. */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (done || attempts > 0) {
+                    return false;
+                }
+            }
+            return complete(true, false, 0, -1);
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public synchronized Void get() throws InterruptedException, ExecutionException {
+            while (!done) {
+                wait();
+            }
+            return result();
+        }
+
+        @Override
+        public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!done) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException(name);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return result();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + ": " + (!done ? "pending" : cancelled ? "cancelled" : failed ? "failed: " + errorCode
+                    : "succeeded") + ", attempts: " + attempts + ", latency: " + latencyMillis + " ms";
+        }
+
+        private Void result() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException(name);
+            } else if (failed) {
+                throw new ExecutionException(new IllegalStateException(name + " failed: " + errorCode));
+            }
+            return null;
+        }
+
+        /** Complete this, unless it completed already, and tell the listeners. Return whether it did. */
+        boolean complete(boolean cancel, boolean fail, int code, long latencyMillis) {
+            List<Runnable> completed;
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                done = true;
+                cancelled = cancel;
+                failed = fail;
+                errorCode = code;
+                this.latencyMillis = latencyMillis;
+                completed = new ArrayList<Runnable>(listeners);
+                listeners.clear();
+                notifyAll();
+            }
+            for (Runnable listener : completed) {
+                listener.run();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Operations that are issued one after the other, and whose
+     * {@link CommandFuture} completes once all of them did.
+     */
+    public final class Batch {
+
+        private final CommandFuture     future;
+        private final List<Command>     commands    = new ArrayList<Command>();
+        private boolean                 submitted   = false;
+
+        Batch(String name) {
+            this.future = new CommandFuture(name);
+        }
+
+        /** Add the specified operation, and return its future. */
+        public CommandFuture add(String name, Operation operation) {
+            if (submitted) {
+                throw new IllegalStateException("The batch was submitted already");
+            }
+            Command command = new Command(this, name, operation);
+            commands.add(command);
+            return command.future;
+        }
+
+        /** Queue the operations of this batch after the ones that were submitted before, and return its future. */
+        public CommandFuture submit() {
+            if (!submitted) {
+                submitted = true;
+                enqueue(this);
+            }
+            return future;
+        }
+    }
+
+    /** A queued operation, and the state of its attempts. */
+    private static final class Command {
+
+        private final Batch             batch;
+        private final String            name;
+        private final Operation         operation;
+        private final CommandFuture     future;
+        private long                    firstIssuedAt   = -1;
+        private int                     attempt         = 0;
+
+        Command(Batch batch, String name, Operation operation) {
+            this.batch = batch;
+            this.name = name;
+            this.operation = operation;
+            this.future = new CommandFuture(name);
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    /** The error code of the framework that asks to try again later. */
+    public static final int                         BUSY                        = 2;
+
+    /** The error code of an operation that was not answered within the timeout. */
+    public static final int                         TIMEOUT                     = -1;
+
+    public static final long                        DEFAULT_TIMEOUT_MILLIS      = 5 * 1000;
+    public static final long                        DEFAULT_INITIAL_BACKOFF     = 100;
+    public static final long                        DEFAULT_MAX_BACKOFF         = 3200;
+    public static final int                         DEFAULT_MAX_ATTEMPTS        = 6;
+
+    private final TaskScheduler                     scheduler;
+    private final ArrayDeque<Command>               queue                       = new ArrayDeque<Command>();
+    private final Map<String, LatencyHistogram>     latencies                   =
+            new LinkedHashMap<String, LatencyHistogram>();
+    private Command                                 current                     = null;
+    private TaskScheduler.Cancellable               timer                       = null;
+    private long                                    timeoutMillis               = DEFAULT_TIMEOUT_MILLIS;
+    private long                                    initialBackoffMillis        = DEFAULT_INITIAL_BACKOFF;
+    private long                                    maxBackoffMillis            = DEFAULT_MAX_BACKOFF;
+    private int                                     maxAttempts                 = DEFAULT_MAX_ATTEMPTS;
+    private long                                    busyRetries                 = 0;
+    private long                                    timeouts                    = 0;
+    private long                                    failures                    = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /** Create a pipeline whose retries and timeouts run on the specified scheduler. */
+    public ChannelCommandPipeline(TaskScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get the number of operations that are queued or in flight. */
+    public synchronized int getPendingCount() {
+        return queue.size() + (current == null ? 0 : 1);
+    }
+
+    /** Get a copy of the latencies of the operations with the specified name, or null if none completed. */
+    public synchronized LatencyHistogram getLatency(String name) {
+        LatencyHistogram histogram = latencies.get(name);
+        return histogram == null ? null : histogram.copy();
+    }
+
+    /** Get the names of the operations whose latencies were recorded. */
+    public synchronized List<String> getOperationNames() {
+        return Collections.unmodifiableList(new ArrayList<String>(latencies.keySet()));
+    }
+
+    public synchronized long getBusyRetryCount() {
+        return busyRetries;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return timeouts;
+    }
+
+    /** Get the number of operations that failed for good (including the ones that timed out). */
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    /** Set how long an operation may go unanswered before it fails with {@link #TIMEOUT}. */
+    public synchronized void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /** Set the backoff before the first retry of a BUSY operation, which doubles up to the maximum. */
+    public synchronized void setBackoffMillis(long initialBackoffMillis, long maxBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /** Set how often a BUSY operation is issued before it fails for good. */
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Create a batch with the specified name. Nothing is issued before it is submitted. */
+    public Batch newBatch(String name) {
+        return new Batch(name);
+    }
+
+    /** Submit the specified operation in a batch of its own, and return its future. */
+    public CommandFuture submit(String name, Operation operation) {
+        Batch batch = newBatch(name);
+        CommandFuture future = batch.add(name, operation);
+        batch.submit();
+        return future;
+    }
+
+    /**
+     * Cancel every operation that was not issued yet, and forget the one in
+     * flight, e.g. because the channel is closed. Its answer is ignored.
+     */
+    public void clear() {
+        List<Command> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<Command>(queue);
+            queue.clear();
+            if (current != null) {
+                cancelled.add(0, current);
+                current = null;
+            }
+            cancelTimer();
+        }
+        for (Command command : cancelled) {
+            command.future.complete(true, false, 0, -1);
+            command.batch.future.complete(true, false, 0, -1);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("ChannelCommandPipeline: pending: ").append(getPendingCount())
+                .append(", busyRetries: ").append(busyRetries).append(", timeouts: ").append(timeouts)
+                .append(", failures: ").append(failures);
+        for (LatencyHistogram histogram : latencies.values()) {
+            builder.append(", ").append(histogram);
+        }
+        return builder.toString();
+    }
+
+    private void enqueue(Batch batch) {
+        if (batch.commands.isEmpty()) {
+            batch.future.complete(false, false, 0, 0);
+            return;
+        }
+        synchronized (this) {
+            queue.addAll(batch.commands);
+            if (current != null) {
+                return;
+            }
+        }
+        next();
+    }
+
+    /**
+     * Issue the next operation, unless one is in flight. The batch of an
+     * operation that was cancelled before it was issued is cancelled as a
+     * whole, since the rest of it depends on that operation.
+     */
+    private void next() {
+        Command command = null;
+        List<Batch> cancelled = new ArrayList<Batch>();
+        synchronized (this) {
+            while (current == null && !queue.isEmpty()) {
+                Command head = queue.poll();
+                if (!head.future.isDone()) {
+                    current = head;
+                    command = head;
+                } else if (head.future.isCancelled()) {
+                    cancelled.add(head.batch);
+                }
+            }
+        }
+        for (Batch batch : cancelled) {
+            for (Command other : batch.commands) {
+                other.future.cancel(false);
+            }
+            batch.future.complete(true, false, 0, -1);
+        }
+        if (command != null) {
+            issue(command);
+        }
+    }
+
+    /** Issue the specified operation, and wait for its answer until the timeout. */
+    private void issue(final Command command) {
+        final int attempt;
+        synchronized (this) {
+            if (current != command) {
+                return;
+            }
+            attempt = ++command.attempt;
+            if (command.firstIssuedAt < 0) {
+                command.firstIssuedAt = scheduler.now();
+            }
+            synchronized (command.future) {
+                command.future.attempts = attempt;
+            }
+            cancelTimer();
+            timer = scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    onAnswer(command, attempt, false, TIMEOUT);
+                }
+            }, timeoutMillis);
+        }
+        command.operation.issue(new Completion() {
+
+            @Override
+            public void onSuccess() {
+                onAnswer(command, attempt, true, 0);
+            }
+
+            @Override
+            public void onFailure(int code) {
+                onAnswer(command, attempt, false, code);
+            }
+        });
+    }
+
+    /**
+     * The specified attempt of the specified operation was answered (or timed
+     * out). Answers to earlier attempts, or to operations that were cleared,
+     * are ignored.
+     */
+    private void onAnswer(final Command command, int attempt, boolean success, int code) {
+        long latency;
+        synchronized (this) {
+            if (current != command || command.attempt != attempt) {
+                return;
+            }
+            cancelTimer();
+            if (!success && code == BUSY && attempt < maxAttempts) {
+                busyRetries++;
+                long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 30));
+                timer = scheduler.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        issue(command);
+                    }
+                }, backoff);
+                return;
+            }
+            current = null;
+            latency = scheduler.now() - command.firstIssuedAt;
+            LatencyHistogram histogram = latencies.get(command.name);
+            if (histogram == null) {
+                histogram = new LatencyHistogram(command.name);
+                latencies.put(command.name, histogram);
+            }
+            histogram.record(latency);
+            if (!success) {
+                failures++;
+                if (code == TIMEOUT) {
+                    timeouts++;
+                }
+            }
+        }
+        command.future.complete(false, !success, code, latency);
+        Batch batch = command.batch;
+        if (!success) {
+
+            /** The rest of the batch depends on this operation, so it is cancelled. */
+            for (Command other : batch.commands) {
+                other.future.cancel(false);
+            }
+            batch.future.complete(false, true, code, -1);
+        } else if (command == batch.commands.get(batch.commands.size() - 1)) {
+            batch.future.complete(false, false, 0, scheduler.now() - batch.commands.get(0).firstIssuedAt);
+        }
+        next();
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.wificoms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives the {@link ChannelCommandPipeline} with a {@link VirtualTaskScheduler},
+ * and with operations whose answers the tests give, so that every retry,
+ * timeout and late answer happens at a known time.
+ */
+public class ChannelCommandPipelineTest {
+
+    private static final long       TIMEOUT_MILLIS  = 1000;
+    private static final int        ERROR           = 0;
+
+    /** An operation that records when it was issued, and answers right away if it was told how. */
+    private final class ScriptedOperation implements ChannelCommandPipeline.Operation {
+
+        private final List<ChannelCommandPipeline.Completion>   completions =
+                new ArrayList<ChannelCommandPipeline.Completion>();
+        private final List<Long>                                issuedAt    = new ArrayList<Long>();
+        private final boolean                                   answers;
+        private final boolean                                   success;
+        private final int                                       code;
+
+        /** Create an operation that answers every attempt with success or the specified code, or not at all. */
+        ScriptedOperation(boolean answers, boolean success, int code) {
+            this.answers = answers;
+            this.success = success;
+            this.code = code;
+        }
+
+        @Override
+        public void issue(ChannelCommandPipeline.Completion completion) {
+            completions.add(completion);
+            issuedAt.add(scheduler.now());
+            if (!answers) {
+                return;
+            } else if (success) {
+                completion.onSuccess();
+            } else {
+                completion.onFailure(code);
+            }
+        }
+
+        /** Get the completion of the specified attempt (1 for the first). */
+        ChannelCommandPipeline.Completion attempt(int attempt) {
+            return completions.get(attempt - 1);
+        }
+    }
+
+    private VirtualTaskScheduler    scheduler;
+    private ChannelCommandPipeline  pipeline;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualTaskScheduler();
+        pipeline = new ChannelCommandPipeline(scheduler);
+        pipeline.setTimeoutMillis(TIMEOUT_MILLIS);
+        pipeline.setBackoffMillis(100, 400);
+        pipeline.setMaxAttempts(5);
+    }
+
+    @Test
+    public void retriesBusyWithBackoffUpToTheMaximumOfAttempts() {
+        ScriptedOperation busy = failing(ChannelCommandPipeline.BUSY);
+        ChannelCommandPipeline.CommandFuture future = pipeline.submit("busy", busy);
+        scheduler.runUntilIdle();
+
+        /** The backoff doubles from 100 ms, and stays at the maximum of 400 ms. */
+        assertEquals(Arrays.asList(0L, 100L, 300L, 700L, 1100L), busy.issuedAt);
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccess());
+        assertEquals(ChannelCommandPipeline.BUSY, future.getErrorCode());
+        assertEquals(5, future.getAttempts());
+        assertEquals(1100, future.getLatencyMillis());
+        assertEquals(4, pipeline.getBusyRetryCount());
+        assertEquals(1, pipeline.getFailureCount());
+    }
+
+    @Test
+    public void succeedsOnceBusyGoesAway() {
+        ScriptedOperation operation = silent();
+        ChannelCommandPipeline.CommandFuture future = pipeline.submit("op", operation);
+        operation.attempt(1).onFailure(ChannelCommandPipeline.BUSY);
+        scheduler.advance(100);
+        operation.attempt(2).onSuccess();
+
+        assertTrue(future.isSuccess());
+        assertEquals(2, future.getAttempts());
+        assertEquals(100, future.getLatencyMillis());
+        assertEquals(1, pipeline.getLatency("op").getCount());
+    }
+
+    @Test
+    public void failsOperationsThatAreNotAnsweredWithTimeout() {
+        ScriptedOperation first = silent();
+        ScriptedOperation second = succeeding();
+        ChannelCommandPipeline.CommandFuture future = pipeline.submit("first", first);
+        pipeline.submit("second", second);
+
+        scheduler.advance(TIMEOUT_MILLIS - 1);
+        assertFalse(future.isDone());
+        assertTrue(second.issuedAt.isEmpty());
+
+        scheduler.advance(1);
+        assertTrue(future.isDone());
+        assertEquals(ChannelCommandPipeline.TIMEOUT, future.getErrorCode());
+        assertEquals(1, pipeline.getTimeoutCount());
+        assertEquals(Arrays.asList(TIMEOUT_MILLIS), second.issuedAt);
+        assertEquals(0, pipeline.getPendingCount());
+    }
+
+    @Test
+    public void failureCancelsTheRestOfItsBatch() {
+        ScriptedOperation failing = failing(ERROR);
+        ScriptedOperation skipped = succeeding();
+        ScriptedOperation other = succeeding();
+        ChannelCommandPipeline.Batch batch = pipeline.newBatch("batch");
+        ChannelCommandPipeline.CommandFuture first = batch.add("failing", failing);
+        ChannelCommandPipeline.CommandFuture second = batch.add("skipped", skipped);
+        ChannelCommandPipeline.CommandFuture batchFuture = batch.submit();
+        ChannelCommandPipeline.CommandFuture next = pipeline.submit("other", other);
+
+        assertFalse(first.isSuccess());
+        assertEquals(ERROR, first.getErrorCode());
+        assertTrue(second.isCancelled());
+        assertTrue(skipped.issuedAt.isEmpty());
+        assertTrue(batchFuture.isDone());
+        assertFalse(batchFuture.isSuccess());
+
+        /** The next batch does not depend on the failed one, so it still runs. */
+        assertTrue(next.isSuccess());
+    }
+
+    @Test
+    public void ignoresLateAnswersToStaleAttempts() {
+        ScriptedOperation operation = silent();
+        ScriptedOperation next = silent();
+        ChannelCommandPipeline.CommandFuture future = pipeline.submit("op", operation);
+        ChannelCommandPipeline.CommandFuture nextFuture = pipeline.submit("next", next);
+        operation.attempt(1).onFailure(ChannelCommandPipeline.BUSY);
+        scheduler.advance(100);
+
+        /** The first attempt was answered already, and the second one is in flight. */
+        operation.attempt(1).onSuccess();
+        assertFalse(future.isDone());
+
+        /** Once the second attempt timed out, its late answer must not complete the next operation. */
+        scheduler.advance(TIMEOUT_MILLIS);
+        assertEquals(ChannelCommandPipeline.TIMEOUT, future.getErrorCode());
+        assertEquals(1, next.completions.size());
+        operation.attempt(2).onSuccess();
+        assertFalse(future.isSuccess());
+        assertFalse(nextFuture.isDone());
+
+        next.attempt(1).onSuccess();
+        assertTrue(nextFuture.isSuccess());
+    }
+
+    @Test
+    public void batchCompletesAfterItsLastOperation() {
+        ScriptedOperation first = silent();
+        ScriptedOperation second = silent();
+        ChannelCommandPipeline.Batch batch = pipeline.newBatch("batch");
+        batch.add("first", first);
+        batch.add("second", second);
+        ChannelCommandPipeline.CommandFuture future = batch.submit();
+
+        /** The second operation is only issued once the first one was acknowledged. */
+        assertEquals(1, first.completions.size());
+        assertTrue(second.completions.isEmpty());
+        scheduler.advance(10);
+        first.attempt(1).onSuccess();
+        assertFalse(future.isDone());
+        assertEquals(Arrays.asList(10L), second.issuedAt);
+
+        scheduler.advance(20);
+        second.attempt(1).onSuccess();
+        assertTrue(future.isSuccess());
+        assertEquals(30, future.getLatencyMillis());
+    }
+
+    /** Create an operation that fails every attempt with the specified code. */
+    private ScriptedOperation failing(int code) {
+        return new ScriptedOperation(true, false, code);
+    }
+
+    /** Create an operation that succeeds right away. */
+    private ScriptedOperation succeeding() {
+        return new ScriptedOperation(true, true, 0);
+    }
+
+    /** Create an operation whose answers the test gives. */
+    private ScriptedOperation silent() {
+        return new ScriptedOperation(false, false, 0);
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.wificoms;
+
+import java.security.SecureRandom;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.provider.Settings.Secure;
+
+/**
+ * The ID of this device, which the services are named after (see
+ * {@link ServiceNamer}) and advertised with (see
+ * {@link PeerAttributes#DEVICE_ID}). It is the ANDROID_ID, unless the platform
+ * has none (it may be null), or only the one that a batch of old devices
+ * share. Then it is a random ID, which is generated once and kept in the
+ * preferences of the app, so that it stays the same across restarts.
+ */
+public final class DeviceId {
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private static final String PREFERENCES         = "DeviceId";
+    private static final String KEY                 = "deviceId";
+
+    /** The ANDROID_ID that many Android 2.2 devices share. */
+    private static final String SHARED_ANDROID_ID   = "9774d56d682e549c";
+
+    private static String       deviceId            = null;
+
+    private DeviceId() {
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Get the ID of this device, generating (and persisting) a random one if the platform has none. */
+    public static synchronized String get(Context context) {
+        if (deviceId == null) {
+            String androidId = Secure.getString(context.getContentResolver(), Secure.ANDROID_ID);
+            if (androidId != null && androidId.length() > 0 && !SHARED_ANDROID_ID.equals(androidId)) {
+                deviceId = androidId;
+            } else {
+                deviceId = getRandomId(context);
+            }
+        }
+        return deviceId;
+    }
+
+    /** Get the random ID that was persisted, generating it first if there is none yet. */
+    private static String getRandomId(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        String randomId = preferences.getString(KEY, null);
+        if (randomId == null) {
+            randomId = String.format("%016x", new SecureRandom().nextLong());
+            preferences.edit().putString(KEY, randomId).apply();
+        }
+        return randomId;
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.wificoms;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An immutable description of a service, independent of the transport that
+ * discovered (or advertises) it. This plays the role of
+ * {@link android.net.nsd.NsdServiceInfo} for the platform-independent parts of
+ * this app, so that they can be run and profiled on a plain JVM.
+ *
+ * <p/>
+ *
+ * The host and port are only known once the service has been resolved. The
+ * device address is only known for transports that report the peer device
+ * (e.g. Wifi Direct), and is null otherwise.
+ */
+public final class DiscoveredService {
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private final String                serviceName;
+    private final String                serviceType;
+    private final String                deviceAddress;
+    private final String                host;
+    private final int                   port;
+    private final Map<String, String>   attributes;
+    private String                      key         = null;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /** Create an unresolved service without a device address. */
+    public DiscoveredService(String serviceName, String serviceType) {
+        this(serviceName, serviceType, null, null, 0, null);
+    }
+
+    public DiscoveredService(String serviceName, String serviceType, String deviceAddress, String host, int port,
+            Map<String, String> attributes) {
+        if (serviceName == null || serviceType == null) {
+            throw new IllegalArgumentException("serviceName and serviceType are required");
+        }
+        this.serviceName = serviceName;
+        this.serviceType = serviceType;
+        this.deviceAddress = deviceAddress;
+        this.host = host;
+        this.port = port;
+        if (attributes == null || attributes.isEmpty()) {
+            this.attributes = Collections.emptyMap();
+        } else {
+            this.attributes = Collections.unmodifiableMap(new LinkedHashMap<String, String>(attributes));
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getServiceType() {
+        return serviceType;
+    }
+
+    /** Get the address of the peer device, or null if it is not known. */
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    /** Get the resolved host, or null if this service was not resolved. */
+    public String getHost() {
+        return host;
+    }
+
+    /** Get the resolved port, or 0 if this service was not resolved. */
+    public int getPort() {
+        return port;
+    }
+
+    /** Get the (unmodifiable) TXT attributes of this service. */
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    /** Get the specified TXT attribute, or null if there is no such attribute. */
+    public String getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    /** Whether the host of this service is known. */
+    public boolean isResolved() {
+        return host != null;
+    }
+
+    /**
+     * Get a key that identifies this service instance, regardless of whether
+     * it was resolved. Two descriptions of the same service instance on the
+     * same device have the same key.
+     */
+    public String getKey() {
+        if (key == null) {
+            key = key(deviceAddress, serviceName, serviceType);
+        }
+        return key;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Get the key of the specified service instance. See {@link #getKey()}. */
+    public static String key(String deviceAddress, String serviceName, String serviceType) {
+        StringBuilder builder = new StringBuilder();
+        if (deviceAddress != null) {
+            builder.append(deviceAddress).append('/');
+        }
+        return builder.append(serviceName).append('.').append(serviceType).toString();
+    }
+
+    /** Get a copy of this service with the specified name. */
+    public DiscoveredService withServiceName(String serviceName) {
+        return new DiscoveredService(serviceName, serviceType, deviceAddress, host, port, attributes);
+    }
+
+    /** Get a copy of this service with the specified host and port. */
+    public DiscoveredService withEndpoint(String host, int port) {
+        return new DiscoveredService(serviceName, serviceType, deviceAddress, host, port, attributes);
+    }
+
+    /** Get a copy of this service with the specified TXT attributes. */
+    public DiscoveredService withAttributes(Map<String, String> attributes) {
+        return new DiscoveredService(serviceName, serviceType, deviceAddress, host, port, attributes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DiscoveredService)) {
+            return false;
+        }
+        DiscoveredService other = (DiscoveredService) o;
+        return port == other.port && serviceName.equals(other.serviceName)
+                && serviceType.equals(other.serviceType) && equal(deviceAddress, other.deviceAddress)
+                && equal(host, other.host) && attributes.equals(other.attributes);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = serviceName.hashCode();
+        hash = 31 * hash + serviceType.hashCode();
+        hash = 31 * hash + (deviceAddress == null ? 0 : deviceAddress.hashCode());
+        hash = 31 * hash + (host == null ? 0 : host.hashCode());
+        hash = 31 * hash + port;
+        return 31 * hash + attributes.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("name: ").append(serviceName).append(", type: ").append(serviceType);
+        if (deviceAddress != null) {
+            builder.append(", device: ").append(deviceAddress);
+        }
+        builder.append(", host: ").append(host).append(", port: ").append(port);
+        if (!attributes.isEmpty()) {
+            builder.append(", attributes: ").append(attributes);
+        }
+        return builder.toString();
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,381 @@
+package com.example.wificoms;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the allocations of the hot paths of the discovery pipeline, on a
+ * plain JVM:
+ *
+ * <p/>
+ *
+ * <ul>
+ * <li>the {@link DiscoveryEngine} handling found peer services (filtering,
+ * logging, peer bookkeeping and resolve scheduling), with 10, 100 and 1000
+ * peers;</li>
+ * <li>a {@link PeerFilter} rejecting foreign services, versus the number of
+ * rules;</li>
+ * <li>appending to a {@link LogSink} versus the length of its history;</li>
+ * <li>joining Wifi Direct service responses and TXT records with a
+ * {@link DnsSdResponseCorrelator};</li>
+ * <li>tracing the lifecycle of peers with a {@link DiscoveryTracer}, enabled
+ * and disabled.</li>
+ * </ul>
+ *
+ * <p/>
+ *
+ * This is only a smoke runner: it checks that the hot paths run, warms every
+ * one of them up, and then reports the bytes allocated per operation (if the
+ * JVM can measure the allocations of a thread), which is what shows a hot path
+ * that copies or formats more than it should. It does not report times: a
+ * loop in a single JVM cannot keep the order of the benchmarks, the JIT and
+ * dead-code elimination out of those. The timings, and the allocation rates
+ * of the GC profiler, come from the JMH benchmarks in {@code jmh/}, which
+ * {@code gradle jmh} runs. Run this one with
+ * {@code java com.example.wificoms.DiscoveryBenchmark [rounds]}.
+ */
+public class DiscoveryBenchmark {
+
+    /** A benchmark, whose setup is not measured. */
+    private abstract static class Benchmark {
+
+        private final String name;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        /** Prepare the next round. */
+        void setUp() {
+        }
+
+        /** Run a round, and return the number of operations it performed. */
+        abstract int run();
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private static final int        WARMUP_ROUNDS       = 200;
+    private static final int        WARMUP_OPERATIONS   = 200000;
+    private static final String     SERVICE_TYPE        = "_http._tcp.";
+    private static final String     SERVICE_NAME        = "NetworkServiceDiscoveryViaWifi";
+
+    private final int               rounds;
+    private final ThreadMXBean      threadMXBean        = ManagementFactory.getThreadMXBean();
+    private final boolean           allocationsMeasured;
+
+    /** Keeps the results alive, so that the JIT cannot remove the work. */
+    private long                    sink                = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public DiscoveryBenchmark(int rounds) {
+        this.rounds = rounds;
+        this.allocationsMeasured = enableAllocationMeasurement();
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    public static void main(String[] args) {
+        DiscoveryBenchmark benchmark = new DiscoveryBenchmark(args.length > 0 ? Integer.parseInt(args[0]) : 1000);
+        System.out.println(String.format("%-40s %12s", "Benchmark", "bytes/op"));
+        for (int peers : new int[] { 10, 100, 1000 }) {
+            benchmark.measure(benchmark.peerFound(peers));
+        }
+        for (int rules : new int[] { 1, 10, 100 }) {
+            benchmark.measure(benchmark.peerFilter(rules));
+        }
+        for (int history : new int[] { 10, 100, 1000, 10000 }) {
+            benchmark.measure(benchmark.logAppend(history));
+        }
+        for (int peers : new int[] { 10, 100 }) {
+            benchmark.measure(benchmark.txtRecordMerge(peers));
+        }
+        for (boolean enabled : new boolean[] { false, true }) {
+            benchmark.measure(benchmark.trace(enabled));
+        }
+        System.out.println("(" + benchmark.sink + ")");
+    }
+
+    /** Measure the specified benchmark, and print the mean allocation per operation. */
+    void measure(Benchmark benchmark) {
+        long warmup = 0;
+        for (int i = 0; i < WARMUP_ROUNDS || warmup < WARMUP_OPERATIONS; i++) {
+            benchmark.setUp();
+            warmup += benchmark.run();
+        }
+        long bytes = 0;
+        long operations = 0;
+        for (int i = 0; i < rounds; i++) {
+            benchmark.setUp();
+            long allocatedBefore = allocatedBytes();
+            operations += benchmark.run();
+            bytes += allocatedBytes() - allocatedBefore;
+        }
+        System.out.println(String.format("%-40s %12s", benchmark.name,
+                allocationsMeasured ? String.format("%.1f", (double) bytes / operations) : "n/a"));
+    }
+
+    /**
+     * Turn on the measurement of the allocations of threads, if the JVM
+     * supports it, and return whether it is on. If it is not, every
+     * difference of {@link #allocatedBytes()} is 0, which must not be
+     * reported as a measurement.
+     */
+    private boolean enableAllocationMeasurement() {
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!bean.isThreadAllocatedMemorySupported()) {
+            return false;
+        } else if (!bean.isThreadAllocatedMemoryEnabled()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+        }
+        return bean.isThreadAllocatedMemoryEnabled();
+    }
+
+    /** Get the number of bytes allocated by the current thread so far, or 0 if they are not measured. */
+    private long allocatedBytes() {
+        if (!allocationsMeasured) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    /**
+     * The engine handles the specified number of peer services being found,
+     * logging to a {@link LogDispatcher} just like the Activities do. The
+     * dispatcher is flushed at the end of every round.
+     */
+    Benchmark peerFound(final int count) {
+        final List<DiscoveredService> peers = new ArrayList<DiscoveredService>();
+        for (int i = 0; i < count; i++) {
+            peers.add(new DiscoveredService(SERVICE_NAME + " " + i, SERVICE_TYPE));
+        }
+        return new Benchmark("peerFound(" + count + " peers)") {
+
+            private DiscoveryEngine engine;
+            private LogDispatcher   logDispatcher;
+
+            @Override
+            void setUp() {
+                VirtualTaskScheduler scheduler = new VirtualTaskScheduler();
+                logDispatcher = new LogDispatcher(new LogSink(), new LogDispatcher.FlushScheduler() {
+
+                    @Override
+                    public void schedule(Runnable flush) {
+                    }
+                });
+                engine = new DiscoveryEngine(new InMemoryDiscoveryTransport(scheduler), scheduler, SERVICE_TYPE,
+                        SERVICE_NAME, new DiscoveryEngine.Listener() {
+
+                            @Override
+                            public void onPeerFound(DiscoveredService peer) {
+                            }
+
+                            @Override
+                            public void onPeerResolved(DiscoveredService peer) {
+                            }
+
+                            @Override
+                            public void onPeerLost(DiscoveredService peer) {
+                            }
+
+                            @Override
+                            public void onLog(String message) {
+                                logDispatcher.enqueue(message);
+                            }
+                        });
+                engine.getResolveScheduler().setMaxConcurrent(Integer.MAX_VALUE);
+            }
+
+            @Override
+            int run() {
+                for (DiscoveredService peer : peers) {
+                    engine.onServiceFound(peer);
+                }
+                logDispatcher.flush();
+                sink += engine.getPeerTable().getVersion();
+                return peers.size();
+            }
+        };
+    }
+
+    /**
+     * A {@link PeerFilter} with the specified number of name prefix and
+     * exact name rules checks services that are mostly foreign, as they are
+     * on a busy network.
+     */
+    Benchmark peerFilter(final int rules) {
+        PeerFilter.Builder builder = PeerFilter.builder().addServiceType(SERVICE_TYPE);
+        for (int i = 0; i < rules; i++) {
+            builder.addNamePrefix(SERVICE_NAME + i + " ").addName("Printer " + i);
+        }
+        final PeerFilter filter = builder.build();
+        final DiscoveredService[] services = new DiscoveredService[100];
+        for (int i = 0; i < services.length; i++) {
+            String name = i % 10 == 0 ? SERVICE_NAME + "0 " + i : "Living Room TV " + i;
+            services[i] = new DiscoveredService(name, i % 3 == 0 ? "_ipp._tcp." : SERVICE_TYPE);
+        }
+        return new Benchmark("peerFilter(" + rules + " rules)") {
+
+            @Override
+            int run() {
+                for (DiscoveredService service : services) {
+                    if (filter.accepts(service)) {
+                        sink++;
+                    }
+                }
+                return services.length;
+            }
+        };
+    }
+
+    /**
+     * Append entries to a {@link LogSink} whose history already holds the
+     * specified number of entries, and is rendered by a renderer that only
+     * counts characters.
+     */
+    Benchmark logAppend(final int history) {
+        final int appends = 1000;
+        final String[] entries = new String[appends];
+        for (int i = 0; i < appends; i++) {
+            entries[i] = "onServiceFound: Service from peer: name: " + SERVICE_NAME + " " + i + ", type: "
+                    + SERVICE_TYPE;
+        }
+        return new Benchmark("logAppend(" + history + " history)") {
+
+            private LogSink logSink;
+
+            @Override
+            void setUp() {
+                logSink = new LogSink(history);
+                logSink.attach(new LogSink.Renderer() {
+
+                    @Override
+                    public void append(CharSequence text) {
+                        sink += text.length();
+                    }
+
+                    @Override
+                    public void replace(CharSequence text) {
+                        sink += text.length();
+                    }
+                });
+                for (int i = 0; i < history; i++) {
+                    logSink.add(entries[i % appends]);
+                }
+            }
+
+            @Override
+            int run() {
+                for (String entry : entries) {
+                    logSink.add(entry);
+                }
+                return appends;
+            }
+        };
+    }
+
+    /**
+     * Join the service responses and TXT records of the specified number of
+     * Wifi Direct peers, and turn the joined records into services, just like
+     * the {@link WifiP2pDiscoveryTransport} does.
+     */
+    Benchmark txtRecordMerge(final int count) {
+        final String type = "_presence._tcp.local.";
+        final String[] names = new String[count];
+        final String[] domains = new String[count];
+        final String[] addresses = new String[count];
+        final List<Map<String, String>> records = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < count; i++) {
+            names[i] = SERVICE_NAME + " " + i;
+            domains[i] = names[i] + "." + type;
+            addresses[i] = String.format("02:00:00:00:%02x:%02x", i / 256, i % 256);
+            Map<String, String> record = new HashMap<String, String>();
+            record.put("DeviceID", Integer.toHexString(i));
+            records.add(Collections.unmodifiableMap(record));
+        }
+        final VirtualTaskScheduler scheduler = new VirtualTaskScheduler();
+        final DnsSdResponseCorrelator correlator = new DnsSdResponseCorrelator(scheduler,
+                new DnsSdResponseCorrelator.Listener() {
+
+                    @Override
+                    public void onPeerRecord(DnsSdResponseCorrelator.PeerRecord record) {
+                        sink += record.toService().getAttributes().size();
+                    }
+                }, DnsSdResponseCorrelator.DEFAULT_WINDOW_MILLIS, Math.max(count, 1));
+        return new Benchmark("txtRecordMerge(" + count + " peers)") {
+
+            @Override
+            int run() {
+                for (int i = 0; i < count; i++) {
+
+                    /** Alternate the order in which the halves arrive. */
+                    if (i % 2 == 0) {
+                        correlator.onServiceResponse(names[i], type, addresses[i]);
+                        correlator.onTxtRecord(domains[i], records.get(i), addresses[i]);
+                    } else {
+                        correlator.onTxtRecord(domains[i], records.get(i), addresses[i]);
+                        correlator.onServiceResponse(names[i], type, addresses[i]);
+                    }
+                }
+                scheduler.advance(DnsSdResponseCorrelator.DEFAULT_WINDOW_MILLIS);
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Trace the lifecycle of 100 peers (found, resolved and lost) with a
+     * {@link DiscoveryTracer} that is enabled or not.
+     */
+    Benchmark trace(final boolean enabled) {
+        final VirtualTaskScheduler scheduler = new VirtualTaskScheduler();
+        final DiscoveryTracer tracer = new DiscoveryTracer(scheduler);
+        tracer.setEnabled(enabled);
+        final DiscoveredService[] services = new DiscoveredService[100];
+        for (int i = 0; i < services.length; i++) {
+            services[i] = new DiscoveredService(SERVICE_NAME + " " + i, SERVICE_TYPE);
+        }
+        return new Benchmark("trace(" + (enabled ? "enabled" : "disabled") + ")") {
+
+            @Override
+            int run() {
+                tracer.trace(DiscoveryTracer.Event.DISCOVERY_REQUESTED);
+                for (DiscoveredService service : services) {
+                    tracer.trace(DiscoveryTracer.Event.FOUND, service, 0);
+                }
+                scheduler.advance(1);
+                for (DiscoveredService service : services) {
+                    tracer.trace(DiscoveryTracer.Event.RESOLVED, service, 0);
+                    tracer.trace(DiscoveryTracer.Event.LOST, service, 0);
+                }
+                sink += tracer.getEventCount();
+                return 3 * services.length + 1;
+            }
+        };
+    }
+}
@@ -0,0 +1,438 @@
+package com.example.wificoms;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs the discovery of a {@link DiscoveryEngine} in scans, instead of
+ * continuously, to cut the time the radio spends discovering without making
+ * us slow to notice new peers. Each scan runs discovery for a while, after
+ * which discovery is stopped for an idle interval that depends on the mode:
+ *
+ * <p/>
+ *
+ * <ul>
+ * <li>{@link Mode#AGGRESSIVE}: right after {@link #start()} or
+ * {@link #onNetworkChanged()}, a few scans follow each other quickly, since
+ * that is when most peers are found.</li>
+ * <li>{@link Mode#BACKOFF}: afterwards, the idle interval grows exponentially
+ * for as long as the scans find no change, and falls back to the minimum as
+ * soon as one does.</li>
+ * </ul>
+ *
+ * <p/>
+ *
+ * When a peer is lost, the cycler scans aggressively again, starting right
+ * away (or extending the running scan), since the peer may have come back
+ * with another identity. The
+ * {@link Policy} is chosen per transport, since a Wifi Direct scan costs and
+ * achieves something else than an NSD scan. The cycler runs on a
+ * {@link TaskScheduler}, so a {@link VirtualTaskScheduler} can measure the
+ * radio time against the latency to the first peer.
+ *
+ * <p/>
+ *
+ * The cycler only decides under its lock what the engine should do, and then
+ * tells the engine in order after releasing it, since the engine calls into
+ * the {@link PeerTable}, whose deltas call back into the cycler. Ending a scan
+ * only stops the discovery, so resolves that are still in flight (or queued)
+ * complete during the idle interval. Only {@link #stop()} cancels them. At the
+ * end of every scan, the engine loses the peers that it did not see for too
+ * long (see {@link DiscoveryEngine#expireUnseenPeers()}), since some
+ * transports never report a loss.
+ */
+public class DiscoveryDutyCycler implements PeerTable.Listener {
+
+    /** The scanning modes. */
+    public enum Mode {
+        STOPPED, AGGRESSIVE, BACKOFF
+    }
+
+    /** What the engine is told to do, once the lock is released. */
+    private enum Command {
+        START_DISCOVERY, STOP_DISCOVERY, EXPIRE_PEERS, CANCEL_RESOLVES
+    }
+
+    /** How long the scans and the idle intervals between them last. */
+    public static final class Policy {
+
+        /** Discover continuously, i.e. without duty cycling. */
+        public static final Policy  CONTINUOUS  = new Policy(0, 0, 0, 0, 0, 1);
+
+        /**
+         * NSD discovery finds the peers on the network within a few seconds,
+         * and reports them as lost while it runs.
+         */
+        public static final Policy  NSD         = new Policy(10 * 1000, 3, 2 * 1000, 15 * 1000, 5 * 60 * 1000, 2);
+
+        /**
+         * Wifi Direct service discovery takes longer to find the peers in
+         * range, and never reports a peer as lost.
+         */
+        public static final Policy  WIFI_P2P    = new Policy(30 * 1000, 3, 5 * 1000, 30 * 1000, 5 * 60 * 1000, 2);
+
+        private final long          scanMillis;
+        private final int           aggressiveScans;
+        private final long          aggressiveIdleMillis;
+        private final long          minIdleMillis;
+        private final long          maxIdleMillis;
+        private final double        backoffFactor;
+
+        /**
+         * Create a policy whose scans last the specified time (where zero
+         * means forever). The specified number of aggressive scans are
+         * separated by the aggressive idle interval. Afterwards, the idle
+         * interval starts at the minimum, and is multiplied by the back-off
+         * factor after every scan without changes, up to the maximum.
+         */
+        public Policy(long scanMillis, int aggressiveScans, long aggressiveIdleMillis, long minIdleMillis,
+                long maxIdleMillis, double backoffFactor) {
+            if (backoffFactor < 1) {
+                throw new IllegalArgumentException("backoffFactor must be at least 1: " + backoffFactor);
+            }
+            this.scanMillis = scanMillis;
+            this.aggressiveScans = aggressiveScans;
+            this.aggressiveIdleMillis = aggressiveIdleMillis;
+            this.minIdleMillis = minIdleMillis;
+            this.maxIdleMillis = Math.max(minIdleMillis, maxIdleMillis);
+            this.backoffFactor = backoffFactor;
+        }
+
+        public long getScanMillis() {
+            return scanMillis;
+        }
+
+        public int getAggressiveScans() {
+            return aggressiveScans;
+        }
+
+        public long getAggressiveIdleMillis() {
+            return aggressiveIdleMillis;
+        }
+
+        public long getMinIdleMillis() {
+            return minIdleMillis;
+        }
+
+        public long getMaxIdleMillis() {
+            return maxIdleMillis;
+        }
+
+        public double getBackoffFactor() {
+            return backoffFactor;
+        }
+
+        @Override
+        public String toString() {
+            return "Policy: scan: " + scanMillis + " ms, aggressive: " + aggressiveScans + " x "
+                    + aggressiveIdleMillis + " ms, idle: " + minIdleMillis + "-" + maxIdleMillis + " ms, back-off: "
+                    + backoffFactor;
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private final DiscoveryEngine           engine;
+    private final TaskScheduler             scheduler;
+    private final Runnable                  startScan;
+    private final Runnable                  endScan;
+    private final ArrayDeque<Command>       commands            = new ArrayDeque<Command>();
+    private boolean                         executing           = false;
+    private Policy                          policy;
+    private Mode                            mode                = Mode.STOPPED;
+    private boolean                         scanning            = false;
+    private boolean                         changed             = false;
+    private int                             aggressiveScansLeft = 0;
+    private long                            idleMillis          = 0;
+    private TaskScheduler.Cancellable       timer               = null;
+    private long                            startedAt           = 0;
+    private long                            scanStartedAt       = 0;
+    private long                            scanCount           = 0;
+    private long                            scanTimeMillis      = 0;
+    private long                            firstPeerLatency    = -1;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public DiscoveryDutyCycler(DiscoveryEngine engine, TaskScheduler scheduler, Policy policy) {
+        this.engine = engine;
+        this.scheduler = scheduler;
+        this.policy = policy;
+        this.startScan = new Runnable() {
+
+            @Override
+            public void run() {
+                onIdleEnded();
+            }
+        };
+        this.endScan = new Runnable() {
+
+            @Override
+            public void run() {
+                onScanEnded();
+            }
+        };
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public synchronized Policy getPolicy() {
+        return policy;
+    }
+
+    public synchronized Mode getMode() {
+        return mode;
+    }
+
+    /** Whether discovery is running right now. */
+    public synchronized boolean isScanning() {
+        return scanning;
+    }
+
+    /** Get the number of scans since the cycler was created. */
+    public synchronized long getScanCount() {
+        return scanCount;
+    }
+
+    /** Get the total time that discovery ran, including the running scan. */
+    public synchronized long getScanTimeMillis() {
+        return scanTimeMillis + (scanning ? scheduler.now() - scanStartedAt : 0);
+    }
+
+    /** Get the time from the last start to the first peer that was added, or -1 if none was added yet. */
+    public synchronized long getFirstPeerLatency() {
+        return firstPeerLatency;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    /** Set the policy, which applies from the next scan or idle interval on. */
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Start scanning aggressively, unless the cycler is already running. */
+    public void start() {
+        synchronized (this) {
+            if (mode != Mode.STOPPED) {
+                return;
+            }
+            begin();
+            enterAggressive();
+        }
+        execute();
+    }
+
+    /** Stop scanning, and cancel the pending resolves, e.g. because the session shuts down. */
+    public void stop() {
+        synchronized (this) {
+            if (mode == Mode.STOPPED) {
+                return;
+            }
+            engine.getPeerTable().unsubscribe(this);
+            cancelTimer();
+            mode = Mode.STOPPED;
+            if (scanning) {
+                endScan();
+            }
+            commands.add(Command.CANCEL_RESOLVES);
+        }
+        execute();
+    }
+
+    /**
+     * The network changed (or the user asked to look again), so the peers may
+     * have changed too. Scan aggressively again, starting right away.
+     */
+    public void onNetworkChanged() {
+        synchronized (this) {
+            if (mode == Mode.STOPPED) {
+                begin();
+            }
+            enterAggressive();
+        }
+        execute();
+    }
+
+    @Override
+    public String toString() {
+        return "DiscoveryDutyCycler: mode: " + getMode() + ", scans: " + getScanCount() + ", scanTime: "
+                + getScanTimeMillis() + " ms, firstPeerLatency: " + getFirstPeerLatency() + " ms";
+    }
+
+    /** Start measuring the latency to the first peer, and follow the changes of the peers. */
+    private void begin() {
+        startedAt = scheduler.now();
+        firstPeerLatency = -1;
+        engine.getPeerTable().subscribe(this);
+    }
+
+    private void enterAggressive() {
+        mode = Mode.AGGRESSIVE;
+        aggressiveScansLeft = policy.getAggressiveScans();
+        idleMillis = policy.getMinIdleMillis();
+        scan();
+    }
+
+    /** Start a scan right away, or extend the running scan. */
+    private void scan() {
+        cancelTimer();
+        if (!scanning) {
+            scanning = true;
+            changed = false;
+            scanStartedAt = scheduler.now();
+            scanCount++;
+            commands.add(Command.START_DISCOVERY);
+        }
+        if (policy.getScanMillis() > 0) {
+            timer = scheduler.schedule(endScan, policy.getScanMillis());
+        }
+    }
+
+    private void endScan() {
+        scanning = false;
+        scanTimeMillis += scheduler.now() - scanStartedAt;
+        commands.add(Command.STOP_DISCOVERY);
+    }
+
+    private void onScanEnded() {
+        synchronized (this) {
+            timer = null;
+            if (mode == Mode.STOPPED || !scanning) {
+                return;
+            }
+            endScan();
+            commands.add(Command.EXPIRE_PEERS);
+
+            /** Work out how long to stay idle, depending on the mode and on whether the scan found anything. */
+            long idle;
+            if (mode == Mode.AGGRESSIVE && --aggressiveScansLeft > 0) {
+                idle = policy.getAggressiveIdleMillis();
+            } else if (mode == Mode.AGGRESSIVE || changed) {
+                mode = Mode.BACKOFF;
+                idle = idleMillis = policy.getMinIdleMillis();
+            } else {
+                idle = idleMillis = Math.min(policy.getMaxIdleMillis(),
+                        (long) (idleMillis * policy.getBackoffFactor()));
+            }
+            timer = scheduler.schedule(startScan, idle);
+        }
+        execute();
+    }
+
+    private void onIdleEnded() {
+        synchronized (this) {
+            timer = null;
+            if (mode != Mode.STOPPED) {
+                scan();
+            }
+        }
+        execute();
+    }
+
+    /**
+     * Tell the engine what was decided, in order, unless another call (on
+     * this thread or another one) is doing so already, in which case that one
+     * tells it what this thread decided too. The caller must not hold the
+     * lock.
+     */
+    private void execute() {
+        synchronized (this) {
+            if (executing || commands.isEmpty()) {
+                return;
+            }
+            executing = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                Command command;
+                synchronized (this) {
+                    command = commands.poll();
+                    if (command == null) {
+                        executing = false;
+                        done = true;
+                        return;
+                    }
+                }
+                switch (command) {
+                case START_DISCOVERY:
+                    engine.startServiceDiscovery();
+                    break;
+                case STOP_DISCOVERY:
+                    engine.stopServiceDiscovery();
+                    break;
+                case EXPIRE_PEERS:
+                    engine.expireUnseenPeers();
+                    break;
+                default:
+                    engine.cancelResolves();
+                    break;
+                }
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    executing = false;
+                }
+            }
+        }
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * PeerTable.Listener Methods
+     *
+     * ---------------------------------------------
+     */
+    @Override
+    public void onPeerDelta(PeerDelta delta) {
+        synchronized (this) {
+            if (mode == Mode.STOPPED) {
+                return;
+            }
+            changed = true;
+            if (delta.getType() == PeerDelta.Type.ADDED && firstPeerLatency < 0) {
+                firstPeerLatency = scheduler.now() - startedAt;
+            } else if (delta.getType() == PeerDelta.Type.REMOVED) {
+
+                /** A lost peer may come back (e.g. with another name), so look for it right away, and again soon. */
+                enterAggressive();
+            }
+        }
+        execute();
+    }
+}
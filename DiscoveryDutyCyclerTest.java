@@ -0,0 +1,190 @@
+package com.example.wificoms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives the {@link DiscoveryDutyCycler} with a {@link VirtualTaskScheduler},
+ * so that every scan and idle interval happens at a known time.
+ */
+public class DiscoveryDutyCyclerTest {
+
+    private static final String                 TYPE    = "_test._tcp";
+
+    /** Scans of 10 s; 2 aggressive scans 1 s apart; then idle from 5 s, doubling up to 40 s. */
+    private static final DiscoveryDutyCycler.Policy POLICY  = new DiscoveryDutyCycler.Policy(10 * 1000, 2, 1000,
+            5 * 1000, 40 * 1000, 2);
+
+    private VirtualTaskScheduler                scheduler;
+    private InMemoryDiscoveryTransport          transport;
+    private DiscoveryEngine                     engine;
+    private DiscoveryDutyCycler                 cycler;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualTaskScheduler();
+        transport = new InMemoryDiscoveryTransport(scheduler);
+        engine = new DiscoveryEngine(transport, scheduler, TYPE, "Peer", new DiscoveryEngine.Listener() {
+
+            @Override
+            public void onPeerFound(DiscoveredService peer) {
+            }
+
+            @Override
+            public void onPeerResolved(DiscoveredService peer) {
+            }
+
+            @Override
+            public void onPeerLost(DiscoveredService peer) {
+            }
+
+            @Override
+            public void onLog(String message) {
+            }
+        });
+        cycler = new DiscoveryDutyCycler(engine, scheduler, POLICY);
+    }
+
+    @Test
+    public void backsOffFromAggressiveToTheMaximumIdleInterval() {
+        cycler.start();
+        assertScanning(DiscoveryDutyCycler.Mode.AGGRESSIVE, 1);
+
+        /** The second aggressive scan follows the first after the aggressive idle interval. */
+        advanceTo(10 * 1000);
+        assertIdle(DiscoveryDutyCycler.Mode.AGGRESSIVE);
+        advanceTo(11 * 1000);
+        assertScanning(DiscoveryDutyCycler.Mode.AGGRESSIVE, 2);
+
+        /** Then the idle interval starts at the minimum, and doubles while nothing changes. */
+        advanceTo(21 * 1000);
+        assertIdle(DiscoveryDutyCycler.Mode.BACKOFF);
+        long scanStart = 21 * 1000;
+        long[] idles = { 5 * 1000, 10 * 1000, 20 * 1000, 40 * 1000, 40 * 1000 };
+        for (int i = 0; i < idles.length; i++) {
+            advanceTo(scanStart + idles[i] - 1);
+            assertIdle(DiscoveryDutyCycler.Mode.BACKOFF);
+            advanceTo(scanStart + idles[i]);
+            assertScanning(DiscoveryDutyCycler.Mode.BACKOFF, 3 + i);
+            scanStart += idles[i] + 10 * 1000;
+            advanceTo(scanStart);
+        }
+        assertEquals(7 * 10 * 1000, cycler.getScanTimeMillis());
+    }
+
+    @Test
+    public void lostPeerResetsToAggressive() {
+        backOff();
+        DiscoveredService peer = new DiscoveredService("Peer 1", TYPE);
+        cycler.onPeerDelta(new PeerDelta(PeerDelta.Type.REMOVED, peer, peer, 1));
+        assertScanning(DiscoveryDutyCycler.Mode.AGGRESSIVE, 4);
+        advanceTo(scheduler.now() + 10 * 1000);
+        assertIdle(DiscoveryDutyCycler.Mode.AGGRESSIVE);
+        advanceTo(scheduler.now() + 1000);
+        assertScanning(DiscoveryDutyCycler.Mode.AGGRESSIVE, 5);
+    }
+
+    @Test
+    public void networkChangeResetsToAggressive() {
+        backOff();
+        cycler.onNetworkChanged();
+        assertScanning(DiscoveryDutyCycler.Mode.AGGRESSIVE, 4);
+        advanceTo(scheduler.now() + 10 * 1000);
+        assertIdle(DiscoveryDutyCycler.Mode.AGGRESSIVE);
+    }
+
+    @Test
+    public void stopEndsTheScan() {
+        cycler.start();
+        cycler.stop();
+        assertEquals(DiscoveryDutyCycler.Mode.STOPPED, cycler.getMode());
+        assertFalse(cycler.isScanning());
+        scheduler.advance(60 * 1000);
+        assertEquals(1, cycler.getScanCount());
+    }
+
+    @Test
+    public void resolvesOutliveTheScan() {
+        transport.setResolveLatencyMillis(15 * 1000);
+        DiscoveredService peer = transport.announcePeers(1, TYPE, "Peer ").get(0);
+        cycler.start();
+
+        /** The resolve started right away, and completes after the first scan ended. */
+        advanceTo(15 * 1000);
+        assertTrue(engine.getPeerTable().get(peer.getKey()).isResolved());
+        assertEquals(0, engine.getResolveScheduler().getFailureCount());
+    }
+
+    @Test
+    public void peersThatAreNotSeenAgainExpireAtTheEndOfAScan() {
+        engine.setPeerExpiryMillis(15 * 1000);
+        List<DiscoveredService> peers = transport.announcePeers(2, TYPE, "Peer ");
+        cycler.start();
+        advanceTo(10 * 1000);
+        assertEquals(2, engine.getPeerTable().size());
+
+        /** The peer leaves while discovery is idle, so the transport never reports it lost. */
+        transport.withdraw(peers.get(0));
+        advanceTo(21 * 1000 - 1);
+        assertEquals(2, engine.getPeerTable().size());
+        advanceTo(21 * 1000);
+        assertEquals(1, engine.getPeerTable().size());
+        assertEquals(null, engine.getPeerTable().get(peers.get(0).getKey()));
+
+        /** Losing it makes the cycler look again right away. */
+        assertScanning(DiscoveryDutyCycler.Mode.AGGRESSIVE, 3);
+    }
+
+    @Test
+    public void engineIsNotCalledUnderTheLock() {
+        final DiscoveryDutyCycler[] holder = new DiscoveryDutyCycler[1];
+        final int[] calls = new int[1];
+        DiscoveryEngine checked = new DiscoveryEngine(transport, scheduler, TYPE, "Peer", null) {
+
+            @Override
+            public void startServiceDiscovery() {
+                assertFalse(Thread.holdsLock(holder[0]));
+                calls[0]++;
+            }
+
+            @Override
+            public void stopServiceDiscovery() {
+                assertFalse(Thread.holdsLock(holder[0]));
+                calls[0]++;
+            }
+        };
+        holder[0] = new DiscoveryDutyCycler(checked, scheduler, POLICY);
+        holder[0].start();
+        scheduler.advance(30 * 1000);
+        holder[0].stop();
+        assertEquals(6, calls[0]);
+    }
+
+    /** Get the cycler through the aggressive scans and its first back-off scan, into a 10 s idle interval. */
+    private void backOff() {
+        cycler.start();
+        advanceTo(36 * 1000);
+        assertIdle(DiscoveryDutyCycler.Mode.BACKOFF);
+    }
+
+    private void advanceTo(long time) {
+        scheduler.advance(time - scheduler.now());
+    }
+
+    private void assertScanning(DiscoveryDutyCycler.Mode mode, long scans) {
+        assertEquals(mode, cycler.getMode());
+        assertTrue(cycler.isScanning());
+        assertEquals(scans, cycler.getScanCount());
+    }
+
+    private void assertIdle(DiscoveryDutyCycler.Mode mode) {
+        assertEquals(mode, cycler.getMode());
+        assertFalse(cycler.isScanning());
+    }
+}
@@ -0,0 +1,690 @@
+package com.example.wificoms;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The platform-independent registration, discovery and resolve logic that is
+ * shared by {@link NetworkServiceDiscoveryViaWifi} and
+ * {@link NetworkServiceDiscoveryViaWifiDirect}. It drives a
+ * {@link DiscoveryTransport} for one or more service types (sharing a single
+ * transport, resolve pipeline, cache and {@link PeerTable}, in which the peers
+ * carry their type), decides with a {@link PeerFilter} which of the
+ * services that are found belong to peers running this app, and resolves
+ * those through a
+ * {@link ResolveScheduler}. Resolved peers are kept in a
+ * {@link ResolvedServiceCache}, so that they are reported right away when a
+ * UI attaches again (see {@link #reportCachedPeers()}), and are only resolved
+ * again in the background once their cache entry is older than the refresh
+ * age. The peers are also
+ * maintained in a {@link PeerTable}, which publishes every change as a
+ * {@link PeerDelta}. If a {@link PeerDirectory} is set, the resolved peers are
+ * persisted in it, and the peers of the previous process are restored from it
+ * when the cached peers are first reported. Those are stale until they are
+ * resolved again, and are lost once their time-to-live expires. For transports
+ * that never report a loss, peers that are not seen again within the peer
+ * expiry are lost (see {@link #expireUnseenPeers()}). Everything that happens to
+ * the peers, and every failure, is also published as a {@link DiscoveryEvent}
+ * by the {@link DiscoveryEventPublisher}, to which consumers subscribe. If a
+ * {@link DiscoveryRecovery} is set, it is told about every lifecycle event,
+ * so that it recovers from the failures of the registration and discovery.
+ *
+ * <p/>
+ *
+ * Since nothing in here depends on Android, the engine can be driven by an
+ * {@link InMemoryDiscoveryTransport} to measure how it behaves with hundreds
+ * of peers on a plain JVM.
+ */
+public class DiscoveryEngine implements DiscoveryTransport.Callback {
+
+    /** Receives the peers that are discovered, as well as the detailed lifecycle. */
+    public interface Listener {
+
+        /** A service of a peer running this app was found. */
+        void onPeerFound(DiscoveredService peer);
+
+        /** The endpoint and attributes of a peer's service are known. */
+        void onPeerResolved(DiscoveredService peer);
+
+        /** A service of a peer running this app is no longer available. */
+        void onPeerLost(DiscoveredService peer);
+
+        /** A human-readable description of something that happened. */
+        void onLog(String message);
+    }
+
+    /**
+     * Decides whether a peer service that was found needs to be resolved,
+     * e.g. because the peer is not reachable through another transport yet
+     * (see {@link PeerMerger}).
+     */
+    public interface ResolveGate {
+
+        /** Whether the specified peer service, which was found and is not cached, should be resolved. */
+        boolean shouldResolve(DiscoveredService service);
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private final DiscoveryTransport              transport;
+    private final TaskScheduler                   scheduler;
+    private final ResolveScheduler                resolveScheduler;
+    private final ResolvedServiceCache            resolvedServiceCache;
+    private final PeerTable                       peerTable            = new PeerTable();
+    private final DiscoveryTracer                 tracer;
+    private final DiscoveryEventPublisher         events;
+    private final List<String>                    serviceTypes;
+    private final String                          originalServiceName;
+    private final Map<String, String>             serviceNames         = new ConcurrentHashMap<String, String>();
+    private final Map<String, DiscoveredService>  requestedServices    =
+            new ConcurrentHashMap<String, DiscoveredService>();
+    private final Map<String, Long>               lastSeen             = new ConcurrentHashMap<String, Long>();
+    private final Listener                        listener;
+    private volatile PeerFilter                   peerFilter;
+    private volatile long                         refreshAgeMillis     = 2 * 60 * 1000;
+    private volatile long                         peerExpiryMillis     = 0;
+    private volatile PeerDirectory                peerDirectory        = null;
+    private volatile ResolveGate                  resolveGate          = null;
+    private volatile DiscoveryRecovery            recovery             = null;
+    private volatile ServiceNamer                 serviceNamer         = null;
+    private boolean                               restored             = false;
+    private TaskScheduler.Cancellable             staleTimer           = null;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Create an engine that discovers services of the specified type on the
+     * specified transport. Services whose name contains the specified
+     * original service name are considered to belong to peers running this
+     * app, unless another {@link PeerFilter} is set. The specified scheduler
+     * is used for the timers of the resolves.
+     */
+    public DiscoveryEngine(DiscoveryTransport transport, TaskScheduler scheduler, String serviceType,
+            String originalServiceName, Listener listener) {
+        this(transport, scheduler, Collections.singletonList(serviceType), originalServiceName, listener);
+    }
+
+    /**
+     * Create an engine that discovers services of all of the specified types
+     * on the specified transport. See
+     * {@link #DiscoveryEngine(DiscoveryTransport, TaskScheduler, String, String, Listener)}.
+     */
+    public DiscoveryEngine(DiscoveryTransport transport, TaskScheduler scheduler, Collection<String> serviceTypes,
+            String originalServiceName, Listener listener) {
+        if (serviceTypes.isEmpty()) {
+            throw new IllegalArgumentException("At least one service type is needed");
+        }
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.resolveScheduler = new ResolveScheduler(transport, scheduler, 1);
+        this.resolvedServiceCache = new ResolvedServiceCache(scheduler);
+        this.tracer = new DiscoveryTracer(scheduler);
+        this.events = new DiscoveryEventPublisher(scheduler);
+        this.serviceTypes = Collections.unmodifiableList(new ArrayList<String>(serviceTypes));
+        this.originalServiceName = originalServiceName;
+        this.peerFilter = PeerFilter.forServices(serviceTypes, originalServiceName);
+        this.listener = listener;
+        transport.setCallback(this);
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public DiscoveryTransport getTransport() {
+        return transport;
+    }
+
+    /** Get the {@link TaskScheduler} on which the callbacks and timers of this engine run. */
+    public TaskScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /** Get the {@link ResolveScheduler}, e.g. to configure it or to read its metrics. */
+    public ResolveScheduler getResolveScheduler() {
+        return resolveScheduler;
+    }
+
+    /** Get the {@link ResolvedServiceCache}, e.g. to configure it or to read its metrics. */
+    public ResolvedServiceCache getResolvedServiceCache() {
+        return resolvedServiceCache;
+    }
+
+    /** Get the {@link DiscoveryTracer}, e.g. to disable it or to export its histograms. */
+    public DiscoveryTracer getTracer() {
+        return tracer;
+    }
+
+    /** Get the {@link DiscoveryEventPublisher}, e.g. to subscribe to the {@link DiscoveryEvent}s. */
+    public DiscoveryEventPublisher getEvents() {
+        return events;
+    }
+
+    /** Get the {@link PeerTable}, e.g. to subscribe to its {@link PeerDelta}s. */
+    public PeerTable getPeerTable() {
+        return peerTable;
+    }
+
+    /** Get the {@link PeerFilter}, e.g. to read how many services it rejected. */
+    public PeerFilter getPeerFilter() {
+        return peerFilter;
+    }
+
+    /** Get the {@link PeerDirectory}, or null if the peers are not persisted. */
+    public PeerDirectory getPeerDirectory() {
+        return peerDirectory;
+    }
+
+    /** Get the {@link DiscoveryRecovery}, or null if failures are not recovered from. */
+    public DiscoveryRecovery getRecovery() {
+        return recovery;
+    }
+
+    /** Get the {@link ServiceNamer}, or null if the services are registered under their own names. */
+    public ServiceNamer getServiceNamer() {
+        return serviceNamer;
+    }
+
+    /** Get the (first) service type. */
+    public String getServiceType() {
+        return serviceTypes.get(0);
+    }
+
+    public List<String> getServiceTypes() {
+        return serviceTypes;
+    }
+
+    /** Get the name of the service that we registered for the (first) service type. */
+    public String getServiceName() {
+        return getServiceName(getServiceType());
+    }
+
+    /**
+     * Get the name of the service that we registered for the specified type.
+     * Note that this may differ from the requested name if the platform had to
+     * resolve a conflict.
+     */
+    public String getServiceName(String serviceType) {
+        String serviceName = serviceNames.get(typeKey(serviceType));
+        return serviceName != null ? serviceName : originalServiceName;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Set the age after which a cached peer that is found again is resolved
+     * again in the background, to revalidate it.
+     */
+    public void setRefreshAgeMillis(long refreshAgeMillis) {
+        this.refreshAgeMillis = refreshAgeMillis;
+    }
+
+    /**
+     * Set the time after which a peer that was neither found nor resolved
+     * again is lost, or 0 to only lose the peers that the transport reports
+     * as lost. This is meant for transports that never report a loss, such as
+     * Wifi Direct. Since peers are only seen while discovery runs, this must
+     * be longer than a scan.
+     */
+    public void setPeerExpiryMillis(long peerExpiryMillis) {
+        this.peerExpiryMillis = peerExpiryMillis;
+    }
+
+    /**
+     * Set the directory in which the resolved peers are persisted, and from
+     * which they are restored when the cached peers are first reported.
+     */
+    public void setPeerDirectory(PeerDirectory peerDirectory) {
+        this.peerDirectory = peerDirectory;
+    }
+
+    /** Set the gate that decides whether a peer that was found is resolved, or null to resolve every peer. */
+    public void setResolveGate(ResolveGate resolveGate) {
+        this.resolveGate = resolveGate;
+    }
+
+    /** Set the recovery that is told about every lifecycle event, or null to only report the failures. */
+    public void setRecovery(DiscoveryRecovery recovery) {
+        this.recovery = recovery;
+    }
+
+    /**
+     * Set the namer whose name the services are registered under (instead of
+     * their own), and which picks another one if the platform renames them,
+     * or null to register the services as they are.
+     */
+    public void setServiceNamer(ServiceNamer serviceNamer) {
+        this.serviceNamer = serviceNamer;
+    }
+
+    /** Set the filter that decides which services belong to peers. */
+    public void setPeerFilter(PeerFilter peerFilter) {
+        this.peerFilter = peerFilter;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Register the specified service so that other peers can discover us. */
+    public void registerService(DiscoveredService service) {
+        registerServices(Collections.singletonList(service));
+    }
+
+    /**
+     * Register the specified services (of different types), replacing the
+     * ones that were registered before.
+     */
+    public void registerServices(Collection<DiscoveredService> services) {
+        tracer.trace(DiscoveryTracer.Event.REGISTER_REQUESTED);
+        transport.unregisterService();
+        ServiceNamer namer = serviceNamer;
+        for (DiscoveredService service : services) {
+            DiscoveredService named = namer == null ? service : service.withServiceName(namer.getName());
+            requestedServices.put(typeKey(service.getServiceType()), named);
+            transport.registerService(named);
+        }
+    }
+
+    /** Unregister our service. */
+    public void unregisterService() {
+        transport.unregisterService();
+    }
+
+    /**
+     * Report the peers that are known without discovering them: the ones
+     * that are still cached, which are revalidated once they are found again,
+     * and, the first time, the peers of the {@link PeerDirectory}, as stale.
+     * Call this once the UI attached, rather than on every scan. The cached
+     * peers are published as {@link DiscoveryEvent.Type#CACHED}, so that
+     * subscribers do not take them for peers that were just resolved. The
+     * peers of the directory are restored later, on the thread of the
+     * scheduler, since loading them reads (and may compact) its file.
+     */
+    public void reportCachedPeers() {
+        scheduleRestore();
+        for (DiscoveredService cached : resolvedServiceCache.snapshot()) {
+            listener.onLog("onServiceResolved: From cache: " + cached);
+            peerTable.onResolved(cached);
+            listener.onPeerResolved(cached);
+            events.publish(DiscoveryEvent.Type.CACHED, cached);
+        }
+    }
+
+    /** Start looking for peer services of every type. */
+    public void startServiceDiscovery() {
+        tracer.trace(DiscoveryTracer.Event.DISCOVERY_REQUESTED);
+        for (String serviceType : serviceTypes) {
+            transport.startServiceDiscovery(serviceType);
+        }
+    }
+
+    /**
+     * Resolve the specified peer service, e.g. one that the
+     * {@link ResolveGate} skipped before, but that is needed after all.
+     */
+    public void resolve(DiscoveredService service) {
+        resolveScheduler.submit(service);
+    }
+
+    /**
+     * Stop looking for peer services. The resolves that are pending keep
+     * going, so that a slow resolve still completes if discovery is only
+     * paused between two scans.
+     */
+    public void stopServiceDiscovery() {
+        transport.stopServiceDiscovery();
+    }
+
+    /**
+     * Lose the peers that were not seen within the peer expiry, if one is set.
+     * The {@link DiscoveryDutyCycler} calls this at the end of every scan.
+     * Restored peers that were not seen yet expire with their time-to-live
+     * instead.
+     */
+    public synchronized void expireUnseenPeers() {
+        long expiry = peerExpiryMillis;
+        if (expiry <= 0) {
+            return;
+        }
+        long now = scheduler.now();
+        for (DiscoveredService peer : peerTable.snapshot().values()) {
+            Long seenAt = lastSeen.get(peer.getKey());
+            if (seenAt != null && now - seenAt > expiry) {
+                listener.onLog("onServiceLost: Not seen for " + (now - seenAt) + " ms: " + peer);
+                resolveScheduler.cancel(peer);
+                resolvedServiceCache.invalidate(peer);
+                tracer.trace(DiscoveryTracer.Event.LOST, peer, 0);
+                forget(peer);
+                peerTable.onLost(peer);
+                listener.onPeerLost(peer);
+                events.publish(DiscoveryEvent.Type.LOST, peer);
+            }
+        }
+    }
+
+    /** Forget about the pending resolves, e.g. because discovery stops for good. */
+    public void cancelResolves() {
+        resolveScheduler.clear();
+    }
+
+    /** Release the resources held by the transport and the {@link PeerDirectory}. */
+    public void close() {
+        transport.close();
+        PeerDirectory directory = peerDirectory;
+        if (directory != null) {
+            directory.close();
+        }
+    }
+
+    /**
+     * Restore the peers of the {@link PeerDirectory} on the thread of the
+     * scheduler, rather than on the calling one (e.g. the main thread, from
+     * which the UI attaches), if that was not done yet.
+     */
+    private synchronized void scheduleRestore() {
+        final PeerDirectory directory = peerDirectory;
+        if (restored || directory == null) {
+            return;
+        }
+        restored = true;
+        scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                restorePeers(directory);
+            }
+        }, 0);
+    }
+
+    /**
+     * Report the peers of the specified directory as found, but stale, unless
+     * they were found in the meantime. They are resolved (and hence
+     * confirmed) once they are found again.
+     */
+    private synchronized void restorePeers(PeerDirectory directory) {
+        List<DiscoveredService> peers = directory.load();
+        listener.onLog("Restored " + peers.size() + " peers in " + directory.getLoadMicros() + " us");
+        for (DiscoveredService peer : peers) {
+            if (peerFilter.accepts(peer) && peerTable.get(peer.getKey()) == null) {
+                peerTable.onRestored(peer);
+                listener.onPeerFound(peer);
+                events.publish(DiscoveryEvent.Type.FOUND, peer);
+            }
+        }
+        scheduleStaleExpiry();
+    }
+
+    /** Lose the stale peers whose time-to-live expired, and wait for the next one to expire. */
+    private synchronized void expireStalePeers() {
+        staleTimer = null;
+        PeerDirectory directory = peerDirectory;
+        for (DiscoveredService peer : peerTable.getStalePeers()) {
+            if (directory == null || directory.getRemainingMillis(peer) < 0) {
+                listener.onLog("onServiceLost: Expired: " + peer);
+                forget(peer);
+                peerTable.onLost(peer);
+                listener.onPeerLost(peer);
+                events.publish(DiscoveryEvent.Type.LOST, peer);
+            }
+        }
+        scheduleStaleExpiry();
+    }
+
+    /** Expire the stale peers once the first of them expires, if there are any. */
+    private void scheduleStaleExpiry() {
+        PeerDirectory directory = peerDirectory;
+        long delay = Long.MAX_VALUE;
+        for (DiscoveredService peer : peerTable.getStalePeers()) {
+            delay = Math.min(delay, directory == null ? 0 : Math.max(0, directory.getRemainingMillis(peer)));
+        }
+        if (staleTimer == null && delay != Long.MAX_VALUE) {
+            staleTimer = scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    expireStalePeers();
+                }
+            }, delay);
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * DiscoveryTransport.Callback Methods
+     *
+     * ---------------------------------------------
+     */
+    @Override
+    public void onServiceRegistered(DiscoveredService service) {
+
+        /**
+         * Save the service name since the platform may have changed it in
+         * order to resolve a conflict.
+         */
+        String type = typeKey(service.getServiceType());
+        serviceNames.put(type, service.getServiceName());
+        tracer.trace(DiscoveryTracer.Event.REGISTERED, service, 0);
+        recover(DiscoveryTracer.Event.REGISTERED, 0);
+        listener.onLog("onServiceRegistered: " + service);
+
+        /** Rather than keeping the name the platform made up, move on to the next stable one. */
+        ServiceNamer namer = serviceNamer;
+        DiscoveredService requested = requestedServices.get(type);
+        if (namer != null && requested != null
+                && namer.onRegistered(requested.getServiceName(), service.getServiceName())) {
+            DiscoveredService renamed = requested.withServiceName(namer.getName());
+            listener.onLog("onServiceRegistered: Name conflict, registering again as: " + renamed.getServiceName());
+            requestedServices.put(type, renamed);
+            transport.registerService(renamed);
+        }
+    }
+
+    @Override
+    public void onRegistrationFailed(DiscoveredService service, int errorCode) {
+        tracer.trace(DiscoveryTracer.Event.REGISTRATION_FAILED, service, errorCode);
+        events.publishFailure(DiscoveryTracer.Event.REGISTRATION_FAILED, service, errorCode);
+        recover(DiscoveryTracer.Event.REGISTRATION_FAILED, errorCode);
+        listener.onLog("onRegistrationFailed: " + service + ", errorCode: " + errorCode);
+    }
+
+    @Override
+    public void onServiceUnregistered(DiscoveredService service) {
+        tracer.trace(DiscoveryTracer.Event.UNREGISTERED, service, 0);
+        listener.onLog("onServiceUnregistered: " + service);
+    }
+
+    @Override
+    public void onUnregistrationFailed(DiscoveredService service, int errorCode) {
+        tracer.trace(DiscoveryTracer.Event.UNREGISTRATION_FAILED, service, errorCode);
+        events.publishFailure(DiscoveryTracer.Event.UNREGISTRATION_FAILED, service, errorCode);
+        recover(DiscoveryTracer.Event.UNREGISTRATION_FAILED, errorCode);
+        listener.onLog("onUnregistrationFailed: " + service + ", errorCode: " + errorCode);
+    }
+
+    @Override
+    public void onDiscoveryStarted(String serviceType) {
+        tracer.trace(DiscoveryTracer.Event.DISCOVERY_STARTED);
+        recover(DiscoveryTracer.Event.DISCOVERY_STARTED, 0);
+        listener.onLog("onDiscoveryStarted: serviceType: " + serviceType);
+    }
+
+    @Override
+    public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+        tracer.trace(DiscoveryTracer.Event.START_DISCOVERY_FAILED, null, errorCode);
+        events.publishFailure(DiscoveryTracer.Event.START_DISCOVERY_FAILED, null, errorCode);
+        recover(DiscoveryTracer.Event.START_DISCOVERY_FAILED, errorCode);
+        listener.onLog("onStartDiscoveryFailed: serviceType: " + serviceType + ", errorCode: " + errorCode);
+    }
+
+    @Override
+    public void onDiscoveryStopped(String serviceType) {
+        tracer.trace(DiscoveryTracer.Event.DISCOVERY_STOPPED);
+        listener.onLog("onDiscoveryStopped: serviceType: " + serviceType);
+    }
+
+    @Override
+    public void onStopDiscoveryFailed(String serviceType, int errorCode) {
+        tracer.trace(DiscoveryTracer.Event.STOP_DISCOVERY_FAILED, null, errorCode);
+        events.publishFailure(DiscoveryTracer.Event.STOP_DISCOVERY_FAILED, null, errorCode);
+        recover(DiscoveryTracer.Event.STOP_DISCOVERY_FAILED, errorCode);
+        listener.onLog("onStopDiscoveryFailed: serviceType: " + serviceType + ", errorCode: " + errorCode);
+    }
+
+    @Override
+    public void onServiceFound(DiscoveredService service) {
+
+        /** Most services on a busy network are not ours, so they are only counted by the filter. */
+        if (!peerFilter.accepts(service)) {
+            return;
+        } else if (isOwnService(service)) {
+            listener.onLog("onServiceFound: Same machine: " + service.getServiceName());
+        } else {
+            tracer.trace(DiscoveryTracer.Event.FOUND, service, 0);
+            recover(DiscoveryTracer.Event.FOUND, 0);
+            listener.onLog("onServiceFound: Service from peer: " + service);
+            lastSeen.put(service.getKey(), scheduler.now());
+            peerTable.onFound(service);
+            listener.onPeerFound(service);
+            events.publish(DiscoveryEvent.Type.FOUND, service);
+            DiscoveredService cached = resolvedServiceCache.get(service);
+            ResolveGate gate = resolveGate;
+            if (cached != null && resolvedServiceCache.getAge(service) < refreshAgeMillis) {
+                return;
+            } else if (gate == null || gate.shouldResolve(service)) {
+                resolveScheduler.submit(service);
+            } else {
+                listener.onLog("onServiceFound: Not resolved, since the peer is reachable otherwise: "
+                        + service.getServiceName());
+            }
+        }
+    }
+
+    @Override
+    public void onServiceResolved(DiscoveredService service) {
+        boolean live = resolveScheduler.onResolved(service);
+        if (!peerFilter.accepts(service) || isOwnService(service)) {
+
+            /**
+             * Some transports report the attributes of every service, not only
+             * the ones we asked for. Those are only counted by the filter. A
+             * peer that was found, but whose attributes the filter rejects, is
+             * dropped.
+             */
+            if (peerTable.get(service.getKey()) != null) {
+                forget(service);
+                peerTable.onLost(service);
+                listener.onPeerLost(service);
+                events.publish(DiscoveryEvent.Type.LOST, service);
+            }
+        } else if (live) {
+            tracer.trace(DiscoveryTracer.Event.RESOLVED, service, 0);
+            recover(DiscoveryTracer.Event.RESOLVED, 0);
+            resolvedServiceCache.put(service);
+            lastSeen.put(service.getKey(), scheduler.now());
+            PeerDirectory directory = peerDirectory;
+            if (directory != null) {
+                directory.put(service);
+            }
+            DiscoveredService previous = peerTable.get(service.getKey());
+            peerTable.onResolved(service);
+            listener.onLog("onServiceResolved: " + service);
+            listener.onPeerResolved(service);
+            events.publish(isTxtUpdate(previous, service) ? DiscoveryEvent.Type.TXT_UPDATED
+                    : DiscoveryEvent.Type.RESOLVED, service);
+        } else {
+            listener.onLog("onServiceResolved: Ignored since the service was lost: " + service);
+        }
+    }
+
+    @Override
+    public void onResolveFailed(DiscoveredService service, int errorCode) {
+        boolean retry = resolveScheduler.onResolveFailed(service, errorCode);
+        tracer.trace(DiscoveryTracer.Event.RESOLVE_FAILED, service, errorCode);
+        events.publishFailure(DiscoveryTracer.Event.RESOLVE_FAILED, service, errorCode);
+        recover(DiscoveryTracer.Event.RESOLVE_FAILED, errorCode);
+        listener.onLog("onResolveFailed: " + service + ", errorCode: " + errorCode + (retry ? ", retrying" : ""));
+    }
+
+    @Override
+    public void onServiceLost(DiscoveredService service) {
+        listener.onLog("onServiceLost: " + service);
+        resolveScheduler.cancel(service);
+        resolvedServiceCache.invalidate(service);
+        if (peerFilter.matches(service)) {
+            tracer.trace(DiscoveryTracer.Event.LOST, service, 0);
+            forget(service);
+            peerTable.onLost(service);
+            listener.onPeerLost(service);
+            events.publish(DiscoveryEvent.Type.LOST, service);
+        }
+    }
+
+    @Override
+    public void onMessage(String message) {
+        listener.onLog(message);
+    }
+
+    /** Tell the {@link DiscoveryRecovery} about the specified event, if there is one. */
+    private void recover(DiscoveryTracer.Event event, int errorCode) {
+        DiscoveryRecovery target = recovery;
+        if (target != null) {
+            target.onEvent(event, errorCode);
+        }
+    }
+
+    /** Forget when the specified peer was last seen, and remove it from the {@link PeerDirectory}, if there is one. */
+    private void forget(DiscoveredService peer) {
+        lastSeen.remove(peer.getKey());
+        PeerDirectory directory = peerDirectory;
+        if (directory != null) {
+            directory.remove(peer);
+        }
+    }
+
+    /**
+     * Whether the specified resolve only changed the TXT attributes of a peer
+     * that was resolved before, rather than its endpoint.
+     */
+    private static boolean isTxtUpdate(DiscoveredService previous, DiscoveredService resolved) {
+        return previous != null && previous.isResolved() && previous.getHost().equals(resolved.getHost())
+                && previous.getPort() == resolved.getPort()
+                && !previous.getAttributes().equals(resolved.getAttributes());
+    }
+
+    /** Whether the specified service is the one we registered for its type. */
+    private boolean isOwnService(DiscoveredService service) {
+        return service.getServiceName().equals(getServiceName(service.getServiceType()));
+    }
+
+    /** The platforms disagree on whether a type ends with a dot, so compare types without it. */
+    private static String typeKey(String serviceType) {
+        return serviceType.endsWith(".") ? serviceType.substring(0, serviceType.length() - 1) : serviceType;
+    }
+}
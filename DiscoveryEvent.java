@@ -0,0 +1,93 @@
+package com.example.wificoms;
+
+/**
+ * Something that happened to a peer, or a failure, as published by the
+ * {@link DiscoveryEventPublisher} of a {@link DiscoveryEngine}.
+ */
+public final class DiscoveryEvent {
+
+    /** The kind of event. */
+    public enum Type {
+
+        /** A service of a peer running this app was found. */
+        FOUND,
+
+        /** The endpoint and attributes of a peer's service are known. */
+        RESOLVED,
+
+        /** A resolved peer was resolved again, with the same endpoint but other TXT attributes. */
+        TXT_UPDATED,
+
+        /**
+         * A peer that was resolved before is reported from the cache, e.g.
+         * because a UI attached again. It was not found again (yet), so
+         * consumers that act on new peers should ignore this.
+         */
+        CACHED,
+
+        /** A service of a peer running this app is no longer available. */
+        LOST,
+
+        /** An operation failed. See {@link DiscoveryEvent#getFailure()} for which one. */
+        FAILURE
+    }
+
+    private final Type                  type;
+    private final DiscoveredService     peer;
+    private final DiscoveryTracer.Event failure;
+    private final int                   errorCode;
+    private final long                  time;
+
+    public DiscoveryEvent(Type type, DiscoveredService peer, DiscoveryTracer.Event failure, int errorCode,
+            long time) {
+        this.type = type;
+        this.peer = peer;
+        this.failure = failure;
+        this.errorCode = errorCode;
+        this.time = time;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /** Get the peer service, or null if this is a failure that is not about a peer (e.g. of the discovery). */
+    public DiscoveredService getPeer() {
+        return peer;
+    }
+
+    /** Get the operation that failed (e.g. {@link DiscoveryTracer.Event#RESOLVE_FAILED}), or null. */
+    public DiscoveryTracer.Event getFailure() {
+        return failure;
+    }
+
+    /** Get the error code of the failure, or 0. */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /** Get when this happened, on the clock of the engine's {@link TaskScheduler}. */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Get the key under which events are conflated: the key of the peer, or
+     * of the operation that failed.
+     */
+    public String getKey() {
+        return peer != null ? peer.getKey() : String.valueOf(failure);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder().append(type);
+        if (failure != null) {
+            builder.append(' ').append(failure).append(", errorCode: ").append(errorCode);
+        }
+        if (peer != null) {
+            builder.append(": ").append(peer);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,414 @@
+package com.example.wificoms;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the {@link DiscoveryEvent}s of a {@link DiscoveryEngine} to any
+ * number of {@link EventFlow.Subscriber}s, each of which receives only as many
+ * events as it requested.
+ *
+ * <p/>
+ *
+ * Publishing never blocks: the events are queued per subscriber, and handed
+ * to it on its {@link Executor}. The queue of a subscriber is bounded by its
+ * capacity, and what happens once it is full depends on its {@link Overflow}
+ * strategy. So a slow subscriber neither holds up the callback thread of the
+ * platform nor makes the memory grow without bounds during a storm of peers.
+ * Publishing to no subscribers costs next to nothing.
+ *
+ * <p/>
+ *
+ * By default, the subscribers are called on a thread of this publisher,
+ * rather than on the thread that publishes.
+ */
+public class DiscoveryEventPublisher implements EventFlow.Publisher<DiscoveryEvent> {
+
+    /** What happens when an event arrives for a subscriber whose queue is full. */
+    public enum Overflow {
+
+        /** Drop the oldest queued event. */
+        DROP_OLDEST,
+
+        /**
+         * Only keep the latest event of every peer (which replaces the queued
+         * one), and drop the oldest one if there are more peers than the
+         * capacity.
+         */
+        CONFLATE,
+
+        /** Fail the subscriber with an {@link IllegalStateException}. */
+        BUFFER
+    }
+
+    /** The queue and demand of a subscriber. Its state is guarded by itself. */
+    private final class QueuedSubscription implements EventFlow.Subscription, Runnable {
+
+        private final EventFlow.Subscriber<? super DiscoveryEvent>  subscriber;
+        private final Executor                                      executor;
+        private final Overflow                                      overflow;
+        private final int                                           capacity;
+        private final ArrayDeque<DiscoveryEvent>                    queue;
+        private final Map<String, DiscoveryEvent>                   latest;
+        private long                                                demand          = 0;
+        private boolean                                             subscribed      = false;
+        private boolean                                             scheduled       = false;
+        private boolean                                             cancelled       = false;
+        private boolean                                             completed       = false;
+        private Throwable                                           error           = null;
+        private long                                                dropped         = 0;
+
+        QueuedSubscription(EventFlow.Subscriber<? super DiscoveryEvent> subscriber, Executor executor,
+                Overflow overflow, int capacity) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.overflow = overflow;
+            this.capacity = capacity;
+            this.queue = overflow == Overflow.CONFLATE ? null : new ArrayDeque<DiscoveryEvent>();
+            this.latest = overflow == Overflow.CONFLATE ? new LinkedHashMap<String, DiscoveryEvent>() : null;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                } else if (n <= 0) {
+                    fail(new IllegalArgumentException("Non-positive request: " + n));
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                signal();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                clear();
+            }
+            subscriptions.remove(this);
+        }
+
+        /** Queue the specified event, without blocking. */
+        synchronized void offer(DiscoveryEvent event) {
+            if (cancelled || completed || error != null) {
+                return;
+            } else if (latest != null) {
+                String key = event.getKey();
+                if (latest.remove(key) == null && latest.size() >= capacity) {
+                    Iterator<DiscoveryEvent> eldest = latest.values().iterator();
+                    eldest.next();
+                    eldest.remove();
+                    dropped++;
+                }
+                latest.put(key, event);
+            } else if (queue.size() < capacity) {
+                queue.add(event);
+            } else if (overflow == Overflow.DROP_OLDEST) {
+                queue.poll();
+                queue.add(event);
+                dropped++;
+            } else {
+                dropped++;
+                fail(new IllegalStateException("More than " + capacity + " events are queued"));
+            }
+            signal();
+        }
+
+        /** End the stream, once the queued events were delivered. */
+        synchronized void complete() {
+            completed = true;
+            signal();
+        }
+
+        synchronized int size() {
+            return queue != null ? queue.size() : latest.size();
+        }
+
+        synchronized long getDroppedCount() {
+            return dropped;
+        }
+
+        /** Deliver what can be delivered, on the executor. */
+        @Override
+        public void run() {
+            boolean subscribe;
+            synchronized (this) {
+                subscribe = !subscribed;
+                subscribed = true;
+            }
+            if (subscribe && !call(null, null, false)) {
+                return;
+            }
+            for (int delivered = 0; delivered < MAX_BATCH; delivered++) {
+                DiscoveryEvent event;
+                Throwable failure = null;
+                boolean complete = false;
+                synchronized (this) {
+                    event = cancelled || demand == 0 ? null : poll();
+                    if (event != null) {
+                        demand--;
+                    } else if (!cancelled && error != null) {
+                        failure = error;
+                        cancelled = true;
+                    } else if (!cancelled && completed && size() == 0) {
+                        complete = true;
+                        cancelled = true;
+                    } else {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                if (!call(event, failure, complete)) {
+                    return;
+                } else if (event == null) {
+                    subscriptions.remove(this);
+                    return;
+                }
+            }
+
+            /** Let other subscribers of the executor have a turn. */
+            synchronized (this) {
+                scheduled = false;
+                signal();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return subscriber + ": " + overflow + " " + size() + "/" + capacity + ", dropped: " + getDroppedCount();
+        }
+
+        /**
+         * Call the subscriber with the specified event, failure, completion or
+         * else subscription. A subscriber that throws is cancelled. Return
+         * whether it may be called again.
+         */
+        private boolean call(DiscoveryEvent event, Throwable failure, boolean complete) {
+            try {
+                if (event != null) {
+                    subscriber.onNext(event);
+                } else if (failure != null) {
+                    subscriber.onError(failure);
+                } else if (complete) {
+                    subscriber.onComplete();
+                } else {
+                    subscriber.onSubscribe(this);
+                }
+                return true;
+            } catch (RuntimeException e) {
+                cancel();
+                return false;
+            }
+        }
+
+        private DiscoveryEvent poll() {
+            if (queue != null) {
+                return queue.poll();
+            }
+            Iterator<DiscoveryEvent> eldest = latest.values().iterator();
+            if (!eldest.hasNext()) {
+                return null;
+            }
+            DiscoveryEvent event = eldest.next();
+            eldest.remove();
+            return event;
+        }
+
+        /** Fail the subscriber, dropping whatever is queued. The caller must hold the lock. */
+        private void fail(Throwable throwable) {
+            if (error == null) {
+                error = throwable;
+                clear();
+            }
+        }
+
+        private void clear() {
+            if (queue != null) {
+                queue.clear();
+            } else {
+                latest.clear();
+            }
+        }
+
+        /** Schedule a delivery, if there is something to deliver. The caller must hold the lock. */
+        private void signal() {
+            boolean pending = !subscribed || error != null || completed || (demand > 0 && size() > 0);
+            if (scheduled || cancelled || !pending) {
+                return;
+            }
+            scheduled = true;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled = false;
+                cancelled = true;
+                clear();
+                subscriptions.remove(this);
+            }
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final int                                 DEFAULT_CAPACITY    = 256;
+
+    /** The number of events that are delivered to a subscriber before another one gets a turn. */
+    private static final int                                MAX_BATCH           = 64;
+
+    private final TaskScheduler                             clock;
+    private final CopyOnWriteArrayList<QueuedSubscription>  subscriptions       =
+            new CopyOnWriteArrayList<QueuedSubscription>();
+    private Executor                                        defaultExecutor     = null;
+    private volatile boolean                                closed              = false;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /** Create a publisher that stamps the events with the time of the specified scheduler. */
+    public DiscoveryEventPublisher(TaskScheduler clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /** Whether anyone is subscribed, i.e. whether it is worth creating events. */
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Get the thread on which the subscribers are called by default, creating
+     * it if needed. It goes away while there are no events to deliver.
+     */
+    private synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "DiscoveryEvents");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            defaultExecutor = executor;
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * EventFlow.Publisher Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Subscribe the specified subscriber with a buffer of {@value #DEFAULT_CAPACITY} events, on the default thread. */
+    @Override
+    public void subscribe(EventFlow.Subscriber<? super DiscoveryEvent> subscriber) {
+        subscribe(subscriber, Overflow.BUFFER, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Subscribe the specified subscriber on the default thread, with a queue
+     * of the specified capacity, which overflows as specified.
+     */
+    public void subscribe(EventFlow.Subscriber<? super DiscoveryEvent> subscriber, Overflow overflow,
+            int capacity) {
+        subscribe(subscriber, getDefaultExecutor(), overflow, capacity);
+    }
+
+    /**
+     * Subscribe the specified subscriber, which is called on the specified
+     * executor (one call at a time), with a queue of the specified capacity,
+     * which overflows as specified. The executor must not run the subscriber
+     * on the calling thread, or a slow subscriber holds up the publisher.
+     */
+    public void subscribe(EventFlow.Subscriber<? super DiscoveryEvent> subscriber, Executor executor,
+            Overflow overflow, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        QueuedSubscription subscription = new QueuedSubscription(subscriber, executor, overflow, capacity);
+        subscriptions.add(subscription);
+        synchronized (subscription) {
+            if (closed) {
+                subscription.complete();
+            }
+            subscription.signal();
+        }
+    }
+
+    /** Publish an event of the specified type about the specified peer. */
+    public void publish(DiscoveryEvent.Type type, DiscoveredService peer) {
+        if (!subscriptions.isEmpty()) {
+            publish(new DiscoveryEvent(type, peer, null, 0, clock.now()));
+        }
+    }
+
+    /** Publish the failure of the specified operation (about the specified peer, if any). */
+    public void publishFailure(DiscoveryTracer.Event failure, DiscoveredService peer, int errorCode) {
+        if (!subscriptions.isEmpty()) {
+            publish(new DiscoveryEvent(DiscoveryEvent.Type.FAILURE, peer, failure, errorCode, clock.now()));
+        }
+    }
+
+    /** Publish the specified event to every subscriber. */
+    public void publish(DiscoveryEvent event) {
+        for (QueuedSubscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /** End the stream of every subscriber, once their queued events were delivered. */
+    public void close() {
+        closed = true;
+        for (QueuedSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DiscoveryEventPublisher: subscribers: " + subscriptions;
+    }
+}
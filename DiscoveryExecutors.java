@@ -0,0 +1,149 @@
+package com.example.wificoms;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * The threads that the discovery pipeline runs on:
+ *
+ * <p/>
+ *
+ * <ul>
+ * <li>a {@link Looper} on which the callbacks of the platform (e.g. of a
+ * {@link android.net.wifi.p2p.WifiP2pManager.Channel}) and the timers of the
+ * {@link DiscoveryEngine} run, one after the other;</li>
+ * <li>a bounded pool of workers for parsing, e.g. of vendor-specific
+ * responses. When all workers are busy and the queue is full, the caller
+ * parses itself, which slows down the callbacks rather than dropping
+ * responses.</li>
+ * </ul>
+ *
+ * <p/>
+ *
+ * With {@link Mode#MAIN_THREAD}, everything runs on the main thread, as it
+ * used to. With {@link Mode#BACKGROUND}, the callbacks run on a dedicated
+ * {@link HandlerThread}, so that the main thread only renders what the
+ * {@link LogDispatcher} hands it, at most once per frame. Both are shared by
+ * the whole process, since the sessions outlive their Activities.
+ */
+public class DiscoveryExecutors {
+
+    /** Where the callbacks run. */
+    public enum Mode {
+        MAIN_THREAD, BACKGROUND
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final int                     DEFAULT_WORKERS         = 2;
+    public static final int                     DEFAULT_QUEUE_CAPACITY  = 64;
+
+    private static DiscoveryExecutors           mainThread              = null;
+    private static DiscoveryExecutors           background              = null;
+
+    private final Mode                          mode;
+    private final Looper                        looper;
+    private final TaskScheduler                 scheduler;
+    private final Executor                      workers;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    private DiscoveryExecutors(Mode mode, Looper looper, Executor workers) {
+        this.mode = mode;
+        this.looper = looper;
+        this.scheduler = new HandlerTaskScheduler(looper);
+        this.workers = workers;
+    }
+
+    /** Get the executors that run everything on the main thread. */
+    public static synchronized DiscoveryExecutors mainThread() {
+        if (mainThread == null) {
+            mainThread = new DiscoveryExecutors(Mode.MAIN_THREAD, Looper.getMainLooper(), new Executor() {
+
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            });
+        }
+        return mainThread;
+    }
+
+    /** Get the executors that run the callbacks on a background thread, creating them if needed. */
+    public static synchronized DiscoveryExecutors background() {
+        if (background == null) {
+            HandlerThread callbackThread = new HandlerThread("DiscoveryCallbacks",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            callbackThread.start();
+            ThreadPoolExecutor workers = new ThreadPoolExecutor(DEFAULT_WORKERS, DEFAULT_WORKERS, 30,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(DEFAULT_QUEUE_CAPACITY), new ThreadFactory() {
+
+                        private final AtomicInteger count = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "DiscoveryWorker-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            workers.allowCoreThreadTimeOut(true);
+            background = new DiscoveryExecutors(Mode.BACKGROUND, callbackThread.getLooper(), workers);
+        }
+        return background;
+    }
+
+    /** Get the executors of the specified mode. */
+    public static DiscoveryExecutors get(Mode mode) {
+        return mode == Mode.MAIN_THREAD ? mainThread() : background();
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** Get the {@link Looper} on which the callbacks run. */
+    public Looper getLooper() {
+        return looper;
+    }
+
+    /** Get a {@link TaskScheduler} that runs its tasks on the {@link #getLooper()} thread. */
+    public TaskScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /** Get the bounded pool of workers for parsing. */
+    public Executor getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public String toString() {
+        return "DiscoveryExecutors: mode: " + mode + ", workers: " + workers;
+    }
+}
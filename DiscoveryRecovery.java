@@ -0,0 +1,539 @@
+package com.example.wificoms;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Recovers from the failures of the registration and the discovery on its
+ * own, instead of waiting for someone to register or discover again. The
+ * {@link DiscoveryEngine} hands every lifecycle event to it, and its
+ * {@link Policy} maps the error code of every failure to an {@link Action}:
+ *
+ * <p/>
+ *
+ * <ul>
+ * <li>{@link Action#RETRY}: issue the operation that failed again, after an
+ * exponential backoff with jitter (so that the nodes on a network do not all
+ * retry at the same time);</li>
+ * <li>{@link Action#REBUILD}: tear down the transport and build it up again,
+ * i.e. register and discover with fresh listeners (or a fresh channel);</li>
+ * <li>{@link Action#CIRCUIT_BREAK}: stop using the transport for a cooldown,
+ * after which a single rebuild probes whether it works again.</li>
+ * </ul>
+ *
+ * <p/>
+ *
+ * Retries escalate to a rebuild once an operation failed more than the
+ * maximum number of retries in a row, and rebuilds escalate to a circuit break
+ * once the transport was rebuilt the maximum number of times without becoming
+ * healthy. The cooldown doubles with every circuit break, up to its maximum,
+ * so a failing node tries again at least once per maximum cooldown. The
+ * failures of a resolve are left to the {@link ResolveScheduler}, and those of
+ * unregistering or stopping discovery do not keep the node from being seen,
+ * so those are only counted.
+ *
+ * <p/>
+ *
+ * The {@link Health} of the transport moves from {@link Health#HEALTHY}
+ * through {@link Health#DEGRADED}, {@link Health#REBUILDING} and
+ * {@link Health#BROKEN}, and back to {@link Health#HEALTHY} once both the
+ * registration and the discovery succeed again. The time that took is
+ * recorded in a {@link LatencyHistogram}. Nothing in here depends on Android,
+ * so it runs on a {@link VirtualTaskScheduler} as well.
+ */
+public class DiscoveryRecovery {
+
+    /** What to do about a failure, from the least to the most drastic. */
+    public enum Action {
+        IGNORE, RETRY, REBUILD, CIRCUIT_BREAK
+    }
+
+    /** The health states of the transport. */
+    public enum Health {
+
+        /** The registration and the discovery work. */
+        HEALTHY,
+
+        /** An operation failed, and is retried. */
+        DEGRADED,
+
+        /** The transport is (about to be) torn down and built up again. */
+        REBUILDING,
+
+        /** The circuit is open: the transport is not used until the cooldown expires. */
+        BROKEN
+    }
+
+    /** The operations with which a {@link DiscoveryRecovery} recovers, e.g. those of a {@link DiscoverySession}. */
+    public interface Recoverable {
+
+        /** Register the services again. */
+        void retryRegistration();
+
+        /** Discover the peer services again. */
+        void retryDiscovery();
+
+        /** Tear down the transport, and register and discover again. */
+        void rebuild();
+
+        /** Stop registering and discovering, since the transport does not work. */
+        void suspend();
+    }
+
+    /** Which action is taken for which error code, and how long to wait in between. */
+    public static final class Policy {
+
+        /** Retry whatever fails. */
+        public static final Policy  DEFAULT     = new Policy(1000, 30 * 1000, 3, 2, 60 * 1000, 10 * 60 * 1000,
+                Action.RETRY);
+
+        /**
+         * The NSD daemon answers {@link #NSD_FAILURE_MAX_LIMIT} while it has too
+         * many requests, and internal errors tend to be transient, so those are
+         * retried. It answers {@link #NSD_FAILURE_ALREADY_ACTIVE} when it still
+         * holds on to a listener, which only fresh listeners get around.
+         */
+        public static final Policy  NSD         = DEFAULT
+                .on(NSD_FAILURE_INTERNAL_ERROR, Action.RETRY)
+                .on(NSD_FAILURE_ALREADY_ACTIVE, Action.REBUILD)
+                .on(NSD_FAILURE_MAX_LIMIT, Action.RETRY);
+
+        /**
+         * The framework answers {@link #P2P_BUSY} while it handles other
+         * requests, which is retried (on top of the retries of the
+         * {@link ChannelCommandPipeline}). A generic error, missing service
+         * requests or a timeout mean that the channel is in a bad state, so it
+         * is rebuilt. A device without Wifi Direct support does not get it by
+         * retrying, so the circuit is opened right away.
+         */
+        public static final Policy  WIFI_P2P    = new Policy(2 * 1000, 60 * 1000, 3, 2, 60 * 1000, 10 * 60 * 1000,
+                Action.REBUILD)
+                .on(P2P_ERROR, Action.REBUILD)
+                .on(P2P_UNSUPPORTED, Action.CIRCUIT_BREAK)
+                .on(P2P_BUSY, Action.RETRY)
+                .on(P2P_NO_SERVICE_REQUESTS, Action.REBUILD)
+                .on(ChannelCommandPipeline.TIMEOUT, Action.REBUILD);
+
+        private final long                  initialBackoffMillis;
+        private final long                  maxBackoffMillis;
+        private final int                   maxRetries;
+        private final int                   maxRebuilds;
+        private final long                  minCooldownMillis;
+        private final long                  maxCooldownMillis;
+        private final Action                defaultAction;
+        private final Map<Integer, Action>  actions;
+
+        /**
+         * Create a policy that takes the default action for every error code.
+         * Retries wait for the initial backoff, which doubles with every retry
+         * of the same operation, up to the maximum. An operation is retried
+         * the maximum number of retries in a row, after which the transport
+         * is rebuilt, at most the maximum number of rebuilds, after which the
+         * circuit is opened for the cooldown.
+         */
+        public Policy(long initialBackoffMillis, long maxBackoffMillis, int maxRetries, int maxRebuilds,
+                long minCooldownMillis, long maxCooldownMillis, Action defaultAction) {
+            this(initialBackoffMillis, maxBackoffMillis, maxRetries, maxRebuilds, minCooldownMillis,
+                    maxCooldownMillis, defaultAction, Collections.<Integer, Action> emptyMap());
+        }
+
+        private Policy(long initialBackoffMillis, long maxBackoffMillis, int maxRetries, int maxRebuilds,
+                long minCooldownMillis, long maxCooldownMillis, Action defaultAction, Map<Integer, Action> actions) {
+            if (initialBackoffMillis <= 0 || minCooldownMillis <= 0) {
+                throw new IllegalArgumentException("The backoff and cooldown must be positive");
+            }
+            this.initialBackoffMillis = initialBackoffMillis;
+            this.maxBackoffMillis = Math.max(initialBackoffMillis, maxBackoffMillis);
+            this.maxRetries = maxRetries;
+            this.maxRebuilds = maxRebuilds;
+            this.minCooldownMillis = minCooldownMillis;
+            this.maxCooldownMillis = Math.max(minCooldownMillis, maxCooldownMillis);
+            this.defaultAction = defaultAction;
+            this.actions = actions;
+        }
+
+        /** Get a copy of this policy that takes the specified action for the specified error code. */
+        public Policy on(int errorCode, Action action) {
+            Map<Integer, Action> copy = new HashMap<Integer, Action>(actions);
+            copy.put(errorCode, action);
+            return new Policy(initialBackoffMillis, maxBackoffMillis, maxRetries, maxRebuilds, minCooldownMillis,
+                    maxCooldownMillis, defaultAction, Collections.unmodifiableMap(copy));
+        }
+
+        /** Get the action for the specified error code. */
+        public Action getAction(int errorCode) {
+            Action action = actions.get(errorCode);
+            return action != null ? action : defaultAction;
+        }
+
+        public long getInitialBackoffMillis() {
+            return initialBackoffMillis;
+        }
+
+        public long getMaxBackoffMillis() {
+            return maxBackoffMillis;
+        }
+
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+
+        public int getMaxRebuilds() {
+            return maxRebuilds;
+        }
+
+        public long getMinCooldownMillis() {
+            return minCooldownMillis;
+        }
+
+        public long getMaxCooldownMillis() {
+            return maxCooldownMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Policy: backoff: " + initialBackoffMillis + "-" + maxBackoffMillis + " ms, retries: " + maxRetries
+                    + ", rebuilds: " + maxRebuilds + ", cooldown: " + minCooldownMillis + "-" + maxCooldownMillis
+                    + " ms, default: " + defaultAction + ", actions: " + actions;
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    /** The error codes of {@link android.net.nsd.NsdManager}. */
+    public static final int                 NSD_FAILURE_INTERNAL_ERROR  = 0;
+    public static final int                 NSD_FAILURE_ALREADY_ACTIVE  = 3;
+    public static final int                 NSD_FAILURE_MAX_LIMIT       = 4;
+
+    /** The error codes of {@link android.net.wifi.p2p.WifiP2pManager}. */
+    public static final int                 P2P_ERROR                   = 0;
+    public static final int                 P2P_UNSUPPORTED             = 1;
+    public static final int                 P2P_BUSY                    = ChannelCommandPipeline.BUSY;
+    public static final int                 P2P_NO_SERVICE_REQUESTS     = 3;
+
+    private final TaskScheduler             scheduler;
+    private final Recoverable               target;
+    private final Random                    random;
+    private final LatencyHistogram          recoveryLatency             = new LatencyHistogram("recovery");
+    private final Runnable                  onTimer;
+    private Policy                          policy;
+    private boolean                         active                      = false;
+    private Health                          health                      = Health.HEALTHY;
+    private Action                          pending                     = null;
+    private boolean                         retryRegistration           = false;
+    private boolean                         retryDiscovery              = false;
+    private TaskScheduler.Cancellable       timer                       = null;
+    private int                             registrationFailures        = 0;
+    private int                             discoveryFailures           = 0;
+    private int                             rebuildsSinceHealthy        = 0;
+    private long                            cooldownMillis;
+    private long                            unhealthySince              = -1;
+    private long                            failures                    = 0;
+    private long                            retries                     = 0;
+    private long                            rebuilds                    = 0;
+    private long                            circuitBreaks               = 0;
+    private long                            ignored                     = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public DiscoveryRecovery(TaskScheduler scheduler, Policy policy, Recoverable target) {
+        this(scheduler, policy, target, new Random());
+    }
+
+    /** Create a recovery whose jitter is drawn from the specified random, e.g. a seeded one for a simulation. */
+    public DiscoveryRecovery(TaskScheduler scheduler, Policy policy, Recoverable target, Random random) {
+        this.scheduler = scheduler;
+        this.policy = policy;
+        this.target = target;
+        this.random = random;
+        this.cooldownMillis = policy.getMinCooldownMillis();
+        this.onTimer = new Runnable() {
+
+            @Override
+            public void run() {
+                onTimer();
+            }
+        };
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public synchronized Policy getPolicy() {
+        return policy;
+    }
+
+    public synchronized Health getHealth() {
+        return health;
+    }
+
+    /** Whether failures are recovered from, i.e. between {@link #start()} and {@link #stop()}. */
+    public synchronized boolean isActive() {
+        return active;
+    }
+
+    /** Get the number of failures of the registration and the discovery, including the ignored ones. */
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    public synchronized long getRetryCount() {
+        return retries;
+    }
+
+    public synchronized long getRebuildCount() {
+        return rebuilds;
+    }
+
+    public synchronized long getCircuitBreakCount() {
+        return circuitBreaks;
+    }
+
+    public synchronized long getIgnoredCount() {
+        return ignored;
+    }
+
+    /** Get a copy of the histogram of how long it took from the first failure back to healthy. */
+    public LatencyHistogram getRecoveryLatency() {
+        return recoveryLatency.copy();
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    /** Set the policy, which applies from the next failure on. */
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+        this.cooldownMillis = policy.getMinCooldownMillis();
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Start recovering from failures, e.g. because the session started registering and discovering. */
+    public synchronized void start() {
+        active = true;
+    }
+
+    /** Stop recovering, and forget about the failures so far, e.g. because the session shuts down. */
+    public synchronized void stop() {
+        active = false;
+        cancelTimer();
+        pending = null;
+        retryRegistration = false;
+        retryDiscovery = false;
+        registrationFailures = 0;
+        discoveryFailures = 0;
+        rebuildsSinceHealthy = 0;
+        cooldownMillis = policy.getMinCooldownMillis();
+        unhealthySince = -1;
+        health = Health.HEALTHY;
+    }
+
+    /**
+     * Take the specified lifecycle event into account: a failure (with the
+     * specified error code) is recovered from as the policy says, and a
+     * success may make the transport healthy again.
+     */
+    public synchronized void onEvent(DiscoveryTracer.Event event, int errorCode) {
+        if (!active) {
+            return;
+        }
+        switch (event) {
+        case REGISTERED:
+            registrationFailures = 0;
+            onSucceeded();
+            break;
+        case DISCOVERY_STARTED:
+        case FOUND:
+        case RESOLVED:
+            discoveryFailures = 0;
+            onSucceeded();
+            break;
+        case REGISTRATION_FAILED:
+            onFailed(true, errorCode);
+            break;
+        case START_DISCOVERY_FAILED:
+            onFailed(false, errorCode);
+            break;
+        case UNREGISTRATION_FAILED:
+        case STOP_DISCOVERY_FAILED:
+        case RESOLVE_FAILED:
+            failures++;
+            ignored++;
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiscoveryRecovery: health: " + health + ", failures: " + failures + ", retries: " + retries
+                + ", rebuilds: " + rebuilds + ", circuitBreaks: " + circuitBreaks + ", ignored: " + ignored + ", "
+                + recoveryLatency;
+    }
+
+    /** The transport is healthy once neither operation is failing, nor about to be recovered. */
+    private void onSucceeded() {
+        if (health == Health.HEALTHY || registrationFailures > 0 || discoveryFailures > 0) {
+            return;
+        }
+        cancelTimer();
+        pending = null;
+        retryRegistration = false;
+        retryDiscovery = false;
+        rebuildsSinceHealthy = 0;
+        cooldownMillis = policy.getMinCooldownMillis();
+        if (unhealthySince >= 0) {
+            recoveryLatency.record(scheduler.now() - unhealthySince);
+            unhealthySince = -1;
+        }
+        health = Health.HEALTHY;
+    }
+
+    /** Work out what to do about a failure of the registration or the discovery, and schedule it. */
+    private void onFailed(boolean registration, int errorCode) {
+        failures++;
+        Action action = policy.getAction(errorCode);
+        if (action == Action.IGNORE) {
+            ignored++;
+            return;
+        } else if (health == Health.BROKEN) {
+
+            /** The circuit is open, so the probe at the end of the cooldown decides. */
+            return;
+        }
+        int attempt = registration ? ++registrationFailures : ++discoveryFailures;
+        if (action == Action.RETRY && attempt > policy.getMaxRetries()) {
+            action = Action.REBUILD;
+        }
+        if (action == Action.REBUILD && rebuildsSinceHealthy >= policy.getMaxRebuilds()) {
+            action = Action.CIRCUIT_BREAK;
+        }
+        if (unhealthySince < 0) {
+            unhealthySince = scheduler.now();
+        }
+        if (registration) {
+            retryRegistration = true;
+        } else {
+            retryDiscovery = true;
+        }
+
+        /** A more drastic action that is already scheduled covers this failure as well. */
+        if (pending != null && pending.compareTo(action) >= 0) {
+            return;
+        }
+        cancelTimer();
+        pending = action;
+        long delay;
+        switch (action) {
+        case RETRY:
+            health = Health.DEGRADED;
+            delay = jitter(backoff(attempt));
+            break;
+        case REBUILD:
+            health = Health.REBUILDING;
+            delay = jitter(backoff(rebuildsSinceHealthy + 1));
+            break;
+        default:
+            health = Health.BROKEN;
+            circuitBreaks++;
+            delay = 0;
+            break;
+        }
+        timer = scheduler.schedule(onTimer, delay);
+    }
+
+    /** Take the pending action. Opening the circuit also schedules the probe at the end of the cooldown. */
+    private void onTimer() {
+        Action action;
+        boolean registration;
+        boolean discovery;
+        synchronized (this) {
+            timer = null;
+            if (!active || pending == null) {
+                return;
+            }
+            action = pending;
+            pending = null;
+            registration = retryRegistration;
+            discovery = retryDiscovery;
+            retryRegistration = false;
+            retryDiscovery = false;
+            switch (action) {
+            case RETRY:
+                retries++;
+                break;
+            case REBUILD:
+                rebuilds++;
+                rebuildsSinceHealthy++;
+                health = Health.REBUILDING;
+                break;
+            default:
+                pending = Action.REBUILD;
+                timer = scheduler.schedule(onTimer, cooldownMillis);
+                cooldownMillis = Math.min(policy.getMaxCooldownMillis(), cooldownMillis * 2);
+                break;
+            }
+        }
+        switch (action) {
+        case RETRY:
+            if (registration) {
+                target.retryRegistration();
+            }
+            if (discovery) {
+                target.retryDiscovery();
+            }
+            break;
+        case REBUILD:
+            target.rebuild();
+            break;
+        default:
+            target.suspend();
+            break;
+        }
+    }
+
+    /** Get the backoff before the specified attempt, which doubles with every attempt, up to the maximum. */
+    private long backoff(int attempt) {
+        return Math.min(policy.getMaxBackoffMillis(), policy.getInitialBackoffMillis() << Math.min(attempt - 1, 30));
+    }
+
+    /** Draw a delay between half of the specified backoff and all of it. */
+    private long jitter(long backoff) {
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+}
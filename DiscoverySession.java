@@ -0,0 +1,326 @@
+package com.example.wificoms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A discovery session whose lifetime is independent of the UI that shows it.
+ * The session registers our service and discovers peer services once, and
+ * keeps doing so while a UI attaches to it and detaches from it again (e.g.
+ * while an {@link android.app.Activity} is recreated because the screen was
+ * rotated). Only when no UI has been attached for the idle timeout is the
+ * session really shut down.
+ *
+ * <p/>
+ *
+ * The services that are advertised are fixed when the session is created, so
+ * that peers keep seeing the same services for as long as the session lives.
+ * A session may advertise and discover several service types at once, over a
+ * single transport and {@link DiscoveryEngine}.
+ * Discovery is duty cycled by a {@link DiscoveryDutyCycler}, and failures are
+ * recovered from by a {@link DiscoveryRecovery}, whose policies should match
+ * the transport. If a {@link PeerMerger} is set, the peers of the session are
+ * merged with the ones of the other sessions for as long as the network
+ * operations run.
+ */
+public class DiscoverySession implements DiscoveryEngine.Listener, DiscoveryRecovery.Recoverable {
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final long                    DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final DiscoveryEngine               engine;
+    private final DiscoveryDutyCycler           dutyCycler;
+    private final DiscoveryRecovery             recovery;
+    private final TaskScheduler                 scheduler;
+    private final List<DiscoveredService>       services;
+    private volatile DiscoveryEngine.Listener   listener                    = null;
+    private long                                idleTimeoutMillis           = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private TaskScheduler.Cancellable           idleTimer                   = null;
+    private PeerMerger                          peerMerger                  = null;
+    private String                              peerMergerTransport         = null;
+    private boolean                             running                     = false;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Create a session that advertises the specified service, and discovers
+     * peer services of the same type, over the specified transport. The
+     * original service name is used to recognize the services of peers (see
+     * {@link DiscoveryEngine}).
+     */
+    public DiscoverySession(DiscoveryTransport transport, TaskScheduler scheduler, DiscoveredService service,
+            String originalServiceName) {
+        this(transport, scheduler, Collections.singletonList(service), originalServiceName);
+    }
+
+    /**
+     * Create a session that advertises the specified services (one per type),
+     * and discovers peer services of all of their types.
+     */
+    public DiscoverySession(DiscoveryTransport transport, TaskScheduler scheduler, List<DiscoveredService> services,
+            String originalServiceName) {
+        List<String> serviceTypes = new ArrayList<String>();
+        for (DiscoveredService service : services) {
+            serviceTypes.add(service.getServiceType());
+        }
+        this.scheduler = scheduler;
+        this.services = Collections.unmodifiableList(new ArrayList<DiscoveredService>(services));
+        this.engine = new DiscoveryEngine(transport, scheduler, serviceTypes, originalServiceName, this);
+        this.dutyCycler = new DiscoveryDutyCycler(engine, scheduler, DiscoveryDutyCycler.Policy.CONTINUOUS);
+        this.recovery = new DiscoveryRecovery(scheduler, DiscoveryRecovery.Policy.DEFAULT, this);
+        engine.setRecovery(recovery);
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public DiscoveryEngine getEngine() {
+        return engine;
+    }
+
+    public DiscoveryDutyCycler getDutyCycler() {
+        return dutyCycler;
+    }
+
+    public DiscoveryRecovery getRecovery() {
+        return recovery;
+    }
+
+    /** Get the (first) service that this session advertises. */
+    public DiscoveredService getService() {
+        return services.get(0);
+    }
+
+    /** Get the services that this session advertises. */
+    public List<DiscoveredService> getServices() {
+        return services;
+    }
+
+    /** Whether the network operations of this session are running. */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /** Whether a UI is attached to this session. */
+    public boolean isAttached() {
+        return listener != null;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    /** Set how long the session keeps running after the UI detached. */
+    public synchronized void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Merge the peers of this session with the ones of the other sessions in
+     * the specified merger, under the specified transport name. The engine is
+     * attached to the merger while the network operations run, and detached
+     * once they are shut down, so that the routes of a closed engine never
+     * keep the peers from being resolved through a transport that still runs.
+     */
+    public synchronized void setPeerMerger(PeerMerger peerMerger, String transport) {
+        if (running && this.peerMerger != null) {
+            this.peerMerger.detach(peerMergerTransport, engine);
+        }
+        this.peerMerger = peerMerger;
+        this.peerMergerTransport = transport;
+        if (running && peerMerger != null) {
+            peerMerger.attach(transport, engine);
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Attach the specified UI, which receives everything the engine reports
+     * from now on, starting with the peers that are cached. This starts the
+     * network operations if they are not running yet. If they are, the UI
+     * simply picks up where the previous one left.
+     */
+    public synchronized void attach(DiscoveryEngine.Listener listener) {
+        cancelIdleTimer();
+        this.listener = listener;
+        engine.reportCachedPeers();
+        if (!running) {
+            running = true;
+            if (peerMerger != null) {
+                peerMerger.attach(peerMergerTransport, engine);
+            }
+            recovery.start();
+            engine.registerServices(services);
+            dutyCycler.start();
+        }
+    }
+
+    /**
+     * Detach the UI. The network operations keep running until the idle
+     * timeout expires without another UI being attached.
+     */
+    public synchronized void detach() {
+        this.listener = null;
+        cancelIdleTimer();
+        if (running) {
+            idleTimer = scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    shutdownIfIdle();
+                }
+            }, idleTimeoutMillis);
+        }
+    }
+
+    /** Register our services again, with the same identity as before. */
+    public void registerService() {
+        engine.registerServices(services);
+    }
+
+    /** Re-force the discovery of peer services, scanning aggressively again. */
+    public void startServiceDiscovery() {
+        dutyCycler.onNetworkChanged();
+    }
+
+    /** Stop the network operations right away, e.g. because the app is finishing. */
+    public synchronized void shutdown() {
+        cancelIdleTimer();
+        if (running) {
+            running = false;
+            recovery.stop();
+            dutyCycler.stop();
+            engine.unregisterService();
+            engine.close();
+            if (peerMerger != null) {
+                peerMerger.detach(peerMergerTransport, engine);
+            }
+        }
+    }
+
+    /** Shut down, unless a UI was attached in the meantime. */
+    private synchronized void shutdownIfIdle() {
+        idleTimer = null;
+        if (listener == null) {
+            shutdown();
+        }
+    }
+
+    private void cancelIdleTimer() {
+        if (idleTimer != null) {
+            idleTimer.cancel();
+            idleTimer = null;
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * DiscoveryRecovery.Recoverable Methods
+     *
+     * ---------------------------------------------
+     */
+    @Override
+    public synchronized void retryRegistration() {
+        if (running) {
+            onLog("Recovery: " + recovery.getHealth() + ", registering again");
+            engine.registerServices(services);
+        }
+    }
+
+    @Override
+    public synchronized void retryDiscovery() {
+        if (running) {
+            onLog("Recovery: " + recovery.getHealth() + ", discovering again");
+            dutyCycler.onNetworkChanged();
+        }
+    }
+
+    /** Tear down the transport (but keep the cached and persisted peers), and register and discover again. */
+    @Override
+    public synchronized void rebuild() {
+        if (running) {
+            onLog("Recovery: " + recovery.getHealth() + ", rebuilding the transport");
+            dutyCycler.stop();
+
+            /** The transport only closes once the services were unregistered, and then starts over. */
+            engine.unregisterService();
+            engine.getTransport().close();
+            engine.registerServices(services);
+            dutyCycler.start();
+        }
+    }
+
+    @Override
+    public synchronized void suspend() {
+        if (running) {
+            onLog("Recovery: " + recovery.getHealth() + ", suspending the transport");
+            dutyCycler.stop();
+            engine.unregisterService();
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * DiscoveryEngine.Listener Methods
+     *
+     * ---------------------------------------------
+     */
+    @Override
+    public void onPeerFound(DiscoveredService peer) {
+        DiscoveryEngine.Listener target = listener;
+        if (target != null) {
+            target.onPeerFound(peer);
+        }
+    }
+
+    @Override
+    public void onPeerResolved(DiscoveredService peer) {
+        DiscoveryEngine.Listener target = listener;
+        if (target != null) {
+            target.onPeerResolved(peer);
+        }
+    }
+
+    @Override
+    public void onPeerLost(DiscoveredService peer) {
+        DiscoveryEngine.Listener target = listener;
+        if (target != null) {
+            target.onPeerLost(peer);
+        }
+    }
+
+    @Override
+    public void onLog(String message) {
+        DiscoveryEngine.Listener target = listener;
+        if (target != null) {
+            target.onLog(message);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.wificoms;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.content.Context;
+import android.os.Bundle;
+
+/**
+ * A headless {@link Fragment} that is retained across configuration changes,
+ * and hosts a {@link DiscoverySession}. This lets the session (and hence the
+ * registration and discovery) survive when the {@link Activity} is recreated,
+ * e.g. because the screen was rotated. The session is shut down once the
+ * {@link Activity} is really finished.
+ */
+public class DiscoverySessionFragment extends Fragment {
+
+    /** Creates the {@link DiscoverySession} the first time it is needed. */
+    public interface SessionFactory {
+
+        /**
+         * Create a new session. Only the application {@link Context} may be
+         * held on to, since the session outlives the {@link Activity}.
+         */
+        DiscoverySession createSession(Context applicationContext);
+    }
+
+    private DiscoverySession session = null;
+
+    /**
+     * Get the session hosted by the retained fragment with the specified tag,
+     * adding the fragment (and creating the session) if there is none yet.
+     */
+    public static DiscoverySession getSession(Activity activity, String tag, SessionFactory factory) {
+        FragmentManager fragmentManager = activity.getFragmentManager();
+        DiscoverySessionFragment fragment = (DiscoverySessionFragment) fragmentManager.findFragmentByTag(tag);
+        if (fragment == null) {
+            fragment = new DiscoverySessionFragment();
+            fragmentManager.beginTransaction().add(fragment, tag).commit();
+        }
+
+        /**
+         * If the process was killed, the fragment is restored without its
+         * session, so also create the session if the fragment has none.
+         */
+        if (fragment.session == null) {
+            fragment.session = factory.createSession(activity.getApplicationContext());
+        }
+        return fragment.session;
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+    }
+
+    @Override
+    public void onDestroy() {
+        if (session != null) {
+            session.shutdown();
+        }
+        super.onDestroy();
+    }
+}
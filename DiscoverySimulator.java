@@ -0,0 +1,639 @@
+package com.example.wificoms;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A deterministic discrete-event simulator of a network of peers, so that the
+ * discovery pipeline can be exercised at scale (hundreds of peers joining and
+ * leaving) on a plain JVM, instead of with a handful of phones.
+ *
+ * <p/>
+ *
+ * The simulated peers are announced, resolved and lost through a simulated
+ * {@link DiscoveryTransport}, and handled by a {@link DiscoverySession} set up
+ * the way each Activity sets up its own, under the virtual clock of a
+ * {@link VirtualTaskScheduler}:
+ *
+ * <p/>
+ *
+ * <ul>
+ * <li>in {@link Mode#NSD}, like {@link NsdDiscoveryTransport}: found services
+ * are resolved after a random latency, may fail to resolve, and are reported
+ * lost some time after they leave;</li>
+ * <li>in {@link Mode#WIFI_P2P}, like {@link WifiP2pDiscoveryTransport}: every
+ * peer answers with a service response and a TXT record, which are joined by a
+ * {@link DnsSdResponseCorrelator}, and peers that leave are never reported
+ * lost, so the engine loses them once they were not seen for a while.</li>
+ * </ul>
+ *
+ * <p/>
+ *
+ * Peers arrive as a Poisson process, and stay for a random lifetime. All
+ * randomness comes from a single seeded {@link Random}, so a {@link Scenario}
+ * always plays out the same way. The {@link Report} gives the throughput, the
+ * memory footprint per peer and the end-to-end latencies (from a peer
+ * arriving to it being resolved, and from it leaving to it being reported
+ * lost). Run it with
+ * {@code java com.example.wificoms.DiscoverySimulator [peers]}.
+ */
+public class DiscoverySimulator {
+
+    /** A random delay, in milliseconds. */
+    public interface Distribution {
+
+        /** Draw a delay with the specified source of randomness. */
+        long sample(Random random);
+    }
+
+    /** The transport that is simulated. */
+    public enum Mode {
+        NSD, WIFI_P2P
+    }
+
+    /** The parameters of a simulation. The setters return the scenario, so that they can be chained. */
+    public static final class Scenario {
+
+        private Mode            mode                = Mode.NSD;
+        private long            seed                = 1;
+        private long            durationMillis      = 10 * 60 * 1000;
+        private int             initialPeers        = 100;
+        private double          arrivalsPerMinute   = 60;
+        private Distribution    lifetime            = exponential(5 * 60 * 1000);
+        private Distribution    callbackDelay       = uniform(1, 20);
+        private Distribution    resolveLatency      = logNormal(150, 0.5);
+        private double          resolveFailureRate  = 0.05;
+        private Distribution    txtRecordDelay      = uniform(0, 500);
+        private Distribution    lossDelay           = uniform(0, 2000);
+
+        public Scenario setMode(Mode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        public Scenario setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /** Set how long the network is simulated, in virtual time. */
+        public Scenario setDurationMillis(long durationMillis) {
+            this.durationMillis = durationMillis;
+            return this;
+        }
+
+        /** Set the number of peers that are already there when discovery starts. */
+        public Scenario setInitialPeers(int initialPeers) {
+            this.initialPeers = initialPeers;
+            return this;
+        }
+
+        /** Set the mean number of peers that arrive per minute. */
+        public Scenario setArrivalsPerMinute(double arrivalsPerMinute) {
+            this.arrivalsPerMinute = arrivalsPerMinute;
+            return this;
+        }
+
+        /** Set how long peers stay before they leave, which determines the loss rate. */
+        public Scenario setLifetime(Distribution lifetime) {
+            this.lifetime = lifetime;
+            return this;
+        }
+
+        /** Set the delay of the callbacks of the transport. */
+        public Scenario setCallbackDelay(Distribution callbackDelay) {
+            this.callbackDelay = callbackDelay;
+            return this;
+        }
+
+        /** Set the latency of a resolve ({@link Mode#NSD} only). */
+        public Scenario setResolveLatency(Distribution resolveLatency) {
+            this.resolveLatency = resolveLatency;
+            return this;
+        }
+
+        /** Set the probability that a resolve fails ({@link Mode#NSD} only). */
+        public Scenario setResolveFailureRate(double resolveFailureRate) {
+            this.resolveFailureRate = resolveFailureRate;
+            return this;
+        }
+
+        /** Set the delay between the service response and the TXT record ({@link Mode#WIFI_P2P} only). */
+        public Scenario setTxtRecordDelay(Distribution txtRecordDelay) {
+            this.txtRecordDelay = txtRecordDelay;
+            return this;
+        }
+
+        /** Set the delay between a peer leaving and it being reported lost ({@link Mode#NSD} only). */
+        public Scenario setLossDelay(Distribution lossDelay) {
+            this.lossDelay = lossDelay;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return mode + ": seed: " + seed + ", duration: " + durationMillis + " ms, initial peers: " + initialPeers
+                    + ", arrivals/min: " + arrivalsPerMinute;
+        }
+    }
+
+    /** The outcome of a simulation. */
+    public static final class Report {
+
+        private final Scenario          scenario;
+        private final LatencyHistogram  resolveLatency  = new LatencyHistogram("arrival to resolved");
+        private final LatencyHistogram  lossLatency     = new LatencyHistogram("departure to lost");
+        private long                    arrived         = 0;
+        private long                    departed        = 0;
+        private long                    found           = 0;
+        private long                    resolved        = 0;
+        private long                    lost            = 0;
+        private long                    callbacks       = 0;
+        private int                     livePeers       = 0;
+        private int                     tablePeers      = 0;
+        private long                    cpuNanos        = 0;
+        private long                    allocatedBytes  = -1;
+        private long                    retainedBytes   = 0;
+
+        Report(Scenario scenario) {
+            this.scenario = scenario;
+        }
+
+        /** Get the latencies from peers arriving to them being resolved for the first time. */
+        public LatencyHistogram getResolveLatency() {
+            return resolveLatency;
+        }
+
+        /** Get the latencies from peers leaving to them being reported lost. */
+        public LatencyHistogram getLossLatency() {
+            return lossLatency;
+        }
+
+        /** Get the number of transport callbacks that were handled per second of CPU time. */
+        public double getCallbacksPerSecond() {
+            return cpuNanos == 0 ? 0 : callbacks * 1e9 / cpuNanos;
+        }
+
+        /** Get the number of bytes allocated per transport callback, or -1 if unknown. */
+        public double getAllocatedBytesPerCallback() {
+            return allocatedBytes < 0 || callbacks == 0 ? -1 : (double) allocatedBytes / callbacks;
+        }
+
+        /** Get the heap retained by the pipeline at the end, per peer in the {@link PeerTable}. */
+        public double getRetainedBytesPerPeer() {
+            return (double) retainedBytes / Math.max(1, tablePeers);
+        }
+
+        @Override
+        public String toString() {
+            return scenario + "\n  peers: arrived: " + arrived + ", departed: " + departed + ", live: " + livePeers
+                    + ", in table: " + tablePeers + "\n  found: " + found + ", resolved: " + resolved + ", lost: "
+                    + lost + "\n  callbacks: " + callbacks + ", callbacks/s: " + Math.round(getCallbacksPerSecond())
+                    + ", bytes/callback: " + Math.round(getAllocatedBytesPerCallback()) + ", bytes/peer: "
+                    + Math.round(getRetainedBytesPerPeer()) + "\n  " + resolveLatency + "\n  " + lossLatency;
+        }
+    }
+
+    /** A simulated peer. */
+    private static final class Peer {
+
+        private final DiscoveredService service;
+        private final long              arrivedAt;
+        private boolean                 resolved    = false;
+
+        Peer(DiscoveredService service, long arrivedAt) {
+            this.service = service;
+            this.arrivedAt = arrivedAt;
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private final Scenario                      scenario;
+    private final Random                        random;
+    private final VirtualTaskScheduler          scheduler       = new VirtualTaskScheduler();
+    private final Report                        report;
+    private final Map<String, Peer>             peers           = new LinkedHashMap<String, Peer>();
+    private final Map<String, Long>             departedAt      = new HashMap<String, Long>();
+    private final Set<String>                   discoveryTypes  = new HashSet<String>();
+    private final Map<String, DiscoveredService> txtRecords     = new HashMap<String, DiscoveredService>();
+    private final String                        originalServiceName;
+    private final String                        serviceType;
+    private DnsSdResponseCorrelator             correlator;
+    private DiscoveryTransport.Callback         callback;
+    private int                                 peerCounter     = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public DiscoverySimulator(Scenario scenario) {
+        this.scenario = scenario;
+        this.random = new Random(scenario.seed);
+        this.report = new Report(scenario);
+        if (scenario.mode == Mode.NSD) {
+            originalServiceName = "NetworkServiceDiscoveryViaWifi";
+            serviceType = "_http._tcp.";
+        } else {
+            originalServiceName = "NetworkServiceDiscoveryViaWifiDirect";
+            serviceType = "_presence._tcp";
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    public static void main(String[] args) {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        for (Mode mode : Mode.values()) {
+            System.out.println(new DiscoverySimulator(new Scenario().setMode(mode).setInitialPeers(peers)
+                    .setArrivalsPerMinute(peers / 5.0)).run());
+        }
+    }
+
+    /** Run the simulation. A simulator can only be run once. */
+    public Report run() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long retainedBefore = usedHeap();
+        long allocatedBefore = allocatedBytes(threadMXBean);
+        long cpuBefore = threadMXBean.getCurrentThreadCpuTime();
+
+        DiscoverySession session = createSession();
+        session.attach(new DiscoveryEngine.Listener() {
+
+            private final LogSink logSink = new LogSink();
+
+            @Override
+            public void onPeerFound(DiscoveredService peer) {
+                report.found++;
+            }
+
+            @Override
+            public void onPeerResolved(DiscoveredService peer) {
+                Peer arrived = peers.get(peer.getServiceName());
+                if (arrived != null && !arrived.resolved && peer.getAttributes().size() > 0) {
+                    arrived.resolved = true;
+                    report.resolved++;
+                    report.resolveLatency.record(scheduler.now() - arrived.arrivedAt);
+                }
+            }
+
+            @Override
+            public void onPeerLost(DiscoveredService peer) {
+                Long departed = departedAt.remove(peer.getServiceName());
+                if (departed != null) {
+                    report.lost++;
+                    report.lossLatency.record(scheduler.now() - departed);
+                }
+            }
+
+            @Override
+            public void onLog(String message) {
+                logSink.add(message);
+            }
+        });
+        for (int i = 0; i < scenario.initialPeers; i++) {
+            arrive();
+        }
+        scheduleArrival();
+        scheduler.advance(scenario.durationMillis);
+
+        report.cpuNanos = threadMXBean.getCurrentThreadCpuTime() - cpuBefore;
+        long allocatedAfter = allocatedBytes(threadMXBean);
+        report.allocatedBytes = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+        report.retainedBytes = Math.max(0, usedHeap() - retainedBefore);
+        report.livePeers = peers.size();
+        report.tablePeers = session.getEngine().getPeerTable().size();
+        session.shutdown();
+        return report;
+    }
+
+    /** Create the session the way the Activity of the mode does. */
+    private DiscoverySession createSession() {
+        DiscoveredService service = new DiscoveredService(originalServiceName + " self", serviceType, null, null,
+                scenario.mode == Mode.NSD ? 8080 : 0, PeerAttributes.encode("00112233aabbccdd"));
+        DiscoverySession session = new DiscoverySession(new SimulatedTransport(), scheduler, service,
+                originalServiceName);
+        if (scenario.mode == Mode.NSD) {
+            session.getEngine().getResolveScheduler().setMaxConcurrent(1);
+            session.getDutyCycler().setPolicy(DiscoveryDutyCycler.Policy.NSD);
+        } else {
+            correlator = new DnsSdResponseCorrelator(scheduler, new DnsSdResponseCorrelator.Listener() {
+
+                @Override
+                public void onPeerRecord(DnsSdResponseCorrelator.PeerRecord record) {
+                    report(record);
+                }
+            });
+            session.getEngine().getResolveScheduler().setMaxConcurrent(Integer.MAX_VALUE);
+            session.getDutyCycler().setPolicy(DiscoveryDutyCycler.Policy.WIFI_P2P);
+            session.getEngine().setPeerExpiryMillis(3 * DiscoveryDutyCycler.Policy.WIFI_P2P.getScanMillis());
+        }
+        return session;
+    }
+
+    /** Schedule the next arrival of the Poisson process. */
+    private void scheduleArrival() {
+        if (scenario.arrivalsPerMinute <= 0) {
+            return;
+        }
+        scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                arrive();
+                scheduleArrival();
+            }
+        }, exponential(60 * 1000 / scenario.arrivalsPerMinute).sample(random));
+    }
+
+    /** Add a new peer, which leaves again at the end of its lifetime. */
+    private void arrive() {
+        final int id = peerCounter++;
+        String deviceId = Long.toHexString(0x1000000000000000L + id);
+        String deviceAddress = scenario.mode == Mode.NSD ? null : String.format("02:00:%02x:%02x:%02x:%02x",
+                (id >> 24) & 0xFF, (id >> 16) & 0xFF, (id >> 8) & 0xFF, id & 0xFF);
+        String host = scenario.mode == Mode.NSD ? "10." + ((id >> 16) & 0xFF) + "." + ((id >> 8) & 0xFF) + "."
+                + (id & 0xFF) : null;
+        final Peer peer = new Peer(new DiscoveredService(originalServiceName + " " + id, serviceType, deviceAddress,
+                host, scenario.mode == Mode.NSD ? 8080 : 0, PeerAttributes.encode(deviceId)), scheduler.now());
+        peers.put(peer.service.getServiceName(), peer);
+        report.arrived++;
+        if (discoveryTypes.contains(serviceType)) {
+            deliverFound(peer);
+        }
+        scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                depart(peer);
+            }
+        }, scenario.lifetime.sample(random));
+    }
+
+    /** Remove the specified peer. Only NSD reports that it was lost; in Wifi Direct, it expires. */
+    private void depart(final Peer peer) {
+        peers.remove(peer.service.getServiceName());
+        report.departed++;
+        departedAt.put(peer.service.getServiceName(), scheduler.now());
+        if (scenario.mode == Mode.WIFI_P2P) {
+            txtRecords.remove(peer.service.getKey());
+            return;
+        }
+        if (discoveryTypes.contains(serviceType)) {
+            deliver(new Runnable() {
+
+                @Override
+                public void run() {
+                    callback.onServiceLost(new DiscoveredService(peer.service.getServiceName(),
+                            peer.service.getServiceType(), null, null, 0, null));
+                }
+            }, scenario.lossDelay.sample(random));
+        }
+    }
+
+    /**
+     * Report that the specified peer was found: in NSD, as an unresolved
+     * service; in Wifi Direct, as a service response and a TXT record.
+     */
+    private void deliverFound(final Peer peer) {
+        final DiscoveredService service = peer.service;
+        if (scenario.mode == Mode.NSD) {
+            deliver(new Runnable() {
+
+                @Override
+                public void run() {
+                    callback.onServiceFound(new DiscoveredService(service.getServiceName(),
+                            service.getServiceType(), null, null, 0, null));
+                }
+            }, scenario.callbackDelay.sample(random));
+            return;
+        }
+        deliver(new Runnable() {
+
+            @Override
+            public void run() {
+                correlator.onServiceResponse(service.getServiceName(), service.getServiceType() + ".local.",
+                        service.getDeviceAddress());
+            }
+        }, scenario.callbackDelay.sample(random));
+        deliver(new Runnable() {
+
+            @Override
+            public void run() {
+                correlator.onTxtRecord(service.getServiceName() + "." + service.getServiceType() + ".local.",
+                        service.getAttributes(), service.getDeviceAddress());
+            }
+        }, scenario.callbackDelay.sample(random) + scenario.txtRecordDelay.sample(random));
+    }
+
+    /** Report the specified joined record, like {@link WifiP2pDiscoveryTransport} does. */
+    private void report(DnsSdResponseCorrelator.PeerRecord record) {
+        DiscoveredService service = record.toService();
+        if (record.hasTxtRecord()) {
+            txtRecords.put(service.getKey(), service);
+        }
+        if (record.hasService()) {
+            callback.onServiceFound(service);
+        } else {
+            callback.onServiceResolved(service);
+        }
+    }
+
+    /** Run the specified callback after the specified delay, counting it. */
+    private void deliver(final Runnable task, long delayMillis) {
+        scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                report.callbacks++;
+                task.run();
+            }
+        }, delayMillis);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long allocatedBytes(ThreadMXBean threadMXBean) {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread()
+                    .getId());
+        }
+        return -1;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Distribution Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Always the specified delay. */
+    public static Distribution constant(final long millis) {
+        return new Distribution() {
+
+            @Override
+            public long sample(Random random) {
+                return millis;
+            }
+        };
+    }
+
+    /** A delay between the specified bounds (inclusive), all equally likely. */
+    public static Distribution uniform(final long minMillis, final long maxMillis) {
+        return new Distribution() {
+
+            @Override
+            public long sample(Random random) {
+                return minMillis + (long) (random.nextDouble() * (maxMillis - minMillis + 1));
+            }
+        };
+    }
+
+    /** An exponentially distributed delay with the specified mean, e.g. the time between arrivals. */
+    public static Distribution exponential(final double meanMillis) {
+        return new Distribution() {
+
+            @Override
+            public long sample(Random random) {
+                return (long) (-meanMillis * Math.log(1 - random.nextDouble()));
+            }
+        };
+    }
+
+    /**
+     * A log-normally distributed delay with the specified median, whose
+     * logarithm has the specified standard deviation. Network latencies have
+     * such a long tail.
+     */
+    public static Distribution logNormal(final double medianMillis, final double sigma) {
+        return new Distribution() {
+
+            @Override
+            public long sample(Random random) {
+                return (long) (medianMillis * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * SimulatedTransport
+     *
+     * ---------------------------------------------
+     */
+    /** The transport through which the simulated peers are reported. */
+    private final class SimulatedTransport implements DiscoveryTransport {
+
+        @Override
+        public void setCallback(Callback callback) {
+            DiscoverySimulator.this.callback = callback;
+        }
+
+        @Override
+        public void registerService(final DiscoveredService service) {
+            deliver(new Runnable() {
+
+                @Override
+                public void run() {
+                    callback.onServiceRegistered(service);
+                }
+            }, scenario.callbackDelay.sample(random));
+        }
+
+        @Override
+        public void unregisterService() {
+        }
+
+        @Override
+        public void startServiceDiscovery(final String serviceType) {
+            if (!discoveryTypes.add(serviceType)) {
+                return;
+            }
+            deliver(new Runnable() {
+
+                @Override
+                public void run() {
+                    callback.onDiscoveryStarted(serviceType);
+                }
+            }, scenario.callbackDelay.sample(random));
+            for (Peer peer : peers.values()) {
+                deliverFound(peer);
+            }
+        }
+
+        @Override
+        public void stopServiceDiscovery() {
+            for (final String serviceType : discoveryTypes) {
+                deliver(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.onDiscoveryStopped(serviceType);
+                    }
+                }, scenario.callbackDelay.sample(random));
+            }
+            discoveryTypes.clear();
+            if (correlator != null) {
+                correlator.flush();
+            }
+        }
+
+        @Override
+        public void resolveService(final DiscoveredService service) {
+            if (scenario.mode == Mode.WIFI_P2P) {
+                DiscoveredService resolved = txtRecords.get(service.getKey());
+                if (resolved != null) {
+                    callback.onServiceResolved(resolved);
+                } else {
+                    callback.onResolveFailed(service, DiscoveryRecovery.P2P_ERROR);
+                }
+                return;
+            }
+            final boolean fail = random.nextDouble() < scenario.resolveFailureRate;
+            deliver(new Runnable() {
+
+                @Override
+                public void run() {
+                    Peer peer = peers.get(service.getServiceName());
+                    if (peer == null || fail) {
+                        callback.onResolveFailed(service, InMemoryDiscoveryTransport.FAILURE_INTERNAL_ERROR);
+                    } else {
+                        callback.onServiceResolved(peer.service);
+                    }
+                }
+            }, scenario.resolveLatency.sample(random));
+        }
+
+        @Override
+        public void close() {
+            discoveryTypes.clear();
+        }
+    }
+}
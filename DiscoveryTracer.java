@@ -0,0 +1,316 @@
+package com.example.wificoms;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Structured tracing of the discovery lifecycle, cheap enough to leave on in
+ * production. Every lifecycle callback is recorded as an {@link Event} with a
+ * monotonic timestamp (of the {@link TaskScheduler}), from which:
+ *
+ * <p/>
+ *
+ * <ul>
+ * <li>the latency of every {@link Phase} is recorded in a
+ * {@link LatencyHistogram};</li>
+ * <li>the failures are counted per event and error code;</li>
+ * <li>the most recent events are kept in a ring buffer.</li>
+ * </ul>
+ *
+ * <p/>
+ *
+ * Tracing formats no strings and allocates nothing per event (except to
+ * remember when each peer was found), and does nothing at all while it is
+ * disabled. Strings are only built by the export methods,
+ * {@link #toJson()} and {@link #toCsv()}.
+ */
+public class DiscoveryTracer {
+
+    /** The lifecycle events. */
+    public enum Event {
+        REGISTER_REQUESTED, REGISTERED, REGISTRATION_FAILED, UNREGISTERED, UNREGISTRATION_FAILED,
+        DISCOVERY_REQUESTED, DISCOVERY_STARTED, START_DISCOVERY_FAILED, DISCOVERY_STOPPED, STOP_DISCOVERY_FAILED,
+        FOUND, RESOLVED, RESOLVE_FAILED, LOST
+    }
+
+    /** The phases whose latencies are measured. */
+    public enum Phase {
+
+        /** From requesting the registration to its confirmation. */
+        REGISTRATION,
+
+        /** From requesting discovery to its confirmation. */
+        DISCOVERY_START,
+
+        /** From requesting discovery to the first peer being found. */
+        FIRST_FOUND,
+
+        /** From a peer being found to it being resolved. */
+        FOUND_TO_RESOLVED
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final int                 DEFAULT_EVENT_CAPACITY  = 1024;
+
+    /** The error codes are counted individually below this, and together above it. */
+    private static final int                MAX_ERROR_CODE          = 16;
+    private static final int                MAX_FOUND_PEERS         = 1024;
+    private static final Event[]            EVENTS                  = Event.values();
+
+    private final TaskScheduler             scheduler;
+    private final LatencyHistogram[]        histograms              = new LatencyHistogram[Phase.values().length];
+    private final long[][]                  errorCounts             = new long[EVENTS.length][MAX_ERROR_CODE + 1];
+    private final long[]                    eventTimes;
+    private final byte[]                    eventTypes;
+    private final int[]                     eventCodes;
+    private final Map<String, Long>         foundAt                 = new LinkedHashMap<String, Long>();
+    private volatile boolean                enabled                 = true;
+    private long                            eventCount              = 0;
+    private long                            registerRequestedAt     = -1;
+    private long                            discoveryRequestedAt    = -1;
+    private boolean                         awaitingFirstFound      = false;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public DiscoveryTracer(TaskScheduler scheduler) {
+        this(scheduler, DEFAULT_EVENT_CAPACITY);
+    }
+
+    /** Create a tracer that keeps the specified number of most recent events. */
+    public DiscoveryTracer(TaskScheduler scheduler, int eventCapacity) {
+        this.scheduler = scheduler;
+        this.eventTimes = new long[eventCapacity];
+        this.eventTypes = new byte[eventCapacity];
+        this.eventCodes = new int[eventCapacity];
+        for (Phase phase : Phase.values()) {
+            histograms[phase.ordinal()] = new LatencyHistogram(phase.name());
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Get a copy of the histogram of the specified phase. */
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms[phase.ordinal()].copy();
+    }
+
+    /** Get the number of times the specified event happened with the specified error code. */
+    public synchronized long getErrorCount(Event event, int errorCode) {
+        return errorCounts[event.ordinal()][errorSlot(errorCode)];
+    }
+
+    /** Get the number of events that were traced. */
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    /** Enable or disable tracing. What was traced so far is kept. */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Trace the specified event, which concerns no particular service. */
+    public void trace(Event event) {
+        trace(event, null, 0);
+    }
+
+    /**
+     * Trace the specified event, concerning the specified service (or null),
+     * with the specified error code (if it is a failure).
+     */
+    public void trace(Event event, DiscoveredService service, int errorCode) {
+        if (!enabled) {
+            return;
+        }
+        long now = scheduler.now();
+        synchronized (this) {
+            int slot = (int) (eventCount++ % eventTimes.length);
+            eventTimes[slot] = now;
+            eventTypes[slot] = (byte) event.ordinal();
+            eventCodes[slot] = errorCode;
+            switch (event) {
+            case REGISTER_REQUESTED:
+                registerRequestedAt = now;
+                break;
+            case REGISTERED:
+                recordSince(Phase.REGISTRATION, registerRequestedAt, now);
+                break;
+            case DISCOVERY_REQUESTED:
+                discoveryRequestedAt = now;
+                awaitingFirstFound = true;
+                break;
+            case DISCOVERY_STARTED:
+                recordSince(Phase.DISCOVERY_START, discoveryRequestedAt, now);
+                break;
+            case FOUND:
+                if (awaitingFirstFound) {
+                    awaitingFirstFound = false;
+                    recordSince(Phase.FIRST_FOUND, discoveryRequestedAt, now);
+                }
+                if (service != null && !foundAt.containsKey(service.getKey())) {
+                    if (foundAt.size() >= MAX_FOUND_PEERS) {
+                        foundAt.remove(foundAt.keySet().iterator().next());
+                    }
+                    foundAt.put(service.getKey(), now);
+                }
+                break;
+            case RESOLVED:
+                Long found = service == null ? null : foundAt.remove(service.getKey());
+                if (found != null) {
+                    recordSince(Phase.FOUND_TO_RESOLVED, found, now);
+                }
+                break;
+            case LOST:
+                if (service != null) {
+                    foundAt.remove(service.getKey());
+                }
+                break;
+            case REGISTRATION_FAILED:
+            case UNREGISTRATION_FAILED:
+            case START_DISCOVERY_FAILED:
+            case STOP_DISCOVERY_FAILED:
+            case RESOLVE_FAILED:
+                errorCounts[event.ordinal()][errorSlot(errorCode)]++;
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /** Forget everything that was traced. */
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (long[] counts : errorCounts) {
+            Arrays.fill(counts, 0);
+        }
+        foundAt.clear();
+        eventCount = 0;
+        registerRequestedAt = -1;
+        discoveryRequestedAt = -1;
+        awaitingFirstFound = false;
+    }
+
+    /**
+     * Export the histograms, the error counts and the most recent events as
+     * JSON.
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{\"enabled\":").append(enabled).append(",\"phases\":{");
+        for (int i = 0; i < histograms.length; i++) {
+            LatencyHistogram histogram = histograms[i];
+            json.append(i == 0 ? "" : ",").append('"')
+                    .append(histogram.getName()).append("\":{\"count\":").append(histogram.getCount())
+                    .append(",\"mean\":").append(histogram.getMean()).append(",\"min\":").append(histogram.getMin())
+                    .append(",\"p50\":").append(histogram.getPercentile(50)).append(",\"p90\":")
+                    .append(histogram.getPercentile(90)).append(",\"p99\":").append(histogram.getPercentile(99))
+                    .append(",\"max\":").append(histogram.getMax()).append('}');
+        }
+        json.append("},\"errors\":{");
+        String separator = "";
+        for (Event event : EVENTS) {
+            String codeSeparator = "";
+            for (int slot = 0; slot <= MAX_ERROR_CODE; slot++) {
+                long count = errorCounts[event.ordinal()][slot];
+                if (count == 0) {
+                    continue;
+                }
+                if (codeSeparator.isEmpty()) {
+                    json.append(separator).append('"').append(event).append("\":{");
+                    separator = ",";
+                }
+                json.append(codeSeparator).append('"').append(slot == MAX_ERROR_CODE ? "other" : slot).append("\":")
+                        .append(count);
+                codeSeparator = ",";
+            }
+            if (!codeSeparator.isEmpty()) {
+                json.append('}');
+            }
+        }
+        json.append("},\"events\":[");
+        long first = Math.max(0, eventCount - eventTimes.length);
+        for (long i = first; i < eventCount; i++) {
+            int slot = (int) (i % eventTimes.length);
+            json.append(i == first ? "" : ",").append("{\"time\":").append(eventTimes[slot]).append(",\"event\":\"")
+                    .append(EVENTS[eventTypes[slot]]).append("\",\"code\":").append(eventCodes[slot]).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Export the histograms and the error counts as CSV, with the columns
+     * kind, name, code, count, mean, min, p50, p90, p99 and max.
+     */
+    public synchronized String toCsv() {
+        StringBuilder csv = new StringBuilder("kind,name,code,count,mean,min,p50,p90,p99,max\n");
+        for (LatencyHistogram histogram : histograms) {
+            csv.append("phase,").append(histogram.getName()).append(",,").append(histogram.getCount()).append(',')
+                    .append(histogram.getMean()).append(',').append(histogram.getMin()).append(',')
+                    .append(histogram.getPercentile(50)).append(',').append(histogram.getPercentile(90)).append(',')
+                    .append(histogram.getPercentile(99)).append(',').append(histogram.getMax()).append('\n');
+        }
+        for (Event event : EVENTS) {
+            for (int slot = 0; slot <= MAX_ERROR_CODE; slot++) {
+                long count = errorCounts[event.ordinal()][slot];
+                if (count > 0) {
+                    csv.append("error,").append(event).append(',').append(slot == MAX_ERROR_CODE ? "other" : slot)
+                            .append(',').append(count).append(",,,,,,\n");
+                }
+            }
+        }
+        return csv.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "DiscoveryTracer: events: " + getEventCount() + ", " + histograms[Phase.FIRST_FOUND.ordinal()] + ", "
+                + histograms[Phase.FOUND_TO_RESOLVED.ordinal()];
+    }
+
+    private void recordSince(Phase phase, long since, long now) {
+        if (since >= 0) {
+            histograms[phase.ordinal()].record(now - since);
+        }
+    }
+
+    private static int errorSlot(int errorCode) {
+        return errorCode >= 0 && errorCode < MAX_ERROR_CODE ? errorCode : MAX_ERROR_CODE;
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.wificoms;
+
+/**
+ * The network operations needed to advertise a service and discover the
+ * services of peers. Implementations adapt a concrete mechanism (e.g.
+ * {@link android.net.nsd.NsdManager} or
+ * {@link android.net.wifi.p2p.WifiP2pManager}) so that the
+ * {@link DiscoveryEngine} does not need to know which one it is using.
+ *
+ * <p/>
+ *
+ * All operations are asynchronous. Their outcome is reported to the
+ * {@link Callback}, on whatever thread the underlying mechanism uses.
+ *
+ * <p/>
+ *
+ * A transport can advertise one service per type, and discover several types
+ * at once, all through the same manager and {@link Callback}. The results
+ * carry their service type, so that the callback can tell them apart.
+ */
+public interface DiscoveryTransport {
+
+    /** Receives the outcome of the operations of a {@link DiscoveryTransport}. */
+    interface Callback {
+
+        /**
+         * The specified service was registered. Note that the name may differ
+         * from the one that was requested in order to resolve a conflict.
+         */
+        void onServiceRegistered(DiscoveredService service);
+
+        void onRegistrationFailed(DiscoveredService service, int errorCode);
+
+        void onServiceUnregistered(DiscoveredService service);
+
+        void onUnregistrationFailed(DiscoveredService service, int errorCode);
+
+        void onDiscoveryStarted(String serviceType);
+
+        void onStartDiscoveryFailed(String serviceType, int errorCode);
+
+        void onDiscoveryStopped(String serviceType);
+
+        void onStopDiscoveryFailed(String serviceType, int errorCode);
+
+        /** A (possibly unresolved) service was found. */
+        void onServiceFound(DiscoveredService service);
+
+        /** The endpoint and/or attributes of the specified service are known. */
+        void onServiceResolved(DiscoveredService service);
+
+        void onResolveFailed(DiscoveredService service, int errorCode);
+
+        void onServiceLost(DiscoveredService service);
+
+        /** An informational message that is only of interest for logging. */
+        void onMessage(String message);
+    }
+
+    /**
+     * The states of the discovery of a transport (or of one of its types).
+     * Transports that drive a radio keep track of them, so that a start while
+     * starting or running, or a stop while stopping or idle, is a cheap no-op
+     * instead of a duplicate operation.
+     */
+    enum State {
+        IDLE, STARTING, RUNNING, STOPPING
+    }
+
+    /** Set the {@link Callback} that receives the outcome of all operations. */
+    void setCallback(Callback callback);
+
+    /**
+     * Advertise the specified service, in addition to the services of other
+     * types that are advertised already. A previous service of the same type
+     * is replaced.
+     */
+    void registerService(DiscoveredService service);
+
+    /** Stop advertising every registered service. */
+    void unregisterService();
+
+    /**
+     * Start looking for peer services of the specified type, in addition to
+     * the types that are being discovered already. This does nothing if the
+     * type is being discovered already.
+     */
+    void startServiceDiscovery(String serviceType);
+
+    /** Stop looking for peer services of every type. */
+    void stopServiceDiscovery();
+
+    /**
+     * Resolve the endpoint and attributes of the specified service. Transports
+     * that always report this information without being asked may ignore this.
+     */
+    void resolveService(DiscoveredService service);
+
+    /** Release the resources held by this transport. It may be reused later. */
+    void close();
+}
@@ -0,0 +1,426 @@
+package com.example.wificoms;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Joins the two halves of a Wifi Direct Bonjour response into a single
+ * {@link PeerRecord}. {@link android.net.wifi.p2p.WifiP2pManager} reports the
+ * service (instance name and registration type) and its TXT record through two
+ * separate, unsynchronized callbacks, in either order. The halves belong
+ * together if they come from the same device address and describe the same
+ * full domain (i.e. "instance._type._tcp.local.").
+ *
+ * <p/>
+ *
+ * Once both halves arrived, the joined record is handed to the
+ * {@link Listener}. A half whose other half does not arrive within the wait
+ * window is handed over by itself. The number of records waiting for their
+ * other half is bounded; when the bound is reached, the oldest waiting record
+ * is handed over by itself.
+ *
+ * <p/>
+ *
+ * Since dozens of peers may answer in a burst, the hot path allocates as
+ * little as possible: records come from a pool and are recycled once the
+ * listener returns, and the halves are matched by comparing the domain in
+ * place instead of concatenating Strings.
+ */
+public class DnsSdResponseCorrelator {
+
+    /** Receives the joined (or expired) records. */
+    public interface Listener {
+
+        /**
+         * The specified record is complete, or its wait window expired. The
+         * record is recycled once this returns, so it must not be retained,
+         * and this must not call back into the correlator.
+         */
+        void onPeerRecord(PeerRecord record);
+    }
+
+    /** A (possibly partial) Bonjour response of a single peer service. Instances are pooled. */
+    public static final class PeerRecord {
+
+        private String              deviceAddress;
+        private String              instanceName;
+        private String              registrationType;
+        private String              fullDomain;
+        private Map<String, String> txtRecord;
+        private long                firstSeenAt;
+
+        /** Get the address of the device that responded. */
+        public String getDeviceAddress() {
+            return deviceAddress;
+        }
+
+        /** Whether the service half of the response arrived. */
+        public boolean hasService() {
+            return instanceName != null;
+        }
+
+        /** Whether the TXT record half of the response arrived. */
+        public boolean hasTxtRecord() {
+            return txtRecord != null;
+        }
+
+        /** Get the TXT record, or null if it did not arrive. */
+        public Map<String, String> getTxtRecord() {
+            return txtRecord;
+        }
+
+        /** Get the time (of the correlator's scheduler) at which the first half arrived. */
+        public long getFirstSeenAt() {
+            return firstSeenAt;
+        }
+
+        /**
+         * Get the service described by this record, with the TXT record as its
+         * attributes. The registration type is normalized as described by
+         * {@link #normalizeType(String)}.
+         */
+        public DiscoveredService toService() {
+            String name = instanceName;
+            String type = registrationType;
+            if (name == null) {
+                int split = fullDomain.indexOf("._");
+                name = split < 0 ? fullDomain : fullDomain.substring(0, split);
+                type = split < 0 ? "" : fullDomain.substring(split + 1);
+            }
+            return new DiscoveredService(name, normalizeType(type), deviceAddress, null, 0, txtRecord);
+        }
+
+        /** Get the length of the full domain. */
+        int domainLength() {
+            return fullDomain != null ? fullDomain.length() : instanceName.length() + 1 + registrationType.length();
+        }
+
+        /** Get the i'th character of the full domain, without building it. */
+        char domainCharAt(int i) {
+            if (fullDomain != null) {
+                return fullDomain.charAt(i);
+            } else if (i < instanceName.length()) {
+                return instanceName.charAt(i);
+            } else if (i == instanceName.length()) {
+                return '.';
+            }
+            return registrationType.charAt(i - instanceName.length() - 1);
+        }
+
+        /**
+         * Get a hash of the device address and the (case-insensitive) full
+         * domain, without building the full domain.
+         */
+        int keyHash() {
+            int hash = deviceAddress == null ? 0 : deviceAddress.hashCode();
+            for (int i = 0, n = domainLength(); i < n; i++) {
+                hash = 31 * hash + Character.toLowerCase(domainCharAt(i));
+            }
+            return hash;
+        }
+
+        /** Whether the specified record describes the same service of the same device. */
+        boolean keyEquals(PeerRecord other) {
+            if (deviceAddress == null ? other.deviceAddress != null : !deviceAddress.equals(other.deviceAddress)) {
+                return false;
+            }
+            int n = domainLength();
+            if (n != other.domainLength()) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                if (Character.toLowerCase(domainCharAt(i)) != Character.toLowerCase(other.domainCharAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void clear() {
+            deviceAddress = null;
+            instanceName = null;
+            registrationType = null;
+            fullDomain = null;
+            txtRecord = null;
+            firstSeenAt = 0;
+        }
+
+        @Override
+        public String toString() {
+            return "PeerRecord: device: " + deviceAddress + ", service: " + hasService() + ", txtRecord: "
+                    + hasTxtRecord();
+        }
+    }
+
+    /**
+     * A {@link PeerRecord} as a hash key. The hash is computed once, when the
+     * key is (re)used for a record.
+     */
+    private static final class RecordKey {
+
+        private PeerRecord  record;
+        private int         hash;
+
+        RecordKey set(PeerRecord record) {
+            this.record = record;
+            this.hash = record.keyHash();
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RecordKey && hash == ((RecordKey) o).hash && record.keyEquals(((RecordKey) o).record);
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final long                        DEFAULT_WINDOW_MILLIS   = 2000;
+    public static final int                         DEFAULT_MAX_PENDING     = 64;
+
+    private final TaskScheduler                     scheduler;
+    private final Listener                          listener;
+    private final long                              windowMillis;
+    private final int                               maxPending;
+    private final LinkedHashMap<RecordKey, RecordKey> pending               = new LinkedHashMap<RecordKey, RecordKey>();
+    private final ArrayDeque<PeerRecord>            recordPool              = new ArrayDeque<PeerRecord>();
+    private final ArrayDeque<RecordKey>             keyPool                 = new ArrayDeque<RecordKey>();
+    private final PeerRecord                        probe                   = new PeerRecord();
+    private final RecordKey                         probeKey                = new RecordKey();
+    private final Runnable                          sweep;
+    private boolean                                 sweepScheduled          = false;
+    private long                                    joined                  = 0;
+    private long                                    expired                 = 0;
+    private long                                    overflowed              = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public DnsSdResponseCorrelator(TaskScheduler scheduler, Listener listener) {
+        this(scheduler, listener, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * Create a correlator that waits at most the specified window for the
+     * other half of a response, for at most the specified number of records.
+     */
+    public DnsSdResponseCorrelator(TaskScheduler scheduler, Listener listener, long windowMillis, int maxPending) {
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("maxPending must be positive: " + maxPending);
+        }
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.windowMillis = windowMillis;
+        this.maxPending = maxPending;
+        this.sweep = new Runnable() {
+
+            @Override
+            public void run() {
+                sweep();
+            }
+        };
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get the number of records waiting for their other half. */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Get the number of records that were completed by both halves. */
+    public synchronized long getJoinedCount() {
+        return joined;
+    }
+
+    /** Get the number of records that were handed over by themselves after the window expired. */
+    public synchronized long getExpiredCount() {
+        return expired;
+    }
+
+    /** Get the number of records that were handed over by themselves because too many were waiting. */
+    public synchronized long getOverflowCount() {
+        return overflowed;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** The service half of a response arrived. */
+    public synchronized void onServiceResponse(String instanceName, String registrationType, String deviceAddress) {
+        probe.clear();
+        probe.deviceAddress = deviceAddress;
+        probe.instanceName = instanceName;
+        probe.registrationType = registrationType;
+        PeerRecord record = lookup();
+        if (record == null) {
+            record = add();
+            record.instanceName = instanceName;
+            record.registrationType = registrationType;
+        } else if (record.instanceName == null) {
+            record.instanceName = instanceName;
+            record.registrationType = registrationType;
+            complete(record);
+        }
+    }
+
+    /** The TXT record half of a response arrived. */
+    public synchronized void onTxtRecord(String fullDomain, Map<String, String> txtRecord, String deviceAddress) {
+        probe.clear();
+        probe.deviceAddress = deviceAddress;
+        probe.fullDomain = fullDomain;
+        PeerRecord record = lookup();
+        if (record == null) {
+            record = add();
+            record.fullDomain = fullDomain;
+            record.txtRecord = txtRecord;
+        } else {
+            record.txtRecord = txtRecord;
+            if (record.instanceName != null) {
+                complete(record);
+            }
+        }
+    }
+
+    /** Hand over every waiting record by itself right away. */
+    public synchronized void flush() {
+        for (Iterator<RecordKey> iterator = pending.keySet().iterator(); iterator.hasNext();) {
+            RecordKey key = iterator.next();
+            iterator.remove();
+            expired++;
+            deliver(key);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DnsSdResponseCorrelator: pending: " + pending.size() + ", joined: " + joined + ", expired: "
+                + expired + ", overflowed: " + overflowed;
+    }
+
+    /** Get the waiting record matching the probe, or null if there is none. */
+    private PeerRecord lookup() {
+        RecordKey key = pending.get(probeKey.set(probe));
+        return key == null ? null : key.record;
+    }
+
+    /**
+     * Add a waiting record for the probe's device, making room for it first
+     * if needed. The caller fills in the half that arrived.
+     */
+    private PeerRecord add() {
+        if (pending.size() >= maxPending) {
+            Iterator<RecordKey> eldest = pending.keySet().iterator();
+            RecordKey key = eldest.next();
+            eldest.remove();
+            overflowed++;
+            deliver(key);
+        }
+        PeerRecord record = recordPool.isEmpty() ? new PeerRecord() : recordPool.poll();
+        record.deviceAddress = probe.deviceAddress;
+        record.firstSeenAt = scheduler.now();
+
+        /**
+         * The key of the new record is computed from the probe, which
+         * describes the same domain, before the record itself is filled in.
+         */
+        RecordKey key = keyPool.isEmpty() ? new RecordKey() : keyPool.poll();
+        key.record = record;
+        key.hash = probeKey.hash;
+        record.fullDomain = probe.fullDomain;
+        record.instanceName = probe.instanceName;
+        record.registrationType = probe.registrationType;
+        pending.put(key, key);
+        if (!sweepScheduled) {
+            sweepScheduled = true;
+            scheduler.schedule(sweep, windowMillis);
+        }
+        return record;
+    }
+
+    /** Hand over the specified record, which now has both halves. */
+    private void complete(PeerRecord record) {
+        RecordKey key = pending.remove(probeKey);
+        joined++;
+        if (key != null) {
+            deliver(key);
+        } else {
+            listener.onPeerRecord(record);
+        }
+    }
+
+    /** Hand over the record of the specified key, and recycle both. */
+    private void deliver(RecordKey key) {
+        PeerRecord record = key.record;
+        try {
+            listener.onPeerRecord(record);
+        } finally {
+            record.clear();
+            recordPool.offer(record);
+            key.record = null;
+            keyPool.offer(key);
+        }
+    }
+
+    /** Hand over the records whose window expired, and schedule the next sweep. */
+    private synchronized void sweep() {
+        sweepScheduled = false;
+        long now = scheduler.now();
+        for (Iterator<RecordKey> iterator = pending.keySet().iterator(); iterator.hasNext();) {
+            RecordKey key = iterator.next();
+            long age = now - key.record.firstSeenAt;
+            if (age < windowMillis) {
+
+                /** The records are in arrival order, so the others are younger. */
+                sweepScheduled = true;
+                scheduler.schedule(sweep, windowMillis - age);
+                return;
+            }
+            iterator.remove();
+            expired++;
+            deliver(key);
+        }
+    }
+
+    /**
+     * Wifi Direct reports fully qualified registration types such as
+     * "_presence._tcp.local.", whereas services are registered with types such
+     * as "_presence._tcp". Strip the trailing dot and domain so that the two
+     * can be compared.
+     */
+    public static String normalizeType(String registrationType) {
+        String type = registrationType;
+        if (type.endsWith(".")) {
+            type = type.substring(0, type.length() - 1);
+        }
+        if (type.endsWith(".local")) {
+            type = type.substring(0, type.length() - ".local".length());
+        }
+        return type;
+    }
+}
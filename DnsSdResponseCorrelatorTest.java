@@ -0,0 +1,169 @@
+package com.example.wificoms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks how the {@link DnsSdResponseCorrelator} joins the service responses
+ * and TXT records of Wifi Direct peers, and hands over the halves that wait
+ * too long, on a {@link VirtualTaskScheduler}.
+ */
+public class DnsSdResponseCorrelatorTest {
+
+    private static final long                   WINDOW_MILLIS   = 2000;
+    private static final String                 TYPE            = "_presence._tcp.local.";
+    private static final String                 DEVICE_A        = "02:00:00:00:00:0a";
+    private static final String                 DEVICE_B        = "02:00:00:00:00:0b";
+    private static final Map<String, String>    TXT_RECORD      = Collections.singletonMap("DeviceID", "0a");
+
+    /** What the listener was handed. The records themselves are recycled, so they are copied. */
+    private static final class Delivery {
+
+        private final DiscoveredService service;
+        private final boolean           hasService;
+        private final boolean           hasTxtRecord;
+        private final long              firstSeenAt;
+
+        Delivery(DnsSdResponseCorrelator.PeerRecord record) {
+            this.service = record.toService();
+            this.hasService = record.hasService();
+            this.hasTxtRecord = record.hasTxtRecord();
+            this.firstSeenAt = record.getFirstSeenAt();
+        }
+    }
+
+    private final List<Delivery>                deliveries      = new ArrayList<Delivery>();
+    private VirtualTaskScheduler                scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualTaskScheduler();
+    }
+
+    @Test
+    public void joinsHalvesThatArriveInEitherOrder() {
+        DnsSdResponseCorrelator correlator = correlator(DnsSdResponseCorrelator.DEFAULT_MAX_PENDING);
+        correlator.onServiceResponse("Peer", TYPE, DEVICE_A);
+        assertTrue(deliveries.isEmpty());
+        correlator.onTxtRecord("Peer." + TYPE, TXT_RECORD, DEVICE_A);
+        correlator.onTxtRecord("Peer." + TYPE, TXT_RECORD, DEVICE_B);
+        assertEquals(1, deliveries.size());
+        correlator.onServiceResponse("Peer", TYPE, DEVICE_B);
+
+        assertEquals(2, deliveries.size());
+        for (Delivery delivery : deliveries) {
+            assertTrue(delivery.hasService);
+            assertTrue(delivery.hasTxtRecord);
+            assertEquals("Peer", delivery.service.getServiceName());
+            assertEquals("_presence._tcp", delivery.service.getServiceType());
+            assertEquals(TXT_RECORD, delivery.service.getAttributes());
+        }
+        assertEquals(DEVICE_A, deliveries.get(0).service.getDeviceAddress());
+        assertEquals(DEVICE_B, deliveries.get(1).service.getDeviceAddress());
+        assertEquals(2, correlator.getJoinedCount());
+        assertEquals(0, correlator.getPendingCount());
+    }
+
+    @Test
+    public void matchesDomainsRegardlessOfCase() {
+        DnsSdResponseCorrelator correlator = correlator(DnsSdResponseCorrelator.DEFAULT_MAX_PENDING);
+        correlator.onServiceResponse("Peer", TYPE, DEVICE_A);
+        correlator.onTxtRecord("peer._PRESENCE._tcp.LOCAL.", TXT_RECORD, DEVICE_A);
+
+        assertEquals(1, correlator.getJoinedCount());
+        assertEquals(1, deliveries.size());
+        assertEquals("Peer", deliveries.get(0).service.getServiceName());
+    }
+
+    @Test
+    public void keepsTheHalvesOfOtherDevicesAndServicesApart() {
+        DnsSdResponseCorrelator correlator = correlator(DnsSdResponseCorrelator.DEFAULT_MAX_PENDING);
+        correlator.onServiceResponse("Peer", TYPE, DEVICE_A);
+        correlator.onTxtRecord("Peer." + TYPE, TXT_RECORD, DEVICE_B);
+        correlator.onTxtRecord("Other." + TYPE, TXT_RECORD, DEVICE_A);
+
+        assertTrue(deliveries.isEmpty());
+        assertEquals(3, correlator.getPendingCount());
+    }
+
+    @Test
+    public void handsOverHalvesWhoseWindowExpired() {
+        DnsSdResponseCorrelator correlator = correlator(DnsSdResponseCorrelator.DEFAULT_MAX_PENDING);
+        correlator.onServiceResponse("Peer", TYPE, DEVICE_A);
+        scheduler.advance(500);
+        correlator.onTxtRecord("Other." + TYPE, TXT_RECORD, DEVICE_B);
+
+        scheduler.advance(WINDOW_MILLIS - 501);
+        assertTrue(deliveries.isEmpty());
+        scheduler.advance(1);
+        assertEquals(1, deliveries.size());
+        assertTrue(deliveries.get(0).hasService);
+        assertFalse(deliveries.get(0).hasTxtRecord);
+        assertEquals(0, deliveries.get(0).firstSeenAt);
+
+        /** The sweep comes back for the younger half once its own window expired. */
+        scheduler.advance(499);
+        assertEquals(1, deliveries.size());
+        scheduler.advance(1);
+        assertEquals(2, deliveries.size());
+        assertFalse(deliveries.get(1).hasService);
+        assertEquals("Other", deliveries.get(1).service.getServiceName());
+        assertEquals("_presence._tcp", deliveries.get(1).service.getServiceType());
+        assertEquals(2, correlator.getExpiredCount());
+        assertEquals(0, correlator.getPendingCount());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void handsOverTheOldestHalfWhenTooManyWait() {
+        DnsSdResponseCorrelator correlator = correlator(2);
+        correlator.onServiceResponse("First", TYPE, DEVICE_A);
+        correlator.onServiceResponse("Second", TYPE, DEVICE_A);
+        correlator.onServiceResponse("Third", TYPE, DEVICE_A);
+
+        assertEquals(1, correlator.getOverflowCount());
+        assertEquals(2, correlator.getPendingCount());
+        assertEquals(1, deliveries.size());
+        assertEquals("First", deliveries.get(0).service.getServiceName());
+
+        /** The ones that are left still join. */
+        correlator.onTxtRecord("Second." + TYPE, TXT_RECORD, DEVICE_A);
+        assertEquals(1, correlator.getJoinedCount());
+        assertTrue(deliveries.get(1).hasTxtRecord);
+    }
+
+    @Test
+    public void flushHandsOverEveryWaitingHalf() {
+        DnsSdResponseCorrelator correlator = correlator(DnsSdResponseCorrelator.DEFAULT_MAX_PENDING);
+        correlator.onServiceResponse("Peer", TYPE, DEVICE_A);
+        correlator.onTxtRecord("Other." + TYPE, TXT_RECORD, DEVICE_B);
+        correlator.flush();
+
+        assertEquals(2, deliveries.size());
+        assertEquals(2, correlator.getExpiredCount());
+        assertEquals(0, correlator.getPendingCount());
+
+        /** Nothing is left for the sweep. */
+        scheduler.advance(WINDOW_MILLIS);
+        assertEquals(2, deliveries.size());
+    }
+
+    private DnsSdResponseCorrelator correlator(int maxPending) {
+        return new DnsSdResponseCorrelator(scheduler, new DnsSdResponseCorrelator.Listener() {
+
+            @Override
+            public void onPeerRecord(DnsSdResponseCorrelator.PeerRecord record) {
+                deliveries.add(new Delivery(record));
+            }
+        }, WINDOW_MILLIS, maxPending);
+    }
+}
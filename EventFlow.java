@@ -0,0 +1,50 @@
+package com.example.wificoms;
+
+/**
+ * The interfaces of a reactive stream with backpressure, shaped like those of
+ * {@code java.util.concurrent.Flow}, which is not available on the platforms
+ * this app supports. A {@link Subscriber} only receives as many items as it
+ * requested through its {@link Subscription}, so that a slow subscriber never
+ * holds up the publisher.
+ */
+public final class EventFlow {
+
+    /** A source of items, e.g. the {@link DiscoveryEventPublisher}. */
+    public interface Publisher<T> {
+
+        /**
+         * Add the specified subscriber, which is first handed its
+         * {@link Subscription} through {@link Subscriber#onSubscribe}.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /** Receives the items of a {@link Publisher}, one call at a time. */
+    public interface Subscriber<T> {
+
+        /** Subscribed. No items arrive before they are requested through the specified subscription. */
+        void onSubscribe(Subscription subscription);
+
+        /** The next item, which was requested. */
+        void onNext(T item);
+
+        /** The stream failed, and no further items arrive. */
+        void onError(Throwable throwable);
+
+        /** The stream ended, and no further items arrive. */
+        void onComplete();
+    }
+
+    /** The link between a {@link Publisher} and one of its {@link Subscriber}s. */
+    public interface Subscription {
+
+        /** Request the specified (positive) number of items more. */
+        void request(long n);
+
+        /** Stop receiving items. Some that are underway may still arrive. */
+        void cancel();
+    }
+
+    private EventFlow() {
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.wificoms;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * A {@link TaskScheduler} that runs tasks on the thread of a {@link Looper},
+ * using the {@link SystemClock#uptimeMillis()} clock that {@link Handler}s use.
+ */
+public class HandlerTaskScheduler implements TaskScheduler {
+
+    private final Handler handler;
+
+    public HandlerTaskScheduler(Looper looper) {
+        this.handler = new Handler(looper);
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public Cancellable schedule(final Runnable task, long delayMillis) {
+
+        /**
+         * Wrap the task so that cancelling it cannot remove other posts of the
+         * same Runnable.
+         */
+        final Runnable posted = new Runnable() {
+
+            @Override
+            public void run() {
+                task.run();
+            }
+        };
+        handler.postDelayed(posted, delayMillis);
+        return new Cancellable() {
+
+            @Override
+            public void cancel() {
+                handler.removeCallbacks(posted);
+            }
+        };
+    }
+}
@@ -0,0 +1,356 @@
+package com.example.wificoms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A {@link DiscoveryTransport} that simulates a network of peers in memory, so
+ * that the {@link DiscoveryEngine} can be load-tested and profiled on a plain
+ * JVM. Peers are added and removed with {@link #announce(DiscoveredService)}
+ * and {@link #withdraw(DiscoveredService)} (or in bulk with
+ * {@link #announcePeers(int, String, String)} and {@link #churn(int)}), and
+ * the transport reports them to its {@link DiscoveryTransport.Callback} just
+ * like the platform would.
+ *
+ * <p/>
+ *
+ * All callbacks are delivered through the {@link TaskScheduler}, after the
+ * configured delays. With a {@link VirtualTaskScheduler}, everything is
+ * deterministic. The error codes mirror the ones of
+ * {@link android.net.nsd.NsdManager}.
+ */
+public class InMemoryDiscoveryTransport implements DiscoveryTransport {
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final int                     FAILURE_INTERNAL_ERROR  = 0;
+    public static final int                     FAILURE_ALREADY_ACTIVE  = 3;
+
+    private final TaskScheduler                 scheduler;
+    private final Random                        random;
+    private final Map<String, DiscoveredService> peers;
+    private final Map<String, DiscoveredService> registeredServices;
+    private final Set<String>                   discoveryTypes;
+    private volatile Callback                   callback                = null;
+    private long                                callbackDelayMillis     = 0;
+    private long                                resolveLatencyMillis    = 0;
+    private double                              resolveFailureRate      = 0;
+    private int                                 maxConcurrentResolves   = Integer.MAX_VALUE;
+    private int                                 activeResolves          = 0;
+    private int                                 peerCounter             = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public InMemoryDiscoveryTransport(TaskScheduler scheduler) {
+        this(scheduler, new Random(0));
+    }
+
+    public InMemoryDiscoveryTransport(TaskScheduler scheduler, Random random) {
+        this.scheduler = scheduler;
+        this.random = random;
+        this.peers = new LinkedHashMap<String, DiscoveredService>();
+        this.registeredServices = new LinkedHashMap<String, DiscoveredService>();
+        this.discoveryTypes = new LinkedHashSet<String>();
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get the number of peers currently on the simulated network. */
+    public synchronized int getPeerCount() {
+        return peers.size();
+    }
+
+    /** Get the peers currently on the simulated network. */
+    public synchronized List<DiscoveredService> getPeers() {
+        return new ArrayList<DiscoveredService>(peers.values());
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    /** Set the delay before every callback is delivered. */
+    public synchronized void setCallbackDelayMillis(long callbackDelayMillis) {
+        this.callbackDelayMillis = callbackDelayMillis;
+    }
+
+    /** Set the time it takes to resolve a service. */
+    public synchronized void setResolveLatencyMillis(long resolveLatencyMillis) {
+        this.resolveLatencyMillis = resolveLatencyMillis;
+    }
+
+    /** Set the probability (between 0 and 1) that a resolve fails. */
+    public synchronized void setResolveFailureRate(double resolveFailureRate) {
+        this.resolveFailureRate = resolveFailureRate;
+    }
+
+    /**
+     * Set the number of resolves that may be in flight at the same time.
+     * Additional resolves fail with {@link #FAILURE_ALREADY_ACTIVE}, just like
+     * they do with {@link android.net.nsd.NsdManager}, which only allows one.
+     */
+    public synchronized void setMaxConcurrentResolves(int maxConcurrentResolves) {
+        this.maxConcurrentResolves = maxConcurrentResolves;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Simulation Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Add the specified (resolved) peer service to the network, replacing any
+     * previous description of the same service instance.
+     */
+    public synchronized void announce(DiscoveredService peer) {
+        peers.put(peer.getKey(), peer);
+        if (discoveryTypes.contains(peer.getServiceType())) {
+            deliverFound(peer);
+        }
+    }
+
+    /** Remove the specified peer service from the network. */
+    public synchronized void withdraw(DiscoveredService peer) {
+        DiscoveredService removed = peers.remove(peer.getKey());
+        if (removed != null && discoveryTypes.contains(removed.getServiceType())) {
+            deliverLost(removed);
+        }
+    }
+
+    /**
+     * Add the specified number of new peers offering services of the specified
+     * type, with names starting with the specified prefix. Return the peers.
+     */
+    public synchronized List<DiscoveredService> announcePeers(int count, String serviceType, String namePrefix) {
+        List<DiscoveredService> announced = new ArrayList<DiscoveredService>(count);
+        for (int i = 0; i < count; i++) {
+            int id = peerCounter++;
+            Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("DeviceID", Long.toHexString(0x1000000000000000L + id));
+            DiscoveredService peer = new DiscoveredService(namePrefix + id, serviceType, null,
+                    "10." + ((id >> 16) & 0xFF) + "." + ((id >> 8) & 0xFF) + "." + (id & 0xFF), 8080, attributes);
+            announce(peer);
+            announced.add(peer);
+        }
+        return announced;
+    }
+
+    /**
+     * Replace the specified number of randomly chosen peers with new ones of
+     * the same type and name prefix, simulating devices leaving and joining.
+     */
+    public synchronized void churn(int count) {
+        List<DiscoveredService> current = new ArrayList<DiscoveredService>(peers.values());
+        Collections.shuffle(current, random);
+        for (int i = 0; i < count && i < current.size(); i++) {
+            DiscoveredService leaving = current.get(i);
+            withdraw(leaving);
+            String prefix = leaving.getServiceName().replaceAll("[0-9]+$", "");
+            announcePeers(1, leaving.getServiceType(), prefix);
+        }
+    }
+
+    /** Remove every peer from the network. */
+    public synchronized void withdrawAll() {
+        for (DiscoveredService peer : new ArrayList<DiscoveredService>(peers.values())) {
+            withdraw(peer);
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * DiscoveryTransport Methods
+     *
+     * ---------------------------------------------
+     */
+    @Override
+    public synchronized void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public synchronized void registerService(DiscoveredService service) {
+
+        /** Rename the service if a peer already uses its name, like mDNS does. */
+        String name = service.getServiceName();
+        for (int suffix = 2; peers.containsKey(DiscoveredService.key(null, name, service.getServiceType())); suffix++) {
+            name = service.getServiceName() + " (" + suffix + ")";
+        }
+        final DiscoveredService registered = service.withServiceName(name);
+        registeredServices.put(service.getServiceType(), registered);
+        deliver(new Runnable() {
+
+            @Override
+            public void run() {
+                callback.onServiceRegistered(registered);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void unregisterService() {
+        for (final DiscoveredService unregistered : registeredServices.values()) {
+            deliver(new Runnable() {
+
+                @Override
+                public void run() {
+                    callback.onServiceUnregistered(unregistered);
+                }
+            });
+        }
+        registeredServices.clear();
+    }
+
+    @Override
+    public synchronized void startServiceDiscovery(final String serviceType) {
+        if (!discoveryTypes.add(serviceType)) {
+            return;
+        }
+        deliver(new Runnable() {
+
+            @Override
+            public void run() {
+                callback.onDiscoveryStarted(serviceType);
+            }
+        });
+        for (DiscoveredService peer : peers.values()) {
+            if (peer.getServiceType().equals(serviceType)) {
+                deliverFound(peer);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stopServiceDiscovery() {
+        for (final String serviceType : discoveryTypes) {
+            deliver(new Runnable() {
+
+                @Override
+                public void run() {
+                    callback.onDiscoveryStopped(serviceType);
+                }
+            });
+        }
+        discoveryTypes.clear();
+    }
+
+    @Override
+    public synchronized void resolveService(final DiscoveredService service) {
+        if (activeResolves >= maxConcurrentResolves) {
+            deliver(new Runnable() {
+
+                @Override
+                public void run() {
+                    callback.onResolveFailed(service, FAILURE_ALREADY_ACTIVE);
+                }
+            });
+            return;
+        }
+        activeResolves++;
+        final boolean fail = resolveFailureRate > 0 && random.nextDouble() < resolveFailureRate;
+        scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                DiscoveredService peer;
+                Callback target;
+                synchronized (InMemoryDiscoveryTransport.this) {
+                    activeResolves--;
+                    peer = peers.get(service.getKey());
+                    target = callback;
+                }
+                if (target == null) {
+                    return;
+                } else if (peer == null || fail) {
+                    target.onResolveFailed(service, FAILURE_INTERNAL_ERROR);
+                } else {
+                    target.onServiceResolved(peer);
+                }
+            }
+        }, callbackDelayMillis + resolveLatencyMillis);
+    }
+
+    @Override
+    public synchronized void close() {
+        discoveryTypes.clear();
+        registeredServices.clear();
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Report the unresolved view of the specified peer as found. */
+    private void deliverFound(DiscoveredService peer) {
+        final DiscoveredService found = new DiscoveredService(peer.getServiceName(), peer.getServiceType(),
+                peer.getDeviceAddress(), null, 0, null);
+        deliver(new Runnable() {
+
+            @Override
+            public void run() {
+                callback.onServiceFound(found);
+            }
+        });
+    }
+
+    private void deliverLost(final DiscoveredService peer) {
+        deliver(new Runnable() {
+
+            @Override
+            public void run() {
+                callback.onServiceLost(peer);
+            }
+        });
+    }
+
+    /**
+     * Deliver the specified callback through the scheduler. The callback is
+     * dropped if no {@link DiscoveryTransport.Callback} is set by then.
+     */
+    private void deliver(final Runnable delivery) {
+        scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                boolean hasCallback;
+                synchronized (InMemoryDiscoveryTransport.this) {
+                    hasCallback = callback != null;
+                }
+                if (hasCallback) {
+                    delivery.run();
+                }
+            }
+        }, callbackDelayMillis);
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.wificoms;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies with a bounded relative error, in the style of an
+ * HDR histogram: values below 32 have their own bucket, and every power of two
+ * above that is split into 16 linear sub-buckets, so every value is recorded
+ * with an error of at most 1/16 (about 6%). Recording a value is constant
+ * time and allocates nothing. It is thread-safe.
+ */
+public class LatencyHistogram {
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private static final int    SUB_BUCKET_BITS = 4;
+    private static final int    SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+    private static final int    LINEAR_LIMIT    = 2 * SUB_BUCKETS;
+    private static final int    BUCKETS         = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String        name;
+    private final long[]        counts          = new long[BUCKETS];
+    private long                count           = 0;
+    private long                total           = 0;
+    private long                min             = Long.MAX_VALUE;
+    private long                max             = Long.MIN_VALUE;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public String getName() {
+        return name;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /** Get the mean latency, or 0 if nothing was recorded. */
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /** Get the minimum latency, or 0 if nothing was recorded. */
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /** Get the maximum latency, or 0 if nothing was recorded. */
+    public synchronized long getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    /**
+     * Get the latency below which the specified percentage (between 0 and
+     * 100) of the recorded latencies fall, or 0 if nothing was recorded. This
+     * is the highest value of the bucket, so it may overestimate by 6%.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, Math.max(min, highestValue(i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Record the specified latency. Negative latencies are recorded as 0. */
+    public synchronized void record(long latency) {
+        long value = Math.max(0, latency);
+        counts[bucket(value)]++;
+        count++;
+        total += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /** Get a copy of this histogram, e.g. to export it while recording goes on. */
+    public synchronized LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram(name);
+        System.arraycopy(counts, 0, copy.counts, 0, BUCKETS);
+        copy.count = count;
+        copy.total = total;
+        copy.min = min;
+        copy.max = max;
+        return copy;
+    }
+
+    /** Forget everything that was recorded. */
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + ": count: " + count + ", mean: " + getMean() + ", p50: " + getPercentile(50) + ", p90: "
+                + getPercentile(90) + ", p99: " + getPercentile(99) + ", max: " + getMax();
+    }
+
+    /** Get the bucket of the specified (non-negative) value. */
+    static int bucket(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** Get the highest value that falls in the specified bucket. */
+    static long highestValue(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
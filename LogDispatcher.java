@@ -0,0 +1,175 @@
+package com.example.wificoms;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces log entries written from arbitrary threads into batches that are
+ * flushed into a {@link LogSink} on a single thread (typically the UI thread).
+ *
+ * <p/>
+ *
+ * Writers only enqueue the entry into a lock-free queue. The first entry
+ * enqueued after a flush asks the {@link FlushScheduler} for another flush, so
+ * no matter how many entries arrive in a burst, at most one flush is pending at
+ * any time. How often flushes happen (e.g. once per display frame) is up to the
+ * {@link FlushScheduler}.
+ */
+public class LogDispatcher {
+
+    /** Decides when (and on which thread) the pending entries are flushed. */
+    public interface FlushScheduler {
+
+        /**
+         * Run the specified flush at some point in the future on the thread
+         * that owns the {@link LogSink}. This is called at most once per flush.
+         */
+        void schedule(Runnable flush);
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private final LogSink                       sink;
+    private final FlushScheduler                scheduler;
+    private final ConcurrentLinkedQueue<String> queue           = new ConcurrentLinkedQueue<String>();
+    private final AtomicBoolean                 flushScheduled  = new AtomicBoolean(false);
+    private final AtomicInteger                 queueDepth      = new AtomicInteger(0);
+    private final AtomicInteger                 maxQueueDepth   = new AtomicInteger(0);
+    private final AtomicLong                    enqueued        = new AtomicLong(0);
+    private final AtomicLong                    flushed         = new AtomicLong(0);
+    private final AtomicLong                    flushes         = new AtomicLong(0);
+    private volatile int                        lastFlushSize   = 0;
+    private volatile int                        maxFlushSize    = 0;
+    private final Runnable                      flush;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public LogDispatcher(LogSink sink, FlushScheduler scheduler) {
+        this.sink = sink;
+        this.scheduler = scheduler;
+        this.flush = new Runnable() {
+
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get the number of entries waiting for the next flush. */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /** Get the largest number of entries that were ever waiting for a flush. */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /** Get the total number of entries that were enqueued. */
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    /** Get the total number of entries that were flushed into the sink. */
+    public long getFlushedCount() {
+        return flushed.get();
+    }
+
+    /** Get the total number of flushes. */
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    /** Get the number of entries written by the most recent flush. */
+    public int getLastFlushSize() {
+        return lastFlushSize;
+    }
+
+    /** Get the largest number of entries written by a single flush. */
+    public int getMaxFlushSize() {
+        return maxFlushSize;
+    }
+
+    /** Get the average number of entries written per flush. */
+    public double getMeanFlushSize() {
+        long count = flushes.get();
+        return count == 0 ? 0 : (double) flushed.get() / count;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Enqueue the specified entry. This may be called from any thread. */
+    public void enqueue(String entry) {
+        queue.offer(entry);
+        enqueued.incrementAndGet();
+        int depth = queueDepth.incrementAndGet();
+        int max = maxQueueDepth.get();
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+            max = maxQueueDepth.get();
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(flush);
+        }
+    }
+
+    /**
+     * Drain everything that is currently enqueued into the sink. This must be
+     * called on the thread that owns the sink. It is normally invoked by the
+     * {@link FlushScheduler}, but may also be called directly to force a flush.
+     */
+    public void flush() {
+
+        /**
+         * Clear the flag before draining so that an entry enqueued while we are
+         * draining either gets drained now or schedules the next flush.
+         */
+        flushScheduled.set(false);
+        int count = 0;
+        String entry;
+        while ((entry = queue.poll()) != null) {
+            queueDepth.decrementAndGet();
+            sink.add(entry);
+            count++;
+        }
+        if (count > 0) {
+            flushes.incrementAndGet();
+            flushed.addAndGet(count);
+            lastFlushSize = count;
+            if (count > maxFlushSize) {
+                maxFlushSize = count;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LogDispatcher: enqueued: " + getEnqueuedCount() + ", flushes: " + getFlushCount()
+                + ", meanFlushSize: " + getMeanFlushSize() + ", maxFlushSize: " + getMaxFlushSize()
+                + ", queueDepth: " + getQueueDepth() + ", maxQueueDepth: " + getMaxQueueDepth();
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.wificoms;
+
+/**
+ * A bounded log of Strings backed by a fixed-capacity ring buffer. Once the
+ * buffer is full, every new entry evicts the oldest one, so the memory used by
+ * the log does not depend on how long the session has been running.
+ *
+ * <p/>
+ *
+ * Rendering is append-only: every new entry is handed to the attached
+ * {@link Renderer} by itself, rather than re-rendering the whole history. The
+ * full history is only re-rendered when the renderer is first attached, and
+ * after enough entries have been evicted that the rendered text would
+ * otherwise contain as many stale entries as retained ones. Hence the cost of
+ * logging a single entry is amortized O(1) regardless of the history length.
+ *
+ * <p/>
+ *
+ * This class is not thread-safe. It is intended to be used from a single
+ * thread (typically the UI thread).
+ */
+public class LogSink {
+
+    /** Something that can show the contents of a {@link LogSink}. */
+    public interface Renderer {
+
+        /** Append the specified text to what is currently shown. */
+        void append(CharSequence text);
+
+        /** Replace everything that is currently shown with the specified text. */
+        void replace(CharSequence text);
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final int     DEFAULT_RETENTION   = 500;
+    public static final String  DEFAULT_SEPARATOR   = "\n\n";
+
+    private final String[]      entries;
+    private final String        separator;
+    private int                 head                = 0;
+    private int                 size                = 0;
+    private int                 staleRendered       = 0;
+    private Renderer            renderer            = null;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public LogSink() {
+        this(DEFAULT_RETENTION);
+    }
+
+    public LogSink(int retention) {
+        this(retention, DEFAULT_SEPARATOR);
+    }
+
+    /**
+     * Create a log retaining at most the specified number of entries, where
+     * rendered entries are delimited by the specified separator.
+     */
+    public LogSink(int retention, String separator) {
+        if (retention <= 0) {
+            throw new IllegalArgumentException("retention must be positive: " + retention);
+        }
+        this.entries = new String[retention];
+        this.separator = separator;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get the maximum number of entries retained by this log. */
+    public int getRetention() {
+        return entries.length;
+    }
+
+    /** Get the number of entries currently retained by this log. */
+    public int size() {
+        return size;
+    }
+
+    /** Get the i'th retained entry, where 0 is the oldest. */
+    public String get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("index: " + i + ", size: " + size);
+        }
+        return entries[(head + i) % entries.length];
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Attach the {@link Renderer} that should show this log, replacing any
+     * previously attached one. The full retained history is rendered
+     * immediately. Pass null to detach; entries are still retained while no
+     * renderer is attached.
+     */
+    public void attach(Renderer renderer) {
+        this.renderer = renderer;
+        render();
+    }
+
+    /** Add the specified entry, evicting the oldest one if the log is full. */
+    public void add(String entry) {
+        boolean evicted = size == entries.length;
+        if (evicted) {
+            entries[head] = entry;
+            head = (head + 1) % entries.length;
+        } else {
+            entries[(head + size) % entries.length] = entry;
+            size++;
+        }
+        if (renderer == null) {
+            return;
+        }
+        if (evicted && ++staleRendered >= entries.length) {
+            render();
+        } else if (size == 1 && staleRendered == 0) {
+            renderer.append(entry);
+        } else {
+            renderer.append(separator + entry);
+        }
+    }
+
+    /** Remove all entries from this log. */
+    public void clear() {
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = null;
+        }
+        head = 0;
+        size = 0;
+        render();
+    }
+
+    /** Get all retained entries joined by the separator. */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(separator);
+            }
+            builder.append(get(i));
+        }
+        return builder.toString();
+    }
+
+    /** Re-render the full retained history, dropping any stale entries. */
+    private void render() {
+        staleRendered = 0;
+        if (renderer != null) {
+            renderer.replace(toString());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.wificoms;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.Choreographer.FrameCallback;
+
+/**
+ * A {@link LogDispatcher.FlushScheduler} that runs flushes on the main thread.
+ * By default, a flush runs on the next display frame, so the log is written
+ * to the UI at most once per frame. Alternatively, a fixed interval between
+ * the first pending entry and the flush can be specified.
+ */
+public class MainThreadFlushScheduler implements LogDispatcher.FlushScheduler {
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private final Handler       handler         = new Handler(Looper.getMainLooper());
+    private final long          intervalMillis;
+    private volatile Runnable   pendingFlush    = null;
+    private final Runnable      postFrameCallback;
+    private final FrameCallback frameCallback;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /** Flush once per display frame. */
+    public MainThreadFlushScheduler() {
+        this(0);
+    }
+
+    /**
+     * Flush the specified number of milliseconds after the first pending
+     * entry, or once per display frame if the interval is not positive.
+     */
+    public MainThreadFlushScheduler(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        this.frameCallback = new FrameCallback() {
+
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                pendingFlush.run();
+            }
+        };
+        this.postFrameCallback = new Runnable() {
+
+            @Override
+            public void run() {
+                Choreographer.getInstance().postFrameCallback(frameCallback);
+            }
+        };
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    @Override
+    public void schedule(Runnable flush) {
+        if (intervalMillis > 0) {
+            handler.postDelayed(flush, intervalMillis);
+        } else {
+
+            /**
+             * The Choreographer is bound to the main thread, but we may be
+             * called from any thread, so hop over to the main thread first.
+             */
+            pendingFlush = flush;
+            handler.post(postFrameCallback);
+        }
+    }
+}
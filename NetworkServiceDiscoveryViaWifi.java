@@ -1,14 +1,19 @@
 package com.example.wificoms;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 import android.app.Activity;
 import android.content.Context;
-import android.net.nsd.NsdManager;
-import android.net.nsd.NsdManager.DiscoveryListener;
-import android.net.nsd.NsdManager.RegistrationListener;
-import android.net.nsd.NsdManager.ResolveListener;
-import android.net.nsd.NsdServiceInfo;
+import android.os.Build;
 import android.os.Bundle;
-import android.provider.Settings.Secure;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -22,9 +27,10 @@ import android.widget.TextView;
  * This {@link Activity} demonstrates Network Service Discovery capabilities
  * over wifi. This {@link Activity} simply demonstrates how you would register a
  * service you are providing, as well as how you would discover a service that a
- * peer device is providing. No connections are established, and this Activity
- * simply shows you what is available, along with the detailed lifecycle in a
- * {@link TextView}.
+ * peer device is providing. It serves the port that it advertises with a
+ * {@link PeerServer}, connects to every peer that is resolved to measure a
+ * round trip, and shows what is available, along with the detailed lifecycle
+ * in a {@link TextView}.
  *
  * <p/>
  *
@@ -32,6 +38,12 @@ import android.widget.TextView;
  * 10 seconds. If you still aren't finding services, make sure that this app is
  * open on two devices, and try to re-force the discovery by pushing the
  * {@link Button} (although this should not be necessary).
+ *
+ * <p/>
+ *
+ * The actual work is done by a {@link DiscoveryEngine} over a
+ * {@link NsdDiscoveryTransport}. This {@link Activity} only connects it to the
+ * UI and to the {@link Activity} lifecycle.
  */
 public class NetworkServiceDiscoveryViaWifi extends Activity {
 
@@ -45,14 +57,38 @@ public class NetworkServiceDiscoveryViaWifi extends Activity {
     private static final String     TAG                     = NetworkServiceDiscoveryViaWifi.class.getSimpleName();
     private TextView                logView                 = null;
     private static final int        logViewID               = View.generateViewId();
-    private String                  backlog                 = "";
+    private final LogSink           logSink                 = new LogSink();
+    private final LogDispatcher     logDispatcher           = new LogDispatcher(logSink,
+                                                                    profiler.wrap(new MainThreadFlushScheduler()));
     private static final String     originalServiceName     = TAG;
-    private String                  serviceName             = originalServiceName;
     private static final String     serviceType             = "_http._tcp.";
 
-    private NsdManager              nsdManager              = null;
-    private RegistrationListener    registrationListener    = null;
-    private DiscoveryListener       discoveryListener       = null;
+    private DiscoverySession        discoverySession        = null;
+
+    /** Run the callbacks off the main thread, and measure how much of it they still take. */
+    private static final DiscoveryExecutors.Mode    executorMode    = DiscoveryExecutors.Mode.BACKGROUND;
+    private static final CallbackProfiler           profiler        = new CallbackProfiler(Looper.getMainLooper()
+                                                                            .getThread());
+
+    /** Serve the port that we advertise, and keep warm connections to the peers that we resolved. */
+    private static PeerServer                       peerServer      = null;
+    private static final PeerConnector              peerConnector   = new PeerConnector(DiscoveryExecutors.get(
+                                                                            executorMode).getScheduler());
+
+    /** Connect on a thread of its own, since connecting blocks. */
+    private static final Executor                   connectExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PeerConnector");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Connect to the peers as they are resolved, while we are resumed. */
+    private PeerConnectingSubscriber                peerConnectingSubscriber    = null;
 
     /**
      * ---------------------------------------------
@@ -67,6 +103,19 @@ public class NetworkServiceDiscoveryViaWifi extends Activity {
         logd("onCreate");
         super.onCreate(savedInstanceState);
 
+        /**
+         * Get the session that does the actual work. It is retained across
+         * configuration changes, so it may already be running.
+         */
+        discoverySession = DiscoverySessionFragment.getSession(this, TAG,
+                new DiscoverySessionFragment.SessionFactory() {
+
+                    @Override
+                    public DiscoverySession createSession(Context applicationContext) {
+                        return createDiscoverySession(applicationContext);
+                    }
+                });
+
         /** Create the main LinearLayout */
         LinearLayout linearLayout = new LinearLayout(this);
         linearLayout.setOrientation(LinearLayout.VERTICAL);
@@ -107,13 +156,25 @@ public class NetworkServiceDiscoveryViaWifi extends Activity {
 
                     @Override
                     public void run() {
-                        logView.setText("");
+                        logSink.clear();
                     }
                 });
             }
         });
         linearLayout.addView(clearButton, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT, 0));
 
+        /** Add a button to dump the statistics of the session to logcat */
+        Button statsButton = new Button(this);
+        statsButton.setText("Stats");
+        statsButton.setOnClickListener(new OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+                dumpStats();
+            }
+        });
+        linearLayout.addView(statsButton, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT, 0));
+
         /** Create a ScrollView that will hold the textView of the log */
         ScrollView logScrollView = new ScrollView(this);
         linearLayout.addView(logScrollView, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT, 1));
@@ -122,6 +183,7 @@ public class NetworkServiceDiscoveryViaWifi extends Activity {
         logView = new TextView(this);
         logView.setId(logViewID);
         logScrollView.addView(logView, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+        logSink.attach(new TextViewLogRenderer(logView));
 
         /** Set the view for this activity */
         setContentView(linearLayout);
@@ -130,211 +192,271 @@ public class NetworkServiceDiscoveryViaWifi extends Activity {
     @Override
     protected void onResume() {
         logd("onResume");
-        registerService();
-        startServiceDiscovery();
+        discoverySession.attach(new LoggingEngineListener());
+        peerConnectingSubscriber = new PeerConnectingSubscriber();
+        discoverySession.getEngine().getEvents().subscribe(peerConnectingSubscriber,
+                DiscoveryEventPublisher.Overflow.CONFLATE, DiscoveryEventPublisher.DEFAULT_CAPACITY);
         super.onResume();
     }
 
     @Override
     protected void onPause() {
         logd("onPause");
-        stopServiceDiscovery();
-        unregisterService();
-        setNsdManager(null);
+        /**
+         * Keep the session running in case we are only being recreated, unless
+         * we are finishing for good.
+         */
+        discoverySession.detach();
+        peerConnectingSubscriber.cancel();
+        if (isFinishing()) {
+            discoverySession.shutdown();
+        }
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        logd("onDestroy");
+
+        /** Stop serving the port once we are finishing for good, like the session. */
+        if (isFinishing()) {
+            stopPeerServer();
+        }
+        super.onDestroy();
+    }
+
     /**
      * ---------------------------------------------
      *
-     * Getters
+     * Other Methods
      *
      * ---------------------------------------------
      */
-    private NsdManager getNsdManager() {
-        if (nsdManager == null) {
-            setNsdManager((NsdManager) getSystemService(Context.NSD_SERVICE));
-        }
-        return nsdManager;
-    }
+    /**
+     * Create the session that registers this device so that other peers can
+     * discover us, and discovers peer services, over NSD. The service is named
+     * after the device ID, so that its name stays the same across
+     * registrations and restarts, and peers do not find and resolve it anew
+     * every time.
+     */
+    private DiscoverySession createDiscoverySession(Context context) {
 
-    private RegistrationListener getRegistrationListener() {
-        if (registrationListener == null) {
-            setRegistrationListener(new RegistrationListener() {
+        /**
+         * Service information. Pass it an instance name, service type
+         * _protocol._transportlayer , and the map containing information other
+         * devices will want once they connect to this one.
+         */
+        String deviceId = DeviceId.get(context);
+        Map<String, String> attributes = PeerAttributes.encode(deviceId);
+        ServiceNamer namer = new ServiceNamer(originalServiceName, deviceId);
+        DiscoveredService service = new DiscoveredService(namer.getName(), serviceType, null, null,
+                PeerServer.DEFAULT_PORT, attributes);
+        startPeerServer();
+        DiscoverySession session = new DiscoverySession(profiler.wrap(new NsdDiscoveryTransport(context)),
+                DiscoveryExecutors.get(executorMode).getScheduler(), service, originalServiceName);
+
+        /** Should the name conflict with another service on the network, move on to the next stable one. */
+        session.getEngine().setServiceNamer(namer);
 
-                @Override
-                public void onServiceRegistered(NsdServiceInfo nsdServiceInfo) {
-                    /**
-                     * Save the service name since Android may have changed it
-                     * in order to resolve a conflict.
-                     */
-                    serviceName = nsdServiceInfo.getServiceName();
-                    logd("onServiceRegistered: NsdServiceInfo: " + nsdServiceInfo.toString());
-                }
+        /**
+         * Older platforms only allow one resolve at a time, and reject the
+         * others with FAILURE_ALREADY_ACTIVE.
+         */
+        session.getEngine().getResolveScheduler().setMaxConcurrent(
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE ? 4 : 1);
 
-                @Override
-                public void onRegistrationFailed(NsdServiceInfo nsdServiceInfo, int errorCode) {
-                    logd("onRegistrationFailed: NsdServiceInfo: " + nsdServiceInfo.toString() + ", errorCode: "
-                            + errorCode);
-                }
+        /** Scan in bursts rather than keeping the radio busy until onPause. */
+        session.getDutyCycler().setPolicy(DiscoveryDutyCycler.Policy.NSD);
 
-                @Override
-                public void onServiceUnregistered(NsdServiceInfo nsdServiceInfo) {
-                    logd("onServiceUnregistered: NsdServiceInfo: " + nsdServiceInfo.toString());
-                }
+        /** Retry while the NSD daemon is overloaded, and start over with fresh listeners when it holds on to ours. */
+        session.getRecovery().setPolicy(DiscoveryRecovery.Policy.NSD);
 
-                @Override
-                public void onUnregistrationFailed(NsdServiceInfo nsdServiceInfo, int errorCode) {
-                    logd("onUnregistrationFailed: NsdServiceInfo: " + nsdServiceInfo.toString() + ", errorCode: "
-                            + errorCode);
-                }
-            });
-        }
-        return registrationListener;
+        /** Show the peers of the previous run right away, until discovery confirms them. */
+        session.getEngine().setPeerDirectory(new PeerDirectory(new File(context.getFilesDir(), "peers-nsd.log")));
+
+        /** Join the peers with the ones the other transport finds, and only resolve them through one of them. */
+        session.setPeerMerger(SharedPeerMerger.get(), "nsd");
+        return session;
     }
 
     /**
-     * ---------------------------------------------
-     *
-     * Setters
-     *
-     * ---------------------------------------------
+     * Start serving the port that we advertise, unless we already do. The
+     * server is shared by the whole process, like the session.
      */
-    private void setNsdManager(NsdManager nsdManager) {
-        this.nsdManager = nsdManager;
+    private void startPeerServer() {
+        synchronized (NetworkServiceDiscoveryViaWifi.class) {
+            if (peerServer != null && peerServer.isRunning()) {
+                return;
+            }
+            try {
+                peerServer = new PeerServer(new InetSocketAddress(PeerServer.DEFAULT_PORT), PeerServer.ECHO);
+            } catch (IOException e) {
+                logd("Could not serve port " + PeerServer.DEFAULT_PORT + ": " + e);
+            }
+        }
     }
 
-    private void setRegistrationListener(RegistrationListener registrationListener) {
-        this.registrationListener = registrationListener;
+    /** Stop serving the port that we advertise, if we do. */
+    private void stopPeerServer() {
+        synchronized (NetworkServiceDiscoveryViaWifi.class) {
+            if (peerServer != null) {
+                peerServer.close();
+                peerServer = null;
+            }
+        }
     }
 
     /**
-     * ---------------------------------------------
-     *
-     * Other Methods
-     *
-     * ---------------------------------------------
+     * Connect to the specified resolved peer and measure a round trip. This
+     * blocks, so it runs on the {@link #connectExecutor}. The connection is
+     * kept warm for the next time we talk to the peer.
      */
-    /** Register this device so that other peers can discover us. */
-    private void registerService() {
-
-        /**
-         * Service information. Pass it an instance name, service type
-         * _protocol._transportlayer , and the map containing information other
-         * devices will want once they connect to this one.
-         */
-        NsdServiceInfo serviceInfo = new NsdServiceInfo();
-        serviceInfo.setServiceName(TAG + Math.random());
-        serviceInfo.setServiceType(serviceType);
-        serviceInfo.setPort(8080);
-        serviceInfo.setAttribute("DeviceID", Secure.getString(getContentResolver(), Secure.ANDROID_ID));
-
-        unregisterService();
-        getNsdManager().registerService(serviceInfo, NsdManager.PROTOCOL_DNS_SD, getRegistrationListener());
+    private void connectToPeer(DiscoveredService peer) {
+        long start = System.nanoTime();
+        PeerConnector.Connection connection = null;
+        try {
+            connection = peerConnector.acquire(peer);
+            connection.request(ByteBuffer.wrap(originalServiceName.getBytes()));
+            logd("Round trip to " + connection.getKey() + ": " + (System.nanoTime() - start) / 1000 + " us");
+            peerConnector.release(connection);
+        } catch (IOException e) {
+            logd("Could not talk to " + peer.getServiceName() + ": " + e);
+            if (connection != null) {
+                connection.close();
+            }
+        }
     }
 
-    /** Unregister this service. */
-    private void unregisterService() {
-        if (registrationListener != null) {
-            getNsdManager().unregisterService(getRegistrationListener());
-            setRegistrationListener(null);
-        }
+    /** Register this device (again) so that other peers can discover us. */
+    private void registerService() {
+        discoverySession.registerService();
     }
 
     /** Start looking for peer services. */
     private void startServiceDiscovery() {
+        discoverySession.startServiceDiscovery();
+    }
 
-        // stopServiceDiscovery();
-        discoveryListener = new DiscoveryListener() {
-            @Override
-            public void onDiscoveryStarted(String regType) {
-                logd("onDiscoveryStarted: regType: " + regType);
-            }
+    /**
+     * Write the statistics of the session (including the trace as JSON) to
+     * logcat. This only happens when asked for, since building them is not
+     * free.
+     */
+    private void dumpStats() {
+        Log.d(TAG, logDispatcher.toString());
+        Log.d(TAG, discoverySession.getEngine().getResolveScheduler().toString());
+        Log.d(TAG, discoverySession.getEngine().getResolvedServiceCache().toString());
+        Log.d(TAG, discoverySession.getEngine().getPeerTable().toString());
+        Log.d(TAG, String.valueOf(discoverySession.getEngine().getPeerDirectory()));
+        Log.d(TAG, SharedPeerMerger.get().toString());
+        Log.d(TAG, discoverySession.getEngine().getPeerFilter().toString());
+        Log.d(TAG, discoverySession.getDutyCycler().toString());
+        Log.d(TAG, discoverySession.getRecovery().toString());
+        Log.d(TAG, String.valueOf(discoverySession.getEngine().getServiceNamer()));
+        Log.d(TAG, discoverySession.getEngine().getTracer().toJson());
+        Log.d(TAG, profiler.toString());
+        Log.d(TAG, String.valueOf(peerServer));
+        Log.d(TAG, peerConnector.toString());
+        Log.d(TAG, discoverySession.getEngine().getEvents().toString());
+    }
 
-            @Override
-            public void onServiceFound(NsdServiceInfo nsdServiceInfo) {
-                if (!nsdServiceInfo.getServiceType().equals(serviceType)) {
-                    logd("onServiceFound: Unknown Service Type: " + nsdServiceInfo.getServiceType());
-                } else if (nsdServiceInfo.getServiceName().equals(serviceName)) {
-                    logd("onServiceFound: Same machine: " + nsdServiceInfo.getServiceName());
-                } else if (nsdServiceInfo.getServiceName().contains(originalServiceName)) {
-                    logd("onServiceFound: Service from peer. NsdServiceInfo: " + nsdServiceInfo.toString());
-                    getNsdManager().resolveService(nsdServiceInfo, new ResolveListener() {
-
-                        @Override
-                        public void onServiceResolved(NsdServiceInfo nsdServiceInfo) {
-                            logd("onServiceResolved: NsdServiceInfo: " + nsdServiceInfo.toString());
-                        }
-
-                        @Override
-                        public void onResolveFailed(NsdServiceInfo nsdServiceInfo, int errorCode) {
-                            logd("onResolveFailed: NsdServiceInfo: " + nsdServiceInfo.toString() + ", errorCode: "
-                                    + errorCode);
-                        }
-                    });
-                }
-            }
+    /**
+     * Write the specified String to the log, and show it on the
+     * {@link TextView} that we created. Entries are kept in a bounded
+     * {@link LogSink}, so entries written before the {@link TextView} is
+     * created are shown once it is attached, and logging stays cheap no
+     * matter how long the session has been running. This may be called from
+     * any thread; the {@link LogDispatcher} writes the entries to the
+     * {@link TextView} in batches, at most once per display frame.
+     */
+    private void logd(String loggable) {
+        Log.d(TAG, loggable);
+        logDispatcher.enqueue(loggable);
+    }
 
-            @Override
-            public void onServiceLost(NsdServiceInfo nsdServiceInfo) {
-                logd("onDiscoveryStopped: nsdServiceInfo: " + nsdServiceInfo.toString());
-            }
+    /**
+     * A {@link DiscoveryEngine.Listener} that writes the detailed lifecycle
+     * to the log. The peers themselves are already part of that lifecycle.
+     */
+    private class LoggingEngineListener implements DiscoveryEngine.Listener {
 
-            @Override
-            public void onDiscoveryStopped(String serviceType) {
-                logd("onDiscoveryStopped: serviceType: " + serviceType);
-            }
+        @Override
+        public void onPeerFound(DiscoveredService peer) {
+        }
 
-            @Override
-            public void onStartDiscoveryFailed(String serviceType, int errorCode) {
-                logd("onStartDiscoveryFailed: serviceType: " + serviceType + ", errorCode: " + errorCode);
-                getNsdManager().stopServiceDiscovery(this);
-            }
+        @Override
+        public void onPeerResolved(DiscoveredService peer) {
+        }
 
-            @Override
-            public void onStopDiscoveryFailed(String serviceType, int errorCode) {
-                logd("onStopDiscoveryFailed: serviceType: " + serviceType + ", errorCode: " + errorCode);
-                getNsdManager().stopServiceDiscovery(this);
-            }
-        };
-        getNsdManager().discoverServices(serviceType, NsdManager.PROTOCOL_DNS_SD, discoveryListener);
-    }
+        @Override
+        public void onPeerLost(DiscoveredService peer) {
+        }
 
-    /** Stop looking for peer services. */
-    private void stopServiceDiscovery() {
-        if (discoveryListener != null) {
-            getNsdManager().stopServiceDiscovery(discoveryListener);
-            discoveryListener = null;
+        @Override
+        public void onLog(String message) {
+            logd(message);
         }
     }
 
     /**
-     * Write the specified String to the log, and show it on the
-     * {@link TextView} that we created. If the {@link TextView} was not yet
-     * initialized, add it to a backlog of Strings to be written once the
-     * {@link TextView} is created.
+     * Connects to the peers as they are resolved (but not as they are
+     * reported from the cache), one at a time, on the
+     * {@link #connectExecutor}, and only asks the
+     * {@link DiscoveryEventPublisher} for the next event once a connect is
+     * done. During a storm of peers, only the latest event of every peer is
+     * kept.
      */
-    private void logd(String loggable) {
-        Log.d(TAG, loggable);
-        if (logView != null) {
-            if (!backlog.isEmpty()) {
-                loggable = append(backlog, loggable);
-                backlog = "";
+    private class PeerConnectingSubscriber implements EventFlow.Subscriber<DiscoveryEvent> {
+
+        private volatile EventFlow.Subscription subscription = null;
+        private volatile boolean                cancelled    = false;
+
+        @Override
+        public void onSubscribe(EventFlow.Subscription subscription) {
+            this.subscription = subscription;
+
+            /** We may have been cancelled before we were subscribed. */
+            if (cancelled) {
+                subscription.cancel();
+            } else {
+                subscription.request(1);
             }
-            final String toLog = loggable;
-            runOnUiThread(new Runnable() {
+        }
+
+        @Override
+        public void onNext(final DiscoveryEvent event) {
+            if (event.getType() != DiscoveryEvent.Type.RESOLVED && event.getType() != DiscoveryEvent.Type.TXT_UPDATED) {
+                subscription.request(1);
+                return;
+            }
+            connectExecutor.execute(new Runnable() {
 
                 @Override
                 public void run() {
-                    logView.setText(append(logView.getText().toString(), toLog));
+                    if (!cancelled) {
+                        connectToPeer(event.getPeer());
+                        subscription.request(1);
+                    }
                 }
             });
-        } else {
-            backlog = append(backlog, loggable);
         }
-    }
 
-    private String append(String a, String b) {
-        return a + "\n\n" + b;
+        @Override
+        public void onError(Throwable throwable) {
+            logd("PeerConnectingSubscriber.onError: " + throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        /** Stop connecting, e.g. because the Activity is paused, even if we are not subscribed yet. */
+        void cancel() {
+            cancelled = true;
+            EventFlow.Subscription target = subscription;
+            if (target != null) {
+                target.cancel();
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,26 +1,12 @@
 package com.example.wificoms;
 
-import java.util.HashMap;
-import java.util.List;
+import java.io.File;
 import java.util.Map;
 
 import android.app.Activity;
 import android.content.Context;
-import android.net.wifi.p2p.WifiP2pDevice;
-import android.net.wifi.p2p.WifiP2pManager;
-import android.net.wifi.p2p.WifiP2pManager.ActionListener;
-import android.net.wifi.p2p.WifiP2pManager.Channel;
-import android.net.wifi.p2p.WifiP2pManager.DnsSdServiceResponseListener;
-import android.net.wifi.p2p.WifiP2pManager.DnsSdTxtRecordListener;
-import android.net.wifi.p2p.WifiP2pManager.ServiceResponseListener;
-import android.net.wifi.p2p.WifiP2pManager.UpnpServiceResponseListener;
-import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceInfo;
-import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceRequest;
-import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
-import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
-import android.net.wifi.p2p.nsd.WifiP2pUpnpServiceRequest;
 import android.os.Bundle;
-import android.provider.Settings.Secure;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -51,6 +37,12 @@ import android.widget.TextView;
  * establishing a Wifi Direct connection with a peer. This is primarily intended
  * just to see services that are available, not just peers that are available to
  * connect to.
+ *
+ * <p/>
+ *
+ * The actual work is done by a {@link DiscoveryEngine} over a
+ * {@link WifiP2pDiscoveryTransport}. This {@link Activity} only connects it to
+ * the UI and to the {@link Activity} lifecycle.
  */
 public class NetworkServiceDiscoveryViaWifiDirect extends Activity {
 
@@ -64,13 +56,18 @@ public class NetworkServiceDiscoveryViaWifiDirect extends Activity {
     private static final String TAG                 = NetworkServiceDiscoveryViaWifiDirect.class.getSimpleName();
     private TextView            logView             = null;
     private static final int    logViewID           = View.generateViewId();
-    private String              backlog             = "";
+    private final LogSink       logSink             = new LogSink();
+    private final LogDispatcher logDispatcher       = new LogDispatcher(logSink,
+                                                            profiler.wrap(new MainThreadFlushScheduler()));
     private static final String originalServiceName = TAG;
-    private String              serviceName         = originalServiceName;
     private static final String serviceType         = "_presence._tcp";
 
-    private WifiP2pManager      wifiP2pManager      = null;
-    private Channel             channel             = null;
+    private DiscoverySession    discoverySession    = null;
+
+    /** Run the callbacks off the main thread, and measure how much of it they still take. */
+    private static final DiscoveryExecutors.Mode    executorMode    = DiscoveryExecutors.Mode.BACKGROUND;
+    private static final CallbackProfiler           profiler        = new CallbackProfiler(Looper.getMainLooper()
+                                                                            .getThread());
 
     /**
      * ---------------------------------------------
@@ -85,6 +82,19 @@ public class NetworkServiceDiscoveryViaWifiDirect extends Activity {
         logd("onCreate");
         super.onCreate(savedInstanceState);
 
+        /**
+         * Get the session that does the actual work. It is retained across
+         * configuration changes, so it may already be running.
+         */
+        discoverySession = DiscoverySessionFragment.getSession(this, TAG,
+                new DiscoverySessionFragment.SessionFactory() {
+
+                    @Override
+                    public DiscoverySession createSession(Context applicationContext) {
+                        return createDiscoverySession(applicationContext);
+                    }
+                });
+
         /** Create the main LinearLayout */
         LinearLayout linearLayout = new LinearLayout(this);
         linearLayout.setOrientation(LinearLayout.VERTICAL);
@@ -125,13 +135,25 @@ public class NetworkServiceDiscoveryViaWifiDirect extends Activity {
 
                     @Override
                     public void run() {
-                        logView.setText("");
+                        logSink.clear();
                     }
                 });
             }
         });
         linearLayout.addView(clearButton, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT, 0));
 
+        /** Add a button to dump the statistics of the session to logcat */
+        Button statsButton = new Button(this);
+        statsButton.setText("Stats");
+        statsButton.setOnClickListener(new OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+                dumpStats();
+            }
+        });
+        linearLayout.addView(statsButton, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT, 0));
+
         /** Create a ScrollView that will hold the textView of the log */
         ScrollView logScrollView = new ScrollView(this);
         linearLayout.addView(logScrollView, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT, 1));
@@ -140,6 +162,7 @@ public class NetworkServiceDiscoveryViaWifiDirect extends Activity {
         logView = new TextView(this);
         logView.setId(logViewID);
         logScrollView.addView(logView, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+        logSink.attach(new TextViewLogRenderer(logView));
 
         /** Set the view for this activity */
         setContentView(linearLayout);
@@ -148,222 +171,138 @@ public class NetworkServiceDiscoveryViaWifiDirect extends Activity {
     @Override
     protected void onResume() {
         logd("onResume");
-        registerService();
-        startServiceDiscovery();
+        discoverySession.attach(new LoggingEngineListener());
         super.onResume();
     }
 
     @Override
     protected void onPause() {
         logd("onPause");
-        stopServiceDiscovery();
-        unregisterService();
-        setWifiP2pManager(null);
-        super.onPause();
-    }
-
-    /**
-     * ---------------------------------------------
-     *
-     * Getters
-     *
-     * ---------------------------------------------
-     */
-    /**
-     * Get the {@link WifiP2pManager}, creating a new instance if we don't have
-     * one yet.
-     */
-    private WifiP2pManager getWifiP2pManager() {
-        if (wifiP2pManager == null) {
-            setWifiP2pManager((WifiP2pManager) getSystemService(Context.WIFI_P2P_SERVICE));
-        }
-        return wifiP2pManager;
-    }
-
-    /**
-     * Get the {@link Channel}, creating a new instance if we don't have one
-     * yet.
-     */
-    private Channel getChannel() {
-        if (channel == null) {
-            setChannel(getWifiP2pManager().initialize(getApplicationContext(), getMainLooper(), null));
+        /**
+         * Keep the session running in case we are only being recreated, unless
+         * we are finishing for good.
+         */
+        discoverySession.detach();
+        if (isFinishing()) {
+            discoverySession.shutdown();
         }
-        return channel;
+        super.onPause();
     }
 
     /**
      * ---------------------------------------------
      *
-     * Setters
+     * Other Methods
      *
      * ---------------------------------------------
      */
-    private void setWifiP2pManager(WifiP2pManager wifiP2pManager) {
-        this.wifiP2pManager = wifiP2pManager;
-    }
-
-    private void setChannel(Channel channel) {
-        this.channel = channel;
-    }
-
     /**
-     * ---------------------------------------------
-     *
-     * Other Methods
-     *
-     * ---------------------------------------------
+     * Create the session that registers this device so that other peers can
+     * discover us, and discovers peer services, over Wifi Direct.
      */
-    /** Register this device so that other peers can discover us. */
-    private void registerService() {
-
-        unregisterService();
-
-        /** Create a string map containing information about your service. */
-        Map<String, String> record = new HashMap<String, String>();
-        record.put("DeviceID", Secure.getString(getContentResolver(), Secure.ANDROID_ID));
-
-        /**
-         * Service information. Pass it an instance name, service type
-         * _protocol._transportlayer , and the map containing information other
-         * devices will want once they connect to this one.
-         */
-        WifiP2pDnsSdServiceInfo serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(serviceName, serviceType, record);
+    private DiscoverySession createDiscoverySession(Context context) {
 
         /**
-         * Add the local service, sending the service info, network channel, and
-         * listener that will be used to indicate success or failure of the
-         * request.
+         * Create a compact string map containing information about your
+         * service, which is named after the device, so that every device has a
+         * name of its own that survives restarts.
          */
-        getWifiP2pManager().addLocalService(getChannel(), serviceInfo, new ActionListener() {
-            @Override
-            public void onSuccess() {
-                logd("addLocalService.onSuccess");
-            }
-
-            @Override
-            public void onFailure(int arg0) {
-                logd("addLocalService.onFailure: " + arg0);
-            }
-        });
+        String deviceId = DeviceId.get(context);
+        Map<String, String> record = PeerAttributes.encode(deviceId);
+        ServiceNamer namer = new ServiceNamer(originalServiceName, deviceId);
+        DiscoveredService service = new DiscoveredService(namer.getName(), serviceType, null, null, 0, record);
+        DiscoveryExecutors executors = DiscoveryExecutors.get(executorMode);
+        WifiP2pDiscoveryTransport transport = new WifiP2pDiscoveryTransport(context, executors.getScheduler(),
+                executors.getLooper(), executors.getWorkers());
+        DiscoverySession session = new DiscoverySession(profiler.wrap(transport), executors.getScheduler(), service,
+                originalServiceName);
+        session.getEngine().setServiceNamer(namer);
+
+        /** TXT records are sent without being asked for, so resolves never queue up. */
+        session.getEngine().getResolveScheduler().setMaxConcurrent(Integer.MAX_VALUE);
+
+        /** Scan in bursts rather than keeping the radio busy until onPause. */
+        session.getDutyCycler().setPolicy(DiscoveryDutyCycler.Policy.WIFI_P2P);
+
+        /** Wifi Direct never reports a lost peer, so lose the ones that were missing for a few scans. */
+        session.getEngine().setPeerExpiryMillis(3 * DiscoveryDutyCycler.Policy.WIFI_P2P.getScanMillis());
+
+        /** Rebuild the channel once it gets into a bad state, and leave devices without Wifi Direct alone. */
+        session.getRecovery().setPolicy(DiscoveryRecovery.Policy.WIFI_P2P);
+
+        /** Show the peers of the previous run right away, until discovery confirms them. */
+        session.getEngine().setPeerDirectory(new PeerDirectory(new File(context.getFilesDir(), "peers-wifi-p2p.log")));
+
+        /** Join the peers with the ones the other transport finds, and only resolve them through one of them. */
+        session.setPeerMerger(SharedPeerMerger.get(), "wifi-p2p");
+        return session;
     }
 
-    /** Unregister this service. */
-    private void unregisterService() {
-        getWifiP2pManager().clearLocalServices(getChannel(), null);
+    /** Register this device (again) so that other peers can discover us. */
+    private void registerService() {
+        discoverySession.registerService();
     }
 
     /** Start looking for peer services. */
     private void startServiceDiscovery() {
-
-        // stopServiceDiscovery();
-
-        /** Setup listeners for vendor-specific services. */
-        getWifiP2pManager().setServiceResponseListener(getChannel(), new ServiceResponseListener() {
-
-            @Override
-            public void onServiceAvailable(int protocolType, byte[] responseData, WifiP2pDevice srcDevice) {
-                logd("onServiceAvailable: protocolType:" + protocolType + ", responseData: " + responseData.toString()
-                        + ", WifiP2pDevice: " + srcDevice.toString());
-            }
-        });
-
-        /** Setup listeners for the Bonjour services */
-        getWifiP2pManager().setDnsSdResponseListeners(getChannel(), new DnsSdServiceResponseListener() {
-            @Override
-            public void onDnsSdServiceAvailable(String instanceName, String registrationType,
-                    WifiP2pDevice wifiDirectDevice) {
-                logd("onDnsSdServiceAvailable: instanceName:" + instanceName + ", registrationType: " + registrationType
-                        + ", WifiP2pDevice: " + wifiDirectDevice.toString());
-            }
-        }, new DnsSdTxtRecordListener() {
-
-            @SuppressWarnings("rawtypes")
-            @Override
-            public void onDnsSdTxtRecordAvailable(String fullDomain, Map record, WifiP2pDevice device) {
-                logd("onDnsSdTxtRecordAvailable: fullDomain: " + fullDomain + ", record: " + record.toString()
-                        + ", WifiP2pDevice: " + device.toString());
-            }
-        });
-
-        /** Setup listeners for Upnp services */
-        getWifiP2pManager().setUpnpServiceResponseListener(getChannel(), new UpnpServiceResponseListener() {
-
-            @Override
-            public void onUpnpServiceAvailable(List<String> uniqueServiceNames, WifiP2pDevice srcDevice) {
-                logd("onUpnpServiceAvailable: uniqueServiceNames:" + uniqueServiceNames.toString() + ", WifiP2pDevice: "
-                        + srcDevice.toString());
-            }
-        });
-
-        /** Register to receive all possible types of service requests. */
-        addServiceRequest(WifiP2pServiceRequest.newInstance(WifiP2pServiceInfo.SERVICE_TYPE_ALL));
-        addServiceRequest(WifiP2pDnsSdServiceRequest.newInstance());
-        addServiceRequest(WifiP2pUpnpServiceRequest.newInstance());
-        getWifiP2pManager().discoverServices(getChannel(), new ActionListener() {
-
-            @Override
-            public void onSuccess() {
-                logd("discoverServices.onSuccess()");
-            }
-
-            @Override
-            public void onFailure(int code) {
-                logd("discoverServices.onFailure: " + code);
-            }
-        });
-    }
-
-    /** Stop searching for peer services */
-    private void stopServiceDiscovery() {
-        getWifiP2pManager().clearServiceRequests(getChannel(), null);
+        discoverySession.startServiceDiscovery();
     }
 
     /**
-     * Add the service discovery request for {@link WifiP2pServiceRequest}s of
-     * the specified type.
+     * Write the statistics of the session (including the trace as JSON) to
+     * logcat. This only happens when asked for, since building them is not
+     * free.
      */
-    private void addServiceRequest(final WifiP2pServiceRequest request) {
-        getWifiP2pManager().addServiceRequest(getChannel(), request, new ActionListener() {
-            @Override
-            public void onSuccess() {
-                logd("addServiceRequest.onSuccess() for requests of type: " + request.getClass().getSimpleName());
-            }
-
-            @Override
-            public void onFailure(int code) {
-                logd("addServiceRequest.onFailure: " + code + ", for requests of type: "
-                        + request.getClass().getSimpleName());
-            }
-        });
+    private void dumpStats() {
+        Log.d(TAG, logDispatcher.toString());
+        Log.d(TAG, discoverySession.getEngine().getResolveScheduler().toString());
+        Log.d(TAG, discoverySession.getEngine().getResolvedServiceCache().toString());
+        Log.d(TAG, discoverySession.getEngine().getPeerTable().toString());
+        Log.d(TAG, String.valueOf(discoverySession.getEngine().getPeerDirectory()));
+        Log.d(TAG, SharedPeerMerger.get().toString());
+        Log.d(TAG, discoverySession.getEngine().getPeerFilter().toString());
+        Log.d(TAG, discoverySession.getDutyCycler().toString());
+        Log.d(TAG, discoverySession.getRecovery().toString());
+        Log.d(TAG, String.valueOf(discoverySession.getEngine().getServiceNamer()));
+        Log.d(TAG, discoverySession.getEngine().getTracer().toJson());
+        Log.d(TAG, profiler.toString());
     }
 
     /**
      * Write the specified String to the log, and show it on the
-     * {@link TextView} that we created. If the {@link TextView} was not yet
-     * initialized, add it to a backlog of Strings to be written once the
-     * {@link TextView} is created.
+     * {@link TextView} that we created. Entries are kept in a bounded
+     * {@link LogSink}, so entries written before the {@link TextView} is
+     * created are shown once it is attached, and logging stays cheap no
+     * matter how long the session has been running. This may be called from
+     * any thread; the {@link LogDispatcher} writes the entries to the
+     * {@link TextView} in batches, at most once per display frame.
      */
     private void logd(String loggable) {
         Log.d(TAG, loggable);
-        if (logView != null) {
-            if (!backlog.isEmpty()) {
-                loggable = append(backlog, loggable);
-                backlog = "";
-            }
-            final String toLog = loggable;
-            runOnUiThread(new Runnable() {
-
-                @Override
-                public void run() {
-                    logView.setText(append(logView.getText().toString(), toLog));
-                }
-            });
-        } else {
-            backlog = append(backlog, loggable);
-        }
+        logDispatcher.enqueue(loggable);
     }
 
-    private String append(String a, String b) {
-        return a + "\n\n" + b;
+    /**
+     * A {@link DiscoveryEngine.Listener} that writes the detailed lifecycle
+     * to the log. The peers themselves are already part of that lifecycle.
+     */
+    private class LoggingEngineListener implements DiscoveryEngine.Listener {
+
+        @Override
+        public void onPeerFound(DiscoveredService peer) {
+        }
+
+        @Override
+        public void onPeerResolved(DiscoveredService peer) {
+        }
+
+        @Override
+        public void onPeerLost(DiscoveredService peer) {
+        }
+
+        @Override
+        public void onLog(String message) {
+            logd(message);
+        }
     }
 }
@@ -0,0 +1,382 @@
+package com.example.wificoms;
+
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdManager.DiscoveryListener;
+import android.net.nsd.NsdManager.RegistrationListener;
+import android.net.nsd.NsdManager.ResolveListener;
+import android.net.nsd.NsdServiceInfo;
+
+/**
+ * A {@link DiscoveryTransport} backed by the {@link NsdManager}, i.e. Network
+ * Service Discovery over the wifi network that the device is connected to.
+ *
+ * <p/>
+ *
+ * The {@link NsdManager} insists on a separate listener for every registered
+ * service and every discovered type, so those are kept per type. They all
+ * feed the same {@link Callback}, and share the one {@link NsdManager}.
+ *
+ * <p/>
+ *
+ * The discovery listener of a type lives as long as the transport, and moves
+ * through the {@link State}s, so that starting a type that is starting or
+ * running does nothing, and a start while the type is stopping is issued once
+ * it stopped (the {@link NsdManager} rejects a listener that is still in use).
+ * The resolve listeners are pooled, since one is needed per resolve.
+ */
+public class NsdDiscoveryTransport implements DiscoveryTransport {
+
+    /** The long-lived listener of the discovery of a single type. Its state is guarded by the transport. */
+    private final class TypeDiscovery implements DiscoveryListener {
+
+        private final String    serviceType;
+        private State           state           = State.IDLE;
+        private boolean         startPending    = false;
+        private boolean         stopPending     = false;
+
+        TypeDiscovery(String serviceType) {
+            this.serviceType = serviceType;
+        }
+
+        /** Start discovering, unless that is going on already. */
+        void start() {
+            stopPending = false;
+            if (state == State.IDLE) {
+                state = State.STARTING;
+                getNsdManager().discoverServices(serviceType, NsdManager.PROTOCOL_DNS_SD, this);
+            } else if (state == State.STOPPING) {
+                startPending = true;
+            }
+        }
+
+        /** Stop discovering, once it started. */
+        void stop() {
+            startPending = false;
+            if (state == State.RUNNING) {
+                state = State.STOPPING;
+                getNsdManager().stopServiceDiscovery(this);
+            } else if (state == State.STARTING) {
+                stopPending = true;
+            }
+        }
+
+        @Override
+        public void onDiscoveryStarted(String regType) {
+            synchronized (NsdDiscoveryTransport.this) {
+                state = State.RUNNING;
+                if (stopPending) {
+                    stop();
+                }
+            }
+            callback.onDiscoveryStarted(regType);
+        }
+
+        @Override
+        public void onServiceFound(NsdServiceInfo nsdServiceInfo) {
+            callback.onServiceFound(toService(nsdServiceInfo));
+        }
+
+        @Override
+        public void onServiceLost(NsdServiceInfo nsdServiceInfo) {
+            callback.onServiceLost(toService(nsdServiceInfo));
+        }
+
+        @Override
+        public void onDiscoveryStopped(String regType) {
+            synchronized (NsdDiscoveryTransport.this) {
+                state = State.IDLE;
+                if (startPending) {
+                    start();
+                }
+            }
+            callback.onDiscoveryStopped(regType);
+        }
+
+        @Override
+        public void onStartDiscoveryFailed(String regType, int errorCode) {
+
+            /** The manager already forgot this listener, so it can be used again. */
+            synchronized (NsdDiscoveryTransport.this) {
+                state = State.IDLE;
+                startPending = false;
+                stopPending = false;
+            }
+            callback.onStartDiscoveryFailed(regType, errorCode);
+        }
+
+        @Override
+        public void onStopDiscoveryFailed(String regType, int errorCode) {
+
+            /** The discovery goes on, so the next stop tries again. */
+            synchronized (NsdDiscoveryTransport.this) {
+                state = State.RUNNING;
+            }
+            callback.onStopDiscoveryFailed(regType, errorCode);
+        }
+    }
+
+    /** A resolve listener, which is returned to the pool as soon as it is called. */
+    private final class PooledResolveListener implements ResolveListener {
+
+        private DiscoveredService service;
+
+        @Override
+        public void onServiceResolved(NsdServiceInfo nsdServiceInfo) {
+
+            /**
+             * Report the resolved endpoint and attributes under the name and
+             * type that were found, since some platforms report the type of
+             * a resolved service differently (e.g. "._http._tcp").
+             */
+            DiscoveredService found = release(this);
+            DiscoveredService resolved = toService(nsdServiceInfo);
+            callback.onServiceResolved(found.withEndpoint(resolved.getHost(), resolved.getPort())
+                    .withAttributes(resolved.getAttributes()));
+        }
+
+        @Override
+        public void onResolveFailed(NsdServiceInfo nsdServiceInfo, int errorCode) {
+            callback.onResolveFailed(release(this), errorCode);
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private static final Charset    UTF8                    = Charset.forName("UTF-8");
+    private static final int        MAX_POOLED_LISTENERS    = 8;
+
+    private final Context                           context;
+    private final Map<String, RegistrationListener> registrationListeners;
+    private final Map<String, TypeDiscovery>        discoveries;
+    private final ArrayDeque<PooledResolveListener> resolveListeners;
+    private volatile Callback                       callback                = null;
+    private NsdManager                              nsdManager              = null;
+    private RegistrationListener                    registrationListener    = null;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public NsdDiscoveryTransport(Context context) {
+        this.context = context.getApplicationContext();
+        this.registrationListeners = new HashMap<String, RegistrationListener>();
+        this.discoveries = new HashMap<String, TypeDiscovery>();
+        this.resolveListeners = new ArrayDeque<PooledResolveListener>();
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get the state of the discovery of the specified type. */
+    public synchronized State getDiscoveryState(String serviceType) {
+        TypeDiscovery discovery = discoveries.get(serviceType);
+        return discovery == null ? State.IDLE : discovery.state;
+    }
+
+    private NsdManager getNsdManager() {
+        if (nsdManager == null) {
+            setNsdManager((NsdManager) context.getSystemService(Context.NSD_SERVICE));
+        }
+        return nsdManager;
+    }
+
+    private RegistrationListener getRegistrationListener() {
+        if (registrationListener == null) {
+            setRegistrationListener(new RegistrationListener() {
+
+                @Override
+                public void onServiceRegistered(NsdServiceInfo nsdServiceInfo) {
+                    callback.onServiceRegistered(toService(nsdServiceInfo));
+                }
+
+                @Override
+                public void onRegistrationFailed(NsdServiceInfo nsdServiceInfo, int errorCode) {
+                    callback.onRegistrationFailed(toService(nsdServiceInfo), errorCode);
+                }
+
+                @Override
+                public void onServiceUnregistered(NsdServiceInfo nsdServiceInfo) {
+                    callback.onServiceUnregistered(toService(nsdServiceInfo));
+                }
+
+                @Override
+                public void onUnregistrationFailed(NsdServiceInfo nsdServiceInfo, int errorCode) {
+                    callback.onUnregistrationFailed(toService(nsdServiceInfo), errorCode);
+                }
+            });
+        }
+        return registrationListener;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    private void setNsdManager(NsdManager nsdManager) {
+        this.nsdManager = nsdManager;
+    }
+
+    private void setRegistrationListener(RegistrationListener registrationListener) {
+        this.registrationListener = registrationListener;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * DiscoveryTransport Methods
+     *
+     * ---------------------------------------------
+     */
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public synchronized void registerService(DiscoveredService service) {
+        RegistrationListener previous = registrationListeners.remove(service.getServiceType());
+        if (previous != null) {
+            getNsdManager().unregisterService(previous);
+        }
+
+        /** Every registration needs its own listener, so take the current one and create the next lazily. */
+        RegistrationListener listener = getRegistrationListener();
+        setRegistrationListener(null);
+        registrationListeners.put(service.getServiceType(), listener);
+        getNsdManager().registerService(toServiceInfo(service), NsdManager.PROTOCOL_DNS_SD, listener);
+    }
+
+    @Override
+    public synchronized void unregisterService() {
+        for (RegistrationListener listener : registrationListeners.values()) {
+            getNsdManager().unregisterService(listener);
+        }
+        registrationListeners.clear();
+    }
+
+    @Override
+    public synchronized void startServiceDiscovery(String serviceType) {
+        TypeDiscovery discovery = discoveries.get(serviceType);
+        if (discovery == null) {
+            discovery = new TypeDiscovery(serviceType);
+            discoveries.put(serviceType, discovery);
+        }
+        discovery.start();
+    }
+
+    @Override
+    public synchronized void stopServiceDiscovery() {
+        for (TypeDiscovery discovery : discoveries.values()) {
+            discovery.stop();
+        }
+    }
+
+    @Override
+    public synchronized void resolveService(DiscoveredService service) {
+        PooledResolveListener listener = resolveListeners.poll();
+        if (listener == null) {
+            listener = new PooledResolveListener();
+        }
+        listener.service = service;
+        getNsdManager().resolveService(toServiceInfo(service), listener);
+    }
+
+    /**
+     * Unregister the services and stop the discoveries, and then forget the
+     * manager and every listener, so that the next operations start from
+     * scratch. The listeners that are forgotten still report how they
+     * stopped.
+     */
+    @Override
+    public synchronized void close() {
+        unregisterService();
+        for (TypeDiscovery discovery : discoveries.values()) {
+            discovery.stop();
+        }
+        discoveries.clear();
+        resolveListeners.clear();
+        setRegistrationListener(null);
+        setNsdManager(null);
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Return the specified resolve listener to the pool, and return the
+     * service it was resolving. The manager forgets a listener before calling
+     * it, so it can be used again right away.
+     */
+    private synchronized DiscoveredService release(PooledResolveListener listener) {
+        DiscoveredService service = listener.service;
+        listener.service = null;
+        if (resolveListeners.size() < MAX_POOLED_LISTENERS) {
+            resolveListeners.push(listener);
+        }
+        return service;
+    }
+
+    /** Convert the specified {@link NsdServiceInfo} to a {@link DiscoveredService}. */
+    static DiscoveredService toService(NsdServiceInfo nsdServiceInfo) {
+        InetAddress host = nsdServiceInfo.getHost();
+        Map<String, String> attributes = null;
+        Map<String, byte[]> raw = nsdServiceInfo.getAttributes();
+        if (raw != null && !raw.isEmpty()) {
+            attributes = new HashMap<String, String>();
+            for (Map.Entry<String, byte[]> entry : raw.entrySet()) {
+                byte[] value = entry.getValue();
+                attributes.put(entry.getKey(), value == null ? null : new String(value, UTF8));
+            }
+        }
+        return new DiscoveredService(nsdServiceInfo.getServiceName(), nsdServiceInfo.getServiceType(), null,
+                host == null ? null : host.getHostAddress(), nsdServiceInfo.getPort(), attributes);
+    }
+
+    /**
+     * Convert the specified {@link DiscoveredService} to an
+     * {@link NsdServiceInfo}. The host is not converted, since it is never
+     * needed to register or resolve a service.
+     */
+    static NsdServiceInfo toServiceInfo(DiscoveredService service) {
+
+        /**
+         * Service information. Pass it an instance name, service type
+         * _protocol._transportlayer , and the map containing information other
+         * devices will want once they connect to this one.
+         */
+        NsdServiceInfo serviceInfo = new NsdServiceInfo();
+        serviceInfo.setServiceName(service.getServiceName());
+        serviceInfo.setServiceType(service.getServiceType());
+        serviceInfo.setPort(service.getPort());
+        for (Map.Entry<String, String> entry : service.getAttributes().entrySet()) {
+            serviceInfo.setAttribute(entry.getKey(), entry.getValue());
+        }
+        return serviceInfo;
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.wificoms;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The attributes that peers running this app advertise in the TXT record of
+ * their service, encoded with the {@link TxtRecordCodec}. Peers that advertise
+ * plain "Key=value" entries instead (e.g. older versions, or the peers of an
+ * {@link InMemoryDiscoveryTransport}) are still understood.
+ */
+public final class PeerAttributes {
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    /** The unique ID of the device (see {@link DeviceId}), i.e. usually its ANDROID_ID, in hex. */
+    public static final String                  DEVICE_ID   = "DeviceID";
+
+    /** The schema of the attributes. Tags must never be reused. */
+    public static final TxtRecordCodec.Schema   SCHEMA      = new TxtRecordCodec.Schema()
+            .add(1, DEVICE_ID, TxtRecordCodec.Type.HEX);
+
+    private PeerAttributes() {
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Get the TXT record advertising the specified device ID. IDs that are not
+     * hex strings are advertised as a plain entry, and a missing (null or
+     * empty) ID is not advertised at all, so that the peer is not merged. The
+     * record is checked against the size RFC 6763 recommends.
+     */
+    public static Map<String, String> encode(String deviceId) {
+        Map<String, String> txtRecord;
+        if (deviceId == null || deviceId.length() == 0) {
+            txtRecord = Collections.emptyMap();
+        } else if (deviceId.length() % 2 == 0 && deviceId.matches("[0-9a-f]+")) {
+            txtRecord = SCHEMA.encoder().putHex(DEVICE_ID, deviceId).toTxtRecord();
+        } else {
+            txtRecord = Collections.singletonMap(DEVICE_ID, deviceId);
+        }
+        TxtRecordCodec.checkBudget(txtRecord, TxtRecordCodec.RECOMMENDED_BYTES);
+        return txtRecord;
+    }
+
+    /** Get the device ID advertised by the specified service, or null if it advertises none. */
+    public static String getDeviceId(DiscoveredService service) {
+        TxtRecordCodec.Record record = SCHEMA.decode(service.getAttributes());
+        if (record != null && record.has(DEVICE_ID)) {
+            return record.getHex(DEVICE_ID);
+        }
+        return service.getAttribute(DEVICE_ID);
+    }
+}
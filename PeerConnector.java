@@ -0,0 +1,439 @@
+package com.example.wificoms;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Opens connections to resolved peers (i.e. to the {@link PeerServer} on the
+ * host and port they advertise), and keeps them warm in a pool keyed by host
+ * and port, since talking to the peer is always the next step after
+ * discovery.
+ *
+ * <p/>
+ *
+ * A connection is taken from the pool with {@link #acquire(DiscoveredService)}
+ * and returned with {@link #release(Connection)}, or closed with
+ * {@link Connection#close()} if it failed. A connection that was idle for
+ * longer than the health check interval is checked with an empty frame before
+ * it is handed out. Idle connections are evicted after the idle timeout, and
+ * at most a few are kept per peer. It is thread-safe, but a connection must
+ * only be used by one thread at a time.
+ *
+ * <p/>
+ *
+ * The connections are NIO channels in non-blocking mode, each with a
+ * {@link Selector} of its own, so that every operation has a timeout.
+ */
+public class PeerConnector implements Closeable {
+
+    /** A connection to a peer, which speaks the framing of the {@link PeerServer}. */
+    public final class Connection implements Closeable {
+
+        private final String        key;
+        private final SocketChannel channel;
+        private final Selector      selector;
+        private final SelectionKey  selectionKey;
+        private final ByteBuffer    header      = ByteBuffer.allocate(4);
+        private long                idleSince   = 0;
+
+        Connection(String key, SocketChannel channel, Selector selector) throws IOException {
+            this.key = key;
+            this.channel = channel;
+            this.selector = selector;
+            this.selectionKey = channel.register(selector, 0);
+        }
+
+        /** Get the host and port of the peer. */
+        public String getKey() {
+            return key;
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        /**
+         * Send the specified message (between its position and limit), and
+         * wait for the reply. Return the reply, or throw if the peer does not
+         * reply within the timeout, in which case the connection should be
+         * closed.
+         */
+        public ByteBuffer request(ByteBuffer message) throws IOException {
+            if (message.remaining() > PeerServer.MAX_FRAME_LENGTH) {
+                throw new IllegalArgumentException("Message too long: " + message.remaining());
+            }
+            long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+            header.clear();
+            header.putInt(message.remaining()).flip();
+            write(header, deadline);
+            write(message, deadline);
+            header.clear();
+            read(header, deadline);
+            int length = header.getInt(0);
+            if (length < 0 || length > PeerServer.MAX_FRAME_LENGTH) {
+                throw new IOException("Malformed reply of " + key + ": " + length + " bytes");
+            }
+            ByteBuffer reply = ByteBuffer.allocate(length);
+            read(reply, deadline);
+            reply.flip();
+            return reply;
+        }
+
+        /** Check that the peer still answers, with an empty frame. */
+        public boolean ping() {
+            try {
+                return !request(ByteBuffer.allocate(0)).hasRemaining();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /** Close the connection, e.g. because it failed. */
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                /** Closing anyway. */
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                /** Closing anyway. */
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Connection: " + key + (isOpen() ? "" : " (closed)");
+        }
+
+        private void write(ByteBuffer buffer, long deadline) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) {
+                    await(SelectionKey.OP_WRITE, deadline);
+                }
+            }
+        }
+
+        private void read(ByteBuffer buffer, long deadline) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new IOException("Connection closed by " + key);
+                } else if (read == 0) {
+                    await(SelectionKey.OP_READ, deadline);
+                }
+            }
+        }
+
+        /** Wait until the channel is ready for the specified operation, or throw at the deadline. */
+        private void await(int operation, long deadline) throws IOException {
+            long remaining = (deadline - System.nanoTime()) / 1000000L;
+            selectionKey.interestOps(operation);
+            if (remaining <= 0 || selector.select(remaining) == 0) {
+                throw new SocketTimeoutException("Timed out talking to " + key);
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final long                            DEFAULT_TIMEOUT_MILLIS      = 5 * 1000;
+    public static final long                            DEFAULT_HEALTH_CHECK_MILLIS = 10 * 1000;
+    public static final long                            DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+    public static final int                             DEFAULT_MAX_IDLE_PER_PEER   = 2;
+
+    private final TaskScheduler                         scheduler;
+    private final Map<String, ArrayDeque<Connection>>   idle                        =
+            new LinkedHashMap<String, ArrayDeque<Connection>>();
+    private volatile long                               timeoutMillis               = DEFAULT_TIMEOUT_MILLIS;
+    private long                                        healthCheckMillis           = DEFAULT_HEALTH_CHECK_MILLIS;
+    private long                                        idleTimeoutMillis           = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private int                                         maxIdlePerPeer              = DEFAULT_MAX_IDLE_PER_PEER;
+    private TaskScheduler.Cancellable                   evictionTimer               = null;
+    private boolean                                     closed                      = false;
+    private long                                        opened                      = 0;
+    private long                                        reused                      = 0;
+    private long                                        failedHealthChecks          = 0;
+    private long                                        evicted                     = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Create a connector that tells the time with the specified scheduler,
+     * and evicts idle connections on it.
+     */
+    public PeerConnector(TaskScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get the number of connections that were opened. */
+    public synchronized long getOpenedCount() {
+        return opened;
+    }
+
+    /** Get the number of times a pooled connection was handed out. */
+    public synchronized long getReusedCount() {
+        return reused;
+    }
+
+    /** Get the number of pooled connections that failed their health check. */
+    public synchronized long getFailedHealthCheckCount() {
+        return failedHealthChecks;
+    }
+
+    /** Get the number of idle connections that were closed, because they were idle too long or too many. */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    /** Get the number of idle connections in the pool. */
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (ArrayDeque<Connection> connections : idle.values()) {
+            count += connections.size();
+        }
+        return count;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    /** Set how long connecting, and waiting for a reply, may take. */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /** Set how long a connection may be idle before it is checked again. */
+    public synchronized void setHealthCheckMillis(long healthCheckMillis) {
+        this.healthCheckMillis = healthCheckMillis;
+    }
+
+    /** Set how long a connection may be idle before it is closed. */
+    public synchronized void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /** Set how many idle connections are kept per peer. */
+    public synchronized void setMaxIdlePerPeer(int maxIdlePerPeer) {
+        this.maxIdlePerPeer = maxIdlePerPeer;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Get a connection to the specified resolved peer: a pooled one if there
+     * is a healthy one, or else a new one. This blocks while connecting (or
+     * checking), so it must not be called on the main thread.
+     */
+    public Connection acquire(DiscoveredService peer) throws IOException {
+        if (peer.getHost() == null || peer.getPort() <= 0) {
+            throw new IllegalArgumentException("Not resolved: " + peer);
+        }
+        String key = key(peer.getHost(), peer.getPort());
+        Connection connection;
+        while ((connection = poll(key)) != null) {
+            boolean check;
+            synchronized (this) {
+                check = scheduler.now() - connection.idleSince >= healthCheckMillis;
+            }
+            if (!check || connection.ping()) {
+                synchronized (this) {
+                    reused++;
+                }
+                return connection;
+            }
+            synchronized (this) {
+                failedHealthChecks++;
+            }
+            connection.close();
+        }
+        return open(key, new InetSocketAddress(peer.getHost(), peer.getPort()));
+    }
+
+    /** Return the specified connection to the pool, once the caller is done with it. */
+    public void release(Connection connection) {
+        List<Connection> excess = new ArrayList<Connection>();
+        synchronized (this) {
+            if (closed || !connection.isOpen()) {
+                excess.add(connection);
+            } else {
+                ArrayDeque<Connection> connections = idle.get(connection.key);
+                if (connections == null) {
+                    connections = new ArrayDeque<Connection>();
+                    idle.put(connection.key, connections);
+                }
+                connection.idleSince = scheduler.now();
+                connections.push(connection);
+                while (connections.size() > maxIdlePerPeer) {
+                    excess.add(connections.removeLast());
+                    evicted++;
+                }
+                scheduleEviction();
+            }
+        }
+        for (Connection closing : excess) {
+            closing.close();
+        }
+    }
+
+    /** Close the connections that were idle for longer than the idle timeout. */
+    public void evictIdle() {
+        List<Connection> expired = new ArrayList<Connection>();
+        synchronized (this) {
+            evictionTimer = null;
+            long now = scheduler.now();
+            for (Iterator<ArrayDeque<Connection>> peers = idle.values().iterator(); peers.hasNext();) {
+                ArrayDeque<Connection> connections = peers.next();
+
+                /** The least recently used connections are at the end. */
+                while (!connections.isEmpty() && now - connections.peekLast().idleSince >= idleTimeoutMillis) {
+                    expired.add(connections.removeLast());
+                    evicted++;
+                }
+                if (connections.isEmpty()) {
+                    peers.remove();
+                }
+            }
+            scheduleEviction();
+        }
+        for (Connection connection : expired) {
+            connection.close();
+        }
+    }
+
+    /** Close every idle connection. Connections that are in use are closed when they are released. */
+    @Override
+    public void close() {
+        List<Connection> connections = new ArrayList<Connection>();
+        synchronized (this) {
+            closed = true;
+            for (ArrayDeque<Connection> peer : idle.values()) {
+                connections.addAll(peer);
+            }
+            idle.clear();
+            if (evictionTimer != null) {
+                evictionTimer.cancel();
+                evictionTimer = null;
+            }
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PeerConnector: opened: " + opened + ", reused: " + reused + ", failedHealthChecks: "
+                + failedHealthChecks + ", evicted: " + evicted + ", idle: " + getIdleCount();
+    }
+
+    /** Take the most recently used idle connection to the specified peer, if any. */
+    private synchronized Connection poll(String key) {
+        ArrayDeque<Connection> connections = idle.get(key);
+        if (connections == null) {
+            return null;
+        }
+        Connection connection = connections.poll();
+        if (connections.isEmpty()) {
+            idle.remove(key);
+        }
+        return connection;
+    }
+
+    private Connection open(String key, InetSocketAddress address) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The connector is closed");
+            }
+        }
+        SocketChannel channel = SocketChannel.open();
+        Selector selector = null;
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            selector = Selector.open();
+            if (!channel.connect(address)) {
+                channel.register(selector, SelectionKey.OP_CONNECT);
+                if (selector.select(timeoutMillis) == 0) {
+                    throw new SocketTimeoutException("Timed out connecting to " + key);
+                }
+                selector.selectedKeys().clear();
+                channel.finishConnect();
+            }
+            Connection connection = new Connection(key, channel, selector);
+            synchronized (this) {
+                opened++;
+            }
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            if (selector != null) {
+                selector.close();
+            }
+            throw e;
+        }
+    }
+
+    /** Evict the idle connections once the oldest of them expires, if there are any. */
+    private void scheduleEviction() {
+        if (evictionTimer != null || idle.isEmpty()) {
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (ArrayDeque<Connection> connections : idle.values()) {
+            oldest = Math.min(oldest, connections.peekLast().idleSince);
+        }
+        evictionTimer = scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, Math.max(0, oldest + idleTimeoutMillis - scheduler.now()));
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+}
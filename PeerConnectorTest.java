@@ -0,0 +1,121 @@
+package com.example.wificoms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the pool of the {@link PeerConnector} against a {@link PeerServer}
+ * over loopback. The pool tells the time with a {@link VirtualTaskScheduler},
+ * so the health checks and evictions happen at known times.
+ */
+public class PeerConnectorTest {
+
+    private static final long           HEALTH_CHECK_MILLIS = 1000;
+    private static final long           IDLE_TIMEOUT_MILLIS = 5000;
+
+    private final VirtualTaskScheduler  scheduler           = new VirtualTaskScheduler();
+    private PeerServer                  server;
+    private PeerConnector               connector;
+    private DiscoveredService           peer;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new PeerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), PeerServer.ECHO);
+        connector = new PeerConnector(scheduler);
+        connector.setTimeoutMillis(2000);
+        connector.setHealthCheckMillis(HEALTH_CHECK_MILLIS);
+        connector.setIdleTimeoutMillis(IDLE_TIMEOUT_MILLIS);
+        peer = new DiscoveredService("Peer", "_test._tcp", null, InetAddress.getLoopbackAddress().getHostAddress(),
+                server.getPort(), null);
+    }
+
+    @After
+    public void tearDown() {
+        connector.close();
+        server.close();
+    }
+
+    @Test
+    public void reusesPooledConnections() throws IOException {
+        PeerConnector.Connection first = roundTrip();
+        PeerConnector.Connection second = roundTrip();
+
+        assertSame(first, second);
+        assertEquals(1, connector.getOpenedCount());
+        assertEquals(1, connector.getReusedCount());
+        assertEquals(0, server.getHealthCheckCount());
+    }
+
+    @Test
+    public void pingsConnectionsThatWereIdleForTheHealthCheckInterval() throws IOException {
+        PeerConnector.Connection first = roundTrip();
+        scheduler.advance(HEALTH_CHECK_MILLIS - 1);
+        roundTrip();
+        assertEquals(0, server.getHealthCheckCount());
+
+        scheduler.advance(HEALTH_CHECK_MILLIS);
+        assertSame(first, roundTrip());
+        assertEquals(1, server.getHealthCheckCount());
+        assertEquals(0, connector.getFailedHealthCheckCount());
+    }
+
+    @Test
+    public void replacesConnectionsThatFailTheirHealthCheck() throws IOException {
+        PeerConnector.Connection first = roundTrip();
+        server.close();
+        server = new PeerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), peer.getPort()),
+                PeerServer.ECHO);
+        scheduler.advance(HEALTH_CHECK_MILLIS);
+
+        assertNotSame(first, roundTrip());
+        assertFalse(first.isOpen());
+        assertEquals(1, connector.getFailedHealthCheckCount());
+        assertEquals(2, connector.getOpenedCount());
+    }
+
+    @Test
+    public void evictsIdleConnections() throws IOException {
+        PeerConnector.Connection first = roundTrip();
+        scheduler.advance(IDLE_TIMEOUT_MILLIS - 1);
+        assertEquals(1, connector.getIdleCount());
+
+        scheduler.advance(1);
+        assertEquals(0, connector.getIdleCount());
+        assertEquals(1, connector.getEvictedCount());
+        assertFalse(first.isOpen());
+        assertNotSame(first, roundTrip());
+    }
+
+    @Test
+    public void keepsAtMostTheMaximumOfIdleConnectionsPerPeer() throws IOException {
+        connector.setMaxIdlePerPeer(1);
+        PeerConnector.Connection first = connector.acquire(peer);
+        PeerConnector.Connection second = connector.acquire(peer);
+        connector.release(first);
+        connector.release(second);
+
+        assertEquals(1, connector.getIdleCount());
+        assertEquals(1, connector.getEvictedCount());
+        assertFalse(first.isOpen());
+    }
+
+    /** Acquire a connection, talk over it, and release it again. */
+    private PeerConnector.Connection roundTrip() throws IOException {
+        PeerConnector.Connection connection = connector.acquire(peer);
+        ByteBuffer reply = connection.request(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        assertEquals(3, reply.remaining());
+        connector.release(connection);
+        return connection;
+    }
+}
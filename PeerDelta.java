@@ -0,0 +1,68 @@
+package com.example.wificoms;
+
+/**
+ * A change to a {@link PeerTable}: a peer service was added, updated or
+ * removed. Deltas are numbered with the version of the table they produced,
+ * so a consumer that starts from a snapshot knows which deltas to skip. A peer
+ * that was restored from the {@link PeerDirectory}, and not confirmed by live
+ * discovery yet, is stale.
+ */
+public final class PeerDelta {
+
+    /** The kind of change. */
+    public enum Type {
+        ADDED, UPDATED, REMOVED
+    }
+
+    private final Type              type;
+    private final DiscoveredService peer;
+    private final DiscoveredService previous;
+    private final long              version;
+    private final boolean           stale;
+
+    public PeerDelta(Type type, DiscoveredService peer, DiscoveredService previous, long version) {
+        this(type, peer, previous, version, false);
+    }
+
+    public PeerDelta(Type type, DiscoveredService peer, DiscoveredService previous, long version, boolean stale) {
+        this.type = type;
+        this.peer = peer;
+        this.previous = previous;
+        this.version = version;
+        this.stale = stale;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /** Get the peer after the change (or, if it was removed, before it). */
+    public DiscoveredService getPeer() {
+        return peer;
+    }
+
+    /** Get the peer before the change, or null if it was added. */
+    public DiscoveredService getPrevious() {
+        return previous;
+    }
+
+    /** Get the key of the peer in the {@link PeerTable}. */
+    public String getKey() {
+        return peer.getKey();
+    }
+
+    /** Get the version of the {@link PeerTable} right after this change. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** Whether the peer after the change is stale, i.e. was restored but not confirmed yet. */
+    public boolean isStale() {
+        return stale;
+    }
+
+    @Override
+    public String toString() {
+        return type + " #" + version + (stale ? " (stale)" : "") + ": " + peer;
+    }
+}
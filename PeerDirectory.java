@@ -0,0 +1,473 @@
+package com.example.wificoms;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The peers that were resolved most recently, persisted so that a new process
+ * can show them right away instead of starting from an empty view. The
+ * {@link DiscoveryEngine} reports them as stale until live discovery confirms
+ * them, and drops them once their time-to-live expires.
+ *
+ * <p/>
+ *
+ * The directory is an append-only log of records, each of which stores or
+ * removes a peer (with its endpoint and TXT attributes). Loading reads the
+ * whole file at once and replays it, which takes a few milliseconds for
+ * thousands of peers. A record that was cut short (e.g. because the process
+ * died while writing it) is dropped, along with everything after it. A
+ * complete record that cannot be applied (e.g. a corrupt one, or one of a
+ * type that a newer version wrote) is skipped on its own. Once most of the log
+ * is superseded records, it is compacted into a new file that only stores the
+ * live peers, which is synced to the disk before it replaces the log.
+ *
+ * <p/>
+ *
+ * The time-to-live is measured with the wall clock, since it has to survive
+ * the process. It is thread-safe, but not meant to be shared by processes.
+ */
+public class PeerDirectory {
+
+    /** A stored peer, along with when it was stored. */
+    private static final class Entry {
+
+        private final DiscoveredService service;
+        private final long              savedAt;
+
+        Entry(DiscoveredService service, long savedAt) {
+            this.service = service;
+            this.savedAt = savedAt;
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final long                DEFAULT_TTL_MILLIS          = 60 * 60 * 1000;
+    public static final int                 DEFAULT_MAX_ENTRIES         = 4096;
+
+    private static final Charset            UTF8                        = Charset.forName("UTF-8");
+    private static final int                MAGIC                       = 0x50454552;
+    private static final int                VERSION                     = 1;
+    private static final byte               PUT                         = 1;
+    private static final byte               REMOVE                      = 2;
+    private static final int                MIN_RECORDS_TO_COMPACT      = 64;
+
+    private final File                      file;
+    private final Map<String, Entry>        entries                     = new LinkedHashMap<String, Entry>();
+    private final ByteArrayOutputStream     recordBytes                 = new ByteArrayOutputStream(256);
+    private final DataOutputStream          record                      = new DataOutputStream(recordBytes);
+    private long                            ttlMillis                   = DEFAULT_TTL_MILLIS;
+    private int                             maxEntries                  = DEFAULT_MAX_ENTRIES;
+    private FileOutputStream                output                      = null;
+    private boolean                         loaded                      = false;
+    private int                             records                     = 0;
+    private long                            loadMicros                  = 0;
+    private long                            writes                      = 0;
+    private long                            compactions                 = 0;
+    private long                            droppedRecords              = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /** Create a directory that is stored in the specified file, which is created when needed. */
+    public PeerDirectory(File file) {
+        this.file = file;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /** Get the number of stored peers. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Get how long the last {@link #load()} took, in microseconds. */
+    public synchronized long getLoadMicros() {
+        return loadMicros;
+    }
+
+    /**
+     * Get how long the specified peer has left to live, in milliseconds, or
+     * -1 if it is not stored or expired.
+     */
+    public synchronized long getRemainingMillis(DiscoveredService peer) {
+        Entry entry = entries.get(peer.getKey());
+        long remaining = entry == null ? -1 : entry.savedAt + ttlMillis - System.currentTimeMillis();
+        return remaining > 0 ? remaining : -1;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    /** Set how long a peer is kept after it was last resolved. */
+    public synchronized void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** Set how many peers are kept. Once there are more, the ones that were resolved longest ago are dropped. */
+    public synchronized void setMaxEntries(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Read the file, and return the peers that did not expire yet, the ones
+     * that were resolved longest ago first. If the file is not a peer
+     * directory at all, this starts over with an empty directory.
+     */
+    public synchronized List<DiscoveredService> load() {
+        long start = System.nanoTime();
+        entries.clear();
+        records = 0;
+        loaded = true;
+        closeOutput();
+        try {
+            replay();
+        } catch (IOException e) {
+            entries.clear();
+            file.delete();
+        }
+        purge();
+        if (needsCompaction()) {
+            compact();
+        }
+        loadMicros = (System.nanoTime() - start) / 1000;
+        List<DiscoveredService> peers = new ArrayList<DiscoveredService>(entries.size());
+        for (Entry entry : entries.values()) {
+            peers.add(entry.service);
+        }
+        return peers;
+    }
+
+    /**
+     * Store the specified resolved peer. A peer that did not change is only
+     * stored again once half of its time-to-live passed, so that peers that
+     * are resolved over and over do not fill the log.
+     */
+    public synchronized void put(DiscoveredService peer) {
+        ensureLoaded();
+        long now = System.currentTimeMillis();
+        Entry previous = entries.remove(peer.getKey());
+        if (previous != null && previous.service.equals(peer) && now - previous.savedAt < ttlMillis / 2) {
+            entries.put(peer.getKey(), previous);
+            return;
+        }
+        Entry entry = new Entry(peer, now);
+        entries.put(peer.getKey(), entry);
+        append(PUT, peer.getKey(), entry);
+        while (entries.size() > maxEntries) {
+            Iterator<Entry> eldest = entries.values().iterator();
+            String key = eldest.next().service.getKey();
+            eldest.remove();
+            append(REMOVE, key, null);
+        }
+        compactIfNeeded();
+    }
+
+    /** Remove the specified peer, e.g. because it was lost. */
+    public synchronized void remove(DiscoveredService peer) {
+        ensureLoaded();
+        if (entries.remove(peer.getKey()) != null) {
+            append(REMOVE, peer.getKey(), null);
+            compactIfNeeded();
+        }
+    }
+
+    /** Rewrite the file so that it only stores the peers that did not expire. */
+    public synchronized void compact() {
+        closeOutput();
+        purge();
+        File compacted = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream stream = new FileOutputStream(compacted);
+            out = new DataOutputStream(new BufferedOutputStream(stream));
+            writeHeader(out);
+            for (Entry entry : entries.values()) {
+                byte[] bytes = encode(PUT, entry.service.getKey(), entry);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            /** Make sure the new file is on the disk before it replaces the old one, or a crash could lose both. */
+            out.flush();
+            stream.getChannel().force(true);
+            out.close();
+            out = null;
+            if (!compacted.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+            records = entries.size();
+            compactions++;
+        } catch (IOException e) {
+
+            /** The old log is still intact, so keep appending to it. */
+            compacted.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /** Close the file. It is opened again by the next change. */
+    public synchronized void close() {
+        closeOutput();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PeerDirectory: size: " + entries.size() + ", records: " + records + ", loadMicros: " + loadMicros
+                + ", writes: " + writes + ", compactions: " + compactions + ", droppedRecords: " + droppedRecords;
+    }
+
+    private void ensureLoaded() {
+        if (!loaded) {
+            load();
+        }
+    }
+
+    /**
+     * Read the whole file and apply its records. A record that was cut short
+     * is cut off the file, so that the next record is appended after the
+     * last complete one. A complete record that cannot be applied is skipped.
+     */
+    private void replay() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            if (bytes.length < 8 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("Not a peer directory: " + file);
+            }
+            int offset = in.position();
+            while (in.remaining() >= 4) {
+                int length = in.getInt();
+                if (length <= 0 || length > in.remaining()) {
+                    break;
+                }
+                in.limit(in.position() + length);
+                try {
+                    apply(in);
+                } catch (IOException e) {
+                    droppedRecords++;
+                } catch (RuntimeException e) {
+
+                    /** E.g. a BufferUnderflowException: the record is corrupt, but the ones after it are not. */
+                    droppedRecords++;
+                }
+                offset = in.limit();
+                in.limit(bytes.length).position(offset);
+                records++;
+            }
+            if (offset < bytes.length) {
+                droppedRecords++;
+                raf.setLength(offset);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Apply the record between the position and the limit of the specified
+     * buffer to the entries. The entries are only changed once the whole
+     * record was read.
+     */
+    private void apply(ByteBuffer in) throws IOException {
+        byte type = in.get();
+        if (type == REMOVE) {
+            entries.remove(readString(in));
+            return;
+        } else if (type != PUT) {
+            throw new IOException("Unknown record type: " + type);
+        }
+        long savedAt = in.getLong();
+        String serviceName = readString(in);
+        String serviceType = readString(in);
+        String deviceAddress = readString(in);
+        String host = readString(in);
+        int port = in.getInt();
+        int count = in.getShort() & 0xffff;
+        Map<String, String> attributes = count == 0 ? null : new LinkedHashMap<String, String>(count * 2);
+        for (int i = 0; i < count; i++) {
+            attributes.put(readString(in), readString(in));
+        }
+        DiscoveredService service = new DiscoveredService(serviceName, serviceType, deviceAddress, host, port,
+                attributes);
+        entries.remove(service.getKey());
+        entries.put(service.getKey(), new Entry(service, savedAt));
+    }
+
+    /** Append the specified record to the file. If that fails, the change is only kept in memory. */
+    private void append(byte type, String key, Entry entry) {
+        try {
+            byte[] bytes = encode(type, key, entry);
+            if (output == null) {
+                boolean exists = file.exists() && file.length() > 0;
+                output = new FileOutputStream(file, true);
+                if (!exists) {
+                    DataOutputStream header = new DataOutputStream(output);
+                    writeHeader(header);
+                    header.flush();
+                    records = 0;
+                }
+            }
+
+            /** The length and the record go out in a single write, so that a crash cuts off at most one record. */
+            byte[] frame = new byte[4 + bytes.length];
+            frame[0] = (byte) (bytes.length >>> 24);
+            frame[1] = (byte) (bytes.length >>> 16);
+            frame[2] = (byte) (bytes.length >>> 8);
+            frame[3] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, frame, 4, bytes.length);
+            output.write(frame);
+            records++;
+            writes++;
+        } catch (IOException e) {
+            closeOutput();
+        }
+    }
+
+    /** Encode a record that stores the specified entry, or that removes the peer with the specified key. */
+    private byte[] encode(byte type, String key, Entry entry) throws IOException {
+        recordBytes.reset();
+        record.writeByte(type);
+        if (type == REMOVE) {
+            writeString(record, key);
+        } else {
+            DiscoveredService service = entry.service;
+            record.writeLong(entry.savedAt);
+            writeString(record, service.getServiceName());
+            writeString(record, service.getServiceType());
+            writeString(record, service.getDeviceAddress());
+            writeString(record, service.getHost());
+            record.writeInt(service.getPort());
+            record.writeShort(service.getAttributes().size());
+            for (Map.Entry<String, String> attribute : service.getAttributes().entrySet()) {
+                writeString(record, attribute.getKey());
+                writeString(record, attribute.getValue());
+            }
+        }
+        record.flush();
+        return recordBytes.toByteArray();
+    }
+
+    /** Compact once at least half of the log is superseded records. */
+    private boolean needsCompaction() {
+        return records >= MIN_RECORDS_TO_COMPACT && records > 2 * entries.size();
+    }
+
+    private void compactIfNeeded() {
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    /** Remove every entry that expired. */
+    private void purge() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+            if (iterator.next().savedAt + ttlMillis <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void closeOutput() {
+        closeQuietly(output);
+        output = null;
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /** Write the specified (possibly null) string as its length in UTF-8 bytes (-1 if null), and those bytes. */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IOException("String too long: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort();
+        if (length < 0) {
+            return null;
+        } else if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                /** Closing anyway. */
+            }
+        }
+    }
+}
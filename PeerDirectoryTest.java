@@ -0,0 +1,125 @@
+package com.example.wificoms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Checks that the {@link PeerDirectory} survives torn, corrupt and unknown records. */
+public class PeerDirectoryTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("peers", ".log");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void roundTrips() {
+        PeerDirectory directory = new PeerDirectory(file);
+        directory.put(peer(1));
+        directory.put(peer(2));
+        directory.remove(peer(1));
+        directory.close();
+
+        List<DiscoveredService> peers = new PeerDirectory(file).load();
+        assertEquals(Collections.singletonList(peer(2)), peers);
+    }
+
+    @Test
+    public void skipsRecordsOfUnknownType() throws IOException {
+        PeerDirectory directory = new PeerDirectory(file);
+        directory.put(peer(1));
+        directory.close();
+        appendFrame(new byte[] { 42, 1, 2, 3 });
+        directory = new PeerDirectory(file);
+        directory.put(peer(2));
+        directory.close();
+
+        assertEquals(2, new PeerDirectory(file).load().size());
+    }
+
+    @Test
+    public void skipsCorruptRecords() throws IOException {
+        PeerDirectory directory = new PeerDirectory(file);
+        directory.put(peer(1));
+        directory.close();
+
+        /** A complete record whose first string claims more bytes than the record has. */
+        appendFrame(new byte[] { 1, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 0x7f });
+        directory = new PeerDirectory(file);
+        directory.put(peer(2));
+        directory.close();
+
+        assertEquals(2, new PeerDirectory(file).load().size());
+    }
+
+    @Test
+    public void cutsOffTornRecord() throws IOException {
+        PeerDirectory directory = new PeerDirectory(file);
+        directory.put(peer(1));
+        directory.close();
+        long length = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(length);
+            raf.writeInt(100);
+            raf.write(new byte[10]);
+        } finally {
+            raf.close();
+        }
+
+        directory = new PeerDirectory(file);
+        assertEquals(1, directory.load().size());
+        assertEquals(length, file.length());
+        directory.put(peer(2));
+        directory.close();
+        assertEquals(2, new PeerDirectory(file).load().size());
+    }
+
+    @Test
+    public void compactionKeepsTheLivePeers() {
+        PeerDirectory directory = new PeerDirectory(file);
+        for (int i = 0; i < 200; i++) {
+            directory.put(peer(i % 10));
+            directory.remove(peer(i % 10));
+        }
+        directory.put(peer(3));
+        directory.close();
+
+        assertTrue(file.length() < 64 * 100);
+        assertEquals(Collections.singletonList(peer(3)), new PeerDirectory(file).load());
+    }
+
+    private void appendFrame(byte[] record) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.writeInt(record.length);
+            raf.write(record);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static DiscoveredService peer(int id) {
+        return new DiscoveredService("Peer " + id, "_test._tcp", null, "10.0.0." + id, 8080,
+                Collections.singletonMap("id", String.valueOf(id)));
+    }
+}
@@ -0,0 +1,408 @@
+package com.example.wificoms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which of the services that are announced belong to peers, based on
+ * a set of rules that is compiled once by a {@link Builder}:
+ *
+ * <p/>
+ *
+ * <ul>
+ * <li>the service type must be one of the accepted types (if any);</li>
+ * <li>the service name must match one of the name rules (if any): an exact
+ * name, a prefix, a suffix, a substring or a glob with '*' and '?';</li>
+ * <li>the TXT record must satisfy every attribute predicate. Since the TXT
+ * record is usually only known once the service is resolved, these are only
+ * checked when the service has attributes or is resolved.</li>
+ * </ul>
+ *
+ * <p/>
+ *
+ * Types and exact names are looked up in hash sets, and prefixes and suffixes
+ * in character tries, so the cost of those rules does not grow with their
+ * number, and nothing is allocated. Globs that are really a prefix, suffix,
+ * substring or exact name are compiled into those. Rejected services are only
+ * counted, so that the busy networks where most announcements are rejected do
+ * not flood the log.
+ */
+public final class PeerFilter {
+
+    /** A predicate on the TXT record of a service. */
+    public interface AttributePredicate {
+
+        boolean test(Map<String, String> attributes);
+    }
+
+    /** Collects the rules of a {@link PeerFilter}. */
+    public static final class Builder {
+
+        private final Set<String>               types               = new HashSet<String>();
+        private final Set<String>               names               = new HashSet<String>();
+        private final CharTrie                  prefixes            = new CharTrie();
+        private final CharTrie                  suffixes            = new CharTrie();
+        private final List<String>              substrings          = new ArrayList<String>();
+        private final List<String>              globs               = new ArrayList<String>();
+        private final List<AttributePredicate>  attributePredicates = new ArrayList<AttributePredicate>();
+        private boolean                         anyName             = false;
+        private boolean                         hasNameRules        = false;
+
+        /**
+         * Accept services of the specified type. Types are compared with and
+         * without their trailing dot, since the platforms disagree on it.
+         */
+        public Builder addServiceType(String type) {
+            types.add(type);
+            types.add(type.endsWith(".") ? type.substring(0, type.length() - 1) : type + ".");
+            return this;
+        }
+
+        public Builder addName(String name) {
+            hasNameRules = true;
+            names.add(name);
+            return this;
+        }
+
+        public Builder addNamePrefix(String prefix) {
+            hasNameRules = true;
+            anyName |= prefix.isEmpty();
+            prefixes.add(prefix, false);
+            return this;
+        }
+
+        public Builder addNameSuffix(String suffix) {
+            hasNameRules = true;
+            anyName |= suffix.isEmpty();
+            suffixes.add(suffix, true);
+            return this;
+        }
+
+        public Builder addNameSubstring(String substring) {
+            hasNameRules = true;
+            anyName |= substring.isEmpty();
+            substrings.add(substring);
+            return this;
+        }
+
+        /**
+         * Accept names matching the specified glob, where '*' matches any
+         * sequence of characters and '?' any single character.
+         */
+        public Builder addNameGlob(String glob) {
+            int first = indexOfWildcard(glob, 0);
+            String inner = glob.length() >= 2 ? glob.substring(1, glob.length() - 1) : "";
+            if (first < 0) {
+                return addName(glob);
+            } else if (first == glob.length() - 1 && glob.charAt(first) == '*') {
+                return addNamePrefix(glob.substring(0, first));
+            } else if (glob.charAt(0) == '*' && indexOfWildcard(glob, 1) < 0) {
+                return addNameSuffix(glob.substring(1));
+            } else if (glob.length() >= 2 && glob.charAt(0) == '*' && glob.charAt(glob.length() - 1) == '*'
+                    && indexOfWildcard(inner, 0) < 0) {
+                return addNameSubstring(inner);
+            }
+            hasNameRules = true;
+            globs.add(glob);
+            return this;
+        }
+
+        /** Require the TXT record to contain the specified key. */
+        public Builder requireAttribute(final String key) {
+            return requireAttribute(new AttributePredicate() {
+
+                @Override
+                public boolean test(Map<String, String> attributes) {
+                    return attributes.containsKey(key);
+                }
+            });
+        }
+
+        /** Require the TXT record to map the specified key to the specified value. */
+        public Builder requireAttribute(final String key, final String value) {
+            return requireAttribute(new AttributePredicate() {
+
+                @Override
+                public boolean test(Map<String, String> attributes) {
+                    return value.equals(attributes.get(key));
+                }
+            });
+        }
+
+        public Builder requireAttribute(AttributePredicate predicate) {
+            attributePredicates.add(predicate);
+            return this;
+        }
+
+        public PeerFilter build() {
+            return new PeerFilter(this);
+        }
+    }
+
+    /**
+     * A trie of characters, whose children are kept in sorted arrays. It
+     * tells whether any of its strings is a prefix (or, if it was built from
+     * reversed strings, a suffix) of a name.
+     */
+    private static final class CharTrie {
+
+        private char[]      keys        = new char[0];
+        private CharTrie[]  children    = new CharTrie[0];
+        private boolean     terminal    = false;
+        private boolean     empty       = true;
+
+        void add(String string, boolean reversed) {
+            empty = false;
+            CharTrie node = this;
+            for (int i = 0, n = string.length(); i < n; i++) {
+                char c = string.charAt(reversed ? n - 1 - i : i);
+                int index = Arrays.binarySearch(node.keys, c);
+                if (index < 0) {
+                    index = -index - 1;
+                    node.keys = insert(node.keys, index, c);
+                    CharTrie[] children = new CharTrie[node.children.length + 1];
+                    System.arraycopy(node.children, 0, children, 0, index);
+                    System.arraycopy(node.children, index, children, index + 1, node.children.length - index);
+                    children[index] = new CharTrie();
+                    node.children = children;
+                }
+                node = node.children[index];
+            }
+            node.terminal = true;
+        }
+
+        boolean matches(String name, boolean reversed) {
+            if (empty) {
+                return false;
+            }
+            CharTrie node = this;
+            for (int i = 0, n = name.length(); !node.terminal; i++) {
+                if (i == n) {
+                    return false;
+                }
+                int index = Arrays.binarySearch(node.keys, name.charAt(reversed ? n - 1 - i : i));
+                if (index < 0) {
+                    return false;
+                }
+                node = node.children[index];
+            }
+            return true;
+        }
+
+        private static char[] insert(char[] array, int index, char c) {
+            char[] result = new char[array.length + 1];
+            System.arraycopy(array, 0, result, 0, index);
+            result[index] = c;
+            System.arraycopy(array, index, result, index + 1, array.length - index);
+            return result;
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private final Set<String>               types;
+    private final Set<String>               names;
+    private final CharTrie                  prefixes;
+    private final CharTrie                  suffixes;
+    private final String[]                  substrings;
+    private final String[]                  globs;
+    private final AttributePredicate[]      attributePredicates;
+    private final boolean                   anyName;
+    private final AtomicLong                accepted            = new AtomicLong();
+    private final AtomicLong                rejectedByType      = new AtomicLong();
+    private final AtomicLong                rejectedByName      = new AtomicLong();
+    private final AtomicLong                rejectedByAttribute = new AtomicLong();
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    private PeerFilter(Builder builder) {
+        this.types = new HashSet<String>(builder.types);
+        this.names = new HashSet<String>(builder.names);
+        this.prefixes = builder.prefixes;
+        this.suffixes = builder.suffixes;
+        this.substrings = builder.substrings.toArray(new String[0]);
+        this.globs = builder.globs.toArray(new String[0]);
+        this.attributePredicates = builder.attributePredicates.toArray(new AttributePredicate[0]);
+        this.anyName = builder.anyName || !builder.hasNameRules;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Create the filter that the app has always used: services of the
+     * specified type, whose name contains the specified original service
+     * name, belong to peers. That covers the names of the
+     * {@link ServiceNamer} as well.
+     */
+    public static PeerFilter forService(String serviceType, String originalServiceName) {
+        return forServices(Collections.singletonList(serviceType), originalServiceName);
+    }
+
+    /** Like {@link #forService(String, String)}, for services of any of the specified types. */
+    public static PeerFilter forServices(Collection<String> serviceTypes, String originalServiceName) {
+        Builder builder = builder().addNameSubstring(originalServiceName);
+        for (String serviceType : serviceTypes) {
+            builder.addServiceType(serviceType);
+        }
+        return builder.build();
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedByType.get() + rejectedByName.get() + rejectedByAttribute.get();
+    }
+
+    public long getRejectedByTypeCount() {
+        return rejectedByType.get();
+    }
+
+    public long getRejectedByNameCount() {
+        return rejectedByName.get();
+    }
+
+    public long getRejectedByAttributeCount() {
+        return rejectedByAttribute.get();
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Whether the specified service belongs to a peer, counting the outcome. */
+    public boolean accepts(DiscoveredService service) {
+        if (!matchesType(service.getServiceType())) {
+            rejectedByType.incrementAndGet();
+            return false;
+        } else if (!matchesName(service.getServiceName())) {
+            rejectedByName.incrementAndGet();
+            return false;
+        } else if (!matchesAttributes(service)) {
+            rejectedByAttribute.incrementAndGet();
+            return false;
+        }
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    /** Whether the specified service belongs to a peer, without counting the outcome. */
+    public boolean matches(DiscoveredService service) {
+        return matchesType(service.getServiceType()) && matchesName(service.getServiceName())
+                && matchesAttributes(service);
+    }
+
+    public boolean matchesType(String type) {
+        return types.isEmpty() || types.contains(type);
+    }
+
+    public boolean matchesName(String name) {
+        if (anyName || names.contains(name) || prefixes.matches(name, false) || suffixes.matches(name, true)) {
+            return true;
+        }
+        for (String substring : substrings) {
+            if (name.contains(substring)) {
+                return true;
+            }
+        }
+        for (String glob : globs) {
+            if (matchesGlob(glob, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the TXT record of the specified service satisfies every
+     * attribute predicate. This is deferred (i.e. true) while the service has
+     * no attributes and is not resolved yet.
+     */
+    public boolean matchesAttributes(DiscoveredService service) {
+        Map<String, String> attributes = service.getAttributes();
+        if (attributePredicates.length == 0 || (attributes.isEmpty() && !service.isResolved())) {
+            return true;
+        }
+        for (AttributePredicate predicate : attributePredicates) {
+            if (!predicate.test(attributes)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "PeerFilter: accepted: " + getAcceptedCount() + ", rejected by type: " + getRejectedByTypeCount()
+                + ", by name: " + getRejectedByNameCount() + ", by attribute: " + getRejectedByAttributeCount();
+    }
+
+    private static int indexOfWildcard(String glob, int from) {
+        for (int i = from; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Match the specified name against the specified glob, backtracking to
+     * the last '*' on a mismatch. This runs in O(glob * name) at worst.
+     */
+    static boolean matchesGlob(String glob, String name) {
+        int g = 0;
+        int n = 0;
+        int star = -1;
+        int starMatch = 0;
+        while (n < name.length()) {
+            if (g < glob.length() && (glob.charAt(g) == '?' || glob.charAt(g) == name.charAt(n))) {
+                g++;
+                n++;
+            } else if (g < glob.length() && glob.charAt(g) == '*') {
+                star = g++;
+                starMatch = n;
+            } else if (star >= 0) {
+                g = star + 1;
+                n = ++starMatch;
+            } else {
+                return false;
+            }
+        }
+        while (g < glob.length() && glob.charAt(g) == '*') {
+            g++;
+        }
+        return g == glob.length();
+    }
+}
@@ -0,0 +1,415 @@
+package com.example.wificoms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Joins the peers that several {@link DiscoveryEngine}s (e.g. one over NSD and
+ * one over Wifi Direct) discover into one peer per device, by the
+ * {@link PeerAttributes#DEVICE_ID} that every peer advertises. Each
+ * {@link MergedPeer} holds a route per transport through which it was found,
+ * and its best route.
+ *
+ * <p/>
+ *
+ * The first transport that resolves a peer provides its best route, which is
+ * only replaced once that route is lost. A peer that is found on another
+ * transport after that is not resolved there (see
+ * {@link DiscoveryEngine.ResolveGate}), unless its best route is lost. Since a
+ * peer found over NSD does not tell its device ID before it is resolved, the
+ * device IDs of the services that were resolved before are remembered.
+ *
+ * <p/>
+ *
+ * Peers that do not advertise a device ID are not merged, but still show up,
+ * under a key of their own. The merged peers are kept copy-on-write, like the
+ * {@link PeerTable}. It is thread-safe. Nothing in here depends on Android;
+ * the Activities share the one of the {@link SharedPeerMerger}.
+ */
+public class PeerMerger {
+
+    /** Receives the changes to the merged peers. */
+    public interface Listener {
+
+        /**
+         * The specified merged peer changed, i.e. a route was added, updated
+         * or removed. The peer has no routes left if it was lost. The
+         * previous version is null if the peer is new.
+         */
+        void onPeerChanged(MergedPeer peer, MergedPeer previous);
+    }
+
+    /** An immutable peer device, along with its routes. */
+    public static final class MergedPeer {
+
+        private final String                            key;
+        private final String                            deviceId;
+        private final Map<String, DiscoveredService>    routes;
+        private final String                            bestTransport;
+
+        MergedPeer(String key, String deviceId, Map<String, DiscoveredService> routes, String bestTransport) {
+            this.key = key;
+            this.deviceId = deviceId;
+            this.routes = Collections.unmodifiableMap(routes);
+            this.bestTransport = bestTransport;
+        }
+
+        /** Get the key of this peer, i.e. its device ID, or the key of its only route if it has none. */
+        public String getKey() {
+            return key;
+        }
+
+        /** Get the device ID of this peer, or null if it advertises none. */
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        /** Get the routes to this peer, keyed by transport, in the order in which they were found. */
+        public Map<String, DiscoveredService> getRoutes() {
+            return routes;
+        }
+
+        /** Get the route through the specified transport, or null if there is none. */
+        public DiscoveredService getRoute(String transport) {
+            return routes.get(transport);
+        }
+
+        /** Get the transport of the best route, or null if this peer was lost. */
+        public String getBestTransport() {
+            return bestTransport;
+        }
+
+        /** Get the best route to this peer, or null if this peer was lost. */
+        public DiscoveredService getBestRoute() {
+            return bestTransport == null ? null : routes.get(bestTransport);
+        }
+
+        /** Whether this peer was resolved through any transport. */
+        public boolean isReachable() {
+            DiscoveredService best = getBestRoute();
+            return best != null && best.isResolved();
+        }
+
+        @Override
+        public String toString() {
+            return "MergedPeer: " + key + ", best: " + bestTransport + ", routes: " + routes.keySet();
+        }
+    }
+
+    /** The {@link DiscoveryEngine.ResolveGate} and {@link PeerTable.Listener} of a transport. */
+    private final class Route implements DiscoveryEngine.ResolveGate, PeerTable.Listener {
+
+        private final String            transport;
+        private final DiscoveryEngine   engine;
+
+        Route(String transport, DiscoveryEngine engine) {
+            this.transport = transport;
+            this.engine = engine;
+        }
+
+        @Override
+        public boolean shouldResolve(DiscoveredService service) {
+            return PeerMerger.this.shouldResolve(this, service);
+        }
+
+        @Override
+        public void onPeerDelta(PeerDelta delta) {
+            PeerMerger.this.onPeerDelta(this, delta);
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final int                         MAX_KNOWN_SERVICES  = 1024;
+
+    private final Map<String, Route>                routes              = new LinkedHashMap<String, Route>();
+    private final CopyOnWriteArrayList<Listener>    listeners           = new CopyOnWriteArrayList<Listener>();
+
+    /** The key of the merged peer of every route, by transport and key of the route. */
+    private final Map<String, String>               peerKeys            = new HashMap<String, String>();
+
+    /** The device IDs of the services that were resolved, by transport and key of the service. */
+    private final Map<String, String>               knownServices;
+
+    /** The services that were not resolved since their peer was reachable otherwise. */
+    private final Map<String, DiscoveredService>    skipped             = new HashMap<String, DiscoveredService>();
+    private volatile Map<String, MergedPeer>        snapshot            = Collections.emptyMap();
+    private long                                    skippedResolves     = 0;
+    private long                                    merges              = 0;
+    private long                                    failovers           = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Create a merger. The peers whose best route was lost are resolved on
+     * the scheduler of the engine through which they are resolved then, so
+     * the engines may run on different threads.
+     */
+    public PeerMerger() {
+        this.knownServices = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAX_KNOWN_SERVICES;
+            }
+        };
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get an immutable snapshot of the merged peers, by key. This never blocks. */
+    public Map<String, MergedPeer> snapshot() {
+        return snapshot;
+    }
+
+    /** Get the merged peer with the specified key (e.g. device ID), or null if there is none. */
+    public MergedPeer get(String key) {
+        return snapshot.get(key);
+    }
+
+    /** Get the number of resolves that were skipped, since the peer was reachable through another transport. */
+    public synchronized long getSkippedResolveCount() {
+        return skippedResolves;
+    }
+
+    /** Get the number of times a route joined a peer that was found through another transport. */
+    public synchronized long getMergeCount() {
+        return merges;
+    }
+
+    /** Get the number of times the best route of a peer was lost, while it had another one. */
+    public synchronized long getFailoverCount() {
+        return failovers;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Merge the peers of the specified engine, whose transport has the
+     * specified name, from now on. An engine that was attached under the same
+     * name before (e.g. of a session that was shut down) is detached.
+     */
+    public synchronized void attach(String transport, DiscoveryEngine engine) {
+        detach(transport);
+        Route route = new Route(transport, engine);
+        routes.put(transport, route);
+        engine.setResolveGate(route);
+        for (DiscoveredService peer : engine.getPeerTable().subscribe(route).values()) {
+            onPeerDelta(route, new PeerDelta(PeerDelta.Type.ADDED, peer, null, 0));
+        }
+    }
+
+    /** Stop merging the peers of the transport with the specified name, and remove its routes. */
+    public synchronized void detach(String transport) {
+        Route route = routes.remove(transport);
+        if (route == null) {
+            return;
+        }
+        route.engine.getPeerTable().unsubscribe(route);
+        route.engine.setResolveGate(null);
+        for (MergedPeer peer : new ArrayList<MergedPeer>(snapshot.values())) {
+            DiscoveredService service = peer.getRoute(transport);
+            if (service != null) {
+                removeRoute(route, service);
+            }
+        }
+    }
+
+    /**
+     * Stop merging the peers of the specified engine, if it is still the one
+     * that is attached under the specified transport name (rather than e.g.
+     * the engine of a newer session, which replaced it).
+     */
+    public synchronized void detach(String transport, DiscoveryEngine engine) {
+        Route route = routes.get(transport);
+        if (route != null && route.engine == engine) {
+            detach(transport);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PeerMerger: transports: " + routes.keySet() + ", peers: " + snapshot.size() + ", merges: " + merges
+                + ", skippedResolves: " + skippedResolves + ", failovers: " + failovers;
+    }
+
+    /**
+     * Resolve the specified service, unless its peer is known, and already
+     * reachable through another transport.
+     */
+    private synchronized boolean shouldResolve(Route route, DiscoveredService service) {
+        String routeKey = routeKey(route.transport, service);
+        String deviceId = PeerAttributes.getDeviceId(service);
+        if (deviceId == null) {
+            deviceId = knownServices.get(routeKey);
+        }
+        MergedPeer peer = deviceId == null ? null : snapshot.get(deviceId);
+        if (peer == null || !peer.isReachable() || route.transport.equals(peer.getBestTransport())) {
+            return true;
+        }
+
+        /** A route that was restored, but not confirmed yet, does not count. */
+        Route best = routes.get(peer.getBestTransport());
+        if (best == null || best.engine.getPeerTable().isStale(peer.getBestRoute().getKey())) {
+            return true;
+        }
+        skipped.put(routeKey, service);
+        skippedResolves++;
+        return false;
+    }
+
+    /** Apply the specified change to the peers of the specified route. */
+    private synchronized void onPeerDelta(Route route, PeerDelta delta) {
+        if (routes.get(route.transport) != route) {
+            return;
+        } else if (delta.getType() == PeerDelta.Type.REMOVED) {
+            skipped.remove(routeKey(route.transport, delta.getPeer()));
+            removeRoute(route, delta.getPeer());
+            return;
+        }
+        DiscoveredService service = delta.getPeer();
+        String routeKey = routeKey(route.transport, service);
+        String deviceId = PeerAttributes.getDeviceId(service);
+        if (deviceId != null && service.isResolved()) {
+            knownServices.put(routeKey, deviceId);
+        } else if (deviceId == null) {
+            deviceId = knownServices.get(routeKey);
+        }
+        String key = deviceId != null ? deviceId : route.transport + ":" + service.getKey();
+
+        /** A route that was found before its device ID was known moves to the peer of its device. */
+        String previousKey = peerKeys.get(routeKey);
+        if (previousKey != null && !previousKey.equals(key)) {
+            removeRoute(route, service);
+        }
+        peerKeys.put(routeKey, key);
+        MergedPeer previous = snapshot.get(key);
+        Map<String, DiscoveredService> peerRoutes = new LinkedHashMap<String, DiscoveredService>();
+        if (previous != null) {
+            peerRoutes.putAll(previous.getRoutes());
+            if (!peerRoutes.containsKey(route.transport)) {
+                merges++;
+            }
+        }
+        peerRoutes.put(route.transport, service);
+        publish(key, previous, new MergedPeer(key, deviceId, peerRoutes, bestTransport(previous, peerRoutes)));
+    }
+
+    /** Remove the route of the specified transport from its peer. The caller must hold the lock. */
+    private void removeRoute(Route route, DiscoveredService service) {
+        String key = peerKeys.remove(routeKey(route.transport, service));
+        MergedPeer previous = key == null ? null : snapshot.get(key);
+        if (previous == null || !previous.getRoutes().containsKey(route.transport)) {
+            return;
+        }
+        Map<String, DiscoveredService> peerRoutes = new LinkedHashMap<String, DiscoveredService>(
+                previous.getRoutes());
+        peerRoutes.remove(route.transport);
+        MergedPeer peer = new MergedPeer(key, previous.getDeviceId(), peerRoutes, bestTransport(previous,
+                peerRoutes));
+        publish(key, previous, peer);
+
+        /** Resolve the other routes that were skipped, if the best route is gone. */
+        if (route.transport.equals(previous.getBestTransport()) && !peerRoutes.isEmpty()) {
+            failovers++;
+            for (Map.Entry<String, DiscoveredService> entry : peerRoutes.entrySet()) {
+                DiscoveredService skippedService = skipped.remove(routeKey(entry.getKey(), entry.getValue()));
+                Route other = routes.get(entry.getKey());
+                if (skippedService != null && other != null) {
+                    resolveLater(other.engine, skippedService);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the transport of the best of the specified routes: the previous best
+     * route if it is still resolved, or else the first resolved route, or else
+     * the first route.
+     */
+    private static String bestTransport(MergedPeer previous, Map<String, DiscoveredService> routes) {
+        String best = previous == null ? null : previous.getBestTransport();
+        if (best != null && routes.containsKey(best) && routes.get(best).isResolved()) {
+            return best;
+        }
+        for (Map.Entry<String, DiscoveredService> entry : routes.entrySet()) {
+            if (entry.getValue().isResolved()) {
+                return entry.getKey();
+            }
+        }
+        if (best != null && routes.containsKey(best)) {
+            return best;
+        }
+        return routes.isEmpty() ? null : routes.keySet().iterator().next();
+    }
+
+    /**
+     * Publish the specified version of a peer, and tell the listeners. A peer
+     * without routes is removed. The caller must hold the lock.
+     */
+    private void publish(String key, MergedPeer previous, MergedPeer peer) {
+        Map<String, MergedPeer> next = new HashMap<String, MergedPeer>(snapshot);
+        if (peer.getRoutes().isEmpty()) {
+            next.remove(key);
+        } else {
+            next.put(key, peer);
+        }
+        snapshot = Collections.unmodifiableMap(next);
+        for (Listener listener : listeners) {
+            listener.onPeerChanged(peer, previous);
+        }
+    }
+
+    /**
+     * Resolve the specified service on the thread of the scheduler of its
+     * engine, rather than from within the callback of another engine, so that
+     * the engines never wait for each other.
+     */
+    private void resolveLater(final DiscoveryEngine engine, final DiscoveredService service) {
+        engine.getScheduler().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                engine.resolve(service);
+            }
+        }, 0);
+    }
+
+    private static String routeKey(String transport, DiscoveredService service) {
+        return transport + ":" + service.getKey();
+    }
+}
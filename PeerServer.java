@@ -0,0 +1,339 @@
+package com.example.wificoms;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A non-blocking server for the port that our service advertises, so that
+ * peers that resolved it can talk to us. A single thread serves every
+ * connection with a {@link Selector}.
+ *
+ * <p/>
+ *
+ * Messages are framed by a four byte big-endian length, and may be at most
+ * {@value #MAX_FRAME_LENGTH} bytes long. Every message is handed to the
+ * {@link Handler}, whose reply (if any) is sent back in a frame of its own. An
+ * empty frame is a health check (see {@link PeerConnector}), which is
+ * answered with an empty frame right away. A connection that sends a frame
+ * that is too long is closed, and so is one whose message makes the handler
+ * throw. Once the replies that wait for a peer to read them add up to
+ * {@value #MAX_QUEUED_BYTES} bytes, its connection is not read from until
+ * they were written, so that a peer that never reads cannot make the server
+ * buffer without limit.
+ */
+public class PeerServer implements Closeable {
+
+    /** Answers the messages of the peers. */
+    public interface Handler {
+
+        /**
+         * Handle the specified message of the specified peer, and return the
+         * reply, or null to send none. This runs on the thread of the server,
+         * so it must not block. The message is only valid during this call.
+         */
+        ByteBuffer onMessage(SocketAddress peer, ByteBuffer message);
+    }
+
+    /** A handler that sends every message back. */
+    public static final Handler ECHO = new Handler() {
+
+        @Override
+        public ByteBuffer onMessage(SocketAddress peer, ByteBuffer message) {
+            ByteBuffer reply = ByteBuffer.allocate(message.remaining());
+            reply.put(message).flip();
+            return reply;
+        }
+    };
+
+    /** The state of a connection: the frame being read, and the frames waiting to be written. */
+    private static final class Connection {
+
+        private final ByteBuffer                header  = ByteBuffer.allocate(4);
+        private final ArrayDeque<ByteBuffer>    writes  = new ArrayDeque<ByteBuffer>();
+        private ByteBuffer                      body    = null;
+        private int                             queued  = 0;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final int             DEFAULT_PORT        = 8080;
+    public static final int             MAX_FRAME_LENGTH    = 64 * 1024;
+    public static final int             MAX_QUEUED_BYTES    = 4 * (4 + MAX_FRAME_LENGTH);
+
+    private final Handler               handler;
+    private final Selector              selector;
+    private final ServerSocketChannel   serverChannel;
+    private final Thread                thread;
+    private volatile boolean            running             = true;
+    private volatile long               accepted            = 0;
+    private volatile long               messages            = 0;
+    private volatile long               healthChecks        = 0;
+    private volatile long               malformed           = 0;
+    private volatile long               handlerFailures     = 0;
+    private volatile long               throttled           = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Bind a server to the specified address (e.g. port 0 to pick any free
+     * port), and start serving on a thread of its own.
+     */
+    public PeerServer(InetSocketAddress address, Handler handler) throws IOException {
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        this.thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "PeerServer-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get the port the server is bound to. */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Get the number of connections that were accepted. */
+    public long getAcceptedCount() {
+        return accepted;
+    }
+
+    /** Get the number of messages that were handed to the handler. */
+    public long getMessageCount() {
+        return messages;
+    }
+
+    /** Get the number of health checks that were answered. */
+    public long getHealthCheckCount() {
+        return healthChecks;
+    }
+
+    /** Get the number of connections that were closed because of a malformed frame. */
+    public long getMalformedCount() {
+        return malformed;
+    }
+
+    /** Get the number of connections that were closed because the handler threw. */
+    public long getHandlerFailureCount() {
+        return handlerFailures;
+    }
+
+    /** Get the number of times a connection stopped being read, since too many replies were queued. */
+    public long getThrottledCount() {
+        return throttled;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Stop serving, and close every connection. */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PeerServer: port: " + getPort() + ", accepted: " + accepted + ", messages: " + messages
+                + ", healthChecks: " + healthChecks + ", malformed: " + malformed + ", handlerFailures: "
+                + handlerFailures + ", throttled: " + throttled;
+    }
+
+    /** The loop of the thread of the server. */
+    private void serve() {
+        try {
+            while (running) {
+                selector.select();
+                for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext();) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        } else if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        closeQuietly(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            /** The selector broke, so stop serving. */
+        } finally {
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                /** Nothing left to release. */
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+            accepted++;
+        }
+    }
+
+    /** Read as many frames as are available, and queue the replies. */
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        while (true) {
+            ByteBuffer target = connection.body == null ? connection.header : connection.body;
+            int read = channel.read(target);
+            if (read < 0) {
+                closeQuietly(key);
+                return;
+            } else if (target.hasRemaining()) {
+                return;
+            } else if (connection.body == null) {
+                int length = connection.header.getInt(0);
+                if (length < 0 || length > MAX_FRAME_LENGTH) {
+                    malformed++;
+                    closeQuietly(key);
+                    return;
+                }
+                connection.body = ByteBuffer.allocate(length);
+                if (length > 0) {
+                    continue;
+                }
+            }
+
+            /** A complete frame. */
+            ByteBuffer body = connection.body;
+            connection.header.clear();
+            connection.body = null;
+            body.flip();
+            ByteBuffer reply;
+            if (!body.hasRemaining()) {
+                healthChecks++;
+                reply = body;
+            } else {
+                messages++;
+                try {
+                    reply = handler.onMessage(channel.socket().getRemoteSocketAddress(), body);
+                } catch (RuntimeException e) {
+
+                    /** Only drop the peer whose message the handler choked on, and keep serving the others. */
+                    handlerFailures++;
+                    closeQuietly(key);
+                    return;
+                }
+            }
+            if (reply != null) {
+                ByteBuffer frame = ByteBuffer.allocate(4 + reply.remaining());
+                frame.putInt(reply.remaining()).put(reply).flip();
+                connection.writes.add(frame);
+                connection.queued += frame.capacity();
+                if (connection.queued >= MAX_QUEUED_BYTES) {
+
+                    /** Leave the rest in the socket, so that the peer has to read before it may send more. */
+                    throttled++;
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer frame;
+        while ((frame = connection.writes.peek()) != null) {
+            channel.write(frame);
+            if (frame.hasRemaining()) {
+                if (connection.queued < MAX_QUEUED_BYTES) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            connection.writes.poll();
+            connection.queued -= frame.capacity();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            /** Closing anyway. */
+        }
+    }
+}
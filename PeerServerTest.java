@@ -0,0 +1,171 @@
+package com.example.wificoms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Talks to a {@link PeerServer} over loopback, through a {@link PeerConnector}
+ * on a {@link VirtualTaskScheduler}, or through a raw channel where the peer
+ * has to misbehave.
+ */
+public class PeerServerTest {
+
+    private static final String         BOOM        = "boom";
+
+    private final VirtualTaskScheduler  scheduler   = new VirtualTaskScheduler();
+    private PeerServer                  server;
+    private PeerConnector               connector;
+    private DiscoveredService           peer;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new PeerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new PeerServer.Handler() {
+
+            @Override
+            public ByteBuffer onMessage(SocketAddress peer, ByteBuffer message) {
+                if (BOOM.equals(new String(bytes(message)))) {
+                    throw new IllegalStateException(BOOM);
+                }
+                return PeerServer.ECHO.onMessage(peer, message);
+            }
+        });
+        connector = new PeerConnector(scheduler);
+        connector.setTimeoutMillis(2000);
+        peer = new DiscoveredService("Peer", "_test._tcp", null, InetAddress.getLoopbackAddress().getHostAddress(),
+                server.getPort(), null);
+    }
+
+    @After
+    public void tearDown() {
+        connector.close();
+        server.close();
+    }
+
+    @Test
+    public void echoesMessages() throws IOException {
+        PeerConnector.Connection connection = connector.acquire(peer);
+        ByteBuffer reply = connection.request(ByteBuffer.wrap("hello".getBytes()));
+        connector.release(connection);
+
+        assertEquals("hello", new String(bytes(reply)));
+        assertEquals(1, server.getMessageCount());
+    }
+
+    @Test
+    public void closesConnectionOnOversizedFrame() throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                server.getPort()));
+        try {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(PeerServer.MAX_FRAME_LENGTH + 1).flip();
+            channel.write(header);
+            assertClosed(channel);
+        } finally {
+            channel.close();
+        }
+        assertEquals(1, server.getMalformedCount());
+        assertTrue(server.isRunning());
+    }
+
+    @Test
+    public void keepsServingWhenTheHandlerThrows() throws IOException {
+        PeerConnector.Connection connection = connector.acquire(peer);
+        try {
+            connection.request(ByteBuffer.wrap(BOOM.getBytes()));
+            fail("The connection should have been closed");
+        } catch (IOException e) {
+            connection.close();
+        }
+
+        assertEquals(1, server.getHandlerFailureCount());
+        assertTrue(server.isRunning());
+        connection = connector.acquire(peer);
+        assertEquals("again", new String(bytes(connection.request(ByteBuffer.wrap("again".getBytes())))));
+        connector.release(connection);
+    }
+
+    @Test
+    public void stopsReadingFromPeersThatDoNotRead() throws Exception {
+        final int frames = 200;
+        final byte[] body = new byte[PeerServer.MAX_FRAME_LENGTH];
+        final SocketChannel channel = SocketChannel.open();
+        channel.socket().setReceiveBufferSize(64 * 1024);
+        channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < frames; i++) {
+                        ByteBuffer frame = ByteBuffer.allocate(4 + body.length);
+                        frame.putInt(body.length).put(body).flip();
+                        while (frame.hasRemaining()) {
+                            channel.write(frame);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        writer.start();
+        try {
+
+            /** The writer blocks once the server stopped reading, since nothing reads the replies. */
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (server.getThrottledCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(server.getThrottledCount() > 0);
+            assertTrue(server.getMessageCount() < frames);
+
+            /** Once the replies are read, the server reads (and answers) the rest. */
+            ByteBuffer replies = ByteBuffer.allocate(64 * 1024);
+            long expected = (long) frames * (4 + body.length);
+            long read = 0;
+            while (read < expected) {
+                replies.clear();
+                int count = channel.read(replies);
+                if (count < 0) {
+                    fail("Closed after " + read + " bytes");
+                }
+                read += count;
+            }
+            writer.join();
+        } finally {
+            channel.close();
+        }
+        assertEquals(null, failure.get());
+        assertEquals(frames, server.getMessageCount());
+    }
+
+    /** Check that the server closes the specified channel, rather than answering. */
+    private static void assertClosed(SocketChannel channel) {
+        try {
+            assertEquals(-1, channel.read(ByteBuffer.allocate(16)));
+        } catch (IOException e) {
+            /** Reset rather than closed, which is fine too. */
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
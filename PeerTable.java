@@ -0,0 +1,278 @@
+package com.example.wificoms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The structured, incrementally maintained table of the peer services that
+ * were discovered, keyed by {@link DiscoveredService#getKey()} (i.e. by device
+ * address, if known, and service name). Every change is published to the
+ * subscribed {@link Listener}s as a compact {@link PeerDelta}, so consumers no
+ * longer need to parse the log.
+ *
+ * <p/>
+ *
+ * The table is copy-on-write: every change replaces an immutable snapshot, so
+ * readers never block the callback thread that updates the table, and always
+ * see a consistent state. The snapshots are {@link PersistentMap}s, so a
+ * change only copies the few nodes on the path to its peer, rather than the
+ * whole table.
+ *
+ * <p/>
+ *
+ * Deltas are delivered in order, after the lock of the table was released,
+ * so listeners are free to call into other components (and back into the
+ * table). They are delivered by whichever updating thread gets to them
+ * first, and a change that a listener makes is only delivered once the delta
+ * it reacted to reached every listener. Listeners should return quickly.
+ *
+ * <p/>
+ *
+ * Peers that were restored from a {@link PeerDirectory} are stale until they
+ * are resolved again, which is published as an update even if nothing else
+ * changed.
+ */
+public class PeerTable {
+
+    /** Receives the changes to a {@link PeerTable}. */
+    public interface Listener {
+
+        void onPeerDelta(PeerDelta delta);
+    }
+
+    /** A listener, and the version of the snapshot it subscribed to. */
+    private static final class Subscription {
+
+        private final Listener  listener;
+        private final long      version;
+
+        Subscription(Listener listener, long version) {
+            this.listener = listener;
+            this.version = version;
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private final CopyOnWriteArrayList<Subscription>            subscriptions   =
+            new CopyOnWriteArrayList<Subscription>();
+    private final ArrayDeque<PeerDelta>                         pending         = new ArrayDeque<PeerDelta>();
+    private volatile PersistentMap<String, DiscoveredService>   snapshot        = PersistentMap.empty();
+    private volatile PersistentMap<String, Boolean>             stale           = PersistentMap.empty();
+    private volatile long                                       version         = 0;
+    private boolean                                             delivering      = false;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get an immutable snapshot of the table. This never blocks. */
+    public Map<String, DiscoveredService> snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the peers of the specified service type from the current snapshot,
+     * ignoring a trailing dot of the type.
+     */
+    public List<DiscoveredService> snapshot(String serviceType) {
+        String type = serviceType.endsWith(".") ? serviceType.substring(0, serviceType.length() - 1) : serviceType;
+        List<DiscoveredService> peers = new ArrayList<DiscoveredService>();
+        for (DiscoveredService peer : snapshot.values()) {
+            String peerType = peer.getServiceType();
+            if (peerType.startsWith(type) && (peerType.length() == type.length()
+                    || (peerType.length() == type.length() + 1 && peerType.endsWith(".")))) {
+                peers.add(peer);
+            }
+        }
+        return peers;
+    }
+
+    /** Get the peer with the specified key, or null if there is none. */
+    public DiscoveredService get(String key) {
+        return snapshot.get(key);
+    }
+
+    /** Whether the peer with the specified key is stale, i.e. was restored but not confirmed yet. */
+    public boolean isStale(String key) {
+        return stale.containsKey(key);
+    }
+
+    /** Get the peers that are stale. */
+    public List<DiscoveredService> getStalePeers() {
+        Map<String, DiscoveredService> peers = snapshot;
+        List<DiscoveredService> stalePeers = new ArrayList<DiscoveredService>();
+        for (String key : stale.keySet()) {
+            DiscoveredService peer = peers.get(key);
+            if (peer != null) {
+                stalePeers.add(peer);
+            }
+        }
+        return stalePeers;
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+
+    /** Get the number of changes that were made to the table so far. */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Subscribe the specified listener to every change from now on, and return
+     * the snapshot that those changes apply to. No change can slip in between.
+     */
+    public synchronized Map<String, DiscoveredService> subscribe(Listener listener) {
+        subscriptions.add(new Subscription(listener, version));
+        return snapshot;
+    }
+
+    /** Unsubscribe the specified listener. A delta that is being delivered may still reach it. */
+    public void unsubscribe(Listener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * A (possibly unresolved) peer service was found. This only adds it if it
+     * is not in the table yet, since the table may already know more about it.
+     */
+    public void onFound(DiscoveredService peer) {
+        synchronized (this) {
+            if (!snapshot.containsKey(peer.getKey())) {
+                apply(PeerDelta.Type.ADDED, peer, null, false);
+            }
+        }
+        deliver();
+    }
+
+    /**
+     * A peer service was restored from a {@link PeerDirectory}. This only adds
+     * it, as stale, if it is not in the table yet.
+     */
+    public void onRestored(DiscoveredService peer) {
+        synchronized (this) {
+            if (!snapshot.containsKey(peer.getKey())) {
+                apply(PeerDelta.Type.ADDED, peer, null, true);
+            }
+        }
+        deliver();
+    }
+
+    /** The specified peer service was resolved. */
+    public void onResolved(DiscoveredService peer) {
+        synchronized (this) {
+            DiscoveredService previous = snapshot.get(peer.getKey());
+            if (previous == null) {
+                apply(PeerDelta.Type.ADDED, peer, null, false);
+            } else if (!previous.equals(peer) || stale.containsKey(peer.getKey())) {
+                apply(PeerDelta.Type.UPDATED, peer, previous, false);
+            }
+        }
+        deliver();
+    }
+
+    /** The specified peer service was lost. */
+    public void onLost(DiscoveredService peer) {
+        synchronized (this) {
+            DiscoveredService previous = snapshot.get(peer.getKey());
+            if (previous != null) {
+                apply(PeerDelta.Type.REMOVED, previous, previous, false);
+            }
+        }
+        deliver();
+    }
+
+    /** Remove every peer. */
+    public void clear() {
+        synchronized (this) {
+            for (DiscoveredService peer : snapshot.values()) {
+                apply(PeerDelta.Type.REMOVED, peer, peer, false);
+            }
+        }
+        deliver();
+    }
+
+    @Override
+    public String toString() {
+        return "PeerTable: size: " + size() + ", stale: " + stale.size() + ", version: " + getVersion();
+    }
+
+    /**
+     * Apply the specified change to the snapshot, and queue its delta for the
+     * listeners. The caller must hold the lock.
+     */
+    private void apply(PeerDelta.Type type, DiscoveredService peer, DiscoveredService previous, boolean isStale) {
+        String key = peer.getKey();
+        snapshot = type == PeerDelta.Type.REMOVED ? snapshot.without(key) : snapshot.with(key, peer);
+        if (isStale) {
+            stale = stale.with(key, Boolean.TRUE);
+        } else {
+            stale = stale.without(key);
+        }
+        pending.add(new PeerDelta(type, peer, previous, ++version, isStale));
+    }
+
+    /**
+     * Deliver the queued deltas to the listeners, in order, unless another
+     * call (on this thread or another one) is doing so already, in which case
+     * that one delivers the deltas queued by this thread too. The caller must
+     * not hold the lock.
+     */
+    private void deliver() {
+        synchronized (this) {
+            if (delivering || pending.isEmpty()) {
+                return;
+            }
+            delivering = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                PeerDelta delta;
+                synchronized (this) {
+                    delta = pending.poll();
+                    if (delta == null) {
+                        delivering = false;
+                        done = true;
+                        return;
+                    }
+                }
+                for (Subscription subscription : subscriptions) {
+                    if (delta.getVersion() > subscription.version) {
+                        subscription.listener.onPeerDelta(delta);
+                    }
+                }
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    delivering = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.wificoms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/** Checks that the {@link PeerTable} delivers its deltas in order, and outside of its lock. */
+public class PeerTableTest {
+
+    private final PeerTable         table   = new PeerTable();
+    private final DiscoveredService a       = new DiscoveredService("a", "_test._tcp");
+    private final DiscoveredService b       = new DiscoveredService("b", "_test._tcp");
+
+    @Test
+    public void listenersAreNotifiedWithoutTheLock() {
+        final List<Boolean> locked = new ArrayList<Boolean>();
+        table.subscribe(new PeerTable.Listener() {
+
+            @Override
+            public void onPeerDelta(PeerDelta delta) {
+                locked.add(Thread.holdsLock(table));
+            }
+        });
+        table.onFound(a);
+        table.onLost(a);
+        assertEquals(2, locked.size());
+        assertFalse(locked.get(0));
+        assertFalse(locked.get(1));
+    }
+
+    @Test
+    public void changesMadeByAListenerReachEveryListenerInOrder() {
+        final List<Long> first = new ArrayList<Long>();
+        final List<Long> second = new ArrayList<Long>();
+        table.subscribe(new PeerTable.Listener() {
+
+            @Override
+            public void onPeerDelta(PeerDelta delta) {
+                first.add(delta.getVersion());
+                if (delta.getType() == PeerDelta.Type.REMOVED && delta.getPeer().equals(a)) {
+                    table.onFound(b);
+                }
+            }
+        });
+        table.subscribe(new PeerTable.Listener() {
+
+            @Override
+            public void onPeerDelta(PeerDelta delta) {
+                second.add(delta.getVersion());
+            }
+        });
+        table.onFound(a);
+        table.onLost(a);
+        assertEquals(3, table.getVersion());
+        assertEquals(first, second);
+        assertEquals(3, second.size());
+        for (int i = 0; i < second.size(); i++) {
+            assertEquals(i + 1, second.get(i).longValue());
+        }
+    }
+
+    @Test
+    public void subscribersOnlySeeTheDeltasAfterTheirSnapshot() {
+        table.onFound(a);
+        final List<PeerDelta> deltas = new ArrayList<PeerDelta>();
+        assertTrue(table.subscribe(new PeerTable.Listener() {
+
+            @Override
+            public void onPeerDelta(PeerDelta delta) {
+                deltas.add(delta);
+            }
+        }).containsKey(a.getKey()));
+        table.onFound(b);
+        assertEquals(1, deltas.size());
+        assertEquals(b, deltas.get(0).getPeer());
+    }
+
+    @Test
+    public void restoredPeersStayStaleUntilResolved() {
+        table.onRestored(a);
+        assertTrue(table.isStale(a.getKey()));
+        assertEquals(1, table.getStalePeers().size());
+        table.onResolved(a);
+        assertFalse(table.isStale(a.getKey()));
+        assertEquals(2, table.getVersion());
+    }
+}
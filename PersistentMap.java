@@ -0,0 +1,407 @@
+package com.example.wificoms;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map that shares its structure with the map it was derived
+ * from, in the style of a hash array mapped trie: the keys are spread over a
+ * tree with 32 branches per level by their hash, so {@link #with} and
+ * {@link #without} only copy the (at most seven) nodes on the path to the
+ * key, instead of the whole map. This makes a copy-on-write table cheap to
+ * update one entry at a time, no matter how large it gets. Keys whose hashes
+ * collide completely share a small linear node.
+ *
+ * <p/>
+ *
+ * The map itself is read-only, i.e. the mutators of {@link java.util.Map}
+ * throw {@link UnsupportedOperationException}.
+ */
+public final class PersistentMap<K, V> extends AbstractMap<K, V> {
+
+    /** An entry of the map, which remembers the hash of its key. */
+    private static final class Leaf<K, V> extends AbstractMap.SimpleImmutableEntry<K, V> {
+
+        private static final long   serialVersionUID    = 1L;
+        private final int           hash;
+
+        Leaf(int hash, K key, V value) {
+            super(key, value);
+            this.hash = hash;
+        }
+    }
+
+    /** The entries whose keys have the same hash. */
+    private static final class Collision {
+
+        private final int       hash;
+        private final Leaf<?, ?>[] leaves;
+
+        Collision(int hash, Leaf<?, ?>[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+    }
+
+    /**
+     * A branch of the trie. The bitmap tells which of the 32 branches are
+     * used, and the slots hold those (as a {@link Leaf}, a {@link Collision}
+     * or another node) in the order of their branch.
+     */
+    private static final class Node {
+
+        private final int       bitmap;
+        private final Object[]  slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Node inserted(int bit, Object slot) {
+            int index = index(bit);
+            Object[] next = new Object[slots.length + 1];
+            System.arraycopy(slots, 0, next, 0, index);
+            next[index] = slot;
+            System.arraycopy(slots, index, next, index + 1, slots.length - index);
+            return new Node(bitmap | bit, next);
+        }
+
+        Node replaced(int index, Object slot) {
+            Object[] next = slots.clone();
+            next[index] = slot;
+            return new Node(bitmap, next);
+        }
+
+        Node removed(int bit) {
+            int index = index(bit);
+            Object[] next = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, next, 0, index);
+            System.arraycopy(slots, index + 1, next, index, next.length - index);
+            return new Node(bitmap & ~bit, next);
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private static final int                    BITS    = 5;
+    private static final PersistentMap<?, ?>    EMPTY   = new PersistentMap<Object, Object>(
+            new Node(0, new Object[0]), 0);
+
+    private final Node                          root;
+    private final int                           size;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /** Get the empty map. */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+
+    @Override
+    public V get(Object key) {
+        Leaf<K, V> leaf = find(key);
+        return leaf == null ? null : leaf.getValue();
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new EntryIterator<K, V>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Get a map with the specified entry added (or replaced). This map is left as it is. */
+    public PersistentMap<K, V> with(K key, V value) {
+        Leaf<K, V> leaf = new Leaf<K, V>(hash(key), key, value);
+        boolean[] added = new boolean[1];
+        Node next = (Node) put(root, 0, leaf, added);
+        return new PersistentMap<K, V>(next, added[0] ? size + 1 : size);
+    }
+
+    /** Get a map without the entry of the specified key, or this map if it has none. */
+    public PersistentMap<K, V> without(Object key) {
+        int hash = hash(key);
+        Object next = remove(root, 0, hash, key);
+        if (next == root) {
+            return this;
+        } else if (size == 1) {
+            return empty();
+        } else if (next instanceof Node) {
+            return new PersistentMap<K, V>((Node) next, size - 1);
+        }
+
+        /** The root lost all but one slot, which was pulled up, so it has to be hung back in a root. */
+        int remaining = next instanceof Leaf ? ((Leaf<?, ?>) next).hash : ((Collision) next).hash;
+        return new PersistentMap<K, V>(new Node(bit(remaining, 0), new Object[] { next }), size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Leaf<K, V> find(Object key) {
+        int hash = hash(key);
+        Object slot = root;
+        for (int shift = 0;; shift += BITS) {
+            if (slot instanceof Node) {
+                Node node = (Node) slot;
+                int bit = bit(hash, shift);
+                if ((node.bitmap & bit) == 0) {
+                    return null;
+                }
+                slot = node.slots[node.index(bit)];
+            } else if (slot instanceof Collision) {
+                for (Leaf<?, ?> leaf : ((Collision) slot).leaves) {
+                    if (leaf.hash == hash && equal(leaf.getKey(), key)) {
+                        return (Leaf<K, V>) leaf;
+                    }
+                }
+                return null;
+            } else {
+                Leaf<?, ?> leaf = (Leaf<?, ?>) slot;
+                return leaf.hash == hash && equal(leaf.getKey(), key) ? (Leaf<K, V>) leaf : null;
+            }
+        }
+    }
+
+    private static Object put(Object slot, int shift, Leaf<?, ?> leaf, boolean[] added) {
+        if (slot instanceof Node) {
+            Node node = (Node) slot;
+            int bit = bit(leaf.hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                added[0] = true;
+                return node.inserted(bit, leaf);
+            }
+            int index = node.index(bit);
+            return node.replaced(index, put(node.slots[index], shift + BITS, leaf, added));
+        } else if (slot instanceof Collision) {
+            Collision collision = (Collision) slot;
+            if (collision.hash != leaf.hash) {
+                added[0] = true;
+                return branch(collision, collision.hash, leaf, shift);
+            }
+            Leaf<?, ?>[] leaves = collision.leaves;
+            for (int i = 0; i < leaves.length; i++) {
+                if (equal(leaves[i].getKey(), leaf.getKey())) {
+                    Leaf<?, ?>[] next = leaves.clone();
+                    next[i] = leaf;
+                    return new Collision(leaf.hash, next);
+                }
+            }
+            Leaf<?, ?>[] next = new Leaf<?, ?>[leaves.length + 1];
+            System.arraycopy(leaves, 0, next, 0, leaves.length);
+            next[leaves.length] = leaf;
+            added[0] = true;
+            return new Collision(leaf.hash, next);
+        }
+        Leaf<?, ?> existing = (Leaf<?, ?>) slot;
+        if (existing.hash == leaf.hash && equal(existing.getKey(), leaf.getKey())) {
+            return leaf;
+        }
+        added[0] = true;
+        if (existing.hash == leaf.hash) {
+            return new Collision(leaf.hash, new Leaf<?, ?>[] { existing, leaf });
+        }
+        return branch(existing, existing.hash, leaf, shift);
+    }
+
+    /**
+     * Get the node that holds the existing slot (whose keys have the specified
+     * hash) as well as the specified leaf, whose key has another hash.
+     */
+    private static Node branch(Object existing, int existingHash, Leaf<?, ?> leaf, int shift) {
+        int existingBit = bit(existingHash, shift);
+        int bit = bit(leaf.hash, shift);
+        if (existingBit == bit) {
+            return new Node(bit, new Object[] { branch(existing, existingHash, leaf, shift + BITS) });
+        } else if (branchOf(existingHash, shift) < branchOf(leaf.hash, shift)) {
+            return new Node(existingBit | bit, new Object[] { existing, leaf });
+        } else {
+            return new Node(existingBit | bit, new Object[] { leaf, existing });
+        }
+    }
+
+    /**
+     * Remove the specified key from the specified slot, and return what is
+     * left of it: the slot itself if it does not hold the key, null if
+     * nothing is left, or the only leaf (or collision) that is left, so that
+     * the parent can pull it up.
+     */
+    private static Object remove(Object slot, int shift, int hash, Object key) {
+        if (slot instanceof Node) {
+            Node node = (Node) slot;
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return node;
+            }
+            int index = node.index(bit);
+            Object child = node.slots[index];
+            Object next = remove(child, shift + BITS, hash, key);
+            if (next == child) {
+                return node;
+            } else if (next == null) {
+                Node removed = node.removed(bit);
+                return removed.slots.length == 1 && !(removed.slots[0] instanceof Node) ? removed.slots[0] : removed;
+            } else if (node.slots.length == 1 && !(next instanceof Node)) {
+                return next;
+            }
+            return node.replaced(index, next);
+        } else if (slot instanceof Collision) {
+            Collision collision = (Collision) slot;
+            Leaf<?, ?>[] leaves = collision.leaves;
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].hash == hash && equal(leaves[i].getKey(), key)) {
+                    if (leaves.length == 2) {
+                        return leaves[1 - i];
+                    }
+                    Leaf<?, ?>[] next = new Leaf<?, ?>[leaves.length - 1];
+                    System.arraycopy(leaves, 0, next, 0, i);
+                    System.arraycopy(leaves, i + 1, next, i, next.length - i);
+                    return new Collision(hash, next);
+                }
+            }
+            return collision;
+        }
+        Leaf<?, ?> leaf = (Leaf<?, ?>) slot;
+        return leaf.hash == hash && equal(leaf.getKey(), key) ? null : leaf;
+    }
+
+    private static int hash(Object key) {
+        int hash = key == null ? 0 : key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int branchOf(int hash, int shift) {
+        return (hash >>> shift) & ((1 << BITS) - 1);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << branchOf(hash, shift);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /** Walks the trie depth first, with an explicit stack of the nodes it is in. */
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+
+        private final Object[][]    slots       = new Object[8][];
+        private final int[]         indices     = new int[8];
+        private int                 depth       = 0;
+        private Leaf<?, ?>[]        collision   = null;
+        private int                 collisionIndex;
+        private Leaf<?, ?>          next;
+
+        EntryIterator(Node root) {
+            slots[0] = root.slots;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Leaf<?, ?> current = next;
+            advance();
+            return (Entry<K, V>) current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void advance() {
+            if (collision != null) {
+                if (collisionIndex < collision.length) {
+                    next = collision[collisionIndex++];
+                    return;
+                }
+                collision = null;
+            }
+            while (depth >= 0) {
+                if (indices[depth] == slots[depth].length) {
+                    depth--;
+                    continue;
+                }
+                Object slot = slots[depth][indices[depth]++];
+                if (slot instanceof Node) {
+                    depth++;
+                    slots[depth] = ((Node) slot).slots;
+                    indices[depth] = 0;
+                } else if (slot instanceof Collision) {
+                    collision = ((Collision) slot).leaves;
+                    collisionIndex = 1;
+                    next = collision[0];
+                    return;
+                } else {
+                    next = (Leaf<?, ?>) slot;
+                    return;
+                }
+            }
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.wificoms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Checks the {@link PersistentMap} against a {@link HashMap}, including keys whose hashes collide. */
+public class PersistentMapTest {
+
+    /** A key whose hash is chosen by the test, so that collisions are easy to make. */
+    private static final class Key {
+
+        private final int   id;
+        private final int   hash;
+
+        Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    @Test
+    public void withAndWithoutLeaveTheOriginalAsItIs() {
+        PersistentMap<String, Integer> empty = PersistentMap.empty();
+        PersistentMap<String, Integer> one = empty.with("a", 1);
+        PersistentMap<String, Integer> two = one.with("b", 2);
+        PersistentMap<String, Integer> replaced = two.with("a", 3);
+
+        assertEquals(0, empty.size());
+        assertEquals(1, one.size());
+        assertEquals(2, two.size());
+        assertEquals(Integer.valueOf(1), two.get("a"));
+        assertEquals(Integer.valueOf(3), replaced.get("a"));
+        assertEquals(2, replaced.size());
+        assertEquals(1, two.without("a").size());
+        assertTrue(two.containsKey("a"));
+        assertSame(two, two.without("c"));
+    }
+
+    @Test
+    public void randomOperationsMatchAHashMap() {
+        Random random = new Random(42);
+        Map<Key, Integer> expected = new HashMap<Key, Integer>();
+        PersistentMap<Key, Integer> actual = PersistentMap.empty();
+        for (int i = 0; i < 20000; i++) {
+
+            /** Few distinct hashes, so that many keys collide completely or share long prefixes. */
+            int id = random.nextInt(500);
+            Key key = new Key(id, id % 2 == 0 ? id % 37 : id * 0x9E3779B9);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                actual = actual.without(key);
+            } else {
+                expected.put(key, i);
+                actual = actual.with(key, i);
+            }
+            assertEquals(expected.size(), actual.size());
+        }
+        assertEquals(expected, actual);
+        assertEquals(actual, expected);
+        assertEquals(expected.hashCode(), actual.hashCode());
+    }
+
+    @Test
+    public void removingEverythingLeavesAnEmptyMap() {
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 1000; i++) {
+            map = map.with(new Key(i, i % 3), i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            map = map.without(new Key(i, i % 3));
+            assertNull(map.get(new Key(i, i % 3)));
+        }
+        assertEquals(0, map.size());
+        assertFalse(map.entrySet().iterator().hasNext());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void isReadOnly() {
+        PersistentMap.<String, Integer> empty().with("a", 1).put("b", 2);
+    }
+}
@@ -0,0 +1,422 @@
+package com.example.wificoms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Schedules the resolves of the services that are found, rather than firing
+ * them all at the {@link DiscoveryTransport} right away. The
+ * {@link android.net.nsd.NsdManager} only allows a limited number of resolves
+ * to be in flight (only one on older platforms), and rejects the others with
+ * {@link #FAILURE_ALREADY_ACTIVE}. Hence this scheduler
+ *
+ * <ul>
+ * <li>keeps a queue of pending resolves,</li>
+ * <li>only lets a configurable number of them be in flight at once,</li>
+ * <li>ignores a service that is already queued or in flight,</li>
+ * <li>retries resolves that failed with {@link #FAILURE_ALREADY_ACTIVE} after
+ * an exponentially growing back-off, and</li>
+ * <li>measures how long resolves wait in the queue and how long they take.</li>
+ * </ul>
+ *
+ * If the platform rejects a resolve with {@link #FAILURE_ALREADY_ACTIVE} even
+ * though fewer than the configured number of resolves are in flight, the
+ * number that may be in flight is lowered to what the platform accepted, and
+ * then raised by one with every successful resolve, up to the configured
+ * number again. This keeps a too optimistic configuration from burning
+ * through the whole queue with rejected resolves.
+ *
+ * Services are identified by their {@link DiscoveredService#getKey() key}. A
+ * resolve that does not complete within the timeout is given up on, so that a
+ * lost callback can never block the queue.
+ */
+public class ResolveScheduler {
+
+    /** The state of a single resolve. */
+    private static final class Request {
+
+        private final DiscoveredService         service;
+        private long                            enqueuedAt;
+        private long                            startedAt   = -1;
+        private int                             attempts    = 0;
+        private boolean                         cancelled   = false;
+        private TaskScheduler.Cancellable       timer       = null;
+
+        Request(DiscoveredService service, long enqueuedAt) {
+            this.service = service;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        boolean isInFlight() {
+            return startedAt >= 0;
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    /** The error code of a resolve that was rejected because too many are active. */
+    public static final int                 FAILURE_ALREADY_ACTIVE  = 3;
+
+    private final DiscoveryTransport        transport;
+    private final TaskScheduler             scheduler;
+    private final Map<String, Request>      requests                = new HashMap<String, Request>();
+    private final ArrayDeque<Request>       pending                 = new ArrayDeque<Request>();
+    private final LatencyHistogram          queueWait               = new LatencyHistogram("queueWait");
+    private final LatencyHistogram          resolveLatency          = new LatencyHistogram("resolveLatency");
+    private int                             maxConcurrent;
+    private int                             limit;
+    private int                             inFlight                = 0;
+    private long                            initialBackoffMillis    = 100;
+    private long                            maxBackoffMillis        = 5000;
+    private int                             maxAttempts             = 8;
+    private long                            timeoutMillis           = 30000;
+    private long                            duplicates              = 0;
+    private long                            retries                 = 0;
+    private long                            failures                = 0;
+    private long                            timeouts                = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Create a scheduler that resolves services with the specified transport,
+     * with at most the specified number of resolves in flight.
+     */
+    public ResolveScheduler(DiscoveryTransport transport, TaskScheduler scheduler, int maxConcurrent) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        setMaxConcurrent(maxConcurrent);
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get the histogram of the time between submitting and starting a resolve. */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /** Get the histogram of the time between starting and completing a resolve. */
+    public LatencyHistogram getResolveLatency() {
+        return resolveLatency;
+    }
+
+    /** Get the number of resolves that are waiting for a free slot. */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Get the number of resolves that are in flight. */
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /** Get the number of submitted services that were ignored as duplicates. */
+    public synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /** Get the number of resolves that were retried. */
+    public synchronized long getRetryCount() {
+        return retries;
+    }
+
+    /** Get the number of resolves that were given up on (including timeouts). */
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    /** Get the number of resolves that timed out. */
+    public synchronized long getTimeoutCount() {
+        return timeouts;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Set the number of resolves that may be in flight at once. Use 1 for
+     * platforms whose {@link android.net.nsd.NsdManager} only allows one.
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("maxConcurrent must be positive: " + maxConcurrent);
+        }
+        List<Request> started;
+        synchronized (this) {
+            this.maxConcurrent = maxConcurrent;
+            this.limit = maxConcurrent;
+            started = dispatch();
+        }
+        start(started);
+    }
+
+    /**
+     * Set the back-off before the first retry, and the maximum back-off. The
+     * back-off doubles with every retry of the same resolve.
+     */
+    public synchronized void setBackoffMillis(long initialBackoffMillis, long maxBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /** Set the number of times a resolve is attempted before giving up. */
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /** Set the time after which a resolve that did not complete is given up on. */
+    public synchronized void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Queue the specified service to be resolved. Return false if it is
+     * already queued or being resolved, in which case this does nothing.
+     */
+    public boolean submit(DiscoveredService service) {
+        List<Request> started;
+        synchronized (this) {
+            Request existing = requests.get(service.getKey());
+            if (existing != null) {
+                if (existing.cancelled) {
+
+                    /**
+                     * The service came back while its cancelled resolve is
+                     * still in flight, so simply keep the result of that one.
+                     */
+                    existing.cancelled = false;
+                } else {
+                    duplicates++;
+                }
+                return false;
+            }
+            Request request = new Request(service, scheduler.now());
+            requests.put(service.getKey(), request);
+            pending.add(request);
+            started = dispatch();
+        }
+        start(started);
+        return true;
+    }
+
+    /**
+     * Tell this scheduler that the specified service was resolved. Return
+     * false if the resolve was cancelled in the meantime, in which case the
+     * result should be ignored.
+     */
+    public boolean onResolved(DiscoveredService service) {
+        List<Request> started;
+        boolean cancelled;
+        synchronized (this) {
+            Request request = requests.get(service.getKey());
+            if (request == null || !request.isInFlight()) {
+                return true;
+            }
+            requests.remove(service.getKey());
+            resolveLatency.record(scheduler.now() - request.startedAt);
+            complete(request);
+            limit = Math.min(maxConcurrent, limit + 1);
+            cancelled = request.cancelled;
+            started = dispatch();
+        }
+        start(started);
+        return !cancelled;
+    }
+
+    /**
+     * Tell this scheduler that resolving the specified service failed with the
+     * specified error code. Return true if the resolve will be retried.
+     */
+    public boolean onResolveFailed(DiscoveredService service, int errorCode) {
+        List<Request> started;
+        boolean retry;
+        synchronized (this) {
+            final Request request = requests.get(service.getKey());
+            if (request == null || !request.isInFlight()) {
+                return false;
+            }
+            complete(request);
+            if (errorCode == FAILURE_ALREADY_ACTIVE) {
+                limit = Math.max(1, inFlight);
+            }
+            retry = !request.cancelled && errorCode == FAILURE_ALREADY_ACTIVE && request.attempts < maxAttempts;
+            if (retry) {
+                retries++;
+                long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(request.attempts - 1, 30));
+                request.timer = scheduler.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        requeue(request);
+                    }
+                }, backoff);
+            } else {
+                requests.remove(service.getKey());
+                if (!request.cancelled) {
+                    failures++;
+                }
+            }
+            started = dispatch();
+        }
+        start(started);
+        return retry;
+    }
+
+    /**
+     * Stop resolving the specified service. A resolve that is already in flight
+     * cannot be stopped, but its result will be ignored.
+     */
+    public void cancel(DiscoveredService service) {
+        List<Request> started;
+        synchronized (this) {
+            Request request = requests.get(service.getKey());
+            if (request == null) {
+                return;
+            }
+            if (request.isInFlight()) {
+                request.cancelled = true;
+                return;
+            }
+            requests.remove(service.getKey());
+            pending.remove(request);
+            if (request.timer != null) {
+                request.timer.cancel();
+            }
+            started = dispatch();
+        }
+        start(started);
+    }
+
+    /** Cancel every resolve. See {@link #cancel(DiscoveredService)}. */
+    public synchronized void clear() {
+        for (Request request : new ArrayList<Request>(requests.values())) {
+            if (request.isInFlight()) {
+                request.cancelled = true;
+            } else {
+                requests.remove(request.service.getKey());
+                if (request.timer != null) {
+                    request.timer.cancel();
+                }
+            }
+        }
+        pending.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResolveScheduler: pending: " + pending.size() + ", inFlight: " + inFlight + ", limit: " + limit
+                + ", duplicates: " + duplicates + ", retries: " + retries + ", failures: " + failures
+                + ", timeouts: " + timeouts + ", " + queueWait + ", " + resolveLatency;
+    }
+
+    /** Put a request that was backing off at the back of the queue again. */
+    private void requeue(Request request) {
+        List<Request> started;
+        synchronized (this) {
+            if (requests.get(request.service.getKey()) != request) {
+                return;
+            }
+            request.timer = null;
+            request.enqueuedAt = scheduler.now();
+            pending.add(request);
+            started = dispatch();
+        }
+        start(started);
+    }
+
+    /** Give up on a request that did not complete in time. */
+    private void timeout(Request request) {
+        List<Request> started;
+        synchronized (this) {
+            if (requests.get(request.service.getKey()) != request || !request.isInFlight()) {
+                return;
+            }
+            requests.remove(request.service.getKey());
+            complete(request);
+            timeouts++;
+            failures++;
+            started = dispatch();
+        }
+        start(started);
+    }
+
+    /** Mark the specified in-flight request as no longer in flight. */
+    private void complete(Request request) {
+        inFlight--;
+        request.startedAt = -1;
+        if (request.timer != null) {
+            request.timer.cancel();
+            request.timer = null;
+        }
+    }
+
+    /**
+     * Move as many pending requests in flight as there are free slots, and
+     * return them. The caller must hold the lock, and must then
+     * {@link #start(List)} the returned requests after releasing it.
+     */
+    private List<Request> dispatch() {
+        List<Request> started = null;
+        while (inFlight < limit && !pending.isEmpty()) {
+            final Request request = pending.poll();
+            long now = scheduler.now();
+            queueWait.record(now - request.enqueuedAt);
+            request.startedAt = now;
+            request.attempts++;
+            request.timer = scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    timeout(request);
+                }
+            }, timeoutMillis);
+            inFlight++;
+            if (started == null) {
+                started = new ArrayList<Request>();
+            }
+            started.add(request);
+        }
+        return started;
+    }
+
+    /**
+     * Ask the transport to resolve the specified requests. This is done
+     * without holding the lock, since the transport may report the result on
+     * the calling thread.
+     */
+    private void start(List<Request> started) {
+        if (started != null) {
+            for (Request request : started) {
+                transport.resolveService(request.service);
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.wificoms;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of resolved services, so that a peer that was resolved recently does
+ * not have to be resolved again (which is the slowest step of discovery) when
+ * it is found again, e.g. after the {@link android.app.Activity} is resumed.
+ *
+ * <p/>
+ *
+ * Entries are keyed by {@link DiscoveredService#getKey()}, i.e. by service
+ * name and type (and device address, if known). Every entry expires after its
+ * time-to-live, the least recently used entry is evicted once the cache is
+ * full, and an entry can be invalidated explicitly when its service is lost.
+ * It is thread-safe.
+ */
+public class ResolvedServiceCache {
+
+    /** A cached service, along with when it was stored and when it expires. */
+    private static final class CacheEntry {
+
+        private final DiscoveredService service;
+        private final long              storedAt;
+        private final long              expiresAt;
+
+        CacheEntry(DiscoveredService service, long storedAt, long expiresAt) {
+            this.service = service;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    public static final int                 DEFAULT_MAX_ENTRIES = 256;
+    public static final long                DEFAULT_TTL_MILLIS  = 5 * 60 * 1000;
+
+    private final TaskScheduler             clock;
+    private final int                       maxEntries;
+    private final Map<String, CacheEntry>   entries;
+    private long                            ttlMillis           = DEFAULT_TTL_MILLIS;
+    private long                            hits                = 0;
+    private long                            misses              = 0;
+    private long                            evictions           = 0;
+    private long                            expirations         = 0;
+    private long                            invalidations       = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    public ResolvedServiceCache(TaskScheduler clock) {
+        this(clock, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Create a cache that tells the time with the specified scheduler, and
+     * holds at most the specified number of entries.
+     */
+    public ResolvedServiceCache(TaskScheduler clock, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.clock = clock;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() > ResolvedServiceCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /** Get the default time-to-live of the entries. */
+    public synchronized long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /** Get the number of entries, including the ones that expired but were not purged yet. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getExpirationCount() {
+        return expirations;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return invalidations;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    /** Set the default time-to-live of the entries that are stored from now on. */
+    public synchronized void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Store the specified resolved service with the default time-to-live. */
+    public synchronized void put(DiscoveredService service) {
+        put(service, ttlMillis);
+    }
+
+    /** Store the specified resolved service with the specified time-to-live. */
+    public synchronized void put(DiscoveredService service, long ttlMillis) {
+        long now = clock.now();
+        entries.put(service.getKey(), new CacheEntry(service, now, now + ttlMillis));
+    }
+
+    /**
+     * Get the cached version of the specified service, or null if it is not
+     * cached or expired.
+     */
+    public synchronized DiscoveredService get(DiscoveredService service) {
+        CacheEntry entry = getEntry(service.getKey());
+        return entry == null ? null : entry.service;
+    }
+
+    /**
+     * Get how long ago the specified service was stored, or -1 if it is not
+     * cached or expired. This does not count as a use of the entry.
+     */
+    public synchronized long getAge(DiscoveredService service) {
+        CacheEntry entry = entries.get(service.getKey());
+        long now = clock.now();
+        return entry == null || entry.expiresAt <= now ? -1 : now - entry.storedAt;
+    }
+
+    /** Remove the specified service, e.g. because it was lost. */
+    public synchronized void invalidate(DiscoveredService service) {
+        if (entries.remove(service.getKey()) != null) {
+            invalidations++;
+        }
+    }
+
+    /** Remove every entry. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /** Get every cached service that did not expire yet, least recently used first. */
+    public synchronized List<DiscoveredService> snapshot() {
+        purge();
+        List<DiscoveredService> services = new ArrayList<DiscoveredService>(entries.size());
+        for (CacheEntry entry : entries.values()) {
+            services.add(entry.service);
+        }
+        return services;
+    }
+
+    /** Remove every entry that expired. */
+    public synchronized void purge() {
+        long now = clock.now();
+        for (Iterator<CacheEntry> iterator = entries.values().iterator(); iterator.hasNext();) {
+            if (iterator.next().expiresAt <= now) {
+                iterator.remove();
+                expirations++;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResolvedServiceCache: size: " + entries.size() + ", hits: " + hits + ", misses: " + misses
+                + ", evictions: " + evictions + ", expirations: " + expirations + ", invalidations: "
+                + invalidations;
+    }
+
+    /** Get the entry with the specified key, counting the hit or miss. */
+    private CacheEntry getEntry(String key) {
+        CacheEntry entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= clock.now()) {
+            entries.remove(key);
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+}
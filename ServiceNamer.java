@@ -0,0 +1,147 @@
+package com.example.wificoms;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Names the services of this device after a short hash of its device ID, e.g.
+ * "NetworkServiceDiscoveryViaWifi-k3q7z2mb", so that the name is the same on
+ * every registration and after every restart. Peers then recognize the
+ * service as the one they already found (and resolved, and cached), instead
+ * of a new one, and still recognize the services of this app by their name
+ * containing the original service name (see {@link PeerFilter}).
+ *
+ * <p/>
+ *
+ * The hash is the first 40 bits of the SHA-256 of the device ID, in base32,
+ * so two devices only get the same name once there are about a million of
+ * them. Should the platform still rename the service because another one on
+ * the network has its name, the next candidate is registered instead: the
+ * hash of the device ID and the number of the candidate. Those are just as
+ * deterministic, so two devices never keep fighting over a name. Once the
+ * candidates run out, the name the platform chose is kept.
+ */
+public class ServiceNamer {
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    /** The number of base32 characters of the hash, i.e. 40 bits. */
+    public static final int         HASH_CHARS      = 8;
+
+    /** The number of names that are tried before the one the platform chose is kept. */
+    public static final int         MAX_CANDIDATES  = 4;
+
+    private static final Charset    UTF8            = Charset.forName("UTF-8");
+    private static final char[]     BASE32          = "abcdefghijklmnopqrstuvwxyz234567".toCharArray();
+
+    private final String            prefix;
+    private final String            deviceId;
+    private int                     candidate       = 0;
+    private long                    conflicts       = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Create a namer whose names start with the specified prefix, followed by
+     * the hash of the specified device ID (e.g. the one of {@link DeviceId},
+     * which falls back to a persisted random ID where the platform has none).
+     */
+    public ServiceNamer(String prefix, String deviceId) {
+        if (prefix == null || deviceId == null) {
+            throw new IllegalArgumentException("prefix and deviceId are required");
+        }
+        this.prefix = prefix;
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /** Get the name to register, i.e. the current candidate. */
+    public synchronized String getName() {
+        return getName(candidate);
+    }
+
+    /** Get the specified candidate name, where 0 is the name that is normally used. */
+    public String getName(int candidate) {
+        return prefix + "-" + hash(candidate == 0 ? deviceId : deviceId + "/" + candidate);
+    }
+
+    /** Get the number of times the platform renamed the service because of a conflict. */
+    public synchronized long getConflictCount() {
+        return conflicts;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * The service that was registered under the specified requested name
+     * ended up with the specified name. If the platform renamed the current
+     * candidate to resolve a conflict, move on to the next candidate. Return
+     * whether the service should be registered again, under
+     * {@link #getName()}.
+     */
+    public synchronized boolean onRegistered(String requestedName, String registeredName) {
+        if (requestedName.equals(registeredName) || !requestedName.equals(getName(candidate))) {
+            return false;
+        }
+        conflicts++;
+        if (candidate + 1 >= MAX_CANDIDATES) {
+            return false;
+        }
+        candidate++;
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ServiceNamer: name: " + getName() + ", candidate: " + candidate + ", conflicts: " + conflicts;
+    }
+
+    /** Get the first {@value #HASH_CHARS} base32 characters of the SHA-256 of the specified string. */
+    static String hash(String input) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(input.getBytes(UTF8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        char[] hash = new char[HASH_CHARS];
+        long bits = 0;
+        int bitCount = 0;
+        int index = 0;
+        for (int i = 0; i < hash.length; i++) {
+            if (bitCount < 5) {
+                bits = (bits << 8) | (digest[index++] & 0xff);
+                bitCount += 8;
+            }
+            bitCount -= 5;
+            hash[i] = BASE32[(int) (bits >>> bitCount) & 31];
+        }
+        return new String(hash);
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.wificoms;
+
+/**
+ * Holds the {@link PeerMerger} that is shared by the whole process, so that
+ * the sessions of all transports (e.g. NSD and Wifi Direct) join their peers,
+ * no matter which Activity created them, or which {@link DiscoveryExecutors}
+ * they run on. Like the sessions, it outlives the Activities.
+ */
+public final class SharedPeerMerger {
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private static PeerMerger   peerMerger  = null;
+
+    private SharedPeerMerger() {
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /** Get the {@link PeerMerger} of the process, creating it if needed. */
+    public static synchronized PeerMerger get() {
+        if (peerMerger == null) {
+            peerMerger = new PeerMerger();
+        }
+        return peerMerger;
+    }
+}
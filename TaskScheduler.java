@@ -0,0 +1,23 @@
+package com.example.wificoms;
+
+/**
+ * Runs tasks after a delay and tells the time. Components that need timers
+ * use this abstraction instead of a concrete timer, so that they can be driven
+ * by a real clock on a device and by a virtual clock when they are simulated
+ * or benchmarked on a plain JVM.
+ */
+public interface TaskScheduler {
+
+    /** A handle to a scheduled task. */
+    interface Cancellable {
+
+        /** Cancel the task. This has no effect if it already ran. */
+        void cancel();
+    }
+
+    /** Get the current time of this scheduler's monotonic clock, in ms. */
+    long now();
+
+    /** Run the specified task after the specified number of milliseconds. */
+    Cancellable schedule(Runnable task, long delayMillis);
+}
@@ -0,0 +1,31 @@
+package com.example.wificoms;
+
+import android.widget.TextView;
+
+/**
+ * A {@link LogSink.Renderer} that shows the log in a {@link TextView}. New
+ * entries are appended with {@link TextView#append(CharSequence)}, so the text
+ * that is already shown is never copied.
+ *
+ * <p/>
+ *
+ * Like the {@link TextView} itself, this must only be used on the UI thread.
+ */
+public class TextViewLogRenderer implements LogSink.Renderer {
+
+    private final TextView textView;
+
+    public TextViewLogRenderer(TextView textView) {
+        this.textView = textView;
+    }
+
+    @Override
+    public void append(CharSequence text) {
+        textView.append(text);
+    }
+
+    @Override
+    public void replace(CharSequence text) {
+        textView.setText(text);
+    }
+}
@@ -0,0 +1,534 @@
+package com.example.wificoms;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of typed service attributes, packed into TXT
+ * record entries. DNS-SD TXT records should be small (RFC 6763 recommends
+ * staying below 400 bytes, and each entry is limited to 255 bytes), and over
+ * Wifi Direct a large record is fragmented over several service responses,
+ * which slows discovery down. So instead of a "Key=value" entry per attribute,
+ * the attributes are encoded as follows:
+ *
+ * <p/>
+ *
+ * <ul>
+ * <li>a {@link Schema} assigns every attribute a small numeric tag and a
+ * {@link Type};</li>
+ * <li>each attribute is written as a varint holding its tag and wire type,
+ * followed by a (zig-zag) varint or a length-prefixed byte string. Hex
+ * strings, such as device IDs, take half the bytes;</li>
+ * <li>the bytes are packed into TXT-safe characters with base 64 (the URL-safe
+ * alphabet, without padding) and stored under the short key {@value #KEY}, or
+ * split over the keys "d0", "d1", ... if they exceed an entry.</li>
+ * </ul>
+ *
+ * <p/>
+ *
+ * Unknown tags are skipped, so peers can add attributes without breaking
+ * older ones. Decoding unpacks the bytes once into a {@link Record}, which
+ * indexes the attributes in place: numbers are read straight from the bytes,
+ * byte strings are returned as read-only {@link ByteBuffer} views, and Strings
+ * are only built when asked for.
+ */
+public final class TxtRecordCodec {
+
+    /** The types of attributes. */
+    public enum Type {
+        VARINT, BOOLEAN, STRING, HEX
+    }
+
+    /** An attribute of a {@link Schema}. */
+    public static final class Field {
+
+        private final int       tag;
+        private final String    name;
+        private final Type      type;
+
+        Field(int tag, String name, Type type) {
+            this.tag = tag;
+            this.name = name;
+            this.type = type;
+        }
+
+        public int getTag() {
+            return tag;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        @Override
+        public String toString() {
+            return name + "#" + tag + ": " + type;
+        }
+    }
+
+    /** The attributes that peers agree on, by tag and by name. */
+    public static final class Schema {
+
+        private final Field[]               byTag   = new Field[MAX_TAG + 1];
+        private final Map<String, Field>    byName  = new LinkedHashMap<String, Field>();
+
+        /**
+         * Add the attribute with the specified tag (between 0 and
+         * {@value #MAX_TAG}), name and type. Tags must never be reused for
+         * another attribute, since peers may run older versions.
+         */
+        public Schema add(int tag, String name, Type type) {
+            if (tag < 0 || tag > MAX_TAG) {
+                throw new IllegalArgumentException("Tag out of range: " + tag);
+            } else if (byTag[tag] != null || byName.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate field: " + name + "#" + tag);
+            }
+            Field field = new Field(tag, name, type);
+            byTag[tag] = field;
+            byName.put(name, field);
+            return this;
+        }
+
+        /** Get the field with the specified name, or throw if there is none. */
+        public Field getField(String name) {
+            Field field = byName.get(name);
+            if (field == null) {
+                throw new IllegalArgumentException("Unknown field: " + name);
+            }
+            return field;
+        }
+
+        /** Create an encoder of attributes of this schema. */
+        public Encoder encoder() {
+            return new Encoder(this);
+        }
+
+        /**
+         * Decode the attributes of this schema from the specified TXT record,
+         * or return null if it holds no encoded attributes.
+         */
+        public Record decode(Map<String, String> txtRecord) {
+            byte[] bytes = unpack(txtRecord);
+            return bytes == null ? null : new Record(this, bytes);
+        }
+
+        @Override
+        public String toString() {
+            return "Schema: " + byName.values();
+        }
+    }
+
+    /** Writes attributes in the binary encoding. */
+    public static final class Encoder {
+
+        private final Schema                schema;
+        private final ByteArrayOutputStream out     = new ByteArrayOutputStream();
+
+        Encoder(Schema schema) {
+            this.schema = schema;
+        }
+
+        public Encoder putLong(String name, long value) {
+            Field field = expect(name, Type.VARINT);
+            writeVarint(out, field.tag << 1 | WIRE_VARINT);
+            writeVarint(out, (value << 1) ^ (value >> 63));
+            return this;
+        }
+
+        public Encoder putBoolean(String name, boolean value) {
+            Field field = expect(name, Type.BOOLEAN);
+            writeVarint(out, field.tag << 1 | WIRE_VARINT);
+            out.write(value ? 1 : 0);
+            return this;
+        }
+
+        public Encoder putString(String name, String value) {
+            return putBytes(expect(name, Type.STRING), value.getBytes(UTF8));
+        }
+
+        /** Put a string of hex digits (of even length), packing two digits into a byte. */
+        public Encoder putHex(String name, String value) {
+            Field field = expect(name, Type.HEX);
+            if (value.length() % 2 != 0) {
+                value = "0" + value;
+            }
+            byte[] bytes = new byte[value.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                int high = Character.digit(value.charAt(2 * i), 16);
+                int low = Character.digit(value.charAt(2 * i + 1), 16);
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException("Not a hex string: " + value);
+                }
+                bytes[i] = (byte) (high << 4 | low);
+            }
+            return putBytes(field, bytes);
+        }
+
+        /** Get the encoded bytes. */
+        public byte[] toBytes() {
+            return out.toByteArray();
+        }
+
+        /** Get the encoded bytes, packed into TXT record entries. */
+        public Map<String, String> toTxtRecord() {
+            return pack(toBytes());
+        }
+
+        private Encoder putBytes(Field field, byte[] bytes) {
+            writeVarint(out, field.tag << 1 | WIRE_BYTES);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        private Field expect(String name, Type type) {
+            Field field = schema.getField(name);
+            if (field.type != type) {
+                throw new IllegalArgumentException("Field " + field + " is not of type " + type);
+            }
+            return field;
+        }
+    }
+
+    /**
+     * The decoded attributes of a TXT record. The attributes are indexed when
+     * the record is created, and read from the bytes in place.
+     */
+    public static final class Record {
+
+        private final Schema    schema;
+        private final byte[]    bytes;
+        private final int[]     offsets = new int[MAX_TAG + 1];
+        private final int[]     lengths = new int[MAX_TAG + 1];
+
+        /**
+         * Index the specified bytes. Malformed bytes are indexed up to the
+         * first malformed attribute.
+         */
+        Record(Schema schema, byte[] bytes) {
+            this.schema = schema;
+            this.bytes = bytes;
+            Arrays.fill(offsets, -1);
+            int[] position = new int[] { 0 };
+            while (position[0] < bytes.length) {
+                long key = readVarint(bytes, position);
+                if (position[0] < 0) {
+                    return;
+                }
+                long tag = key >>> 1;
+                int offset = position[0];
+                int length;
+                if ((key & 1) == WIRE_VARINT) {
+                    readVarint(bytes, position);
+                    if (position[0] < 0) {
+                        return;
+                    }
+                    length = position[0] - offset;
+                } else {
+                    long size = readVarint(bytes, position);
+                    if (position[0] < 0 || size < 0 || size > bytes.length - position[0]) {
+                        return;
+                    }
+                    offset = position[0];
+                    length = (int) size;
+                    position[0] += length;
+                }
+
+                /**
+                 * Unknown tags, and tags whose wire type does not match their
+                 * type, are skipped. The last occurrence of a tag wins.
+                 */
+                Field field = tag <= MAX_TAG ? schema.byTag[(int) tag] : null;
+                if (field != null && wireType(field.type) == (key & 1)) {
+                    offsets[(int) tag] = offset;
+                    lengths[(int) tag] = length;
+                }
+            }
+        }
+
+        /** Whether the record holds the attribute with the specified name. */
+        public boolean has(String name) {
+            return offsets[schema.getField(name).tag] >= 0;
+        }
+
+        public long getLong(String name, long defaultValue) {
+            int tag = schema.getField(name).tag;
+            if (offsets[tag] < 0) {
+                return defaultValue;
+            }
+            long value = readVarint(bytes, new int[] { offsets[tag] });
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public boolean getBoolean(String name, boolean defaultValue) {
+            int tag = schema.getField(name).tag;
+            return offsets[tag] < 0 ? defaultValue : bytes[offsets[tag]] != 0;
+        }
+
+        /** Get the specified string attribute, or null if the record does not hold it. */
+        public String getString(String name) {
+            int tag = schema.getField(name).tag;
+            return offsets[tag] < 0 ? null : new String(bytes, offsets[tag], lengths[tag], UTF8);
+        }
+
+        /** Get the specified hex attribute as lower case hex digits, or null if the record does not hold it. */
+        public String getHex(String name) {
+            int tag = schema.getField(name).tag;
+            if (offsets[tag] < 0) {
+                return null;
+            }
+            char[] digits = new char[2 * lengths[tag]];
+            for (int i = 0; i < lengths[tag]; i++) {
+                int b = bytes[offsets[tag] + i] & 0xFF;
+                digits[2 * i] = Character.forDigit(b >> 4, 16);
+                digits[2 * i + 1] = Character.forDigit(b & 0xF, 16);
+            }
+            return new String(digits);
+        }
+
+        /**
+         * Get a read-only view of the bytes of the specified string or hex
+         * attribute, or null if the record does not hold it. Nothing is copied.
+         */
+        public ByteBuffer getBytes(String name) {
+            int tag = schema.getField(name).tag;
+            return offsets[tag] < 0 ? null : ByteBuffer.wrap(bytes, offsets[tag], lengths[tag]).slice()
+                    .asReadOnlyBuffer();
+        }
+
+        /** Get the size of the encoded bytes. */
+        public int size() {
+            return bytes.length;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Record: {");
+            String separator = "";
+            for (Field field : schema.byName.values()) {
+                if (offsets[field.tag] < 0) {
+                    continue;
+                }
+                builder.append(separator).append(field.name).append('=');
+                switch (field.type) {
+                case VARINT:
+                    builder.append(getLong(field.name, 0));
+                    break;
+                case BOOLEAN:
+                    builder.append(getBoolean(field.name, false));
+                    break;
+                case STRING:
+                    builder.append(getString(field.name));
+                    break;
+                default:
+                    builder.append(getHex(field.name));
+                    break;
+                }
+                separator = ", ";
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    /** The key under which the encoded attributes are stored. */
+    public static final String      KEY                 = "d";
+
+    /** The largest tag of an attribute. */
+    public static final int         MAX_TAG             = 63;
+
+    /** The maximum size of a single TXT record entry ("key=value"). */
+    public static final int         MAX_ENTRY_BYTES     = 255;
+
+    /** The size below which RFC 6763 considers a TXT record reasonable. */
+    public static final int         RECOMMENDED_BYTES   = 400;
+
+    private static final Charset    UTF8                = Charset.forName("UTF-8");
+    private static final int        WIRE_VARINT         = 0;
+    private static final int        WIRE_BYTES          = 1;
+    private static final char[]     ALPHABET            =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final int[]      VALUES              = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private TxtRecordCodec() {
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Get the size of the specified TXT record on the wire: every entry takes
+     * a length byte, plus the UTF-8 bytes of "key=value".
+     */
+    public static int sizeOf(Map<String, String> txtRecord) {
+        int size = 0;
+        for (Map.Entry<String, String> entry : txtRecord.entrySet()) {
+            size += 1 + entrySize(entry.getKey(), entry.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * Check that the specified TXT record fits in the specified budget (e.g.
+     * {@link #RECOMMENDED_BYTES}), and that none of its entries is too large.
+     * Throw an {@link IllegalArgumentException} describing the problem if not.
+     */
+    public static void checkBudget(Map<String, String> txtRecord, int budget) {
+        for (Map.Entry<String, String> entry : txtRecord.entrySet()) {
+            int size = entrySize(entry.getKey(), entry.getValue());
+            if (size > MAX_ENTRY_BYTES) {
+                throw new IllegalArgumentException("TXT record entry " + entry.getKey() + " takes " + size
+                        + " bytes, which exceeds " + MAX_ENTRY_BYTES);
+            }
+        }
+        int size = sizeOf(txtRecord);
+        if (size > budget) {
+            throw new IllegalArgumentException("TXT record takes " + size + " bytes, which exceeds the budget of "
+                    + budget);
+        }
+    }
+
+    private static int entrySize(String key, String value) {
+        return key.getBytes(UTF8).length + (value == null ? 0 : 1 + value.getBytes(UTF8).length);
+    }
+
+    /**
+     * Pack the specified bytes into TXT record entries, under {@value #KEY}
+     * if they fit in a single entry.
+     */
+    static Map<String, String> pack(byte[] bytes) {
+        String packed = encodeBase64(bytes);
+        Map<String, String> txtRecord = new HashMap<String, String>();
+        int chunk = MAX_ENTRY_BYTES - KEY.length() - 3;
+        if (packed.length() <= MAX_ENTRY_BYTES - KEY.length() - 1) {
+            txtRecord.put(KEY, packed);
+        } else {
+            for (int i = 0; i * chunk < packed.length(); i++) {
+                txtRecord.put(KEY + i, packed.substring(i * chunk, Math.min(packed.length(), (i + 1) * chunk)));
+            }
+        }
+        return Collections.unmodifiableMap(txtRecord);
+    }
+
+    /**
+     * Unpack the bytes from the specified TXT record entries, or return null
+     * if the record holds none, or they are malformed.
+     */
+    static byte[] unpack(Map<String, String> txtRecord) {
+        String packed = txtRecord.get(KEY);
+        if (packed == null && txtRecord.containsKey(KEY + 0)) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; txtRecord.containsKey(KEY + i); i++) {
+                builder.append(txtRecord.get(KEY + i));
+            }
+            packed = builder.toString();
+        }
+        return packed == null ? null : decodeBase64(packed);
+    }
+
+    static String encodeBase64(byte[] bytes) {
+        char[] chars = new char[(bytes.length * 8 + 5) / 6];
+        int bits = 0;
+        int buffer = 0;
+        int j = 0;
+        for (byte b : bytes) {
+            buffer = buffer << 8 | (b & 0xFF);
+            bits += 8;
+            while (bits >= 6) {
+                bits -= 6;
+                chars[j++] = ALPHABET[(buffer >> bits) & 0x3F];
+            }
+        }
+        if (bits > 0) {
+            chars[j++] = ALPHABET[(buffer << (6 - bits)) & 0x3F];
+        }
+        return new String(chars);
+    }
+
+    /** Decode the specified base 64 characters, or return null if they are malformed. */
+    static byte[] decodeBase64(String chars) {
+        if (chars.length() % 4 == 1) {
+            return null;
+        }
+        byte[] bytes = new byte[chars.length() * 6 / 8];
+        int bits = 0;
+        int buffer = 0;
+        int j = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value < 0) {
+                return null;
+            }
+            buffer = buffer << 6 | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                bytes[j++] = (byte) (buffer >> bits);
+            }
+        }
+        return bytes;
+    }
+
+    /** Get the wire type of attributes of the specified type. */
+    static int wireType(Type type) {
+        return type == Type.VARINT || type == Type.BOOLEAN ? WIRE_VARINT : WIRE_BYTES;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Read a varint from the specified bytes at the specified position, and
+     * advance the position. If the varint is truncated or too long, the
+     * position is set to -1 instead.
+     */
+    static long readVarint(byte[] bytes, int[] position) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= bytes.length) {
+                position[0] = -1;
+                return 0;
+            }
+            byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        position[0] = -1;
+        return 0;
+    }
+}
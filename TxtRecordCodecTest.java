@@ -0,0 +1,186 @@
+package com.example.wificoms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Checks the {@link TxtRecordCodec}: round trips, the size limits of TXT records, and malformed input. */
+public class TxtRecordCodecTest {
+
+    private static final TxtRecordCodec.Schema SCHEMA = new TxtRecordCodec.Schema()
+            .add(1, "id", TxtRecordCodec.Type.HEX)
+            .add(2, "port", TxtRecordCodec.Type.VARINT)
+            .add(3, "secure", TxtRecordCodec.Type.BOOLEAN)
+            .add(4, "name", TxtRecordCodec.Type.STRING)
+            .add(TxtRecordCodec.MAX_TAG, "offset", TxtRecordCodec.Type.VARINT);
+
+    @Test
+    public void roundTripsEveryType() {
+        Map<String, String> txtRecord = SCHEMA.encoder().putHex("id", "00112233aabbccdd").putLong("port", 8080)
+                .putBoolean("secure", true).putString("name", "Wohnzimmer \u00fc").putLong("offset", -42)
+                .toTxtRecord();
+        TxtRecordCodec.Record record = SCHEMA.decode(txtRecord);
+
+        assertEquals(Collections.singleton(TxtRecordCodec.KEY), txtRecord.keySet());
+        assertEquals("00112233aabbccdd", record.getHex("id"));
+        assertEquals(8080, record.getLong("port", 0));
+        assertTrue(record.getBoolean("secure", false));
+        assertEquals("Wohnzimmer \u00fc", record.getString("name"));
+        assertEquals(-42, record.getLong("offset", 0));
+        ByteBuffer id = record.getBytes("id");
+        assertEquals(8, id.remaining());
+        assertTrue(id.isReadOnly());
+    }
+
+    @Test
+    public void roundTripsExtremeNumbers() {
+        for (long value : new long[] { 0, 1, -1, 63, -64, 64, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE }) {
+            TxtRecordCodec.Record record = SCHEMA.decode(SCHEMA.encoder().putLong("port", value).toTxtRecord());
+            assertEquals(value, record.getLong("port", 7));
+        }
+    }
+
+    @Test
+    public void missingAttributesHaveTheirDefaults() {
+        TxtRecordCodec.Record record = SCHEMA.decode(SCHEMA.encoder().putLong("port", 1).toTxtRecord());
+        assertFalse(record.has("id"));
+        assertNull(record.getHex("id"));
+        assertNull(record.getString("name"));
+        assertNull(record.getBytes("name"));
+        assertEquals(5, record.getLong("offset", 5));
+        assertFalse(record.getBoolean("secure", false));
+    }
+
+    @Test
+    public void recordWithoutEncodedAttributesDecodesToNull() {
+        assertNull(SCHEMA.decode(Collections.singletonMap("DeviceID", "abc")));
+    }
+
+    @Test
+    public void unknownTagsAreSkipped() {
+        TxtRecordCodec.Schema newer = new TxtRecordCodec.Schema().add(2, "port", TxtRecordCodec.Type.VARINT)
+                .add(9, "extra", TxtRecordCodec.Type.STRING);
+        Map<String, String> txtRecord = newer.encoder().putString("extra", "ignored").putLong("port", 99)
+                .toTxtRecord();
+        assertEquals(99, SCHEMA.decode(txtRecord).getLong("port", 0));
+    }
+
+    @Test
+    public void largeRecordsAreSplitIntoEntriesOf255Bytes() {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            name.append((char) ('a' + i % 26));
+        }
+        Map<String, String> txtRecord = SCHEMA.encoder().putString("name", name.toString()).toTxtRecord();
+
+        assertTrue(txtRecord.size() > 1);
+        assertFalse(txtRecord.containsKey(TxtRecordCodec.KEY));
+        for (Map.Entry<String, String> entry : txtRecord.entrySet()) {
+            assertTrue(entry.getKey().length() + 1 + entry.getValue().length() <= TxtRecordCodec.MAX_ENTRY_BYTES);
+        }
+        TxtRecordCodec.checkBudget(txtRecord, Integer.MAX_VALUE);
+        assertEquals(name.toString(), SCHEMA.decode(txtRecord).getString("name"));
+    }
+
+    @Test
+    public void entryOf255BytesFits() {
+        TxtRecordCodec.checkBudget(Collections.singletonMap("k", repeat('x', 253)), Integer.MAX_VALUE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void entryOf256BytesIsRejected() {
+        TxtRecordCodec.checkBudget(Collections.singletonMap("k", repeat('x', 254)), Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void sizeCountsALengthBytePerEntry() {
+        Map<String, String> txtRecord = new HashMap<String, String>();
+        txtRecord.put("a", "12");
+        txtRecord.put("flag", null);
+        assertEquals(1 + 4 + 1 + 4, TxtRecordCodec.sizeOf(txtRecord));
+        TxtRecordCodec.checkBudget(txtRecord, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void recordOverTheBudgetIsRejected() {
+        Map<String, String> txtRecord = new HashMap<String, String>();
+        for (int i = 0; i < 4; i++) {
+            txtRecord.put("k" + i, repeat('x', 100));
+        }
+        TxtRecordCodec.checkBudget(txtRecord, TxtRecordCodec.RECOMMENDED_BYTES);
+    }
+
+    @Test
+    public void peerAttributesStayWithinTheRecommendedSize() {
+        Map<String, String> txtRecord = PeerAttributes.encode("00112233aabbccdd");
+        assertTrue(TxtRecordCodec.sizeOf(txtRecord) <= TxtRecordCodec.RECOMMENDED_BYTES);
+        DiscoveredService service = new DiscoveredService("Peer", "_test._tcp", null, null, 0, txtRecord);
+        assertEquals("00112233aabbccdd", PeerAttributes.getDeviceId(service));
+    }
+
+    @Test
+    public void malformedBase64DecodesToNothing() {
+        assertNull(SCHEMA.decode(Collections.singletonMap(TxtRecordCodec.KEY, "ab+c")));
+        assertNull(SCHEMA.decode(Collections.singletonMap(TxtRecordCodec.KEY, "abcde")));
+        assertNull(SCHEMA.decode(Collections.singletonMap(TxtRecordCodec.KEY, "\u00e9\u00e9")));
+    }
+
+    @Test
+    public void truncatedRecordKeepsTheAttributesBeforeTheCut() {
+        byte[] bytes = SCHEMA.encoder().putLong("port", 8080).putString("name", "truncated").toBytes();
+        for (int length = 0; length < bytes.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(bytes, 0, truncated, 0, length);
+            TxtRecordCodec.Record record = SCHEMA.decode(TxtRecordCodec.pack(truncated));
+            assertNotNull(record);
+            assertFalse(record.has("name"));
+            if (length >= 3) {
+                assertEquals(8080, record.getLong("port", 0));
+            }
+        }
+    }
+
+    @Test
+    public void randomBytesNeverThrow() {
+        Random random = new Random(13);
+        for (int i = 0; i < 10000; i++) {
+            byte[] bytes = new byte[random.nextInt(64)];
+            random.nextBytes(bytes);
+            TxtRecordCodec.Record record = SCHEMA.decode(TxtRecordCodec.pack(bytes));
+            record.getHex("id");
+            record.getLong("port", 0);
+            record.getBoolean("secure", false);
+            record.getString("name");
+            record.getLong("offset", 0);
+            record.toString();
+        }
+    }
+
+    @Test
+    public void base64RoundTrips() {
+        Random random = new Random(7);
+        for (int length = 0; length < 100; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            assertArrayEquals(bytes, TxtRecordCodec.decodeBase64(TxtRecordCodec.encodeBase64(bytes)));
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,388 @@
+package com.example.wificoms;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses the payloads of vendor-specific Wifi Direct service responses (see
+ * {@link android.net.wifi.p2p.WifiP2pManager.ServiceResponseListener}), so
+ * that peers can exchange application data without opening a socket.
+ *
+ * <p/>
+ *
+ * A payload that does not fit in a single response is split into fragments.
+ * Every fragment starts with a header of {@value #HEADER_LENGTH} bytes: the
+ * message ID, the index of the fragment and the number of fragments (all
+ * unsigned bytes). The fragments are reassembled per source device; a message
+ * whose fragments do not all arrive within the reassembly timeout is dropped,
+ * as is an incomplete message when the same device starts another one.
+ *
+ * <p/>
+ *
+ * The reassembled message is a sequence of elements in a pluggable
+ * {@link TlvFormat}, which are handed to the {@link Listener} as views of the
+ * message. Nothing is copied for messages of a single fragment, and the view
+ * is reused for all elements of a message, so parsing allocates next to
+ * nothing. Malformed responses are counted, and parsing stops at the first
+ * malformed element.
+ *
+ * <p/>
+ *
+ * Responses may be parsed on several workers at once: a message of a single
+ * fragment is parsed without taking the lock (unless its device has another
+ * message pending), and the lock is only held to reassemble fragments, never
+ * while the listener runs. Hence the listener must be thread-safe.
+ */
+public class VendorResponseParser {
+
+    /** Receives the elements of the messages. */
+    public interface Listener {
+
+        /**
+         * The specified device sent an element of the specified type. The
+         * value is a read-only view that is only valid during this call. This
+         * may be called on several threads at once.
+         */
+        void onElement(String deviceAddress, int type, ByteBuffer value);
+    }
+
+    /** How the type and length of an element are encoded. */
+    public interface TlvFormat {
+
+        /** Get the number of bytes of the type and length of an element. */
+        int headerLength();
+
+        /** Get the type of the element at the specified (absolute) position. */
+        int type(ByteBuffer buffer, int position);
+
+        /** Get the length of the value of the element at the specified (absolute) position. */
+        int length(ByteBuffer buffer, int position);
+    }
+
+    /** A one byte type, followed by a one byte length. */
+    public static final TlvFormat TYPE8_LENGTH8 = new TlvFormat() {
+
+        @Override
+        public int headerLength() {
+            return 2;
+        }
+
+        @Override
+        public int type(ByteBuffer buffer, int position) {
+            return buffer.get(position) & 0xFF;
+        }
+
+        @Override
+        public int length(ByteBuffer buffer, int position) {
+            return buffer.get(position + 1) & 0xFF;
+        }
+    };
+
+    /** A one byte type, followed by a two byte big-endian length. */
+    public static final TlvFormat TYPE8_LENGTH16 = new TlvFormat() {
+
+        @Override
+        public int headerLength() {
+            return 3;
+        }
+
+        @Override
+        public int type(ByteBuffer buffer, int position) {
+            return buffer.get(position) & 0xFF;
+        }
+
+        @Override
+        public int length(ByteBuffer buffer, int position) {
+            return buffer.getShort(position + 1) & 0xFFFF;
+        }
+    };
+
+    /** The fragments of a message of a device that were received so far. */
+    private static final class Reassembly {
+
+        private final int       messageId;
+        private final byte[][]  fragments;
+        private final long      startedAt;
+        private int             received    = 0;
+        private int             length      = 0;
+
+        Reassembly(int messageId, int count, long startedAt) {
+            this.messageId = messageId;
+            this.fragments = new byte[count][];
+            this.startedAt = startedAt;
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    /** The length of the header of every fragment. */
+    public static final int                     HEADER_LENGTH               = 3;
+
+    public static final long                    DEFAULT_REASSEMBLY_TIMEOUT  = 10 * 1000;
+    public static final int                     DEFAULT_MAX_DEVICES         = 64;
+
+    private final TaskScheduler                 scheduler;
+    private final TlvFormat                     format;
+    private final Map<String, Reassembly>       reassemblies                = new LinkedHashMap<String, Reassembly>();
+    private final AtomicLong                    messages                    = new AtomicLong();
+    private final AtomicLong                    elements                    = new AtomicLong();
+    private final AtomicLong                    malformed                   = new AtomicLong();
+    private final AtomicLong                    dropped                     = new AtomicLong();
+    private volatile Listener                   listener                    = null;
+    private volatile int                        pending                     = 0;
+    private long                                reassemblyTimeoutMillis     = DEFAULT_REASSEMBLY_TIMEOUT;
+    private int                                 maxDevices                  = DEFAULT_MAX_DEVICES;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Create a parser of elements in the specified format. The scheduler's
+     * clock is used for the reassembly timeout.
+     */
+    public VendorResponseParser(TaskScheduler scheduler, TlvFormat format) {
+        this.scheduler = scheduler;
+        this.format = format;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /** Get the number of messages that were parsed. */
+    public long getMessageCount() {
+        return messages.get();
+    }
+
+    /** Get the number of elements that were handed to the listener. */
+    public long getElementCount() {
+        return elements.get();
+    }
+
+    /** Get the number of malformed fragments and messages. */
+    public long getMalformedCount() {
+        return malformed.get();
+    }
+
+    /** Get the number of incomplete messages that were dropped. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** Get the number of devices whose messages are being reassembled. */
+    public int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Set how long the fragments of a message may take to arrive. */
+    public synchronized void setReassemblyTimeoutMillis(long reassemblyTimeoutMillis) {
+        this.reassemblyTimeoutMillis = reassemblyTimeoutMillis;
+    }
+
+    /** Set the number of devices whose messages may be reassembled at once. */
+    public synchronized void setMaxDevices(int maxDevices) {
+        this.maxDevices = maxDevices;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Parse the specified response of the specified device. This hands the
+     * elements to the listener if the response completes a message.
+     */
+    public void parse(String deviceAddress, byte[] response) {
+        if (response == null || response.length < HEADER_LENGTH) {
+            malformed.incrementAndGet();
+            return;
+        }
+        int messageId = response[0] & 0xFF;
+        int index = response[1] & 0xFF;
+        int count = response[2] & 0xFF;
+        ByteBuffer message;
+        if (index >= count) {
+            malformed.incrementAndGet();
+            return;
+        } else if (count == 1) {
+
+            /** The common case: parse the response in place, which drops a message the device left incomplete. */
+            if (pending > 0) {
+                synchronized (this) {
+                    expire();
+                    if (reassemblies.remove(deviceAddress) != null) {
+                        dropped.incrementAndGet();
+                    }
+                    pending = reassemblies.size();
+                }
+            }
+            message = ByteBuffer.wrap(response, HEADER_LENGTH, response.length - HEADER_LENGTH);
+        } else {
+            message = reassemble(deviceAddress, messageId, index, count, response);
+            if (message == null) {
+                return;
+            }
+        }
+        parseMessage(deviceAddress, message);
+    }
+
+    /** Forget the fragments that were received so far. */
+    public synchronized void clear() {
+        dropped.addAndGet(reassemblies.size());
+        reassemblies.clear();
+        pending = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "VendorResponseParser: messages: " + messages + ", elements: " + elements + ", malformed: "
+                + malformed + ", dropped: " + dropped + ", pending: " + pending;
+    }
+
+    /**
+     * Add the specified fragment to the message of the specified device, and
+     * return the message if that completed it, or null if not.
+     */
+    private synchronized ByteBuffer reassemble(String deviceAddress, int messageId, int index, int count,
+            byte[] response) {
+        expire();
+
+        /** Start over if this is another message than the one being reassembled. */
+        Reassembly reassembly = reassemblies.get(deviceAddress);
+        if (reassembly != null && (reassembly.messageId != messageId || reassembly.fragments.length != count)) {
+            reassemblies.remove(deviceAddress);
+            dropped.incrementAndGet();
+            reassembly = null;
+        }
+        if (reassembly == null) {
+            if (reassemblies.size() >= maxDevices) {
+                Iterator<Reassembly> eldest = reassemblies.values().iterator();
+                eldest.next();
+                eldest.remove();
+                dropped.incrementAndGet();
+            }
+            reassembly = new Reassembly(messageId, count, scheduler.now());
+            reassemblies.put(deviceAddress, reassembly);
+        }
+        if (reassembly.fragments[index] == null) {
+            reassembly.fragments[index] = response;
+            reassembly.received++;
+            reassembly.length += response.length - HEADER_LENGTH;
+        }
+        ByteBuffer message = null;
+        if (reassembly.received == count) {
+            reassemblies.remove(deviceAddress);
+            message = ByteBuffer.allocate(reassembly.length);
+            for (byte[] fragment : reassembly.fragments) {
+                message.put(fragment, HEADER_LENGTH, fragment.length - HEADER_LENGTH);
+            }
+            message.flip();
+        }
+        pending = reassemblies.size();
+        return message;
+    }
+
+    /**
+     * Hand the elements between the position and the limit of the specified
+     * message to the listener, through a single reused view.
+     */
+    private void parseMessage(String deviceAddress, ByteBuffer message) {
+        messages.incrementAndGet();
+        Listener target = listener;
+        ByteBuffer view = message.asReadOnlyBuffer();
+        int position = message.position();
+        int end = message.limit();
+        int header = format.headerLength();
+        int parsed = 0;
+        try {
+            while (position < end) {
+                if (end - position < header) {
+                    malformed.incrementAndGet();
+                    return;
+                }
+                int type = format.type(message, position);
+                int length = format.length(message, position);
+                if (length < 0 || length > end - position - header) {
+                    malformed.incrementAndGet();
+                    return;
+                }
+                parsed++;
+                if (target != null) {
+                    view.limit(position + header + length).position(position + header);
+                    target.onElement(deviceAddress, type, view);
+                }
+                position += header + length;
+            }
+        } finally {
+            elements.addAndGet(parsed);
+        }
+    }
+
+    /** Drop the messages whose fragments took too long. The caller must hold the lock. */
+    private void expire() {
+        long now = scheduler.now();
+        for (Iterator<Reassembly> iterator = reassemblies.values().iterator(); iterator.hasNext();) {
+            if (now - iterator.next().startedAt < reassemblyTimeoutMillis) {
+                return;
+            }
+            iterator.remove();
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Split the specified elements into fragments of at most the specified
+     * size (including the header), the way {@link #parse(String, byte[])}
+     * expects them.
+     */
+    public static List<byte[]> fragment(int messageId, byte[] message, int maxFragmentLength) {
+        int chunk = maxFragmentLength - HEADER_LENGTH;
+        int count = Math.max(1, (message.length + chunk - 1) / chunk);
+        if (chunk <= 0 || count > 255) {
+            throw new IllegalArgumentException("Cannot split " + message.length + " bytes into fragments of "
+                    + maxFragmentLength);
+        }
+        List<byte[]> fragments = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            int length = Math.min(chunk, message.length - i * chunk);
+            byte[] fragment = new byte[HEADER_LENGTH + length];
+            fragment[0] = (byte) messageId;
+            fragment[1] = (byte) i;
+            fragment[2] = (byte) count;
+            System.arraycopy(message, i * chunk, fragment, HEADER_LENGTH, length);
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+}
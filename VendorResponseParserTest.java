@@ -0,0 +1,214 @@
+package com.example.wificoms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Checks the {@link VendorResponseParser}: reassembly, the timeouts, and that
+ * arbitrary (random or truncated) responses never make it throw.
+ */
+public class VendorResponseParserTest {
+
+    /** Collects the elements that the parser hands out. */
+    private static final class Collector implements VendorResponseParser.Listener {
+
+        private final List<byte[]>  values  = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        @Override
+        public void onElement(String deviceAddress, int type, ByteBuffer value) {
+            byte[] copy = new byte[value.remaining()];
+            value.duplicate().get(copy);
+            values.add(copy);
+        }
+    }
+
+    private final VirtualTaskScheduler  scheduler   = new VirtualTaskScheduler();
+    private final Collector             collector   = new Collector();
+
+    @Test
+    public void parsesSingleFragment() {
+        VendorResponseParser parser = parser(VendorResponseParser.TYPE8_LENGTH8);
+        byte[] message = elements(new byte[] { 1, 2 }, new byte[0], new byte[] { 3 });
+
+        parser.parse("a", VendorResponseParser.fragment(7, message, 255).get(0));
+
+        assertEquals(1, parser.getMessageCount());
+        assertEquals(3, parser.getElementCount());
+        assertArrayEquals(new byte[] { 1, 2 }, collector.values.get(0));
+        assertArrayEquals(new byte[0], collector.values.get(1));
+        assertArrayEquals(new byte[] { 3 }, collector.values.get(2));
+    }
+
+    @Test
+    public void reassemblesFragmentsInAnyOrder() {
+        VendorResponseParser parser = parser(VendorResponseParser.TYPE8_LENGTH8);
+        byte[] message = elements(new byte[40], new byte[100], new byte[7]);
+        List<byte[]> fragments = VendorResponseParser.fragment(3, message, 20);
+        Collections.shuffle(fragments, new Random(1));
+
+        for (int i = 0; i < fragments.size(); i++) {
+            assertEquals(0, parser.getMessageCount());
+            parser.parse("a", fragments.get(i));
+        }
+
+        assertEquals(1, parser.getMessageCount());
+        assertEquals(3, parser.getElementCount());
+        assertEquals(100, collector.values.get(1).length);
+        assertEquals(0, parser.getPendingCount());
+    }
+
+    @Test
+    public void dropsMessagesThatTakeTooLong() {
+        VendorResponseParser parser = parser(VendorResponseParser.TYPE8_LENGTH8);
+        List<byte[]> fragments = VendorResponseParser.fragment(3, elements(new byte[40]), 20);
+
+        parser.parse("a", fragments.get(0));
+        scheduler.advance(VendorResponseParser.DEFAULT_REASSEMBLY_TIMEOUT + 1);
+        parser.parse("b", fragments.get(0));
+
+        assertEquals(1, parser.getDroppedCount());
+        assertEquals(1, parser.getPendingCount());
+        assertEquals(0, parser.getMessageCount());
+    }
+
+    @Test
+    public void singleFragmentDropsIncompleteMessage() {
+        VendorResponseParser parser = parser(VendorResponseParser.TYPE8_LENGTH8);
+        List<byte[]> fragments = VendorResponseParser.fragment(3, elements(new byte[40]), 20);
+
+        parser.parse("a", fragments.get(0));
+        parser.parse("a", VendorResponseParser.fragment(4, elements(new byte[1]), 255).get(0));
+
+        assertEquals(1, parser.getDroppedCount());
+        assertEquals(0, parser.getPendingCount());
+        assertEquals(1, parser.getMessageCount());
+    }
+
+    @Test
+    public void randomResponsesNeverThrow() {
+        Random random = new Random(42);
+        for (VendorResponseParser.TlvFormat format : formats()) {
+            VendorResponseParser parser = parser(format);
+            parser.setMaxDevices(4);
+            for (int i = 0; i < 20000; i++) {
+                byte[] response = new byte[random.nextInt(64)];
+                random.nextBytes(response);
+                if (response.length > 2 && random.nextBoolean()) {
+
+                    /** Keep the header plausible half of the time, so the fragments get reassembled too. */
+                    response[2] = (byte) (1 + random.nextInt(3));
+                    response[1] = (byte) random.nextInt(4);
+                }
+                parser.parse("device" + random.nextInt(8), response);
+            }
+            parser.parse("device", null);
+            assertTrue(parser.getMalformedCount() > 0);
+        }
+    }
+
+    @Test
+    public void truncatedResponsesNeverThrow() {
+        for (VendorResponseParser.TlvFormat format : formats()) {
+            VendorResponseParser parser = parser(format);
+            byte[] message = format == VendorResponseParser.TYPE8_LENGTH8 ? elements(new byte[30], new byte[5])
+                    : wideElements(new byte[300], new byte[5]);
+            for (byte[] fragment : VendorResponseParser.fragment(9, message, 64)) {
+                for (int length = 0; length <= fragment.length; length++) {
+                    parser.clear();
+                    parser.parse("a", Arrays.copyOf(fragment, length));
+                }
+            }
+            byte[] single = VendorResponseParser.fragment(9, message, 1024).get(0);
+            long malformed = parser.getMalformedCount();
+            for (int length = 0; length < single.length; length++) {
+                parser.parse("a", Arrays.copyOf(single, length));
+            }
+
+            /** Every truncation but those that end exactly between elements is malformed. */
+            assertTrue(parser.getMalformedCount() - malformed >= single.length - 2);
+        }
+    }
+
+    @Test
+    public void parsesOnSeveralThreads() throws InterruptedException {
+        final VendorResponseParser parser = parser(VendorResponseParser.TYPE8_LENGTH16);
+        final byte[] single = VendorResponseParser.fragment(1, wideElements(new byte[10], new byte[20]), 255).get(0);
+        final List<byte[]> fragments = VendorResponseParser.fragment(2, wideElements(new byte[300]), 100);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String device = "device" + t;
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 1000; i++) {
+                            parser.parse(device, single);
+                            for (byte[] fragment : fragments) {
+                                parser.parse(device, fragment);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(null, failure.get());
+        assertEquals(threads.length * 2000, parser.getMessageCount());
+        assertEquals(threads.length * 3000, parser.getElementCount());
+        assertEquals(0, parser.getMalformedCount());
+        assertEquals(0, parser.getDroppedCount());
+    }
+
+    private VendorResponseParser parser(VendorResponseParser.TlvFormat format) {
+        VendorResponseParser parser = new VendorResponseParser(scheduler, format);
+        parser.setListener(collector);
+        return parser;
+    }
+
+    private static List<VendorResponseParser.TlvFormat> formats() {
+        return Arrays.asList(VendorResponseParser.TYPE8_LENGTH8, VendorResponseParser.TYPE8_LENGTH16);
+    }
+
+    /** Encode the specified values as elements with an 8-bit type and length. */
+    private static byte[] elements(byte[]... values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < values.length; i++) {
+            out.write(i);
+            out.write(values[i].length);
+            out.write(values[i], 0, values[i].length);
+        }
+        return out.toByteArray();
+    }
+
+    /** Encode the specified values as elements with an 8-bit type and a 16-bit length. */
+    private static byte[] wideElements(byte[]... values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < values.length; i++) {
+            out.write(i);
+            out.write(values[i].length >>> 8);
+            out.write(values[i].length);
+            out.write(values[i], 0, values[i].length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.wificoms;
+
+import java.util.PriorityQueue;
+
+/**
+ * A {@link TaskScheduler} driven by a virtual clock. Time only moves when
+ * {@link #advance(long)} or {@link #runUntilIdle()} is called, and the due
+ * tasks are then run on the calling thread in the order of their due time (and
+ * of scheduling, for tasks that are due at the same time). This makes
+ * everything that runs on this scheduler deterministic, which is what you want
+ * when simulating or benchmarking the discovery logic on a plain JVM.
+ */
+public class VirtualTaskScheduler implements TaskScheduler {
+
+    /** A scheduled task. */
+    private static final class Task implements Cancellable, Comparable<Task> {
+
+        private final Runnable   runnable;
+        private final long       dueTime;
+        private final long       sequence;
+        private volatile boolean cancelled  = false;
+
+        Task(Runnable runnable, long dueTime, long sequence) {
+            this.runnable = runnable;
+            this.dueTime = dueTime;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (dueTime != other.dueTime) {
+                return dueTime < other.dueTime ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private final PriorityQueue<Task>   tasks       = new PriorityQueue<Task>();
+    private long                        now         = 0;
+    private long                        sequence    = 0;
+    private long                        executed    = 0;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    @Override
+    public synchronized long now() {
+        return now;
+    }
+
+    /** Get the number of tasks that are scheduled but did not run yet. */
+    public synchronized int getPendingCount() {
+        return tasks.size();
+    }
+
+    /** Get the number of tasks that ran so far. */
+    public synchronized long getExecutedCount() {
+        return executed;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    @Override
+    public synchronized Cancellable schedule(Runnable task, long delayMillis) {
+        Task scheduled = new Task(task, now + Math.max(0, delayMillis), sequence++);
+        tasks.add(scheduled);
+        return scheduled;
+    }
+
+    /**
+     * Move the clock forward by the specified number of milliseconds, running
+     * every task that becomes due along the way (including the ones that are
+     * scheduled by those tasks).
+     */
+    public void advance(long millis) {
+        long target;
+        synchronized (this) {
+            target = now + millis;
+        }
+        while (runNext(target)) {
+            // Keep going until nothing is due anymore.
+        }
+        synchronized (this) {
+            now = Math.max(now, target);
+        }
+    }
+
+    /** Run tasks, moving the clock forward as needed, until there are no more tasks. */
+    public void runUntilIdle() {
+        while (runNext(Long.MAX_VALUE)) {
+            // Keep going until there are no more tasks.
+        }
+    }
+
+    /**
+     * Run the next task if it is due at or before the specified time, moving
+     * the clock forward to its due time. Return whether a task was run.
+     */
+    private boolean runNext(long limit) {
+        Task task;
+        synchronized (this) {
+            do {
+                task = tasks.peek();
+                if (task == null || task.dueTime > limit) {
+                    return false;
+                }
+                tasks.poll();
+            } while (task.cancelled);
+            now = Math.max(now, task.dueTime);
+            executed++;
+        }
+        task.runnable.run();
+        return true;
+    }
+}
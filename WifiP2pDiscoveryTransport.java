@@ -0,0 +1,619 @@
+package com.example.wificoms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import android.content.Context;
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.WifiP2pManager.ActionListener;
+import android.net.wifi.p2p.WifiP2pManager.Channel;
+import android.net.wifi.p2p.WifiP2pManager.DnsSdServiceResponseListener;
+import android.net.wifi.p2p.WifiP2pManager.DnsSdTxtRecordListener;
+import android.net.wifi.p2p.WifiP2pManager.ServiceResponseListener;
+import android.net.wifi.p2p.WifiP2pManager.UpnpServiceResponseListener;
+import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceRequest;
+import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+import android.net.wifi.p2p.nsd.WifiP2pUpnpServiceRequest;
+import android.os.Build;
+import android.os.Looper;
+
+/**
+ * A {@link DiscoveryTransport} backed by the {@link WifiP2pManager}, i.e.
+ * Network Service Discovery enabled by Wifi Direct.
+ *
+ * <p/>
+ *
+ * Wifi Direct reports the Bonjour service and its TXT record as two separate
+ * responses, in either order. A {@link DnsSdResponseCorrelator} joins them
+ * per device and domain, so that a service is reported as found only once its
+ * TXT record is known too (or the correlator gave up waiting for it). Since
+ * TXT records are sent without being asked for,
+ * {@link #resolveService(DiscoveredService)} simply reports the TXT record
+ * that was remembered for the service, and fails right away if there is none
+ * (instead of leaving the resolve to time out), since the TXT record is
+ * reported as resolved by itself once it arrives. A TXT record without a
+ * service response is reported as resolved right away. Finally, Wifi Direct
+ * never reports that a service was lost, so the engine should expire the
+ * peers it does not see again (see
+ * {@link DiscoveryEngine#setPeerExpiryMillis(long)}).
+ *
+ * <p/>
+ *
+ * Since the service requests ask for every Bonjour service anyway, discovering
+ * several types costs a single set of listeners and requests on the one
+ * {@link Channel}: discovery is only started on the radio for the first type,
+ * and every response is reported with its own type. Vendor-specific responses
+ * are handed to a {@link VendorResponseParser}, on a pool of workers (see
+ * {@link DiscoveryExecutors}), since they may be large.
+ *
+ * <p/>
+ *
+ * The response listeners are set once per {@link Channel}, and the service
+ * requests and their listeners are created once. Discovery moves through the
+ * {@link State}s, so that a start while starting or running asks the radio for
+ * nothing, and a start while stopping is issued once the service requests are
+ * cleared, instead of stacking up requests.
+ *
+ * <p/>
+ *
+ * Every operation on the {@link Channel} goes through a
+ * {@link ChannelCommandPipeline}, which issues them one at a time and retries
+ * the ones the framework is too busy for. Discovering services is only issued
+ * once all of the service requests were acknowledged.
+ */
+public class WifiP2pDiscoveryTransport implements DiscoveryTransport {
+
+    /** A service request, which is also the operation that adds it. */
+    private final class ServiceRequest implements ChannelCommandPipeline.Operation {
+
+        private final WifiP2pServiceRequest request;
+
+        ServiceRequest(WifiP2pServiceRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public void issue(final ChannelCommandPipeline.Completion completion) {
+            getWifiP2pManager().addServiceRequest(getChannel(), request, new ActionListener() {
+
+                @Override
+                public void onSuccess() {
+                    callback.onMessage("addServiceRequest.onSuccess() for requests of type: "
+                            + request.getClass().getSimpleName());
+                    completion.onSuccess();
+                }
+
+                @Override
+                public void onFailure(int code) {
+                    callback.onMessage("addServiceRequest.onFailure: " + code + ", for requests of type: "
+                            + request.getClass().getSimpleName());
+                    completion.onFailure(code);
+                }
+            });
+        }
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Private Fields
+     *
+     * ---------------------------------------------
+     */
+    private static final int                    MAX_TXT_RECORDS = 256;
+
+    private final Context                       context;
+    private final Looper                        looper;
+    private final Executor                      workers;
+    private final DnsSdResponseCorrelator       correlator;
+    private final VendorResponseParser          vendorResponseParser;
+    private final ChannelCommandPipeline        pipeline;
+    private volatile Callback                   callback        = null;
+    private WifiP2pManager                      wifiP2pManager  = null;
+    private Channel                             channel         = null;
+    private final Map<String, DiscoveredService> txtRecords;
+    private final Map<String, WifiP2pServiceInfo> localServices;
+    private final Set<String>                   discoveryTypes;
+    private final List<ServiceRequest>          serviceRequests;
+    private State                               state           = State.IDLE;
+    private boolean                             startPending    = false;
+    private boolean                             stopPending     = false;
+
+    /**
+     * ---------------------------------------------
+     *
+     * Constructors
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Create a transport whose {@link DnsSdResponseCorrelator} waits for the
+     * other half of a response on the specified scheduler. Everything runs on
+     * the main thread.
+     */
+    public WifiP2pDiscoveryTransport(Context context, TaskScheduler scheduler) {
+        this(context, scheduler, context.getMainLooper(), DiscoveryExecutors.mainThread().getWorkers());
+    }
+
+    /**
+     * Create a transport whose {@link Channel} calls back on the specified
+     * looper, and which parses vendor-specific responses on the specified
+     * workers. The scheduler should run its tasks on the same looper.
+     */
+    public WifiP2pDiscoveryTransport(Context context, TaskScheduler scheduler, Looper looper, Executor workers) {
+        this.context = context.getApplicationContext();
+        this.looper = looper;
+        this.workers = workers;
+        this.localServices = new HashMap<String, WifiP2pServiceInfo>();
+        this.discoveryTypes = new LinkedHashSet<String>();
+        this.vendorResponseParser = new VendorResponseParser(scheduler, VendorResponseParser.TYPE8_LENGTH16);
+        this.pipeline = new ChannelCommandPipeline(scheduler);
+
+        /** Ask for all possible types of services. */
+        this.serviceRequests = new ArrayList<ServiceRequest>();
+        serviceRequests.add(new ServiceRequest(WifiP2pServiceRequest.newInstance(
+                WifiP2pServiceInfo.SERVICE_TYPE_ALL)));
+        serviceRequests.add(new ServiceRequest(WifiP2pDnsSdServiceRequest.newInstance()));
+        serviceRequests.add(new ServiceRequest(WifiP2pUpnpServiceRequest.newInstance()));
+        this.correlator = new DnsSdResponseCorrelator(scheduler, new DnsSdResponseCorrelator.Listener() {
+
+            @Override
+            public void onPeerRecord(DnsSdResponseCorrelator.PeerRecord record) {
+                report(record);
+            }
+        });
+
+        /** Remember the most recent TXT records, in case they arrive first. */
+        this.txtRecords = new LinkedHashMap<String, DiscoveredService>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DiscoveredService> eldest) {
+                return size() > MAX_TXT_RECORDS;
+            }
+        };
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Getters
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Get the {@link WifiP2pManager}, creating a new instance if we don't have
+     * one yet.
+     */
+    private WifiP2pManager getWifiP2pManager() {
+        if (wifiP2pManager == null) {
+            setWifiP2pManager((WifiP2pManager) context.getSystemService(Context.WIFI_P2P_SERVICE));
+        }
+        return wifiP2pManager;
+    }
+
+    /** Get the state of the discovery, which covers every type. */
+    public synchronized State getDiscoveryState() {
+        return state;
+    }
+
+    /**
+     * Get the {@link Channel}, creating a new instance (with its response
+     * listeners) if we don't have one yet.
+     */
+    private Channel getChannel() {
+        if (channel == null) {
+            setChannel(getWifiP2pManager().initialize(context, looper, null));
+            setResponseListeners(channel);
+        }
+        return channel;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Setters
+     *
+     * ---------------------------------------------
+     */
+    private void setWifiP2pManager(WifiP2pManager wifiP2pManager) {
+        this.wifiP2pManager = wifiP2pManager;
+    }
+
+    private void setChannel(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * DiscoveryTransport Methods
+     *
+     * ---------------------------------------------
+     */
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public synchronized void registerService(final DiscoveredService service) {
+
+        /** Replace the previous service of the same type, if any. */
+        WifiP2pServiceInfo previous = localServices.remove(service.getServiceType());
+        if (previous != null) {
+            final WifiP2pServiceInfo removed = previous;
+            pipeline.submit("removeLocalService", new ChannelCommandPipeline.Operation() {
+
+                @Override
+                public void issue(ChannelCommandPipeline.Completion completion) {
+                    getWifiP2pManager().removeLocalService(getChannel(), removed, forward(completion));
+                }
+            });
+        }
+
+        /**
+         * Service information. Pass it an instance name, service type
+         * _protocol._transportlayer , and the map containing information other
+         * devices will want once they connect to this one.
+         */
+        final WifiP2pDnsSdServiceInfo serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(service.getServiceName(),
+                service.getServiceType(), new HashMap<String, String>(service.getAttributes()));
+        localServices.put(service.getServiceType(), serviceInfo);
+
+        /**
+         * Add the local service, sending the service info, network channel, and
+         * listener that will be used to indicate success or failure of the
+         * request. It is added once the previous one was removed.
+         */
+        final ChannelCommandPipeline.CommandFuture added = pipeline.submit("addLocalService",
+                new ChannelCommandPipeline.Operation() {
+
+                    @Override
+                    public void issue(ChannelCommandPipeline.Completion completion) {
+                        getWifiP2pManager().addLocalService(getChannel(), serviceInfo, forward(completion));
+                    }
+                });
+        added.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                if (added.isSuccess()) {
+                    callback.onServiceRegistered(service);
+                } else if (!added.isCancelled()) {
+                    callback.onRegistrationFailed(service, added.getErrorCode());
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized void unregisterService() {
+        pipeline.submit("clearLocalServices", new ChannelCommandPipeline.Operation() {
+
+            @Override
+            public void issue(ChannelCommandPipeline.Completion completion) {
+                getWifiP2pManager().clearLocalServices(getChannel(), forward(completion));
+            }
+        });
+        localServices.clear();
+    }
+
+    @Override
+    public synchronized void startServiceDiscovery(String serviceType) {
+        if (!discoveryTypes.add(serviceType)) {
+            return;
+        }
+        stopPending = false;
+        switch (state) {
+        case IDLE:
+            startDiscovery();
+            break;
+        case RUNNING:
+
+            /** The responses of this type are already being asked for. */
+            callback.onDiscoveryStarted(serviceType);
+            break;
+        case STOPPING:
+            startPending = true;
+            break;
+        default:
+
+            /** The type is reported along with the others once discovery started. */
+            break;
+        }
+    }
+
+    @Override
+    public synchronized void stopServiceDiscovery() {
+        discoveryTypes.clear();
+        startPending = false;
+        correlator.flush();
+        vendorResponseParser.clear();
+        if (state == State.RUNNING) {
+            state = State.STOPPING;
+            clearServiceRequests();
+        } else if (state == State.STARTING) {
+            stopPending = true;
+        }
+    }
+
+    /**
+     * TXT records are sent without being asked for, so there is only something
+     * to do if the TXT record of the specified service already arrived. If it
+     * did not, it is reported as resolved once it does.
+     */
+    @Override
+    public void resolveService(DiscoveredService service) {
+        DiscoveredService resolved;
+        synchronized (txtRecords) {
+            resolved = txtRecords.get(service.getKey());
+        }
+        if (resolved != null) {
+            callback.onServiceResolved(resolved);
+        } else {
+            callback.onResolveFailed(service, DiscoveryRecovery.P2P_ERROR);
+        }
+    }
+
+    /**
+     * Clear the local services and stop discovering, and then close the
+     * {@link Channel}. This goes through the pipeline, after the operations
+     * that were submitted before (e.g. by {@link #unregisterService()}), so
+     * those still reach the old channel, and the discovery winds down through
+     * its {@link State}s as usual. The operations that are submitted
+     * afterwards are issued on a new channel.
+     */
+    @Override
+    public synchronized void close() {
+        if (!localServices.isEmpty()) {
+            unregisterService();
+        }
+        stopServiceDiscovery();
+        pipeline.submit("closeChannel", new ChannelCommandPipeline.Operation() {
+
+            @Override
+            public void issue(ChannelCommandPipeline.Completion completion) {
+                closeChannel();
+                completion.onSuccess();
+            }
+        });
+    }
+
+    /**
+     * ---------------------------------------------
+     *
+     * Other Methods
+     *
+     * ---------------------------------------------
+     */
+    /**
+     * Get the parser of the vendor-specific service responses, e.g. to set the
+     * {@link VendorResponseParser.Listener} that receives their elements.
+     */
+    public VendorResponseParser getVendorResponseParser() {
+        return vendorResponseParser;
+    }
+
+    /** Get the correlator that joins the service responses and TXT records. */
+    public DnsSdResponseCorrelator getCorrelator() {
+        return correlator;
+    }
+
+    /** Get the pipeline through which the operations on the {@link Channel} are issued, e.g. for its latencies. */
+    public ChannelCommandPipeline getCommandPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Report a (joined or partial) response of the {@link DnsSdResponseCorrelator}.
+     * The TXT record is remembered first, so that the resolve the engine starts
+     * for a found service is answered right away.
+     */
+    private void report(DnsSdResponseCorrelator.PeerRecord record) {
+        DiscoveredService service = record.toService();
+        if (record.hasTxtRecord()) {
+            synchronized (txtRecords) {
+                txtRecords.put(service.getKey(), service);
+            }
+        }
+        if (record.hasService()) {
+            callback.onServiceFound(service);
+        } else {
+            callback.onServiceResolved(service);
+        }
+    }
+
+    /**
+     * Add the service requests, and start discovering services once all of
+     * them were acknowledged. If one of them fails, discovery is not started,
+     * and fails with its error code.
+     */
+    private void startDiscovery() {
+        state = State.STARTING;
+        ChannelCommandPipeline.Batch batch = pipeline.newBatch("startDiscovery");
+        for (ServiceRequest serviceRequest : serviceRequests) {
+            batch.add("addServiceRequest", serviceRequest);
+        }
+        batch.add("discoverServices", new ChannelCommandPipeline.Operation() {
+
+            @Override
+            public void issue(ChannelCommandPipeline.Completion completion) {
+                getWifiP2pManager().discoverServices(getChannel(), forward(completion));
+            }
+        });
+        final ChannelCommandPipeline.CommandFuture started = batch.submit();
+        started.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                if (started.isSuccess()) {
+                    callback.onMessage("startDiscovery acknowledged in " + started.getLatencyMillis() + " ms, "
+                            + pipeline);
+                    onDiscoverServicesSucceeded();
+                } else if (!started.isCancelled()) {
+                    onDiscoverServicesFailed(started.getErrorCode());
+                }
+            }
+        });
+    }
+
+    /** Clear the service requests, after the operations that were issued before. */
+    private void clearServiceRequests() {
+        final ChannelCommandPipeline.CommandFuture cleared = pipeline.submit("clearServiceRequests",
+                new ChannelCommandPipeline.Operation() {
+
+                    @Override
+                    public void issue(ChannelCommandPipeline.Completion completion) {
+                        getWifiP2pManager().clearServiceRequests(getChannel(), forward(completion));
+                    }
+                });
+        cleared.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                if (cleared.isCancelled()) {
+                    return;
+                } else if (!cleared.isSuccess()) {
+                    callback.onMessage("clearServiceRequests.onFailure: " + cleared.getErrorCode());
+                }
+                onServiceRequestsCleared();
+            }
+        });
+    }
+
+    /** Get a listener that tells the specified completion of the pipeline how an operation went. */
+    private static ActionListener forward(final ChannelCommandPipeline.Completion completion) {
+        return new ActionListener() {
+
+            @Override
+            public void onSuccess() {
+                completion.onSuccess();
+            }
+
+            @Override
+            public void onFailure(int code) {
+                completion.onFailure(code);
+            }
+        };
+    }
+
+    private void onDiscoverServicesSucceeded() {
+        List<String> types;
+        synchronized (this) {
+            if (state != State.STARTING) {
+                return;
+            }
+            state = State.RUNNING;
+            if (stopPending) {
+                stopPending = false;
+                stopServiceDiscovery();
+            }
+            types = new ArrayList<String>(discoveryTypes);
+        }
+        for (String type : types) {
+            callback.onDiscoveryStarted(type);
+        }
+    }
+
+    private void onDiscoverServicesFailed(int code) {
+        List<String> types;
+        synchronized (this) {
+
+            /** Clear the requests, so that the next start does not stack up another set. */
+            state = State.STOPPING;
+            stopPending = false;
+            clearServiceRequests();
+            types = new ArrayList<String>(discoveryTypes);
+            discoveryTypes.clear();
+        }
+        for (String type : types) {
+            callback.onStartDiscoveryFailed(type, code);
+        }
+    }
+
+    /** The service requests are gone, so discovery can start again if it was asked to. */
+    private synchronized void onServiceRequestsCleared() {
+        state = State.IDLE;
+        if (startPending) {
+            startPending = false;
+            startDiscovery();
+        }
+    }
+
+    /** Close the {@link Channel} (where the platform allows it) and forget it, along with the manager. */
+    private synchronized void closeChannel() {
+        Channel closing = channel;
+        setChannel(null);
+        setWifiP2pManager(null);
+        if (closing != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            closing.close();
+        }
+    }
+
+    /** Set the (long-lived) listeners of the responses on the specified channel. */
+    private void setResponseListeners(Channel channel) {
+
+        /** Setup listeners for vendor-specific services. */
+        getWifiP2pManager().setServiceResponseListener(channel, new ServiceResponseListener() {
+
+            @Override
+            public void onServiceAvailable(int protocolType, final byte[] responseData,
+                    final WifiP2pDevice srcDevice) {
+                if (protocolType == WifiP2pServiceInfo.SERVICE_TYPE_VENDOR_SPECIFIC) {
+                    workers.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            vendorResponseParser.parse(srcDevice.deviceAddress, responseData);
+                        }
+                    });
+                } else {
+                    callback.onMessage("onServiceAvailable: protocolType:" + protocolType + ", responseData: "
+                            + (responseData == null ? 0 : responseData.length) + " bytes, WifiP2pDevice: "
+                            + srcDevice.toString());
+                }
+            }
+        });
+
+        /** Setup listeners for the Bonjour services */
+        getWifiP2pManager().setDnsSdResponseListeners(channel, new DnsSdServiceResponseListener() {
+            @Override
+            public void onDnsSdServiceAvailable(String instanceName, String registrationType,
+                    WifiP2pDevice wifiDirectDevice) {
+                correlator.onServiceResponse(instanceName, registrationType, wifiDirectDevice.deviceAddress);
+            }
+        }, new DnsSdTxtRecordListener() {
+
+            @Override
+            public void onDnsSdTxtRecordAvailable(String fullDomain, Map<String, String> record,
+                    WifiP2pDevice device) {
+                if (fullDomain.indexOf("._") < 0) {
+                    callback.onMessage("onDnsSdTxtRecordAvailable: Malformed fullDomain: " + fullDomain);
+                    return;
+                }
+                correlator.onTxtRecord(fullDomain, record, device.deviceAddress);
+            }
+        });
+
+        /** Setup listeners for Upnp services */
+        getWifiP2pManager().setUpnpServiceResponseListener(channel, new UpnpServiceResponseListener() {
+
+            @Override
+            public void onUpnpServiceAvailable(List<String> uniqueServiceNames, WifiP2pDevice srcDevice) {
+                callback.onMessage("onUpnpServiceAvailable: uniqueServiceNames:" + uniqueServiceNames.toString()
+                        + ", WifiP2pDevice: " + srcDevice.toString());
+            }
+        });
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.wificoms;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Appends an entry to a {@link LogSink} whose history is full, versus the
+ * length of the history, with a renderer that hands what it is asked to show
+ * to the {@link Blackhole}. Once the history is full, every append also drops
+ * the oldest entry, which is the steady state of a long session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LogAppendBenchmark {
+
+    private static final int    ENTRIES = 1024;
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int                  history;
+
+    private String[]            entries;
+    private LogSink             logSink;
+    private int                 next;
+
+    @Setup(Level.Trial)
+    public void fill(final Blackhole blackhole) {
+        entries = new String[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            entries[i] = "onServiceFound: Service from peer: name: NetworkServiceDiscoveryViaWifi " + i
+                    + ", type: _http._tcp.";
+        }
+        logSink = new LogSink(history);
+        logSink.attach(new LogSink.Renderer() {
+
+            @Override
+            public void append(CharSequence text) {
+                blackhole.consume(text);
+            }
+
+            @Override
+            public void replace(CharSequence text) {
+                blackhole.consume(text);
+            }
+        });
+        for (int i = 0; i < history; i++) {
+            logSink.add(entries[i % ENTRIES]);
+        }
+    }
+
+    @Benchmark
+    public void logAppend() {
+        logSink.add(entries[next]);
+        next = (next + 1) % ENTRIES;
+    }
+}
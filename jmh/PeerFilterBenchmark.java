@@ -0,0 +1,63 @@
+package com.example.wificoms;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A {@link PeerFilter} with the specified number of name substring and exact
+ * name rules checks services that are mostly foreign, as they are on a busy
+ * network. This replaced the {@code getServiceName().contains(...)} of every
+ * callback.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PeerFilterBenchmark {
+
+    private static final String     SERVICE_TYPE    = "_http._tcp.";
+    private static final String     SERVICE_NAME    = "NetworkServiceDiscoveryViaWifi";
+
+    @Param({ "1", "10", "100" })
+    public int                      rules;
+
+    private PeerFilter              filter;
+    private DiscoveredService[]     services;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        PeerFilter.Builder builder = PeerFilter.builder().addServiceType(SERVICE_TYPE);
+        for (int i = 0; i < rules; i++) {
+            builder.addNameSubstring(SERVICE_NAME + i + " ").addName("Printer " + i);
+        }
+        filter = builder.build();
+        services = new DiscoveredService[100];
+        for (int i = 0; i < services.length; i++) {
+            String name = i % 10 == 0 ? SERVICE_NAME + "0 " + i : "Living Room TV " + i;
+            services[i] = new DiscoveredService(name, i % 3 == 0 ? "_ipp._tcp." : SERVICE_TYPE);
+        }
+    }
+
+    /** Check 100 services. */
+    @Benchmark
+    public void accepts(Blackhole blackhole) {
+        for (DiscoveredService service : services) {
+            blackhole.consume(filter.accepts(service));
+        }
+    }
+}
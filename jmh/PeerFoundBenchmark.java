@@ -0,0 +1,96 @@
+package com.example.wificoms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The {@link DiscoveryEngine} handles a scan that finds the specified number
+ * of peer services (filtering, logging to a {@link LogDispatcher} like the
+ * Activities do, peer bookkeeping and resolve scheduling). Every invocation
+ * starts from a fresh engine, so that every peer is new to it; the time of an
+ * invocation divided by the number of peers is the cost of a callback, and
+ * the GC profiler's gc.alloc.rate.norm divided by it the allocation per
+ * callback.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PeerFoundBenchmark {
+
+    private static final String     SERVICE_TYPE    = "_http._tcp.";
+    private static final String     SERVICE_NAME    = "NetworkServiceDiscoveryViaWifi";
+
+    @Param({ "10", "100", "1000" })
+    public int                      peers;
+
+    private List<DiscoveredService> services;
+    private DiscoveryEngine         engine;
+    private LogDispatcher           logDispatcher;
+
+    @Setup(Level.Trial)
+    public void createServices() {
+        services = new ArrayList<DiscoveredService>();
+        for (int i = 0; i < peers; i++) {
+            services.add(new DiscoveredService(SERVICE_NAME + " " + i, SERVICE_TYPE));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createEngine() {
+        VirtualTaskScheduler scheduler = new VirtualTaskScheduler();
+        logDispatcher = new LogDispatcher(new LogSink(), new LogDispatcher.FlushScheduler() {
+
+            @Override
+            public void schedule(Runnable flush) {
+            }
+        });
+        engine = new DiscoveryEngine(new InMemoryDiscoveryTransport(scheduler), scheduler, SERVICE_TYPE,
+                SERVICE_NAME, new DiscoveryEngine.Listener() {
+
+                    @Override
+                    public void onPeerFound(DiscoveredService peer) {
+                    }
+
+                    @Override
+                    public void onPeerResolved(DiscoveredService peer) {
+                    }
+
+                    @Override
+                    public void onPeerLost(DiscoveredService peer) {
+                    }
+
+                    @Override
+                    public void onLog(String message) {
+                        logDispatcher.enqueue(message);
+                    }
+                });
+        engine.getResolveScheduler().setMaxConcurrent(Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void peerFound(Blackhole blackhole) {
+        for (DiscoveredService service : services) {
+            engine.onServiceFound(service);
+        }
+        logDispatcher.flush();
+        blackhole.consume(engine.getPeerTable().getVersion());
+    }
+}
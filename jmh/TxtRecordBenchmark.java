@@ -0,0 +1,74 @@
+package com.example.wificoms;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The cost of the TXT records of Wifi Direct peers: parsing the attributes
+ * that a peer advertises (see {@link PeerAttributes}), and merging the
+ * service response and TXT record of a peer with a
+ * {@link DnsSdResponseCorrelator} into a service, in either order, like the
+ * {@link WifiP2pDiscoveryTransport} does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TxtRecordBenchmark {
+
+    private static final String         TYPE            = "_presence._tcp.local.";
+    private static final String         INSTANCE_NAME   = "NetworkServiceDiscoveryViaWifi-3f2a";
+    private static final String         DOMAIN          = INSTANCE_NAME + "." + TYPE;
+    private static final String         ADDRESS         = "02:00:00:00:12:34";
+
+    private Map<String, String>         txtRecord;
+    private DiscoveredService           resolved;
+    private DnsSdResponseCorrelator     correlator;
+    private Blackhole                   blackhole;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        txtRecord = PeerAttributes.encode("00112233aabbccdd");
+        resolved = new DiscoveredService(INSTANCE_NAME, "_presence._tcp", ADDRESS, null, 0, txtRecord);
+        correlator = new DnsSdResponseCorrelator(new VirtualTaskScheduler(), new DnsSdResponseCorrelator.Listener() {
+
+            @Override
+            public void onPeerRecord(DnsSdResponseCorrelator.PeerRecord record) {
+                TxtRecordBenchmark.this.blackhole.consume(record.toService());
+            }
+        });
+    }
+
+    @Benchmark
+    public String parse() {
+        return PeerAttributes.getDeviceId(resolved);
+    }
+
+    @Benchmark
+    public void mergeServiceFirst() {
+        correlator.onServiceResponse(INSTANCE_NAME, TYPE, ADDRESS);
+        correlator.onTxtRecord(DOMAIN, txtRecord, ADDRESS);
+    }
+
+    @Benchmark
+    public void mergeTxtRecordFirst() {
+        correlator.onTxtRecord(DOMAIN, txtRecord, ADDRESS);
+        correlator.onServiceResponse(INSTANCE_NAME, TYPE, ADDRESS);
+    }
+}